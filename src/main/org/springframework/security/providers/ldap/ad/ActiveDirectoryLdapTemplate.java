@@ -13,20 +13,38 @@
  */
 package org.springframework.security.providers.ldap.ad;
 
+import java.io.IOException;
 import java.util.*;
 
-import javax.naming.NamingEnumeration;
+import javax.naming.*;
 import javax.naming.directory.*;
+import javax.naming.ldap.*;
 
 import org.apache.commons.logging.*;
 import org.springframework.ldap.NamingException;
+import org.springframework.ldap.UncategorizedLdapException;
 import org.springframework.ldap.core.*;
+import org.springframework.ldap.support.LdapUtils;
 import org.springframework.security.ldap.SpringSecurityLdapTemplate;
+import org.springframework.util.Assert;
 
 /**
  * ActiveDirectory equivalent of the SpringSecurityLdapTemplate class.
  * <p>
  * Simplifies ActiveDirectory access within Spring Security's ActiveDirectory-related services.
+ * <p>
+ * Searches without a DirContextProcessor use the paged results control (RFC 2696) with
+ * <tt>pageSize</tt> entries per page, so that searches returning more entries than the server's
+ * MaxPageSize (1000 for Active Directory) are complete. All pages are read over the same
+ * connection and every entry is passed to the callback handler as it arrives.
+ * <p>
+ * Large searches should use a {@link SearchResultVisitor}: the entries are passed to the visitor as
+ * the NamingEnumeration yields them, without being collected in a list, and the visitor can end the
+ * search early.
+ * <p>
+ * Active Directory returns at most MaxValRange (1500) values of a multi-valued attribute at once,
+ * as <code>attribute;range=0-1499</code>. <code>searchForSingleAttributeValues</code> and
+ * <code>readAttributeValues</code> read the remaining values with incremental range retrieval.
  *
  * @author Valery Tydykov
  *
@@ -47,15 +65,116 @@ public class ActiveDirectoryLdapTemplate extends SpringSecurityLdapTemplate {
         }
     }
 
+    /**
+     * NameClassPairCallbackHandler passing each entry to a SearchResultVisitor until the visitor
+     * asks to stop.
+     */
+    static class VisitingCallbackHandler implements NameClassPairCallbackHandler {
+        /**
+         * The DN searched in, relative to the base DN of the context source.
+         */
+        private final LdapName base;
+
+        /**
+         * Visitor of the entries.
+         */
+        private final SearchResultVisitor visitor;
+
+        /**
+         * True after the visitor asked to end the search.
+         */
+        private boolean stopped;
+
+        /**
+         * Constructor specifying base, visitor.
+         *
+         * @param base the DN searched in.
+         * @param visitor visitor of the entries.
+         */
+        VisitingCallbackHandler(final String base, final SearchResultVisitor visitor) {
+            Assert.notNull(visitor, "visitor must not be null");
+            this.base = LdapUtils.newLdapName(base);
+            this.visitor = visitor;
+        }
+
+        @Override
+        public void handleNameClassPair(final NameClassPair nameClassPair) {
+            if (!this.stopped) {
+                this.stopped = !this.visitor.visit(toEntry((SearchResult) nameClassPair));
+            }
+        }
+
+        /**
+         * Returns true after the visitor asked to end the search.
+         *
+         * @return true if the search should end.
+         */
+        boolean isStopped() {
+            return this.stopped;
+        }
+
+        /**
+         * Returns the entry of the search result: the object created by the object factory if the
+         * search returned objects, otherwise an adapter of the returned attributes whose DN, like
+         * that of the objects, is relative to the base DN of the context source.
+         *
+         * @param result search result.
+         * @return found entry.
+         */
+        private DirContextOperations toEntry(final SearchResult result) {
+            if (result.getObject() instanceof DirContextOperations) {
+                return (DirContextOperations) result.getObject();
+            }
+
+            if (!result.isRelative()) {
+                // e.g. an entry found through a referral
+                return new DirContextAdapter(result.getAttributes(),
+                    LdapUtils.newLdapName(result.getNameInNamespace()));
+            }
+
+            // the name of the result is relative to the DN searched in
+            return new DirContextAdapter(result.getAttributes(),
+                LdapUtils.prepend(LdapUtils.newLdapName(result.getName()), this.base));
+        }
+    }
+
+    /**
+     * Constant: attribute option of range retrieval.
+     */
+    private static final String RANGE_OPTION = ";range=";
+
+    /**
+     * Constant: returned by addValues if all values have been read.
+     */
+    private static final int COMPLETE = -1;
+
     /**
      * Logger for this class and subclasses.
      */
     protected final Log logger = LogFactory.getLog(this.getClass());
 
     /**
-     * Property: Default search controls.
+     * Property: Default search controls. Scope, time limit, count limit, alias dereferencing and
+     * returningObjFlag are used by searchForSingleAttributeValues, e.g. from a SearchProfile.
+     */
+    private SearchControls searchControls = new SearchControls();
+
+    /**
+     * Property: Number of entries per page of paged searches; 0 disables paging.
+     */
+    private int pageSize = 500;
+
+    /**
+     * Property: If true, PartialResultException (referrals not followed) ends the current page of
+     * a search silently; the following pages are still read.
+     */
+    private boolean ignorePartialResultException;
+
+    /**
+     * Property: If true, SizeLimitExceededException (more entries than the count limit) ends the
+     * search silently with the entries read so far, as in LdapTemplate.
      */
-    private final SearchControls searchControls = new SearchControls();
+    private boolean ignoreSizeLimitExceededException = true;
 
     /**
      * Constructor specifying contextSource.
@@ -66,6 +185,8 @@ public class ActiveDirectoryLdapTemplate extends SpringSecurityLdapTemplate {
         super(contextSource);
 
         this.searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        // ActiveDirectory - specific
+        this.searchControls.setReturningObjFlag(true);
     }
 
     /**
@@ -83,7 +204,15 @@ public class ActiveDirectoryLdapTemplate extends SpringSecurityLdapTemplate {
      */
     public List<Object> search(final String base, final String filter, final Object[] params,
             final SearchControls controls, final ContextMapper<Object> mapper) {
-        return search(base, filter, params, controls, mapper, new NullDirContextProcessor());
+        if (this.pageSize == 0) {
+            return search(base, filter, params, controls, mapper, new NullDirContextProcessor());
+        }
+
+        final ContextMapperCallbackHandler<Object> handler =
+                new ContextMapperCallbackHandler<Object>(mapper);
+        searchPaged(base, filter, params, controls, handler);
+
+        return handler.getList();
     }
 
     /**
@@ -138,40 +267,330 @@ public class ActiveDirectoryLdapTemplate extends SpringSecurityLdapTemplate {
         search(executor, handler, processor);
     }
 
+    /**
+     * Performs a search, passing each entry to visitor as it is read from the directory, until all
+     * entries are read or visitor returns false. Uses the paged results control unless pageSize is
+     * 0. Nothing is collected, so large searches run in memory independent of the result size.
+     *
+     * @param base the DN to search in.
+     * @param filter search filter to use.
+     * @param params parameters to substitute in the search filter.
+     * @param controls controls specified for the attribute.
+     * @param visitor visitor to which each found entry will be passed.
+     */
+    public void searchVisiting(final String base, final String filter, final Object[] params,
+            final SearchControls controls, final SearchResultVisitor visitor) {
+        searchPaged(base, filter, params, controls, new VisitingCallbackHandler(base, visitor));
+    }
+
+    /**
+     * Performs a search with the paged results control, reading all pages over one connection.
+     * Each entry is passed to handler as it is read, so only one page is held in memory. Falls back
+     * to a single search if paging is disabled or the context does not support controls.
+     *
+     * @param base the DN to search in.
+     * @param filter search filter to use.
+     * @param params parameters to substitute in the search filter.
+     * @param controls controls specified for the attribute.
+     * @param handler the NameClassPairCallbackHandler to which each found entry will be passed.
+     */
+    public void searchPaged(final String base, final String filter, final Object[] params,
+            final SearchControls controls, final NameClassPairCallbackHandler handler) {
+        executeReadOnly(new ContextExecutor<Object>() {
+            @Override
+            public Object executeWithContext(final DirContext ctx)
+                    throws javax.naming.NamingException {
+                if (ActiveDirectoryLdapTemplate.this.pageSize == 0
+                        || !(ctx instanceof LdapContext)) {
+                    handleResults(ctx.search(base, filter, params, controls), handler);
+                    return null;
+                }
+
+                final LdapContext ldapContext = (LdapContext) ctx;
+                try {
+                    byte[] cookie = null;
+                    int pages = 0;
+                    do {
+                        ldapContext.setRequestControls(new Control[] { new PagedResultsControl(
+                            ActiveDirectoryLdapTemplate.this.pageSize, cookie, Control.CRITICAL) });
+                        if (!handleResults(ctx.search(base, filter, params, controls), handler)) {
+                            break;
+                        }
+
+                        cookie = getPagedResultsCookie(ldapContext.getResponseControls());
+                        pages++;
+                    } while (cookie != null && cookie.length > 0);
+
+                    if (ActiveDirectoryLdapTemplate.this.logger.isDebugEnabled()) {
+                        ActiveDirectoryLdapTemplate.this.logger
+                            .debug("Paged search of " + filter + " read " + pages + " pages");
+                    }
+                } catch (final IOException e) {
+                    throw new UncategorizedLdapException("Could not create paged results control",
+                        e);
+                } finally {
+                    // the context may be pooled: do not leave the control on it
+                    ldapContext.setRequestControls(null);
+                }
+
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void setSearchControls(final SearchControls searchControls) {
+        super.setSearchControls(searchControls);
+        this.searchControls = searchControls;
+    }
+
+    @Override
+    public void setIgnorePartialResultException(final boolean ignore) {
+        super.setIgnorePartialResultException(ignore);
+        this.ignorePartialResultException = ignore;
+    }
+
+    @Override
+    public void setIgnoreSizeLimitExceededException(final boolean ignore) {
+        super.setIgnoreSizeLimitExceededException(ignore);
+        this.ignoreSizeLimitExceededException = ignore;
+    }
+
+    /**
+     * Getter for the pageSize property.
+     *
+     * @see pageSize
+     * @return the pageSize property.
+     */
+    public int getPageSize() {
+        return this.pageSize;
+    }
+
+    /**
+     * Setter for the pageSize property.
+     *
+     * @see pageSize
+     * @param pageSize the pageSize to set, 0 to disable paging.
+     */
+    public void setPageSize(final int pageSize) {
+        Assert.isTrue(pageSize >= 0, "pageSize must not be negative");
+        this.pageSize = pageSize;
+    }
+
     @Override
     public Set<String> searchForSingleAttributeValues(final String base, final String filter,
             final Object[] params, final String attributeName) {
         final Set<String> result = new HashSet<String>();
+        // entries whose values were truncated: DN and start of the next range
+        final Map<String, Integer> pendingRanges = new LinkedHashMap<String, Integer>();
 
-        final ContextMapper<Object> mapper = new ContextMapper<Object>() {
+        final SearchResultVisitor visitor = new SearchResultVisitor() {
             @Override
-            public Object mapFromContext(final Object ctx) {
-                final DirContextAdapter adapter = (DirContextAdapter) ctx;
-                // Get all values for attributeName
-                final String[] values = adapter.getStringAttributes(attributeName);
-                if (values == null || values.length == 0) {
+            public boolean visit(final DirContextOperations entry) {
+                final Attributes attributes = entry.getAttributes();
+                if (attributes.size() == 0) {
                     if (ActiveDirectoryLdapTemplate.this.logger.isDebugEnabled()) {
                         ActiveDirectoryLdapTemplate.this.logger
                             .debug("No attribute value found for '" + attributeName + "'");
                     }
-                } else {
-                    // return all values for attributeName
-                    result.addAll(Arrays.asList(values));
+
+                    return true;
                 }
 
-                return null;
+                // Get all values for attributeName returned by the search
+                try {
+                    final int nextStart = addValues(attributes, attributeName, result);
+                    if (nextStart != COMPLETE) {
+                        pendingRanges.put(entry.getDn().toString(), Integer.valueOf(nextStart));
+                    }
+                } catch (final javax.naming.NamingException e) {
+                    throw LdapUtils.convertLdapException(e);
+                }
+
+                return true;
             }
         };
 
         final SearchControls controls = new SearchControls();
         controls.setSearchScope(this.searchControls.getSearchScope());
+        controls.setTimeLimit(this.searchControls.getTimeLimit());
+        controls.setCountLimit(this.searchControls.getCountLimit());
+        controls.setDerefLinkFlag(this.searchControls.getDerefLinkFlag());
         controls.setReturningAttributes(new String[] { attributeName });
-        // ActiveDirectory - specific
-        controls.setReturningObjFlag(true);
+        controls.setReturningObjFlag(this.searchControls.getReturningObjFlag());
 
         // ActiveDirectory - specific
-        search(base, filter, params, controls, mapper);
+        searchVisiting(base, filter, params, controls, visitor);
+
+        if (!pendingRanges.isEmpty()) {
+            // after the search: the paged search holds its connection until it ends
+            executeReadOnly(new ContextExecutor<Object>() {
+                @Override
+                public Object executeWithContext(final DirContext ctx)
+                        throws javax.naming.NamingException {
+                    for (final Map.Entry<String, Integer> pendingRange : pendingRanges.entrySet()) {
+                        readRanges(ctx, pendingRange.getKey(), attributeName,
+                            pendingRange.getValue().intValue(), result);
+                    }
+
+                    return null;
+                }
+            });
+        }
 
         return result;
     }
+
+    /**
+     * Reads all values of a multi-valued attribute of one entry, using incremental range retrieval
+     * if the attribute has more values than the server returns at once.
+     *
+     * @param dn DN of the entry, relative to the base DN of the context source.
+     * @param attributeName name of the attribute, e.g. "member".
+     * @return values of the attribute.
+     */
+    public Set<String> readAttributeValues(final String dn, final String attributeName) {
+        final Set<String> values = new LinkedHashSet<String>();
+
+        executeReadOnly(new ContextExecutor<Object>() {
+            @Override
+            public Object executeWithContext(final DirContext ctx)
+                    throws javax.naming.NamingException {
+                readRanges(ctx, dn, attributeName, 0, values);
+                return null;
+            }
+        });
+
+        return values;
+    }
+
+    /**
+     * Passes the search results to handler and closes them.
+     *
+     * @param results search results.
+     * @param handler the NameClassPairCallbackHandler to which each result will be passed.
+     * @return false if the handler or the count limit ended the search.
+     * @throws javax.naming.NamingException if reading the results fails.
+     */
+    private boolean handleResults(final NamingEnumeration<SearchResult> results,
+            final NameClassPairCallbackHandler handler) throws javax.naming.NamingException {
+        try {
+            while (results.hasMore()) {
+                handler.handleNameClassPair(results.next());
+
+                if (handler instanceof VisitingCallbackHandler
+                        && ((VisitingCallbackHandler) handler).isStopped()) {
+                    // closing the results abandons the rest of the search
+                    this.logger.debug("Search ended by the visitor");
+                    return false;
+                }
+            }
+        } catch (final PartialResultException e) {
+            if (!this.ignorePartialResultException) {
+                throw e;
+            }
+
+            // the referral ends this page only: the response still carries the paging cookie
+            this.logger.debug("PartialResultException encountered and ignored", e);
+        } catch (final SizeLimitExceededException e) {
+            if (!this.ignoreSizeLimitExceededException) {
+                throw e;
+            }
+
+            // the count limit applies to the whole search: do not read the following pages
+            this.logger.debug("SizeLimitExceededException encountered and ignored", e);
+            return false;
+        } finally {
+            results.close();
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the cookie of the paged results response control.
+     *
+     * @param responseControls controls of the last response, may be null.
+     * @return cookie for the next page, null or empty if there are no more pages.
+     */
+    private static byte[] getPagedResultsCookie(final Control[] responseControls) {
+        if (responseControls != null) {
+            for (final Control control : responseControls) {
+                if (control instanceof PagedResultsResponseControl) {
+                    return ((PagedResultsResponseControl) control).getCookie();
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Reads the values of attributeName from start to the end, one range per request.
+     *
+     * @param ctx context to use.
+     * @param dn DN of the entry.
+     * @param attributeName name of the attribute.
+     * @param start index of the first value to read.
+     * @param values collection the values are added to.
+     * @throws javax.naming.NamingException if reading fails.
+     */
+    private static void readRanges(final DirContext ctx, final String dn,
+            final String attributeName, final int start, final Collection<String> values)
+            throws javax.naming.NamingException {
+        int nextStart = start;
+        while (nextStart != COMPLETE) {
+            final Attributes attributes = ctx.getAttributes(dn,
+                new String[] { attributeName + RANGE_OPTION + nextStart + "-*" });
+            nextStart = addValues(attributes, attributeName, values);
+        }
+    }
+
+    /**
+     * Adds the values of attributeName, returned whole or as a range, to values.
+     *
+     * @param attributes attributes returned by the server.
+     * @param attributeName name of the attribute, without options.
+     * @param values collection the values are added to.
+     * @return index of the first value not yet read, or COMPLETE.
+     * @throws javax.naming.NamingException if reading the values fails.
+     */
+    private static int addValues(final Attributes attributes, final String attributeName,
+            final Collection<String> values) throws javax.naming.NamingException {
+        final String name = attributeName.toLowerCase(Locale.ENGLISH);
+
+        final NamingEnumeration<? extends Attribute> all = attributes.getAll();
+        try {
+            while (all.hasMore()) {
+                final Attribute attribute = all.next();
+                final String id = attribute.getID().toLowerCase(Locale.ENGLISH);
+                if (!id.equals(name) && !id.startsWith(name + ';')) {
+                    continue;
+                }
+
+                final NamingEnumeration<?> attributeValues = attribute.getAll();
+                try {
+                    while (attributeValues.hasMore()) {
+                        values.add(attributeValues.next().toString());
+                    }
+                } finally {
+                    attributeValues.close();
+                }
+
+                // e.g. member;range=0-1499, or member;range=1500-* for the last range
+                final int rangeIndex = id.indexOf(RANGE_OPTION);
+                if (rangeIndex < 0) {
+                    return COMPLETE;
+                }
+
+                final String end = id.substring(id.indexOf('-', rangeIndex) + 1);
+
+                return "*".equals(end) ? COMPLETE : Integer.parseInt(end) + 1;
+            }
+        } finally {
+            all.close();
+        }
+
+        return COMPLETE;
+    }
 }
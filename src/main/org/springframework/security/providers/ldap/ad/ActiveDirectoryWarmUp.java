@@ -0,0 +1,435 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad;
+
+import java.util.*;
+
+import javax.naming.directory.SearchControls;
+
+import org.apache.commons.logging.*;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.ldap.support.LdapUtils;
+import org.springframework.security.providers.ldap.ad.dc.DomainControllerSelector;
+import org.springframework.security.providers.ldap.ad.pool.PooledRebindContextSource;
+import org.springframework.util.Assert;
+
+/**
+ * Warms up the LDAP connections and code paths when the application context starts, so the first
+ * logins after a deploy are not slower than the others. Opt-in: define it as a bean.
+ * <p>
+ * On start, in this order:
+ * <ul>
+ * <li>opens the <tt>minIdle</tt> service-account connections of each of <tt>pools</tt> (TCP and TLS
+ * handshakes, bind);</li>
+ * <li>probes each domain controller of <tt>domainControllerSelectors</tt>, measuring its latency;
+ * </li>
+ * <li>if <tt>serviceContextSource</tt> is set, runs <tt>syntheticIterations</tt> synthetic binds and
+ * group searches (<tt>groupSearchFilter</tt> in <tt>groupSearchBase</tt>, at most
+ * <tt>countLimit</tt> entries; a larger result is truncated, not an error) through it, using the
+ * same template as the authorities populator.
+ * More iterations compile more of the code paths before the first login.</li>
+ * </ul>
+ * A failed step is logged and the warm-up continues with the next one. <code>isReady()</code>
+ * returns true once the warm-up has finished; use it for the readiness check of rolling deploys.
+ * With <tt>asynchronous</tt> set, the warm-up runs on a background thread and does not delay the
+ * start of the application context.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class ActiveDirectoryWarmUp implements SmartLifecycle {
+    /**
+     * Logger for this class and subclasses.
+     */
+    protected final Log logger = LogFactory.getLog(this.getClass());
+
+    /**
+     * Property: If true the warm-up runs on a background thread.
+     */
+    private boolean asynchronous;
+
+    /**
+     * Property: Maximum number of entries returned by a synthetic group search.
+     */
+    private int countLimit = 10;
+
+    /**
+     * Property: Selectors whose domain controllers are probed.
+     */
+    private List<DomainControllerSelector> domainControllerSelectors = Collections.emptyList();
+
+    /**
+     * Property: Base DN of the synthetic group searches, relative to serviceContextSource.
+     */
+    private String groupSearchBase = "";
+
+    /**
+     * Property: Filter of the synthetic group searches.
+     */
+    private String groupSearchFilter = "(objectClass=group)";
+
+    /**
+     * Property: Attribute read by the synthetic group searches.
+     */
+    private String groupRoleAttribute = "cn";
+
+    /**
+     * Property: Phase of this lifecycle bean.
+     */
+    private int phase;
+
+    /**
+     * Property: Pools whose minimum idle connections are opened.
+     */
+    private List<PooledRebindContextSource> pools = Collections.emptyList();
+
+    /**
+     * Property: Context source used for the synthetic binds and searches; null skips them.
+     */
+    private ContextSource serviceContextSource;
+
+    /**
+     * Property: Number of synthetic binds and group searches.
+     */
+    private int syntheticIterations = 1;
+
+    /**
+     * True once the warm-up has finished.
+     */
+    private volatile boolean ready;
+
+    /**
+     * True between start() and stop().
+     */
+    private volatile boolean running;
+
+    @Override
+    public synchronized void start() {
+        if (this.running) {
+            return;
+        }
+
+        this.running = true;
+        if (!this.asynchronous) {
+            warmUp();
+            return;
+        }
+
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                warmUp();
+            }
+        }, "ldap-warm-up");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void stop() {
+        this.running = false;
+    }
+
+    @Override
+    public void stop(final Runnable callback) {
+        stop();
+        callback.run();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return this.running;
+    }
+
+    @Override
+    public boolean isAutoStartup() {
+        return true;
+    }
+
+    /**
+     * Returns true once the warm-up has finished, successfully or not.
+     *
+     * @return true if the first logins will not pay for the warm-up.
+     */
+    public boolean isReady() {
+        return this.ready;
+    }
+
+    /**
+     * Runs the warm-up steps and sets ready.
+     */
+    public void warmUp() {
+        final long startTime = System.currentTimeMillis();
+        try {
+            for (final PooledRebindContextSource pool : this.pools) {
+                try {
+                    pool.ensureMinIdle();
+                } catch (final RuntimeException e) {
+                    this.logger.warn("Warm-up of LDAP connection pool failed", e);
+                }
+            }
+
+            for (final DomainControllerSelector selector : this.domainControllerSelectors) {
+                try {
+                    selector.probe();
+                } catch (final RuntimeException e) {
+                    this.logger.warn("Warm-up of domain controllers failed", e);
+                }
+            }
+
+            if (this.serviceContextSource != null) {
+                for (int i = 0; i < this.syntheticIterations && this.running; i++) {
+                    try {
+                        runSyntheticLogin();
+                    } catch (final RuntimeException e) {
+                        this.logger.warn("Synthetic bind and group search failed", e);
+                        break;
+                    }
+                }
+            }
+        } finally {
+            this.ready = true;
+            this.logger.info("LDAP warm-up finished in "
+                    + (System.currentTimeMillis() - startTime) + " ms");
+        }
+    }
+
+    /**
+     * Getter for the asynchronous property.
+     *
+     * @see asynchronous
+     * @return the asynchronous property.
+     */
+    public boolean isAsynchronous() {
+        return this.asynchronous;
+    }
+
+    /**
+     * Setter for the asynchronous property.
+     *
+     * @see asynchronous
+     * @param asynchronous the asynchronous to set.
+     */
+    public void setAsynchronous(final boolean asynchronous) {
+        this.asynchronous = asynchronous;
+    }
+
+    /**
+     * Getter for the countLimit property.
+     *
+     * @see countLimit
+     * @return the countLimit property.
+     */
+    public int getCountLimit() {
+        return this.countLimit;
+    }
+
+    /**
+     * Setter for the countLimit property.
+     *
+     * @see countLimit
+     * @param countLimit the countLimit to set.
+     */
+    public void setCountLimit(final int countLimit) {
+        Assert.isTrue(countLimit >= 0, "countLimit must not be negative");
+        this.countLimit = countLimit;
+    }
+
+    /**
+     * Getter for the domainControllerSelectors property.
+     *
+     * @see domainControllerSelectors
+     * @return the domainControllerSelectors property.
+     */
+    public List<DomainControllerSelector> getDomainControllerSelectors() {
+        return this.domainControllerSelectors;
+    }
+
+    /**
+     * Setter for the domainControllerSelectors property.
+     *
+     * @see domainControllerSelectors
+     * @param domainControllerSelectors the domainControllerSelectors to set.
+     */
+    public void setDomainControllerSelectors(
+            final List<DomainControllerSelector> domainControllerSelectors) {
+        Assert.notNull(domainControllerSelectors, "domainControllerSelectors must not be null");
+        this.domainControllerSelectors = new ArrayList<DomainControllerSelector>(
+            domainControllerSelectors);
+    }
+
+    /**
+     * Getter for the groupSearchBase property.
+     *
+     * @see groupSearchBase
+     * @return the groupSearchBase property.
+     */
+    public String getGroupSearchBase() {
+        return this.groupSearchBase;
+    }
+
+    /**
+     * Setter for the groupSearchBase property.
+     *
+     * @see groupSearchBase
+     * @param groupSearchBase the groupSearchBase to set.
+     */
+    public void setGroupSearchBase(final String groupSearchBase) {
+        Assert.notNull(groupSearchBase, "groupSearchBase must not be null");
+        this.groupSearchBase = groupSearchBase;
+    }
+
+    /**
+     * Getter for the groupSearchFilter property.
+     *
+     * @see groupSearchFilter
+     * @return the groupSearchFilter property.
+     */
+    public String getGroupSearchFilter() {
+        return this.groupSearchFilter;
+    }
+
+    /**
+     * Setter for the groupSearchFilter property.
+     *
+     * @see groupSearchFilter
+     * @param groupSearchFilter the groupSearchFilter to set.
+     */
+    public void setGroupSearchFilter(final String groupSearchFilter) {
+        Assert.hasLength(groupSearchFilter, "groupSearchFilter must not be empty");
+        this.groupSearchFilter = groupSearchFilter;
+    }
+
+    /**
+     * Getter for the groupRoleAttribute property.
+     *
+     * @see groupRoleAttribute
+     * @return the groupRoleAttribute property.
+     */
+    public String getGroupRoleAttribute() {
+        return this.groupRoleAttribute;
+    }
+
+    /**
+     * Setter for the groupRoleAttribute property.
+     *
+     * @see groupRoleAttribute
+     * @param groupRoleAttribute the groupRoleAttribute to set.
+     */
+    public void setGroupRoleAttribute(final String groupRoleAttribute) {
+        Assert.hasLength(groupRoleAttribute, "groupRoleAttribute must not be empty");
+        this.groupRoleAttribute = groupRoleAttribute;
+    }
+
+    @Override
+    public int getPhase() {
+        return this.phase;
+    }
+
+    /**
+     * Setter for the phase property.
+     *
+     * @see phase
+     * @param phase the phase to set.
+     */
+    public void setPhase(final int phase) {
+        this.phase = phase;
+    }
+
+    /**
+     * Getter for the pools property.
+     *
+     * @see pools
+     * @return the pools property.
+     */
+    public List<PooledRebindContextSource> getPools() {
+        return this.pools;
+    }
+
+    /**
+     * Setter for the pools property.
+     *
+     * @see pools
+     * @param pools the pools to set.
+     */
+    public void setPools(final List<PooledRebindContextSource> pools) {
+        Assert.notNull(pools, "pools must not be null");
+        this.pools = new ArrayList<PooledRebindContextSource>(pools);
+    }
+
+    /**
+     * Getter for the serviceContextSource property.
+     *
+     * @see serviceContextSource
+     * @return the serviceContextSource property.
+     */
+    public ContextSource getServiceContextSource() {
+        return this.serviceContextSource;
+    }
+
+    /**
+     * Setter for the serviceContextSource property.
+     *
+     * @see serviceContextSource
+     * @param serviceContextSource the serviceContextSource to set, null to skip the synthetic
+     *            binds and searches.
+     */
+    public void setServiceContextSource(final ContextSource serviceContextSource) {
+        this.serviceContextSource = serviceContextSource;
+    }
+
+    /**
+     * Getter for the syntheticIterations property.
+     *
+     * @see syntheticIterations
+     * @return the syntheticIterations property.
+     */
+    public int getSyntheticIterations() {
+        return this.syntheticIterations;
+    }
+
+    /**
+     * Setter for the syntheticIterations property.
+     *
+     * @see syntheticIterations
+     * @param syntheticIterations the syntheticIterations to set.
+     */
+    public void setSyntheticIterations(final int syntheticIterations) {
+        Assert.isTrue(syntheticIterations >= 0, "syntheticIterations must not be negative");
+        this.syntheticIterations = syntheticIterations;
+    }
+
+    /**
+     * Binds through serviceContextSource and searches groupSearchBase for groups.
+     */
+    private void runSyntheticLogin() {
+        LdapUtils.closeContext(this.serviceContextSource.getReadOnlyContext());
+
+        final ActiveDirectoryLdapTemplate template =
+                new ActiveDirectoryLdapTemplate(this.serviceContextSource);
+        final SearchControls controls = new SearchControls();
+        controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        controls.setCountLimit(this.countLimit);
+        template.setSearchControls(controls);
+        // a single page: countLimit bounds the result, a larger one is truncated
+        template.setPageSize(0);
+
+        final Set<String> values = template.searchForSingleAttributeValues(this.groupSearchBase,
+            this.groupSearchFilter, null, this.groupRoleAttribute);
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug("Synthetic group search found " + values.size() + " groups");
+        }
+    }
+}
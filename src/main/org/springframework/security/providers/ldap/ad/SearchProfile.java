@@ -0,0 +1,212 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad;
+
+import javax.naming.directory.SearchControls;
+
+import org.springframework.util.Assert;
+
+/**
+ * Search settings, declared once (e.g. as a bean per kind of search) and used by the authenticator
+ * (<tt>userSearchProfile</tt>) and the authorities populator (<tt>groupSearchProfile</tt>): scope,
+ * count limit, server time limit, alias dereferencing, returned attributes and whether an object
+ * (<code>DirContextAdapter</code>) is built for each entry.
+ * <p>
+ * Listing the returned attributes keeps large attributes such as <tt>thumbnailPhoto</tt> or
+ * <tt>userCertificate</tt> off the wire. The user search profile must return the attributes used
+ * after the login, e.g. <tt>memberOf</tt> for the <tt>MEMBER_OF</tt> group resolution strategy.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class SearchProfile {
+    /**
+     * Property: Maximum number of entries returned by the server; 0 means no limit.
+     */
+    private long countLimit;
+
+    /**
+     * Property: If true aliases are dereferenced during the search.
+     */
+    private boolean derefLinkFlag;
+
+    /**
+     * Property: IDs of the returned attributes; null returns all attributes.
+     */
+    private String[] returningAttributes;
+
+    /**
+     * Property: If true an object is built for each entry. Searches which only read attribute
+     * values do not need it.
+     */
+    private boolean returningObjFlag = true;
+
+    /**
+     * Property: Search scope, one of the SearchControls scope constants.
+     */
+    private int searchScope = SearchControls.SUBTREE_SCOPE;
+
+    /**
+     * Property: Time in milliseconds the server may spend on the search; 0 means no limit.
+     */
+    private int timeLimit;
+
+    /**
+     * Returns new search controls with the settings of this profile.
+     *
+     * @return search controls.
+     */
+    public SearchControls createSearchControls() {
+        return new SearchControls(this.searchScope, this.countLimit, this.timeLimit,
+            this.returningAttributes == null ? null : this.returningAttributes.clone(),
+            this.returningObjFlag, this.derefLinkFlag);
+    }
+
+    /**
+     * Getter for the countLimit property.
+     *
+     * @see countLimit
+     * @return the countLimit property.
+     */
+    public long getCountLimit() {
+        return this.countLimit;
+    }
+
+    /**
+     * Getter for the returningAttributes property.
+     *
+     * @see returningAttributes
+     * @return the returningAttributes property.
+     */
+    public String[] getReturningAttributes() {
+        return this.returningAttributes == null ? null : this.returningAttributes.clone();
+    }
+
+    /**
+     * Getter for the searchScope property.
+     *
+     * @see searchScope
+     * @return the searchScope property.
+     */
+    public int getSearchScope() {
+        return this.searchScope;
+    }
+
+    /**
+     * Getter for the timeLimit property.
+     *
+     * @see timeLimit
+     * @return the timeLimit property.
+     */
+    public int getTimeLimit() {
+        return this.timeLimit;
+    }
+
+    /**
+     * Getter for the derefLinkFlag property.
+     *
+     * @see derefLinkFlag
+     * @return the derefLinkFlag property.
+     */
+    public boolean isDerefLinkFlag() {
+        return this.derefLinkFlag;
+    }
+
+    /**
+     * Getter for the returningObjFlag property.
+     *
+     * @see returningObjFlag
+     * @return the returningObjFlag property.
+     */
+    public boolean isReturningObjFlag() {
+        return this.returningObjFlag;
+    }
+
+    /**
+     * Setter for the countLimit property.
+     *
+     * @see countLimit
+     * @param countLimit the countLimit to set, 0 for no limit.
+     */
+    public void setCountLimit(final long countLimit) {
+        Assert.isTrue(countLimit >= 0, "countLimit must not be negative");
+        this.countLimit = countLimit;
+    }
+
+    /**
+     * Setter for the derefLinkFlag property.
+     *
+     * @see derefLinkFlag
+     * @param derefLinkFlag the derefLinkFlag to set.
+     */
+    public void setDerefLinkFlag(final boolean derefLinkFlag) {
+        this.derefLinkFlag = derefLinkFlag;
+    }
+
+    /**
+     * Setter for the returningAttributes property.
+     *
+     * @see returningAttributes
+     * @param returningAttributes the returningAttributes to set, null to return all attributes.
+     */
+    public void setReturningAttributes(final String[] returningAttributes) {
+        this.returningAttributes =
+                returningAttributes == null ? null : returningAttributes.clone();
+    }
+
+    /**
+     * Setter for the returningObjFlag property.
+     *
+     * @see returningObjFlag
+     * @param returningObjFlag the returningObjFlag to set.
+     */
+    public void setReturningObjFlag(final boolean returningObjFlag) {
+        this.returningObjFlag = returningObjFlag;
+    }
+
+    /**
+     * Setter for the searchScope property.
+     *
+     * @see searchScope
+     * @param searchScope the searchScope to set: SearchControls.OBJECT_SCOPE, ONELEVEL_SCOPE or
+     *            SUBTREE_SCOPE.
+     */
+    public void setSearchScope(final int searchScope) {
+        Assert.isTrue(searchScope == SearchControls.OBJECT_SCOPE
+                || searchScope == SearchControls.ONELEVEL_SCOPE
+                || searchScope == SearchControls.SUBTREE_SCOPE, "Unknown searchScope " + searchScope);
+        this.searchScope = searchScope;
+    }
+
+    /**
+     * Sets the scope to a sub-tree search if true, a single-level search if false.
+     *
+     * @param searchSubtree true to search the entire tree below the base.
+     */
+    public void setSearchSubtree(final boolean searchSubtree) {
+        setSearchScope(searchSubtree ? SearchControls.SUBTREE_SCOPE
+                : SearchControls.ONELEVEL_SCOPE);
+    }
+
+    /**
+     * Setter for the timeLimit property.
+     *
+     * @see timeLimit
+     * @param timeLimit the timeLimit to set, 0 for no limit.
+     */
+    public void setTimeLimit(final int timeLimit) {
+        Assert.isTrue(timeLimit >= 0, "timeLimit must not be negative");
+        this.timeLimit = timeLimit;
+    }
+}
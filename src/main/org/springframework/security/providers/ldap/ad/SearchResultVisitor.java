@@ -0,0 +1,34 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad;
+
+import org.springframework.ldap.core.DirContextOperations;
+
+/**
+ * Receives the entries of a search as they are read from the directory, see
+ * {@link ActiveDirectoryLdapTemplate#searchVisiting(String, String, Object[], javax.naming.directory.SearchControls, SearchResultVisitor)}
+ * . Entries are not collected, so memory use does not depend on the number of results.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public interface SearchResultVisitor {
+    /**
+     * Processes one entry of the search.
+     *
+     * @param entry found entry.
+     * @return true to continue the search, false to end it without reading the remaining entries.
+     */
+    boolean visit(DirContextOperations entry);
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.authenticator;
+
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.ldap.authentication.*;
+import org.springframework.security.ldap.userdetails.LdapAuthoritiesPopulator;
+import org.springframework.security.providers.ldap.ad.util.LoginDeadline;
+
+/**
+ * An <code>LdapAuthenticationProvider</code> which ends the {@link LoginDeadline} of each login.
+ * <p>
+ * <code>ActiveDirectoryBindAuthenticator</code> starts the deadline on the current thread and
+ * leaves it to the group lookup, which normally removes it. The deadline is removed here when the
+ * login ends, so it does not stay on a pooled (e.g. servlet container) thread if the authorities
+ * populator does not use it or is not called.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class ActiveDirectoryAuthenticationProvider extends LdapAuthenticationProvider {
+    /**
+     * Constructor specifying authenticator, authoritiesPopulator.
+     *
+     * @param authenticator the authenticator strategy.
+     * @param authoritiesPopulator the strategy for obtaining the authorities for a given user after
+     *            they've been authenticated.
+     */
+    public ActiveDirectoryAuthenticationProvider(final LdapAuthenticator authenticator,
+            final LdapAuthoritiesPopulator authoritiesPopulator) {
+        super(authenticator, authoritiesPopulator);
+    }
+
+    /**
+     * Constructor specifying authenticator, without authorities.
+     *
+     * @param authenticator the authenticator strategy.
+     */
+    public ActiveDirectoryAuthenticationProvider(final LdapAuthenticator authenticator) {
+        super(authenticator);
+    }
+
+    @Override
+    public Authentication authenticate(final Authentication authentication)
+            throws AuthenticationException {
+        try {
+            return super.authenticate(authentication);
+        } finally {
+            // the login ends here, whether or not the group lookup took the deadline
+            LoginDeadline.remove();
+        }
+    }
+}
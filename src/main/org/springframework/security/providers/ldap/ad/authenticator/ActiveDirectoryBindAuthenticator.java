@@ -13,25 +13,73 @@
  */
 package org.springframework.security.providers.ldap.ad.authenticator;
 
-import java.text.MessageFormat;
+import java.util.concurrent.Callable;
 
 import javax.naming.Context;
 
 import org.apache.commons.logging.*;
 import org.springframework.context.*;
 import org.springframework.context.support.MessageSourceAccessor;
-import org.springframework.ldap.core.DirContextOperations;
+import org.springframework.core.task.AsyncListenableTaskExecutor;
+import org.springframework.ldap.core.*;
 import org.springframework.security.authentication.*;
 import org.springframework.security.core.*;
 import org.springframework.security.ldap.*;
 import org.springframework.security.ldap.authentication.LdapAuthenticator;
+import org.springframework.security.providers.ldap.ad.SearchProfile;
+import org.springframework.security.providers.ldap.ad.cache.*;
+import org.springframework.security.providers.ldap.ad.dc.*;
 import org.springframework.security.providers.ldap.ad.util.*;
 import org.springframework.util.Assert;
+import org.springframework.util.concurrent.ListenableFuture;
 
 /**
  * An authenticator which binds as a user. Generates ActiveDirectory - specific syntax of LDAP
  * parameters. Can only use <tt>DefaultSpringSecurityContextSource</tt> as contextSource. Similar to
  * <code>BindAuthenticator</code>.
+ * <p>
+ * Binds are performed through <tt>bindContextSource</tt>, which defaults to contextSource. Set it to
+ * a <code>PooledRebindContextSource</code> to re-bind pooled connections instead of opening a new
+ * connection for every login, and/or to a <code>DomainControllerSelector</code> to spread the binds
+ * over several domain controllers.
+ * Wrap it in a <code>BulkheadContextSource</code> to bound the concurrent binds separately from the
+ * group searches of the authorities populator.
+ * <p>
+ * If <tt>credentialCache</tt> is set, a username/password verified within its time to live is
+ * accepted without contacting the server. If <tt>failedCredentialCache</tt> is set, repeated failed
+ * logins are rejected without contacting the server.
+ * <p>
+ * <code>authenticateAsync</code> runs the authentication on <tt>asyncExecutor</tt>, so the calling
+ * (e.g. servlet container) thread is not blocked by the bind and search.
+ * <p>
+ * If <tt>singleFlight</tt> is set, concurrent logins with the same username and password share
+ * one bind and search.
+ * <p>
+ * By default the password is stored in the returned user entry, because the authorities populator
+ * binds as the user for the group lookup. If the populator uses a <tt>serviceContextSource</tt>, set
+ * <tt>storeCredentials</tt> to false so the password does not leave the authenticator.
+ * <p>
+ * In a multi-domain forest set <tt>domainRouter</tt>: each login is then sent to a domain
+ * controller of the user's domain (<code>DOMAIN\account</code>, <code>account@upn.suffix</code> or an
+ * account found in the Global Catalog), binding as <code>account@dns.root</code> of that domain,
+ * instead of deriving the UPN suffix from the base DN of contextSource.
+ * <p>
+ * The user search uses <tt>userSearchProfile</tt> if set, e.g. to return only the attributes needed
+ * after the login instead of all attributes of the user entry.
+ * <p>
+ * If <tt>loginTimeout</tt> is set, each login gets a {@link LoginDeadline}: the bind and user
+ * search run on <tt>loginExecutor</tt>, and are abandoned with an
+ * <code>AuthenticationServiceException</code> when the budget runs out. The rest of the budget is
+ * left to the group lookup of the authorities populator on the same thread. contextSource and
+ * bindContextSource get a {@link DeadlineAuthenticationStrategy}, which sets the JNDI connect and
+ * read timeouts of the connections opened for the login to the remaining time, so abandoned
+ * operations free their threads. Use an <code>ActiveDirectoryAuthenticationProvider</code>, which
+ * ends the deadline of each login even if the group lookup does not.
+ * <p>
+ * If <tt>circuitBreaker</tt> is set, the binds and user searches go through it: while the
+ * directory keeps failing or answering slowly, logins fail fast with a
+ * <code>CircuitBreakerOpenException</code> instead of waiting for their timeouts. Rejected
+ * credentials count as successful calls, since the directory answered them.
  *
  * @author Valery Tydykov
  *
@@ -42,6 +90,12 @@ public class ActiveDirectoryBindAuthenticator implements LdapAuthenticator, Mess
      */
     protected static final String USER_SEARCH_FILTER = "(&(objectClass=user)(samAccountName={0}))";
 
+    /**
+     * Constant: parsed USER_SEARCH_FILTER.
+     */
+    private static final LdapFilterTemplate USER_SEARCH_FILTER_TEMPLATE =
+            new LdapFilterTemplate(USER_SEARCH_FILTER);
+
     /**
      * Logger for this class and subclasses.
      */
@@ -52,11 +106,70 @@ public class ActiveDirectoryBindAuthenticator implements LdapAuthenticator, Mess
      */
     protected MessageSourceAccessor messages = SpringSecurityMessageSource.getAccessor();
 
+    /**
+     * Property: Executor of authenticateAsync; by default 8 daemon threads with a queue of 100.
+     */
+    private AsyncListenableTaskExecutor asyncExecutor;
+
     /**
      * Property: Context source against which bind operations will be performed.
      */
     private final DefaultSpringSecurityContextSource contextSource;
 
+    /**
+     * Property: Context source used to bind as the user.
+     */
+    private ContextSource bindContextSource;
+
+    /**
+     * Property: Circuit breaker around the binds and user searches; null disables it.
+     */
+    private CircuitBreaker circuitBreaker;
+
+    /**
+     * Property: Cache of recently verified credentials; null disables caching.
+     */
+    private VerifiedCredentialCache credentialCache;
+
+    /**
+     * Property: Routes logins to the domain of the user in a multi-domain forest; null uses
+     * contextSource for all logins.
+     */
+    private ForestDomainRouter domainRouter;
+
+    /**
+     * Property: Cache of recent failed logins; null disables local rejection.
+     */
+    private FailedCredentialCache failedCredentialCache;
+
+    /**
+     * Property: Executor of the binds run within loginTimeout; by default 8 daemon threads with a
+     * queue of 100.
+     */
+    private AsyncListenableTaskExecutor loginExecutor;
+
+    /**
+     * Property: Time budget of a login in milliseconds, including the group lookup; 0 disables the
+     * deadline.
+     */
+    private long loginTimeout;
+
+    /**
+     * Property: Coalesces concurrent binds with the same credentials; null disables coalescing.
+     */
+    private SingleFlight<String, DirContextOperations> singleFlight;
+
+    /**
+     * Property: If true the password is stored in the user entry as
+     * <tt>Context.SECURITY_CREDENTIALS</tt>, for the authorities populator.
+     */
+    private boolean storeCredentials = true;
+
+    /**
+     * Property: Settings of the user search; null returns all attributes.
+     */
+    private SearchProfile userSearchProfile;
+
     /**
      * Creates an initialized instance using the {@link DefaultSpringSecurityContextSource}
      * provided.
@@ -68,6 +181,8 @@ public class ActiveDirectoryBindAuthenticator implements LdapAuthenticator, Mess
             final DefaultSpringSecurityContextSource contextSource) {
         Assert.notNull(contextSource, "contextSource must not be null.");
         this.contextSource = contextSource;
+        this.bindContextSource = contextSource;
+        DeadlineAuthenticationStrategy.install(contextSource);
     }
 
     @Override
@@ -78,22 +193,287 @@ public class ActiveDirectoryBindAuthenticator implements LdapAuthenticator, Mess
         final String username = authentication.getName();
         final String password = (String) authentication.getCredentials();
 
-        // Active Directory requires principalDn in the form: username@dc1.dc2.
-        final String principalDn = determinePrincipalDn(username);
+        final LoginDeadline deadline;
+        if (this.loginTimeout > 0) {
+            deadline = LoginDeadline.start(this.loginTimeout, getLoginExecutor());
+        } else {
+            deadline = null;
+            LoginDeadline.remove();
+        }
 
-        final DirContextOperations user = bindWithDn(principalDn, username, password);
-        if (user == null) {
-            throw new BadCredentialsException(
-                this.messages.getMessage("BindAuthenticator.badCredentials", "Bad credentials"));
+        final DirContextOperations user;
+        try {
+            user = findUser(username, password, deadline);
+        } catch (final RuntimeException e) {
+            // the login ends here: there is no group lookup to leave the deadline to
+            LoginDeadline.remove();
+            throw e;
         }
 
-        // Store password in user: will be used by the authorities populator to bind
-        // (again) as username/password.
-        user.addAttributeValue(Context.SECURITY_CREDENTIALS, password);
+        if (this.storeCredentials) {
+            // Store password in user: will be used by the authorities populator to bind
+            // (again) as username/password.
+            user.addAttributeValue(Context.SECURITY_CREDENTIALS, password);
+        }
 
         return user;
     }
 
+    /**
+     * Authenticates on asyncExecutor, without blocking the calling thread.
+     *
+     * @param authentication UsernamePasswordAuthenticationToken to authenticate.
+     * @return future of the user entry; fails with the exception authenticate() would throw.
+     */
+    public ListenableFuture<DirContextOperations> authenticateAsync(
+            final Authentication authentication) {
+        return TaskExecutorUtils.submit(getAsyncExecutor(), new Callable<DirContextOperations>() {
+            @Override
+            public DirContextOperations call() {
+                try {
+                    return authenticate(authentication);
+                } finally {
+                    // the authorities are obtained on another thread
+                    LoginDeadline.remove();
+                }
+            }
+        });
+    }
+
+    /**
+     * Getter for the asyncExecutor property. Creates the default executor on first use.
+     *
+     * @see asyncExecutor
+     * @return the asyncExecutor property.
+     */
+    public synchronized AsyncListenableTaskExecutor getAsyncExecutor() {
+        if (this.asyncExecutor == null) {
+            this.asyncExecutor =
+                    TaskExecutorUtils.createBoundedExecutor("ad-authenticator-", 8, 100);
+        }
+
+        return this.asyncExecutor;
+    }
+
+    /**
+     * Setter for the asyncExecutor property.
+     *
+     * @see asyncExecutor
+     * @param asyncExecutor the asyncExecutor to set.
+     */
+    public synchronized void setAsyncExecutor(final AsyncListenableTaskExecutor asyncExecutor) {
+        Assert.notNull(asyncExecutor, "asyncExecutor must not be null");
+        this.asyncExecutor = asyncExecutor;
+    }
+
+    /**
+     * Getter for the bindContextSource property.
+     *
+     * @see bindContextSource
+     * @return the bindContextSource property.
+     */
+    public ContextSource getBindContextSource() {
+        return this.bindContextSource;
+    }
+
+    /**
+     * Setter for the bindContextSource property.
+     *
+     * @see bindContextSource
+     * @param bindContextSource the bindContextSource to set.
+     */
+    public void setBindContextSource(final ContextSource bindContextSource) {
+        Assert.notNull(bindContextSource, "bindContextSource must not be null");
+        this.bindContextSource = bindContextSource;
+        DeadlineAuthenticationStrategy.install(bindContextSource);
+    }
+
+    /**
+     * Getter for the circuitBreaker property.
+     *
+     * @see circuitBreaker
+     * @return the circuitBreaker property.
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return this.circuitBreaker;
+    }
+
+    /**
+     * Setter for the circuitBreaker property.
+     *
+     * @see circuitBreaker
+     * @param circuitBreaker the circuitBreaker to set, null to disable it.
+     */
+    public void setCircuitBreaker(final CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Getter for the credentialCache property.
+     *
+     * @see credentialCache
+     * @return the credentialCache property.
+     */
+    public VerifiedCredentialCache getCredentialCache() {
+        return this.credentialCache;
+    }
+
+    /**
+     * Setter for the credentialCache property.
+     *
+     * @see credentialCache
+     * @param credentialCache the credentialCache to set, null to disable caching.
+     */
+    public void setCredentialCache(final VerifiedCredentialCache credentialCache) {
+        this.credentialCache = credentialCache;
+    }
+
+    /**
+     * Getter for the domainRouter property.
+     *
+     * @see domainRouter
+     * @return the domainRouter property.
+     */
+    public ForestDomainRouter getDomainRouter() {
+        return this.domainRouter;
+    }
+
+    /**
+     * Setter for the domainRouter property.
+     *
+     * @see domainRouter
+     * @param domainRouter the domainRouter to set, null to use contextSource for all logins.
+     */
+    public void setDomainRouter(final ForestDomainRouter domainRouter) {
+        this.domainRouter = domainRouter;
+    }
+
+    /**
+     * Getter for the failedCredentialCache property.
+     *
+     * @see failedCredentialCache
+     * @return the failedCredentialCache property.
+     */
+    public FailedCredentialCache getFailedCredentialCache() {
+        return this.failedCredentialCache;
+    }
+
+    /**
+     * Setter for the failedCredentialCache property.
+     *
+     * @see failedCredentialCache
+     * @param failedCredentialCache the failedCredentialCache to set, null to disable.
+     */
+    public void setFailedCredentialCache(final FailedCredentialCache failedCredentialCache) {
+        this.failedCredentialCache = failedCredentialCache;
+    }
+
+    /**
+     * Getter for the loginExecutor property. Creates the default executor on first use.
+     *
+     * @see loginExecutor
+     * @return the loginExecutor property.
+     */
+    public synchronized AsyncListenableTaskExecutor getLoginExecutor() {
+        if (this.loginExecutor == null) {
+            this.loginExecutor = TaskExecutorUtils.createBoundedExecutor("ad-login-", 8, 100);
+        }
+
+        return this.loginExecutor;
+    }
+
+    /**
+     * Setter for the loginExecutor property.
+     *
+     * @see loginExecutor
+     * @param loginExecutor the loginExecutor to set.
+     */
+    public synchronized void setLoginExecutor(final AsyncListenableTaskExecutor loginExecutor) {
+        Assert.notNull(loginExecutor, "loginExecutor must not be null");
+        this.loginExecutor = loginExecutor;
+    }
+
+    /**
+     * Getter for the loginTimeout property.
+     *
+     * @see loginTimeout
+     * @return the loginTimeout property.
+     */
+    public long getLoginTimeout() {
+        return this.loginTimeout;
+    }
+
+    /**
+     * Setter for the loginTimeout property.
+     *
+     * @see loginTimeout
+     * @param loginTimeout the loginTimeout to set, in milliseconds; 0 disables the deadline.
+     */
+    public void setLoginTimeout(final long loginTimeout) {
+        Assert.isTrue(loginTimeout >= 0, "loginTimeout must not be negative");
+        this.loginTimeout = loginTimeout;
+    }
+
+    /**
+     * Getter for the singleFlight property.
+     *
+     * @see singleFlight
+     * @return the singleFlight property.
+     */
+    public SingleFlight<String, DirContextOperations> getSingleFlight() {
+        return this.singleFlight;
+    }
+
+    /**
+     * Setter for the singleFlight property.
+     *
+     * @see singleFlight
+     * @param singleFlight the singleFlight to set, null to disable coalescing.
+     */
+    public void setSingleFlight(final SingleFlight<String, DirContextOperations> singleFlight) {
+        this.singleFlight = singleFlight;
+    }
+
+    /**
+     * Getter for the storeCredentials property.
+     *
+     * @see storeCredentials
+     * @return the storeCredentials property.
+     */
+    public boolean isStoreCredentials() {
+        return this.storeCredentials;
+    }
+
+    /**
+     * Setter for the storeCredentials property.
+     *
+     * @see storeCredentials
+     * @param storeCredentials the storeCredentials to set.
+     */
+    public void setStoreCredentials(final boolean storeCredentials) {
+        this.storeCredentials = storeCredentials;
+    }
+
+    /**
+     * Getter for the userSearchProfile property.
+     *
+     * @see userSearchProfile
+     * @return the userSearchProfile property.
+     */
+    public SearchProfile getUserSearchProfile() {
+        return this.userSearchProfile;
+    }
+
+    /**
+     * Setter for the userSearchProfile property.
+     *
+     * @see userSearchProfile
+     * @param userSearchProfile the userSearchProfile to set, null to return all attributes.
+     */
+    public void setUserSearchProfile(final SearchProfile userSearchProfile) {
+        this.userSearchProfile = userSearchProfile;
+    }
+
     @Override
     public void setMessageSource(final MessageSource messageSource) {
         Assert.notNull("Message source must not be null");
@@ -114,15 +494,29 @@ public class ActiveDirectoryBindAuthenticator implements LdapAuthenticator, Mess
             this.logger.debug("Bind with dn=[" + principalDn + "], username=[" + username + "]");
         }
 
-        // bind as principalDn/password
-        final SpringSecurityLdapTemplate template = new SpringSecurityLdapTemplate(
-            new BindWithSpecificDnContextSource(this.contextSource, principalDn, password));
+        return bindAndSearch(this.bindContextSource, principalDn, username, password);
+    }
+
+    /**
+     * Binds as the user in the domain domainRouter routes username to, searches for account info.
+     *
+     * @param username username as entered at login.
+     * @param password LDAP password.
+     * @return LDAP entry for the username, or null if the username cannot be routed.
+     */
+    protected DirContextOperations bindInDomain(final String username, final String password) {
+        final ForestDomain domain = this.domainRouter.resolveDomain(username);
+        if (domain == null) {
+            return null;
+        }
 
-        // search for account info for username
-        final String formattedFilter =
-                MessageFormat.format(USER_SEARCH_FILTER, new Object[] { username });
+        final String principalDn = this.domainRouter.preparePrincipalDn(username, domain);
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug("Bind with dn=[" + principalDn + "] in domain " + domain);
+        }
 
-        return template.searchForSingleEntry("", formattedFilter, null);
+        return bindAndSearch(this.domainRouter.getContextSource(domain), principalDn,
+            NamingUtils.getAccountName(username), password);
     }
 
     /**
@@ -138,4 +532,184 @@ public class ActiveDirectoryBindAuthenticator implements LdapAuthenticator, Mess
 
         return principalDn;
     }
+
+    /**
+     * Binds as username/password, recording the result in failedCredentialCache and
+     * credentialCache.
+     *
+     * @param username username.
+     * @param password password.
+     * @return LDAP entry for the username, without the password.
+     */
+    private DirContextOperations bindAndRecord(final String username, final String password) {
+        if (this.failedCredentialCache != null
+                && this.failedCredentialCache.isRejected(username, password)) {
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug("Repeated failed login of [" + username + "] rejected");
+            }
+
+            throw badCredentials(null);
+        }
+
+        final DirContextOperations user;
+        try {
+            if (this.domainRouter == null) {
+                // Active Directory requires principalDn in the form: username@dc1.dc2.
+                user = bindWithDn(determinePrincipalDn(username), username, password);
+            } else {
+                user = bindInDomain(username, password);
+            }
+        } catch (final org.springframework.ldap.AuthenticationException e) {
+            recordFailure(username, password);
+            throw badCredentials(e);
+        }
+
+        if (user == null) {
+            recordFailure(username, password);
+            throw badCredentials(null);
+        }
+
+        if (this.failedCredentialCache != null) {
+            this.failedCredentialCache.recordSuccess(username);
+        }
+
+        if (this.credentialCache != null) {
+            // cached before the password is added: the cache keeps only its hash
+            this.credentialCache.put(username, password, user);
+        }
+
+        return user;
+    }
+
+    /**
+     * Returns the user entry from credentialCache, or binds as username/password within deadline.
+     *
+     * @param username username.
+     * @param password password.
+     * @param deadline deadline of the login, null if disabled.
+     * @return LDAP entry for the username, without the password.
+     */
+    private DirContextOperations findUser(final String username, final String password,
+            final LoginDeadline deadline) {
+        DirContextOperations user = null;
+        if (this.credentialCache != null) {
+            user = this.credentialCache.get(username, password);
+            if (user != null && this.logger.isDebugEnabled()) {
+                this.logger.debug("Credentials of [" + username + "] found in cache");
+            }
+        }
+
+        if (user == null) {
+            if (this.circuitBreaker == null) {
+                user = bindWithin(username, password, deadline);
+            } else {
+                user = this.circuitBreaker.execute(new Callable<DirContextOperations>() {
+                    @Override
+                    public DirContextOperations call() {
+                        return bindWithin(username, password, deadline);
+                    }
+                });
+            }
+        }
+
+        return user;
+    }
+
+    /**
+     * Binds as username/password within deadline.
+     *
+     * @param username username.
+     * @param password password.
+     * @param deadline deadline of the login, null if disabled.
+     * @return LDAP entry for the username, without the password.
+     */
+    private DirContextOperations bindWithin(final String username, final String password,
+            final LoginDeadline deadline) {
+        if (deadline == null) {
+            return bind(username, password);
+        }
+
+        return deadline.call(new Callable<DirContextOperations>() {
+            @Override
+            public DirContextOperations call() {
+                return bind(username, password);
+            }
+        }, "bind of " + username);
+    }
+
+    /**
+     * Binds as username/password, sharing the bind with concurrent identical logins.
+     *
+     * @param username username.
+     * @param password password.
+     * @return LDAP entry for the username, without the password.
+     */
+    private DirContextOperations bind(final String username, final String password) {
+        final DirContextOperations user;
+        if (this.singleFlight == null) {
+            user = bindAndRecord(username, password);
+        } else {
+            // concurrent logins with the same credentials share one bind: copy the shared entry
+            user = NamingUtils.copyEntry(this.singleFlight.execute(
+                SingleFlight.credentialKey(username, password),
+                new Callable<DirContextOperations>() {
+                    @Override
+                    public DirContextOperations call() {
+                        return bindAndRecord(username, password);
+                    }
+                }));
+        }
+
+        return user;
+    }
+
+    /**
+     * Binds as principalDn/password through bindSource, searches for account info for accountName.
+     *
+     * @param bindSource context source to bind with.
+     * @param principalDn LDAP principal DN in form "username@dc1.dc2".
+     * @param accountName account name to search for in LDAP.
+     * @param password LDAP password.
+     * @return LDAP entry for the account.
+     */
+    private DirContextOperations bindAndSearch(final ContextSource bindSource,
+            final String principalDn, final String accountName, final String password) {
+        // bind as principalDn/password
+        final SpringSecurityLdapTemplate template = new SpringSecurityLdapTemplate(
+            new BindWithSpecificDnContextSource(bindSource, principalDn, password));
+        if (this.userSearchProfile != null) {
+            template.setSearchControls(this.userSearchProfile.createSearchControls());
+        }
+
+        // search for account info, escaped: the account name must not change the filter
+        final String formattedFilter = USER_SEARCH_FILTER_TEMPLATE.render(accountName);
+
+        return template.searchForSingleEntry("", formattedFilter, null);
+    }
+
+    /**
+     * Creates the exception thrown for a failed login.
+     *
+     * @param cause cause of the failure, may be null.
+     * @return exception to throw.
+     */
+    private BadCredentialsException badCredentials(final Throwable cause) {
+        final String message =
+                this.messages.getMessage("BindAuthenticator.badCredentials", "Bad credentials");
+
+        return cause == null ? new BadCredentialsException(message)
+                : new BadCredentialsException(message, cause);
+    }
+
+    /**
+     * Records a failed login in failedCredentialCache, if set.
+     *
+     * @param username username.
+     * @param password rejected password.
+     */
+    private void recordFailure(final String username, final String password) {
+        if (this.failedCredentialCache != null) {
+            this.failedCredentialCache.recordFailure(username, password);
+        }
+    }
 }
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.cache;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+
+import org.springframework.security.core.GrantedAuthority;
+
+/**
+ * Cache of the group authorities of users, used by the authorities populator to avoid a group
+ * lookup on every login.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public interface AuthoritiesCache {
+    /**
+     * Returns the cached authorities of the user, loading them with loader if they are not cached.
+     *
+     * @param userDn DN (or other unique key, e.g. objectGUID) of the user.
+     * @param loader loads the authorities from the directory.
+     * @return unmodifiable set of authorities, shared between callers.
+     */
+    Set<GrantedAuthority> get(String userDn,
+            Callable<? extends Collection<? extends GrantedAuthority>> loader);
+
+    /**
+     * Removes the cached authorities of the user, e.g. after a group membership change.
+     *
+     * @param userDn DN (or other unique key) of the user.
+     * @return true if an entry was removed.
+     */
+    boolean invalidate(String userDn);
+
+    /**
+     * Removes the cached authorities of all users.
+     */
+    void invalidateAll();
+}
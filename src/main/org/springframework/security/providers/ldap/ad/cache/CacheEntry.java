@@ -0,0 +1,92 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.cache;
+
+/**
+ * Immutable entry of an {@link ExpiringLruCache}.
+ *
+ * @param <V> type of the value.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class CacheEntry<V> {
+    /**
+     * Property: cached value.
+     */
+    private final V value;
+
+    /**
+     * Property: time the entry was put, in milliseconds.
+     */
+    private final long createdTime;
+
+    /**
+     * Property: time the entry expires, in milliseconds.
+     */
+    private final long expirationTime;
+
+    /**
+     * Constructor specifying value, createdTime, expirationTime.
+     *
+     * @param value cached value.
+     * @param createdTime time the entry was put, in milliseconds.
+     * @param expirationTime time the entry expires, in milliseconds.
+     */
+    public CacheEntry(final V value, final long createdTime, final long expirationTime) {
+        this.value = value;
+        this.createdTime = createdTime;
+        this.expirationTime = expirationTime;
+    }
+
+    /**
+     * Getter for the value property.
+     *
+     * @see value
+     * @return the value property.
+     */
+    public V getValue() {
+        return this.value;
+    }
+
+    /**
+     * Getter for the createdTime property.
+     *
+     * @see createdTime
+     * @return the createdTime property.
+     */
+    public long getCreatedTime() {
+        return this.createdTime;
+    }
+
+    /**
+     * Getter for the expirationTime property.
+     *
+     * @see expirationTime
+     * @return the expirationTime property.
+     */
+    public long getExpirationTime() {
+        return this.expirationTime;
+    }
+
+    /**
+     * Checks whether the entry has expired.
+     *
+     * @param now current time in milliseconds.
+     * @return true if the entry has expired.
+     */
+    public boolean isExpired(final long now) {
+        return now >= this.expirationTime;
+    }
+}
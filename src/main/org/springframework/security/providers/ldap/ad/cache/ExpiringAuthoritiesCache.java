@@ -0,0 +1,290 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.cache;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.*;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.util.Assert;
+
+/**
+ * AuthoritiesCache with a maximum size, least-recently-used eviction and a time to live.
+ * <p>
+ * If <tt>refreshAfter</tt> is positive and <tt>refreshExecutor</tt> is set, an entry older than
+ * <tt>refreshAfter</tt> milliseconds is still returned, and a reload is submitted to the executor
+ * (at most one per user at a time). Users logging in regularly therefore never wait for the
+ * directory, while their group changes are picked up within <tt>refreshAfter</tt>.
+ * <p>
+ * Cached sets are unmodifiable, so concurrent logins of the same user share them safely.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class ExpiringAuthoritiesCache implements AuthoritiesCache {
+    /**
+     * Logger for this class and subclasses.
+     */
+    protected final Log logger = LogFactory.getLog(this.getClass());
+
+    /**
+     * Authorities by lower-case user DN.
+     */
+    private final ExpiringLruCache<String, Set<GrantedAuthority>> cache;
+
+    /**
+     * Keys of the entries being refreshed.
+     */
+    private final Set<String> refreshing =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Number of completed refreshes.
+     */
+    private final AtomicLong refreshCount = new AtomicLong();
+
+    /**
+     * Number of failed refreshes.
+     */
+    private final AtomicLong refreshFailureCount = new AtomicLong();
+
+    /**
+     * Property: Age in milliseconds after which an entry is reloaded in the background; 0 disables
+     * refresh-ahead.
+     */
+    private long refreshAfter;
+
+    /**
+     * Property: Executor running the background reloads.
+     */
+    private Executor refreshExecutor;
+
+    /**
+     * Constructor specifying maxSize, timeToLive.
+     *
+     * @param maxSize maximum number of cached users.
+     * @param timeToLive time in milliseconds after which an entry expires.
+     */
+    public ExpiringAuthoritiesCache(final int maxSize, final long timeToLive) {
+        this.cache = new ExpiringLruCache<String, Set<GrantedAuthority>>(maxSize, timeToLive) {
+            @Override
+            protected long currentTimeMillis() {
+                return ExpiringAuthoritiesCache.this.currentTimeMillis();
+            }
+        };
+    }
+
+    @Override
+    public Set<GrantedAuthority> get(final String userDn,
+            final Callable<? extends Collection<? extends GrantedAuthority>> loader) {
+        final String key = toKey(userDn);
+        final CacheEntry<Set<GrantedAuthority>> entry = this.cache.getEntry(key);
+        if (entry == null) {
+            return load(key, loader);
+        }
+
+        if (this.refreshAfter > 0 && this.refreshExecutor != null
+                && currentTimeMillis() - entry.getCreatedTime() >= this.refreshAfter) {
+            scheduleRefresh(key, loader);
+        }
+
+        return entry.getValue();
+    }
+
+    @Override
+    public boolean invalidate(final String userDn) {
+        return this.cache.remove(toKey(userDn));
+    }
+
+    @Override
+    public void invalidateAll() {
+        this.cache.clear();
+    }
+
+    /**
+     * Returns the number of cached users.
+     *
+     * @return number of entries.
+     */
+    public int size() {
+        return this.cache.size();
+    }
+
+    /**
+     * Returns the number of lookups answered from the cache.
+     *
+     * @return number of hits.
+     */
+    public long getHitCount() {
+        return this.cache.getHitCount();
+    }
+
+    /**
+     * Returns the number of lookups which loaded the authorities from the directory.
+     *
+     * @return number of misses.
+     */
+    public long getMissCount() {
+        return this.cache.getMissCount();
+    }
+
+    /**
+     * Returns the number of entries evicted because the cache was full or the entry expired.
+     *
+     * @return number of evictions.
+     */
+    public long getEvictionCount() {
+        return this.cache.getEvictionCount();
+    }
+
+    /**
+     * Returns the number of completed background refreshes.
+     *
+     * @return number of refreshes.
+     */
+    public long getRefreshCount() {
+        return this.refreshCount.get();
+    }
+
+    /**
+     * Returns the number of failed background refreshes.
+     *
+     * @return number of failed refreshes.
+     */
+    public long getRefreshFailureCount() {
+        return this.refreshFailureCount.get();
+    }
+
+    /**
+     * Getter for the refreshAfter property.
+     *
+     * @see refreshAfter
+     * @return the refreshAfter property.
+     */
+    public long getRefreshAfter() {
+        return this.refreshAfter;
+    }
+
+    /**
+     * Setter for the refreshAfter property.
+     *
+     * @see refreshAfter
+     * @param refreshAfter the refreshAfter to set.
+     */
+    public void setRefreshAfter(final long refreshAfter) {
+        Assert.isTrue(refreshAfter >= 0, "refreshAfter must not be negative");
+        this.refreshAfter = refreshAfter;
+    }
+
+    /**
+     * Getter for the refreshExecutor property.
+     *
+     * @see refreshExecutor
+     * @return the refreshExecutor property.
+     */
+    public Executor getRefreshExecutor() {
+        return this.refreshExecutor;
+    }
+
+    /**
+     * Setter for the refreshExecutor property.
+     *
+     * @see refreshExecutor
+     * @param refreshExecutor the refreshExecutor to set.
+     */
+    public void setRefreshExecutor(final Executor refreshExecutor) {
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    /**
+     * Returns the current time. Can be overridden for testing.
+     *
+     * @return current time in milliseconds.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Loads the authorities with loader and caches them.
+     *
+     * @param key cache key.
+     * @param loader loads the authorities from the directory.
+     * @return unmodifiable set of authorities.
+     */
+    private Set<GrantedAuthority> load(final String key,
+            final Callable<? extends Collection<? extends GrantedAuthority>> loader) {
+        final Collection<? extends GrantedAuthority> loaded;
+        try {
+            loaded = loader.call();
+        } catch (final RuntimeException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new IllegalStateException("Could not load authorities", e);
+        }
+
+        final Set<GrantedAuthority> authorities =
+                Collections.unmodifiableSet(new HashSet<GrantedAuthority>(loaded));
+        this.cache.put(key, authorities);
+
+        return authorities;
+    }
+
+    /**
+     * Submits a reload of the entry to refreshExecutor, unless one is already running.
+     *
+     * @param key cache key.
+     * @param loader loads the authorities from the directory.
+     */
+    private void scheduleRefresh(final String key,
+            final Callable<? extends Collection<? extends GrantedAuthority>> loader) {
+        if (!this.refreshing.add(key)) {
+            return;
+        }
+
+        try {
+            this.refreshExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        load(key, loader);
+                        ExpiringAuthoritiesCache.this.refreshCount.incrementAndGet();
+                    } catch (final RuntimeException e) {
+                        // keep the current entry until it expires
+                        ExpiringAuthoritiesCache.this.refreshFailureCount.incrementAndGet();
+                        ExpiringAuthoritiesCache.this.logger
+                            .warn("Could not refresh authorities of " + key, e);
+                    } finally {
+                        ExpiringAuthoritiesCache.this.refreshing.remove(key);
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            this.refreshing.remove(key);
+            this.logger.debug("Refresh of " + key + " rejected", e);
+        }
+    }
+
+    /**
+     * Returns the cache key of userDn.
+     *
+     * @param userDn user DN.
+     * @return lower-case user DN.
+     */
+    private String toKey(final String userDn) {
+        return userDn.toLowerCase(Locale.ENGLISH);
+    }
+}
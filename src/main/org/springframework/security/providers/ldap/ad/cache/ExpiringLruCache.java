@@ -0,0 +1,228 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.cache;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.util.Assert;
+
+/**
+ * Thread-safe cache bounded by size and by time-to-live. When the cache is full the least recently
+ * used entry is evicted; entries older than <tt>timeToLive</tt> are treated as absent. Counts hits,
+ * misses and evictions.
+ *
+ * @param <K> type of keys.
+ * @param <V> type of values.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class ExpiringLruCache<K, V> {
+    /**
+     * Property: Maximum number of entries.
+     */
+    private final int maxSize;
+
+    /**
+     * Property: Time in milliseconds an entry stays valid after it was put.
+     */
+    private final long timeToLive;
+
+    /**
+     * Entries in access order, least recently used first.
+     */
+    private final LinkedHashMap<K, CacheEntry<V>> entries;
+
+    /**
+     * Number of lookups which found a valid entry.
+     */
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /**
+     * Number of lookups which found no valid entry.
+     */
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Number of entries evicted because the cache was full or the entry expired.
+     */
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * Constructor specifying maxSize, timeToLive.
+     *
+     * @param maxSize maximum number of entries.
+     * @param timeToLive time in milliseconds an entry stays valid after it was put.
+     */
+    public ExpiringLruCache(final int maxSize, final long timeToLive) {
+        Assert.isTrue(maxSize > 0, "maxSize must be positive");
+        Assert.isTrue(timeToLive > 0, "timeToLive must be positive");
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+        this.entries = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<K, CacheEntry<V>> eldest) {
+                final boolean evict = size() > ExpiringLruCache.this.maxSize;
+                if (evict) {
+                    ExpiringLruCache.this.evictionCount.incrementAndGet();
+                }
+
+                return evict;
+            }
+        };
+    }
+
+    /**
+     * Returns the value for key, or null if there is no valid entry.
+     *
+     * @param key key to look up.
+     * @return cached value or null.
+     */
+    public V get(final K key) {
+        final CacheEntry<V> entry = getEntry(key);
+
+        return entry == null ? null : entry.getValue();
+    }
+
+    /**
+     * Returns the entry for key, or null if there is no valid entry.
+     *
+     * @param key key to look up.
+     * @return cached entry or null.
+     */
+    public CacheEntry<V> getEntry(final K key) {
+        CacheEntry<V> entry;
+        synchronized (this.entries) {
+            entry = this.entries.get(key);
+            if (entry != null && entry.isExpired(currentTimeMillis())) {
+                this.entries.remove(key);
+                this.evictionCount.incrementAndGet();
+                entry = null;
+            }
+        }
+
+        if (entry == null) {
+            this.missCount.incrementAndGet();
+        } else {
+            this.hitCount.incrementAndGet();
+        }
+
+        return entry;
+    }
+
+    /**
+     * Stores value for key, replacing any previous entry.
+     *
+     * @param key key of the entry.
+     * @param value value of the entry, must not be null.
+     */
+    public void put(final K key, final V value) {
+        Assert.notNull(value, "value must not be null");
+        final long now = currentTimeMillis();
+        synchronized (this.entries) {
+            this.entries.put(key, new CacheEntry<V>(value, now, now + this.timeToLive));
+        }
+    }
+
+    /**
+     * Removes the entry for key.
+     *
+     * @param key key of the entry.
+     * @return true if an entry was removed.
+     */
+    public boolean remove(final K key) {
+        synchronized (this.entries) {
+            return this.entries.remove(key) != null;
+        }
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear() {
+        synchronized (this.entries) {
+            this.entries.clear();
+        }
+    }
+
+    /**
+     * Returns the number of entries, including expired entries not yet removed.
+     *
+     * @return number of entries.
+     */
+    public int size() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    /**
+     * Getter for the maxSize property.
+     *
+     * @see maxSize
+     * @return the maxSize property.
+     */
+    public int getMaxSize() {
+        return this.maxSize;
+    }
+
+    /**
+     * Getter for the timeToLive property.
+     *
+     * @see timeToLive
+     * @return the timeToLive property.
+     */
+    public long getTimeToLive() {
+        return this.timeToLive;
+    }
+
+    /**
+     * Returns the number of lookups which found a valid entry.
+     *
+     * @return number of hits.
+     */
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    /**
+     * Returns the number of lookups which found no valid entry.
+     *
+     * @return number of misses.
+     */
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+
+    /**
+     * Returns the number of entries evicted because the cache was full or the entry expired.
+     *
+     * @return number of evictions.
+     */
+    public long getEvictionCount() {
+        return this.evictionCount.get();
+    }
+
+    /**
+     * Returns the current time in milliseconds. May be overridden by tests.
+     *
+     * @return current time in milliseconds.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,400 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.cache;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.security.providers.ldap.ad.util.CredentialHasher;
+import org.springframework.util.Assert;
+
+/**
+ * Cache of recent failed binds, used by the authenticator to reject repeated failures without
+ * contacting the server. This protects the domain controllers from clients retrying a stale
+ * password in a loop, and the account from being locked out by them.
+ * <p>
+ * For every username the hash of the last failed password (see {@link CredentialHasher}) and the
+ * number of consecutive failures are kept for <tt>window</tt> milliseconds after the last failure.
+ * Within the window:
+ * <ul>
+ * <li>the same password is rejected locally;</li>
+ * <li>after <tt>backoffThreshold</tt> failures any password is rejected locally for a backoff delay,
+ * starting at <tt>initialBackoff</tt> and doubling with each further failure up to
+ * <tt>maxBackoff</tt>.</li>
+ * </ul>
+ * A successful login clears the record. Records are replaced atomically in a concurrent map, so
+ * concurrent logins do not lock each other.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class FailedCredentialCache {
+    /**
+     * Failed bind record of one user. Immutable, replaced on every failure.
+     */
+    static final class Failure {
+        /**
+         * Hash of the last failed password.
+         */
+        private final byte[] credentialHash;
+
+        /**
+         * Number of consecutive failures.
+         */
+        private final int count;
+
+        /**
+         * Time of the last failure.
+         */
+        private final long lastFailureTime;
+
+        /**
+         * Constructor specifying credentialHash, count, lastFailureTime.
+         *
+         * @param credentialHash hash of the last failed password.
+         * @param count number of consecutive failures.
+         * @param lastFailureTime time of the last failure.
+         */
+        Failure(final byte[] credentialHash, final int count, final long lastFailureTime) {
+            this.credentialHash = credentialHash;
+            this.count = count;
+            this.lastFailureTime = lastFailureTime;
+        }
+    }
+
+    /**
+     * Property: Hasher used for the passwords.
+     */
+    private final CredentialHasher credentialHasher;
+
+    /**
+     * Failure records by lower-case username.
+     */
+    private final ConcurrentHashMap<String, Failure> failures =
+            new ConcurrentHashMap<String, Failure>();
+
+    /**
+     * Property: Maximum number of users with a failure record.
+     */
+    private final int maxSize;
+
+    /**
+     * Property: Time in milliseconds a failure is remembered after the last failure.
+     */
+    private final long window;
+
+    /**
+     * Property: Number of consecutive failures after which any password is rejected during the
+     * backoff delay.
+     */
+    private int backoffThreshold = 3;
+
+    /**
+     * Property: Backoff delay in milliseconds after backoffThreshold failures.
+     */
+    private long initialBackoff = 1000;
+
+    /**
+     * Property: Maximum backoff delay in milliseconds.
+     */
+    private long maxBackoff = 60000;
+
+    /**
+     * Number of attempts rejected without contacting the server.
+     */
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * Constructor specifying maxSize, window. Passwords are hashed with 5000 PBKDF2 iterations.
+     *
+     * @param maxSize maximum number of users with a failure record.
+     * @param window time in milliseconds a failure is remembered.
+     */
+    public FailedCredentialCache(final int maxSize, final long window) {
+        this(maxSize, window, new CredentialHasher(5000));
+    }
+
+    /**
+     * Constructor specifying maxSize, window, credentialHasher.
+     *
+     * @param maxSize maximum number of users with a failure record.
+     * @param window time in milliseconds a failure is remembered.
+     * @param credentialHasher hasher used for the passwords.
+     */
+    public FailedCredentialCache(final int maxSize, final long window,
+            final CredentialHasher credentialHasher) {
+        Assert.isTrue(maxSize > 0, "maxSize must be positive");
+        Assert.isTrue(window > 0, "window must be positive");
+        Assert.notNull(credentialHasher, "credentialHasher must not be null");
+        this.maxSize = maxSize;
+        this.window = window;
+        this.credentialHasher = credentialHasher;
+    }
+
+    /**
+     * Returns true if the login attempt should be rejected without contacting the server. Does not
+     * hash the password unless the user has a failure record.
+     *
+     * @param username username.
+     * @param password password.
+     * @return true if the attempt is rejected.
+     */
+    public boolean isRejected(final String username, final String password) {
+        final String key = toKey(username);
+        final Failure failure = this.failures.get(key);
+        if (failure == null) {
+            return false;
+        }
+
+        final long elapsed = currentTimeMillis() - failure.lastFailureTime;
+        if (elapsed >= this.window) {
+            this.failures.remove(key, failure);
+            return false;
+        }
+
+        if (elapsed < getBackoff(failure.count) || this.credentialHasher
+            .matches(failure.credentialHash, this.credentialHasher.hash(key, password))) {
+            this.rejectedCount.incrementAndGet();
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Records a failed bind of username/password.
+     *
+     * @param username username.
+     * @param password rejected password.
+     */
+    public void recordFailure(final String username, final String password) {
+        final String key = toKey(username);
+        final byte[] credentialHash = this.credentialHasher.hash(key, password);
+
+        while (true) {
+            final long now = currentTimeMillis();
+            final Failure failure = this.failures.get(key);
+            if (failure == null) {
+                if (this.failures.size() >= this.maxSize) {
+                    removeExpired(now);
+                    if (this.failures.size() >= this.maxSize) {
+                        // full of recent failures: do not track this user
+                        return;
+                    }
+                }
+
+                if (this.failures.putIfAbsent(key, new Failure(credentialHash, 1, now)) == null) {
+                    return;
+                }
+            } else {
+                final int count =
+                        now - failure.lastFailureTime >= this.window ? 1 : failure.count + 1;
+                if (this.failures.replace(key, failure, new Failure(credentialHash, count, now))) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Records a successful bind of username, clearing its failure record.
+     *
+     * @param username username.
+     */
+    public void recordSuccess(final String username) {
+        this.failures.remove(toKey(username));
+    }
+
+    /**
+     * Returns the number of consecutive failures of username within the window.
+     *
+     * @param username username.
+     * @return number of failures.
+     */
+    public int getFailureCount(final String username) {
+        final Failure failure = this.failures.get(toKey(username));
+        if (failure == null || currentTimeMillis() - failure.lastFailureTime >= this.window) {
+            return 0;
+        }
+
+        return failure.count;
+    }
+
+    /**
+     * Removes the failure record of username, e.g. after a password reset.
+     *
+     * @param username username.
+     * @return true if a record was removed.
+     */
+    public boolean invalidate(final String username) {
+        return this.failures.remove(toKey(username)) != null;
+    }
+
+    /**
+     * Removes all failure records.
+     */
+    public void invalidateAll() {
+        this.failures.clear();
+    }
+
+    /**
+     * Returns the number of users with a failure record.
+     *
+     * @return number of records.
+     */
+    public int size() {
+        return this.failures.size();
+    }
+
+    /**
+     * Returns the number of attempts rejected without contacting the server.
+     *
+     * @return number of rejected attempts.
+     */
+    public long getRejectedCount() {
+        return this.rejectedCount.get();
+    }
+
+    /**
+     * Getter for the maxSize property.
+     *
+     * @see maxSize
+     * @return the maxSize property.
+     */
+    public int getMaxSize() {
+        return this.maxSize;
+    }
+
+    /**
+     * Getter for the window property.
+     *
+     * @see window
+     * @return the window property.
+     */
+    public long getWindow() {
+        return this.window;
+    }
+
+    /**
+     * Getter for the backoffThreshold property.
+     *
+     * @see backoffThreshold
+     * @return the backoffThreshold property.
+     */
+    public int getBackoffThreshold() {
+        return this.backoffThreshold;
+    }
+
+    /**
+     * Setter for the backoffThreshold property.
+     *
+     * @see backoffThreshold
+     * @param backoffThreshold the backoffThreshold to set.
+     */
+    public void setBackoffThreshold(final int backoffThreshold) {
+        Assert.isTrue(backoffThreshold > 0, "backoffThreshold must be positive");
+        this.backoffThreshold = backoffThreshold;
+    }
+
+    /**
+     * Getter for the initialBackoff property.
+     *
+     * @see initialBackoff
+     * @return the initialBackoff property.
+     */
+    public long getInitialBackoff() {
+        return this.initialBackoff;
+    }
+
+    /**
+     * Setter for the initialBackoff property.
+     *
+     * @see initialBackoff
+     * @param initialBackoff the initialBackoff to set, 0 disables the backoff.
+     */
+    public void setInitialBackoff(final long initialBackoff) {
+        Assert.isTrue(initialBackoff >= 0, "initialBackoff must not be negative");
+        this.initialBackoff = initialBackoff;
+    }
+
+    /**
+     * Getter for the maxBackoff property.
+     *
+     * @see maxBackoff
+     * @return the maxBackoff property.
+     */
+    public long getMaxBackoff() {
+        return this.maxBackoff;
+    }
+
+    /**
+     * Setter for the maxBackoff property.
+     *
+     * @see maxBackoff
+     * @param maxBackoff the maxBackoff to set.
+     */
+    public void setMaxBackoff(final long maxBackoff) {
+        Assert.isTrue(maxBackoff >= 0, "maxBackoff must not be negative");
+        this.maxBackoff = maxBackoff;
+    }
+
+    /**
+     * Returns the current time. Can be overridden for testing.
+     *
+     * @return current time in milliseconds.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the backoff delay after count consecutive failures.
+     *
+     * @param count number of consecutive failures.
+     * @return backoff delay in milliseconds.
+     */
+    private long getBackoff(final int count) {
+        if (count < this.backoffThreshold) {
+            return 0;
+        }
+
+        final int doublings = Math.min(count - this.backoffThreshold, 30);
+
+        return Math.min(this.initialBackoff << doublings, this.maxBackoff);
+    }
+
+    /**
+     * Removes the records whose window has passed.
+     *
+     * @param now current time.
+     */
+    private void removeExpired(final long now) {
+        for (final Iterator<Failure> i = this.failures.values().iterator(); i.hasNext();) {
+            if (now - i.next().lastFailureTime >= this.window) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the cache key of username.
+     *
+     * @param username username.
+     * @return lower-case username.
+     */
+    private String toKey(final String username) {
+        return username.toLowerCase(Locale.ENGLISH);
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.cache;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.ldap.core.DirContextOperations;
+import org.springframework.security.providers.ldap.ad.util.*;
+import org.springframework.util.Assert;
+
+/**
+ * Cache of recently verified credentials, used by the authenticator to skip the LDAP bind when the
+ * same username/password is presented again within <tt>timeToLive</tt> (e.g. HTTP Basic clients
+ * authenticating every request).
+ * <p>
+ * Entries are keyed by the username (case-insensitive) and hold a salted, slow hash of the password
+ * (see {@link CredentialHasher}) plus a snapshot of the user entry; the password itself is not
+ * stored. A password change or account lock in the directory takes effect only after the entry
+ * expires or is invalidated, so keep <tt>timeToLive</tt> short.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class VerifiedCredentialCache {
+    /**
+     * Cached user entry with the hash of the verified password.
+     */
+    static class VerifiedCredential {
+        /**
+         * Hash of the verified password.
+         */
+        private final byte[] credentialHash;
+
+        /**
+         * Copy of the user entry, without the password.
+         */
+        private final DirContextOperations user;
+
+        /**
+         * Constructor specifying credentialHash, user.
+         *
+         * @param credentialHash hash of the verified password.
+         * @param user copy of the user entry.
+         */
+        VerifiedCredential(final byte[] credentialHash, final DirContextOperations user) {
+            this.credentialHash = credentialHash;
+            this.user = user;
+        }
+    }
+
+    /**
+     * Property: Hasher used for the passwords.
+     */
+    private final CredentialHasher credentialHasher;
+
+    /**
+     * Verified credentials by lower-case username.
+     */
+    private final ExpiringLruCache<String, VerifiedCredential> cache;
+
+    /**
+     * Number of lookups which found an entry for the username with a different password.
+     */
+    private final AtomicLong mismatchCount = new AtomicLong();
+
+    /**
+     * Constructor specifying maxSize, timeToLive. Passwords are hashed with 5000 PBKDF2
+     * iterations.
+     *
+     * @param maxSize maximum number of cached users.
+     * @param timeToLive time in milliseconds a verified credential is trusted.
+     */
+    public VerifiedCredentialCache(final int maxSize, final long timeToLive) {
+        this(maxSize, timeToLive, new CredentialHasher(5000));
+    }
+
+    /**
+     * Constructor specifying maxSize, timeToLive, credentialHasher.
+     *
+     * @param maxSize maximum number of cached users.
+     * @param timeToLive time in milliseconds a verified credential is trusted.
+     * @param credentialHasher hasher used for the passwords.
+     */
+    public VerifiedCredentialCache(final int maxSize, final long timeToLive,
+            final CredentialHasher credentialHasher) {
+        Assert.notNull(credentialHasher, "credentialHasher must not be null");
+        this.cache = new ExpiringLruCache<String, VerifiedCredential>(maxSize, timeToLive);
+        this.credentialHasher = credentialHasher;
+    }
+
+    /**
+     * Returns a copy of the user entry if username/password was verified within timeToLive.
+     *
+     * @param username username.
+     * @param password password.
+     * @return copy of the user entry, or null if the credentials are not cached.
+     */
+    public DirContextOperations get(final String username, final String password) {
+        final String key = toKey(username);
+        final VerifiedCredential credential = this.cache.get(key);
+        if (credential == null) {
+            return null;
+        }
+
+        if (!this.credentialHasher.matches(credential.credentialHash,
+            this.credentialHasher.hash(key, password))) {
+            this.mismatchCount.incrementAndGet();
+            return null;
+        }
+
+        return NamingUtils.copyEntry(credential.user);
+    }
+
+    /**
+     * Remembers that username/password was verified and produced the user entry.
+     *
+     * @param username username.
+     * @param password verified password.
+     * @param user user entry, copied by this method.
+     */
+    public void put(final String username, final String password,
+            final DirContextOperations user) {
+        final String key = toKey(username);
+        this.cache.put(key, new VerifiedCredential(this.credentialHasher.hash(key, password),
+            NamingUtils.copyEntry(user)));
+    }
+
+    /**
+     * Removes the cached credentials of username, e.g. after a password change.
+     *
+     * @param username username.
+     * @return true if an entry was removed.
+     */
+    public boolean invalidate(final String username) {
+        return this.cache.remove(toKey(username));
+    }
+
+    /**
+     * Removes all cached credentials.
+     */
+    public void invalidateAll() {
+        this.cache.clear();
+    }
+
+    /**
+     * Returns the number of cached users.
+     *
+     * @return number of entries.
+     */
+    public int size() {
+        return this.cache.size();
+    }
+
+    /**
+     * Returns the number of lookups which found an entry for the username, including password
+     * mismatches.
+     *
+     * @return number of hits.
+     */
+    public long getHitCount() {
+        return this.cache.getHitCount() - this.mismatchCount.get();
+    }
+
+    /**
+     * Returns the number of lookups which did not return a user entry.
+     *
+     * @return number of misses.
+     */
+    public long getMissCount() {
+        return this.cache.getMissCount() + this.mismatchCount.get();
+    }
+
+    /**
+     * Returns the number of lookups which found an entry for the username with a different
+     * password.
+     *
+     * @return number of password mismatches.
+     */
+    public long getMismatchCount() {
+        return this.mismatchCount.get();
+    }
+
+    /**
+     * Returns the number of entries evicted because the cache was full or the entry expired.
+     *
+     * @return number of evictions.
+     */
+    public long getEvictionCount() {
+        return this.cache.getEvictionCount();
+    }
+
+    /**
+     * Returns the cache key of username.
+     *
+     * @param username username.
+     * @return lower-case username.
+     */
+    private String toKey(final String username) {
+        return username.toLowerCase(Locale.ENGLISH);
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * Caches used by the Active Directory authenticators and authorities populators.
+ **/
+package org.springframework.security.providers.ldap.ad.cache;
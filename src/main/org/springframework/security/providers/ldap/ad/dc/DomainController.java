@@ -0,0 +1,204 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.dc;
+
+import org.springframework.ldap.core.ContextSource;
+
+/**
+ * Health and latency statistics of one domain controller, maintained by
+ * {@link DomainControllerSelector}.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class DomainController {
+    /**
+     * Property: LDAP URL of the domain controller.
+     */
+    private final String url;
+
+    /**
+     * Property: Context source connecting to the domain controller.
+     */
+    private final ContextSource contextSource;
+
+    /**
+     * Property: Context source opening unpooled connections to the domain controller, for probes.
+     */
+    private final ContextSource probeContextSource;
+
+    /**
+     * Property: Exponentially weighted moving average of the time to open a context or run an
+     * operation on it, in milliseconds.
+     */
+    private double latency;
+
+    /**
+     * Property: Exponentially weighted moving average of the failure rate, from 0 to 1.
+     */
+    private double errorRate;
+
+    /**
+     * Property: True if the domain controller is not used until a probe succeeds.
+     */
+    private boolean ejected;
+
+    /**
+     * Property: Number of successful operations.
+     */
+    private long successCount;
+
+    /**
+     * Property: Number of failed operations.
+     */
+    private long failureCount;
+
+    /**
+     * Constructor specifying url, contextSource, probeContextSource.
+     *
+     * @param url LDAP URL of the domain controller.
+     * @param contextSource context source connecting to the domain controller.
+     * @param probeContextSource context source opening unpooled connections, for probes.
+     */
+    DomainController(final String url, final ContextSource contextSource,
+            final ContextSource probeContextSource) {
+        this.url = url;
+        this.contextSource = contextSource;
+        this.probeContextSource = probeContextSource;
+    }
+
+    /**
+     * Getter for the url property.
+     *
+     * @see url
+     * @return the url property.
+     */
+    public String getUrl() {
+        return this.url;
+    }
+
+    /**
+     * Getter for the contextSource property.
+     *
+     * @see contextSource
+     * @return the contextSource property.
+     */
+    public ContextSource getContextSource() {
+        return this.contextSource;
+    }
+
+    /**
+     * Getter for the probeContextSource property.
+     *
+     * @see probeContextSource
+     * @return the probeContextSource property.
+     */
+    public ContextSource getProbeContextSource() {
+        return this.probeContextSource;
+    }
+
+    /**
+     * Getter for the latency property.
+     *
+     * @see latency
+     * @return the latency property.
+     */
+    public synchronized double getLatency() {
+        return this.latency;
+    }
+
+    /**
+     * Getter for the errorRate property.
+     *
+     * @see errorRate
+     * @return the errorRate property.
+     */
+    public synchronized double getErrorRate() {
+        return this.errorRate;
+    }
+
+    /**
+     * Getter for the ejected property.
+     *
+     * @see ejected
+     * @return the ejected property.
+     */
+    public synchronized boolean isEjected() {
+        return this.ejected;
+    }
+
+    /**
+     * Getter for the successCount property.
+     *
+     * @see successCount
+     * @return the successCount property.
+     */
+    public synchronized long getSuccessCount() {
+        return this.successCount;
+    }
+
+    /**
+     * Getter for the failureCount property.
+     *
+     * @see failureCount
+     * @return the failureCount property.
+     */
+    public synchronized long getFailureCount() {
+        return this.failureCount;
+    }
+
+    @Override
+    public String toString() {
+        return this.url;
+    }
+
+    /**
+     * Records a successful operation.
+     *
+     * @param latencyMillis duration of the operation in milliseconds.
+     * @param smoothingFactor weight of the new sample in the moving averages.
+     */
+    synchronized void recordSuccess(final double latencyMillis, final double smoothingFactor) {
+        this.latency = this.successCount == 0 ? latencyMillis
+                : smoothingFactor * latencyMillis + (1 - smoothingFactor) * this.latency;
+        this.errorRate = (1 - smoothingFactor) * this.errorRate;
+        this.successCount++;
+    }
+
+    /**
+     * Records a failed operation.
+     *
+     * @param smoothingFactor weight of the new sample in the moving averages.
+     * @return the new errorRate.
+     */
+    synchronized double recordFailure(final double smoothingFactor) {
+        this.errorRate = smoothingFactor + (1 - smoothingFactor) * this.errorRate;
+        this.failureCount++;
+
+        return this.errorRate;
+    }
+
+    /**
+     * Setter for the ejected property.
+     *
+     * @see ejected
+     * @param ejected the ejected to set.
+     */
+    synchronized void setEjected(final boolean ejected) {
+        this.ejected = ejected;
+        if (!ejected) {
+            this.errorRate = 0;
+        }
+    }
+}
@@ -0,0 +1,444 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.dc;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.naming.NamingException;
+
+import org.apache.commons.logging.*;
+import org.springframework.beans.factory.*;
+import org.springframework.security.providers.ldap.ad.util.NamingUtils;
+import org.springframework.util.Assert;
+
+/**
+ * Finds the domain controllers of a domain from the DNS SRV records registered by Active Directory,
+ * instead of hard-coded URLs.
+ * <p>
+ * If <tt>siteName</tt> is set, the domain controllers of that site
+ * (<code>_ldap._tcp.&lt;site&gt;._sites.dc._msdcs.&lt;domain&gt;</code>) are used, so logins are
+ * not sent to domain controllers across the WAN. The domain controllers of the other sites
+ * (<code>_ldap._tcp.dc._msdcs.&lt;domain&gt;</code>) are used only if the site has none, or after
+ * the site's if <tt>includeOtherSites</tt> is true. The records are ordered by priority and, within
+ * a priority, randomly by weight (RFC 2782).
+ * <p>
+ * The records are resolved again every <tt>refreshInterval</tt> milliseconds in the background; the
+ * URLs are passed to <tt>domainControllerSelector</tt>, if set (see
+ * <code>DomainControllerSelector.updateUrls()</code>). If a lookup fails or finds no domain
+ * controller, the previous URLs are kept.
+ * <p>
+ * DNS is queried through <tt>resolver</tt>, by default the JNDI DNS provider.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class DomainControllerLocator implements InitializingBean, DisposableBean {
+    /**
+     * Logger for this class and subclasses.
+     */
+    protected final Log logger = LogFactory.getLog(this.getClass());
+
+    /**
+     * Property: DNS name of the domain, e.g. "corp.com".
+     */
+    private final String domain;
+
+    /**
+     * Property: Base DN of the URLs; by default the DN of the domain.
+     */
+    private String baseDn;
+
+    /**
+     * Property: Name of the Active Directory site whose domain controllers are preferred; null uses
+     * the domain controllers of all sites.
+     */
+    private String siteName;
+
+    /**
+     * Property: If true the domain controllers of the other sites are used after those of
+     * siteName.
+     */
+    private boolean includeOtherSites;
+
+    /**
+     * Property: Resolver of the SRV records.
+     */
+    private SrvRecordResolver resolver = new JndiSrvRecordResolver();
+
+    /**
+     * Property: Interval in milliseconds between background lookups; 0 disables them.
+     */
+    private long refreshInterval = 5 * 60 * 1000;
+
+    /**
+     * Property: Selector receiving the URLs after each lookup; null if none.
+     */
+    private DomainControllerSelector domainControllerSelector;
+
+    /**
+     * URLs of the last successful lookup, replaced as a whole.
+     */
+    private volatile List<String> providerUrls = Collections.<String> emptyList();
+
+    /**
+     * Random numbers for the weighted ordering.
+     */
+    private final Random random = new Random();
+
+    /**
+     * Executor running the background lookups.
+     */
+    private ScheduledExecutorService refresher;
+
+    /**
+     * Constructor specifying domain.
+     *
+     * @param domain DNS name of the domain, e.g. "corp.com".
+     */
+    public DomainControllerLocator(final String domain) {
+        Assert.hasLength(domain, "domain must not be empty");
+        this.domain = domain;
+        this.baseDn = NamingUtils.prepareRootDn(domain);
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        refresh();
+        Assert.state(!this.providerUrls.isEmpty(),
+            "No domain controllers found for domain " + this.domain);
+
+        if (this.refreshInterval > 0) {
+            this.refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "ldap-dc-locator");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+            this.refresher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refresh();
+                    } catch (final RuntimeException e) {
+                        // an exception would cancel the later refreshes: keep the last URLs
+                        DomainControllerLocator.this.logger.warn(
+                            "Refresh of the domain controllers of "
+                                    + DomainControllerLocator.this.domain + " failed", e);
+                    }
+                }
+            }, this.refreshInterval, this.refreshInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (this.refresher != null) {
+            this.refresher.shutdownNow();
+        }
+    }
+
+    /**
+     * Looks up the domain controllers and, if any are found, replaces providerUrls and updates
+     * domainControllerSelector.
+     */
+    public void refresh() {
+        final List<String> urls;
+        try {
+            urls = locate();
+        } catch (final NamingException e) {
+            this.logger.warn("Lookup of the domain controllers of " + this.domain
+                    + " failed, keeping " + this.providerUrls, e);
+            return;
+        }
+
+        if (urls.isEmpty()) {
+            this.logger.warn("No domain controllers found for " + this.domain + ", keeping "
+                    + this.providerUrls);
+            return;
+        }
+
+        this.providerUrls = Collections.unmodifiableList(urls);
+        if (this.domainControllerSelector != null) {
+            this.domainControllerSelector.updateUrls(urls);
+        }
+    }
+
+    /**
+     * Looks up the domain controllers in DNS.
+     *
+     * @return LDAP URLs, including baseDn, in the order they should be tried.
+     * @throws NamingException if a DNS lookup fails.
+     */
+    public List<String> locate() throws NamingException {
+        final List<SrvRecord> records = new ArrayList<SrvRecord>();
+        if (this.siteName != null) {
+            records.addAll(order(this.resolver.resolve(getSiteRecordName())));
+        }
+
+        if (records.isEmpty() || this.includeOtherSites) {
+            final Set<String> found = new HashSet<String>();
+            for (final SrvRecord record : records) {
+                found.add(record.getTarget().toLowerCase(Locale.ENGLISH));
+            }
+
+            for (final SrvRecord record : order(this.resolver.resolve(getDomainRecordName()))) {
+                if (found.add(record.getTarget().toLowerCase(Locale.ENGLISH))) {
+                    records.add(record);
+                }
+            }
+        }
+
+        final List<String> urls = new ArrayList<String>(records.size());
+        for (final SrvRecord record : records) {
+            urls.add("ldap://" + record.getTarget() + ":" + record.getPort() + "/" + this.baseDn);
+        }
+
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug("Domain controllers of " + this.domain + ": " + urls);
+        }
+
+        return urls;
+    }
+
+    /**
+     * Returns the DNS name of the SRV records of the domain controllers of siteName.
+     *
+     * @return DNS name of the records of the site.
+     */
+    public String getSiteRecordName() {
+        return "_ldap._tcp." + this.siteName + "._sites.dc._msdcs." + this.domain;
+    }
+
+    /**
+     * Returns the DNS name of the SRV records of all domain controllers of the domain.
+     *
+     * @return DNS name of the records of the domain.
+     */
+    public String getDomainRecordName() {
+        return "_ldap._tcp.dc._msdcs." + this.domain;
+    }
+
+    /**
+     * Returns the URLs of the last successful lookup.
+     *
+     * @return unmodifiable list of LDAP URLs.
+     */
+    public List<String> getProviderUrls() {
+        return this.providerUrls;
+    }
+
+    /**
+     * Getter for the domain property.
+     *
+     * @see domain
+     * @return the domain property.
+     */
+    public String getDomain() {
+        return this.domain;
+    }
+
+    /**
+     * Getter for the baseDn property.
+     *
+     * @see baseDn
+     * @return the baseDn property.
+     */
+    public String getBaseDn() {
+        return this.baseDn;
+    }
+
+    /**
+     * Setter for the baseDn property.
+     *
+     * @see baseDn
+     * @param baseDn the baseDn to set.
+     */
+    public void setBaseDn(final String baseDn) {
+        Assert.notNull(baseDn, "baseDn must not be null");
+        this.baseDn = baseDn;
+    }
+
+    /**
+     * Getter for the siteName property.
+     *
+     * @see siteName
+     * @return the siteName property.
+     */
+    public String getSiteName() {
+        return this.siteName;
+    }
+
+    /**
+     * Setter for the siteName property.
+     *
+     * @see siteName
+     * @param siteName the siteName to set, null to use the domain controllers of all sites.
+     */
+    public void setSiteName(final String siteName) {
+        this.siteName = siteName;
+    }
+
+    /**
+     * Getter for the includeOtherSites property.
+     *
+     * @see includeOtherSites
+     * @return the includeOtherSites property.
+     */
+    public boolean isIncludeOtherSites() {
+        return this.includeOtherSites;
+    }
+
+    /**
+     * Setter for the includeOtherSites property.
+     *
+     * @see includeOtherSites
+     * @param includeOtherSites the includeOtherSites to set.
+     */
+    public void setIncludeOtherSites(final boolean includeOtherSites) {
+        this.includeOtherSites = includeOtherSites;
+    }
+
+    /**
+     * Getter for the resolver property.
+     *
+     * @see resolver
+     * @return the resolver property.
+     */
+    public SrvRecordResolver getResolver() {
+        return this.resolver;
+    }
+
+    /**
+     * Setter for the resolver property.
+     *
+     * @see resolver
+     * @param resolver the resolver to set.
+     */
+    public void setResolver(final SrvRecordResolver resolver) {
+        Assert.notNull(resolver, "resolver must not be null");
+        this.resolver = resolver;
+    }
+
+    /**
+     * Getter for the refreshInterval property.
+     *
+     * @see refreshInterval
+     * @return the refreshInterval property.
+     */
+    public long getRefreshInterval() {
+        return this.refreshInterval;
+    }
+
+    /**
+     * Setter for the refreshInterval property.
+     *
+     * @see refreshInterval
+     * @param refreshInterval the refreshInterval to set.
+     */
+    public void setRefreshInterval(final long refreshInterval) {
+        Assert.isTrue(refreshInterval >= 0, "refreshInterval must not be negative");
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * Getter for the domainControllerSelector property.
+     *
+     * @see domainControllerSelector
+     * @return the domainControllerSelector property.
+     */
+    public DomainControllerSelector getDomainControllerSelector() {
+        return this.domainControllerSelector;
+    }
+
+    /**
+     * Setter for the domainControllerSelector property.
+     *
+     * @see domainControllerSelector
+     * @param domainControllerSelector the domainControllerSelector to set, null if none.
+     */
+    public void setDomainControllerSelector(
+            final DomainControllerSelector domainControllerSelector) {
+        this.domainControllerSelector = domainControllerSelector;
+    }
+
+    /**
+     * Returns a random number for the weighted ordering. Can be overridden, e.g. in tests.
+     *
+     * @param bound upper bound (exclusive).
+     * @return random number from 0 to bound - 1.
+     */
+    protected int nextRandom(final int bound) {
+        return this.random.nextInt(bound);
+    }
+
+    /**
+     * Orders SRV records by priority and, within a priority, randomly by weight (RFC 2782).
+     *
+     * @param records records to order.
+     * @return ordered records.
+     */
+    private List<SrvRecord> order(final List<SrvRecord> records) {
+        final List<SrvRecord> sorted = new ArrayList<SrvRecord>(records);
+        // by priority; within a priority the records with weight 0 first
+        Collections.sort(sorted, new Comparator<SrvRecord>() {
+            @Override
+            public int compare(final SrvRecord record1, final SrvRecord record2) {
+                if (record1.getPriority() != record2.getPriority()) {
+                    return record1.getPriority() < record2.getPriority() ? -1 : 1;
+                }
+
+                return (record1.getWeight() == 0 ? 0 : 1) - (record2.getWeight() == 0 ? 0 : 1);
+            }
+        });
+
+        final List<SrvRecord> ordered = new ArrayList<SrvRecord>(sorted.size());
+        int start = 0;
+        while (start < sorted.size()) {
+            int end = start;
+            while (end < sorted.size()
+                    && sorted.get(end).getPriority() == sorted.get(start).getPriority()) {
+                end++;
+            }
+
+            final List<SrvRecord> remaining = new ArrayList<SrvRecord>(sorted.subList(start, end));
+            while (!remaining.isEmpty()) {
+                int totalWeight = 0;
+                for (final SrvRecord record : remaining) {
+                    totalWeight += record.getWeight();
+                }
+
+                final int selected = nextRandom(totalWeight + 1);
+                int runningWeight = 0;
+                for (final Iterator<SrvRecord> iterator = remaining.iterator(); iterator
+                    .hasNext();) {
+                    final SrvRecord record = iterator.next();
+                    runningWeight += record.getWeight();
+                    if (runningWeight >= selected) {
+                        ordered.add(record);
+                        iterator.remove();
+                        break;
+                    }
+                }
+            }
+
+            start = end;
+        }
+
+        return ordered;
+    }
+}
@@ -0,0 +1,680 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.dc;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.DirContext;
+import javax.naming.ldap.LdapContext;
+
+import org.apache.commons.logging.*;
+import org.springframework.beans.factory.*;
+import org.springframework.ldap.*;
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.ldap.support.LdapUtils;
+import org.springframework.security.ldap.DefaultSpringSecurityContextSource;
+import org.springframework.security.providers.ldap.ad.util.DeadlineAuthenticationStrategy;
+import org.springframework.util.Assert;
+
+/**
+ * ContextSource distributing binds and searches over several domain controllers.
+ * <p>
+ * Each domain controller has its own context source. For every context the domain controller with
+ * the lowest moving average latency is tried first; if it cannot be reached the next one is tried.
+ * The latency is measured when a context is opened and around each operation (search, bind, ...)
+ * run on it, so a domain controller answering slowly is ranked down even if it connects quickly.
+ * A domain controller whose moving average failure rate reaches <tt>maxErrorRate</tt> is ejected: it
+ * is used only if no other domain controller is left, until a background probe (a read-only
+ * context opened every <tt>probeInterval</tt> milliseconds) succeeds. The probes also refresh the
+ * latency of domain controllers which are not currently chosen. Probes open a new, unpooled
+ * connection, so a cached connection to a domain controller which went down cannot pass a probe.
+ * <p>
+ * A rejected bind (wrong password) means the domain controller is working and is not counted as a
+ * failure.
+ * <p>
+ * The domain controllers can be replaced at runtime with <code>updateUrls()</code>, e.g. by a
+ * {@link DomainControllerLocator}; the statistics of domain controllers which remain are kept.
+ * Until latencies are measured, domain controllers are tried in the order of the URLs.
+ * <p>
+ * <tt>connectTimeout</tt> and <tt>readTimeout</tt> bound how long a domain controller which does not
+ * answer can block a thread; by default JNDI waits indefinitely. Connections opened within a
+ * <code>LoginDeadline</code> time out when its budget runs out.
+ * <p>
+ * Use as <tt>bindContextSource</tt> of the authenticator and authorities populator, or as target of
+ * a <code>PooledRebindContextSource</code>.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class DomainControllerSelector implements ContextSource, InitializingBean,
+        DisposableBean {
+    /**
+     * Invocation handler behind the contexts handed out: measures the latency of the operations on
+     * the domain controller the context is connected to.
+     */
+    private class MeasuredContextInvocationHandler implements InvocationHandler {
+        /**
+         * Property: domain controller the context is connected to.
+         */
+        private final DomainController domainController;
+
+        /**
+         * Property: context of the domain controller.
+         */
+        private final DirContext target;
+
+        /**
+         * Constructor specifying domainController, target.
+         *
+         * @param domainController domain controller the context is connected to.
+         * @param target context of the domain controller.
+         */
+        MeasuredContextInvocationHandler(final DomainController domainController,
+                final DirContext target) {
+            this.domainController = domainController;
+            this.target = target;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args)
+                throws Throwable {
+            if (!MEASURED_OPERATIONS.contains(method.getName())) {
+                try {
+                    return method.invoke(this.target, args);
+                } catch (final InvocationTargetException e) {
+                    throw e.getTargetException();
+                }
+            }
+
+            final long start = System.nanoTime();
+            try {
+                final Object result = method.invoke(this.target, args);
+                this.domainController.recordSuccess(elapsedMillis(start),
+                    DomainControllerSelector.this.smoothingFactor);
+
+                return result;
+            } catch (final InvocationTargetException e) {
+                final Throwable cause = e.getTargetException();
+                if (cause instanceof javax.naming.CommunicationException
+                        || cause instanceof ServiceUnavailableException) {
+                    recordFailure(this.domainController, (Exception) cause);
+                } else {
+                    // the domain controller answered, e.g. with a time limit or a missing entry
+                    this.domainController.recordSuccess(elapsedMillis(start),
+                        DomainControllerSelector.this.smoothingFactor);
+                }
+
+                throw cause;
+            }
+        }
+    }
+
+    /**
+     * Opens a context from a context source.
+     */
+    private interface ContextOpener {
+        /**
+         * Opens a context.
+         *
+         * @param contextSource context source of one domain controller.
+         * @return opened context.
+         */
+        DirContext open(ContextSource contextSource);
+    }
+
+    /**
+     * Constant: JNDI environment property holding the connect timeout in milliseconds.
+     */
+    public static final String CONNECT_TIMEOUT_PROPERTY = "com.sun.jndi.ldap.connect.timeout";
+
+    /**
+     * Constant: JNDI environment property holding the read timeout in milliseconds.
+     */
+    public static final String READ_TIMEOUT_PROPERTY = "com.sun.jndi.ldap.read.timeout";
+
+    /**
+     * Constant: JNDI environment property enabling connection pooling.
+     */
+    public static final String CONNECT_POOL_PROPERTY = "com.sun.jndi.ldap.connect.pool";
+
+    /**
+     * Constant: names of the context methods which contact the domain controller.
+     */
+    private static final Set<String> MEASURED_OPERATIONS = new HashSet<String>(Arrays.asList(
+        "bind", "createSubcontext", "destroySubcontext", "extendedOperation", "getAttributes",
+        "list", "listBindings", "lookup", "modifyAttributes", "rebind", "reconnect", "rename",
+        "search", "unbind"));
+
+    /**
+     * Logger for this class and subclasses.
+     */
+    protected final Log logger = LogFactory.getLog(this.getClass());
+
+    /**
+     * Property: LDAP URLs, including the base DN, of the domain controllers, replaced as a whole.
+     */
+    private volatile List<String> providerUrls;
+
+    /**
+     * Domain controllers, replaced as a whole.
+     */
+    private volatile List<DomainController> domainControllers =
+            Collections.<DomainController> emptyList();
+
+    /**
+     * Property: Time in milliseconds to wait for a connection to be established; 0 waits
+     * indefinitely.
+     */
+    private int connectTimeout;
+
+    /**
+     * Property: Time in milliseconds to wait for a response; 0 waits indefinitely.
+     */
+    private int readTimeout;
+
+    /**
+     * Property: Weight of a new sample in the latency and error rate moving averages.
+     */
+    private double smoothingFactor = 0.3;
+
+    /**
+     * Property: Error rate at which a domain controller is ejected.
+     */
+    private double maxErrorRate = 0.5;
+
+    /**
+     * Property: Interval in milliseconds between background probes; 0 disables probing.
+     */
+    private long probeInterval = 10000;
+
+    /**
+     * Property: DN used by the domain controller context sources for read-only contexts and probes.
+     */
+    private String userDn = "";
+
+    /**
+     * Property: Password of userDn.
+     */
+    private String password = "";
+
+    /**
+     * Executor running the probes.
+     */
+    private ScheduledExecutorService prober;
+
+    /**
+     * Constructor specifying providerUrls.
+     *
+     * @param providerUrls LDAP URLs, including the base DN, e.g. "ldap://dc1:389/dc=example,dc=com".
+     */
+    public DomainControllerSelector(final List<String> providerUrls) {
+        Assert.notEmpty(providerUrls, "providerUrls must not be empty");
+        this.providerUrls = Collections.unmodifiableList(new ArrayList<String>(providerUrls));
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        Assert.isTrue(this.smoothingFactor > 0 && this.smoothingFactor <= 1,
+            "smoothingFactor must be between 0 and 1");
+        Assert.isTrue(this.maxErrorRate > 0 && this.maxErrorRate <= 1,
+            "maxErrorRate must be between 0 and 1");
+
+        createDomainControllers();
+
+        if (this.probeInterval > 0) {
+            this.prober = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "ldap-dc-prober");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+            this.prober.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    probe();
+                }
+            }, this.probeInterval, this.probeInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (this.prober != null) {
+            this.prober.shutdownNow();
+        }
+    }
+
+    @Override
+    public DirContext getContext(final String principal, final String credentials) {
+        return openContext(new ContextOpener() {
+            @Override
+            public DirContext open(final ContextSource contextSource) {
+                return contextSource.getContext(principal, credentials);
+            }
+        });
+    }
+
+    @Override
+    public DirContext getReadOnlyContext() {
+        return openContext(new ContextOpener() {
+            @Override
+            public DirContext open(final ContextSource contextSource) {
+                return contextSource.getReadOnlyContext();
+            }
+        });
+    }
+
+    @Override
+    public DirContext getReadWriteContext() {
+        return openContext(new ContextOpener() {
+            @Override
+            public DirContext open(final ContextSource contextSource) {
+                return contextSource.getReadWriteContext();
+            }
+        });
+    }
+
+    /**
+     * Opens and closes a read-only context on every domain controller, updating its latency and
+     * reinstating ejected domain controllers which respond.
+     */
+    public void probe() {
+        for (final DomainController domainController : this.domainControllers) {
+            final long start = System.nanoTime();
+            try {
+                LdapUtils.closeContext(
+                    domainController.getProbeContextSource().getReadOnlyContext());
+                domainController.recordSuccess(elapsedMillis(start), this.smoothingFactor);
+
+                if (domainController.isEjected()) {
+                    domainController.setEjected(false);
+                    this.logger.info("Domain controller " + domainController + " reinstated");
+                }
+            } catch (final NamingException e) {
+                recordFailure(domainController, e);
+            }
+        }
+    }
+
+    /**
+     * Replaces the domain controllers. Domain controllers whose URL remains keep their statistics.
+     *
+     * @param urls LDAP URLs, including the base DN, of the domain controllers, in the order they
+     *            should be tried until latencies are measured.
+     */
+    public synchronized void updateUrls(final List<String> urls) {
+        Assert.notEmpty(urls, "urls must not be empty");
+        if (urls.equals(this.providerUrls)) {
+            return;
+        }
+
+        this.providerUrls = Collections.unmodifiableList(new ArrayList<String>(urls));
+        if (!this.domainControllers.isEmpty()) {
+            createDomainControllers();
+        }
+
+        this.logger.info("Domain controllers updated: " + urls);
+    }
+
+    /**
+     * Returns the domain controllers with their statistics.
+     *
+     * @return unmodifiable list of domain controllers.
+     */
+    public List<DomainController> getDomainControllers() {
+        return this.domainControllers;
+    }
+
+    /**
+     * Getter for the providerUrls property.
+     *
+     * @see providerUrls
+     * @return the providerUrls property.
+     */
+    public List<String> getProviderUrls() {
+        return this.providerUrls;
+    }
+
+    /**
+     * Getter for the connectTimeout property.
+     *
+     * @see connectTimeout
+     * @return the connectTimeout property.
+     */
+    public int getConnectTimeout() {
+        return this.connectTimeout;
+    }
+
+    /**
+     * Setter for the connectTimeout property.
+     *
+     * @see connectTimeout
+     * @param connectTimeout the connectTimeout to set, in milliseconds; 0 waits indefinitely.
+     */
+    public void setConnectTimeout(final int connectTimeout) {
+        Assert.isTrue(connectTimeout >= 0, "connectTimeout must not be negative");
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Getter for the readTimeout property.
+     *
+     * @see readTimeout
+     * @return the readTimeout property.
+     */
+    public int getReadTimeout() {
+        return this.readTimeout;
+    }
+
+    /**
+     * Setter for the readTimeout property.
+     *
+     * @see readTimeout
+     * @param readTimeout the readTimeout to set, in milliseconds; 0 waits indefinitely.
+     */
+    public void setReadTimeout(final int readTimeout) {
+        Assert.isTrue(readTimeout >= 0, "readTimeout must not be negative");
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Getter for the smoothingFactor property.
+     *
+     * @see smoothingFactor
+     * @return the smoothingFactor property.
+     */
+    public double getSmoothingFactor() {
+        return this.smoothingFactor;
+    }
+
+    /**
+     * Setter for the smoothingFactor property.
+     *
+     * @see smoothingFactor
+     * @param smoothingFactor the smoothingFactor to set.
+     */
+    public void setSmoothingFactor(final double smoothingFactor) {
+        this.smoothingFactor = smoothingFactor;
+    }
+
+    /**
+     * Getter for the maxErrorRate property.
+     *
+     * @see maxErrorRate
+     * @return the maxErrorRate property.
+     */
+    public double getMaxErrorRate() {
+        return this.maxErrorRate;
+    }
+
+    /**
+     * Setter for the maxErrorRate property.
+     *
+     * @see maxErrorRate
+     * @param maxErrorRate the maxErrorRate to set.
+     */
+    public void setMaxErrorRate(final double maxErrorRate) {
+        this.maxErrorRate = maxErrorRate;
+    }
+
+    /**
+     * Getter for the probeInterval property.
+     *
+     * @see probeInterval
+     * @return the probeInterval property.
+     */
+    public long getProbeInterval() {
+        return this.probeInterval;
+    }
+
+    /**
+     * Setter for the probeInterval property.
+     *
+     * @see probeInterval
+     * @param probeInterval the probeInterval to set.
+     */
+    public void setProbeInterval(final long probeInterval) {
+        Assert.isTrue(probeInterval >= 0, "probeInterval must not be negative");
+        this.probeInterval = probeInterval;
+    }
+
+    /**
+     * Getter for the userDn property.
+     *
+     * @see userDn
+     * @return the userDn property.
+     */
+    public String getUserDn() {
+        return this.userDn;
+    }
+
+    /**
+     * Setter for the userDn property.
+     *
+     * @see userDn
+     * @param userDn the userDn to set.
+     */
+    public void setUserDn(final String userDn) {
+        Assert.notNull(userDn, "userDn must not be null");
+        this.userDn = userDn;
+    }
+
+    /**
+     * Setter for the password property.
+     *
+     * @see password
+     * @param password the password to set.
+     */
+    public void setPassword(final String password) {
+        Assert.notNull(password, "password must not be null");
+        this.password = password;
+    }
+
+    /**
+     * Creates the context source of one domain controller. Can be overridden to customize the
+     * context sources.
+     *
+     * @param providerUrl LDAP URL, including the base DN, of the domain controller.
+     * @return initialized context source.
+     */
+    protected ContextSource createContextSource(final String providerUrl) {
+        return createDefaultContextSource(providerUrl, true);
+    }
+
+    /**
+     * Creates the context source of the probes of one domain controller, opening a new connection
+     * for every probe. Can be overridden to customize the context sources.
+     *
+     * @param providerUrl LDAP URL, including the base DN, of the domain controller.
+     * @return initialized context source with JNDI connection pooling disabled.
+     */
+    protected ContextSource createProbeContextSource(final String providerUrl) {
+        return createDefaultContextSource(providerUrl, false);
+    }
+
+    /**
+     * Creates a context source of one domain controller.
+     *
+     * @param providerUrl LDAP URL, including the base DN, of the domain controller.
+     * @param pooled true to enable JNDI connection pooling.
+     * @return initialized context source.
+     */
+    private ContextSource createDefaultContextSource(final String providerUrl,
+            final boolean pooled) {
+        final DefaultSpringSecurityContextSource contextSource =
+                new DefaultSpringSecurityContextSource(providerUrl);
+        contextSource.setUserDn(this.userDn);
+        contextSource.setPassword(this.password);
+        contextSource.setPooled(pooled);
+        final Map<String, Object> environment = new HashMap<String, Object>();
+        if (!pooled) {
+            environment.put(CONNECT_POOL_PROPERTY, "false");
+        }
+
+        if (this.connectTimeout > 0) {
+            environment.put(CONNECT_TIMEOUT_PROPERTY, String.valueOf(this.connectTimeout));
+        }
+
+        if (this.readTimeout > 0) {
+            environment.put(READ_TIMEOUT_PROPERTY, String.valueOf(this.readTimeout));
+        }
+
+        contextSource.setBaseEnvironmentProperties(environment);
+        contextSource.afterPropertiesSet();
+        // connections opened within a login deadline time out when it runs out
+        DeadlineAuthenticationStrategy.install(contextSource);
+
+        return contextSource;
+    }
+
+    /**
+     * Creates the domain controllers of providerUrls, reusing the existing ones.
+     */
+    private synchronized void createDomainControllers() {
+        final Map<String, DomainController> existing = new HashMap<String, DomainController>();
+        for (final DomainController domainController : this.domainControllers) {
+            existing.put(domainController.getUrl(), domainController);
+        }
+
+        final List<DomainController> controllers = new ArrayList<DomainController>();
+        for (final String providerUrl : this.providerUrls) {
+            DomainController domainController = existing.get(providerUrl);
+            if (domainController == null) {
+                domainController = new DomainController(providerUrl,
+                    createContextSource(providerUrl), createProbeContextSource(providerUrl));
+            }
+            controllers.add(domainController);
+        }
+        this.domainControllers = Collections.unmodifiableList(controllers);
+    }
+
+    /**
+     * Opens a context on the best domain controller, failing over to the others.
+     *
+     * @param opener opens the context.
+     * @return opened context.
+     */
+    private DirContext openContext(final ContextOpener opener) {
+        NamingException lastException = null;
+        for (final DomainController domainController : selectDomainControllers()) {
+            final long start = System.nanoTime();
+            try {
+                final DirContext ctx = opener.open(domainController.getContextSource());
+                domainController.recordSuccess(elapsedMillis(start), this.smoothingFactor);
+
+                return createProxy(domainController, ctx);
+            } catch (final AuthenticationException e) {
+                // the domain controller is working: the credentials were rejected
+                domainController.recordSuccess(elapsedMillis(start), this.smoothingFactor);
+                throw e;
+            } catch (final NamingException e) {
+                recordFailure(domainController, e);
+                lastException = e;
+            }
+        }
+
+        throw lastException;
+    }
+
+    /**
+     * Returns the domain controllers in the order they should be tried: the healthy one with the
+     * lowest latency, the other healthy ones, then the ejected ones.
+     *
+     * @return domain controllers to try.
+     */
+    private List<DomainController> selectDomainControllers() {
+        final List<DomainController> controllers = this.domainControllers;
+        Assert.state(!controllers.isEmpty(), "afterPropertiesSet() has not been called");
+
+        final List<DomainController> healthy = new ArrayList<DomainController>(controllers.size());
+        final List<DomainController> ejected = new ArrayList<DomainController>();
+        DomainController fastest = null;
+        double fastestLatency = Double.MAX_VALUE;
+        for (final DomainController domainController : controllers) {
+            if (domainController.isEjected()) {
+                ejected.add(domainController);
+                continue;
+            }
+
+            final double latency = domainController.getLatency();
+            if (latency < fastestLatency) {
+                fastest = domainController;
+                fastestLatency = latency;
+            }
+            healthy.add(domainController);
+        }
+
+        final List<DomainController> selected =
+                new ArrayList<DomainController>(controllers.size());
+        if (fastest != null) {
+            selected.add(fastest);
+            healthy.remove(fastest);
+        }
+        selected.addAll(healthy);
+        selected.addAll(ejected);
+
+        return selected;
+    }
+
+    /**
+     * Records a failure of the domain controller, ejecting it if its error rate is too high.
+     *
+     * @param domainController failed domain controller.
+     * @param e exception of the failure.
+     */
+    private void recordFailure(final DomainController domainController, final Exception e) {
+        final double errorRate = domainController.recordFailure(this.smoothingFactor);
+
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug("Domain controller " + domainController + " failed, error rate "
+                    + errorRate, e);
+        }
+
+        if (errorRate >= this.maxErrorRate && !domainController.isEjected()) {
+            domainController.setEjected(true);
+            this.logger.warn("Domain controller " + domainController + " ejected: "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Wraps a context so that the latency of its operations is recorded.
+     *
+     * @param domainController domain controller the context is connected to.
+     * @param ctx context of the domain controller.
+     * @return proxy for the context.
+     */
+    private DirContext createProxy(final DomainController domainController, final DirContext ctx) {
+        final Class<?> type = ctx instanceof LdapContext ? LdapContext.class : DirContext.class;
+
+        return (DirContext) Proxy.newProxyInstance(LdapContext.class.getClassLoader(),
+            new Class<?>[] { type }, new MeasuredContextInvocationHandler(domainController, ctx));
+    }
+
+    /**
+     * Returns the milliseconds elapsed since start.
+     *
+     * @param start start time from System.nanoTime().
+     * @return elapsed milliseconds.
+     */
+    private static double elapsedMillis(final long start) {
+        return (System.nanoTime() - start) / 1000000.0;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.dc;
+
+/**
+ * One domain of an Active Directory forest, as described by its crossRef entry in the Partitions
+ * container of the configuration partition.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class ForestDomain {
+    /**
+     * Property: NetBIOS name of the domain (attribute <tt>nETBIOSName</tt>), e.g. "CHILD".
+     */
+    private final String netbiosName;
+
+    /**
+     * Property: DNS name of the domain (attribute <tt>dnsRoot</tt>), e.g. "child.corp.com".
+     */
+    private final String dnsRoot;
+
+    /**
+     * Property: DN of the domain naming context (attribute <tt>nCName</tt>), e.g.
+     * "DC=child,DC=corp,DC=com".
+     */
+    private final String namingContext;
+
+    /**
+     * Constructor specifying netbiosName, dnsRoot, namingContext.
+     *
+     * @param netbiosName NetBIOS name of the domain.
+     * @param dnsRoot DNS name of the domain.
+     * @param namingContext DN of the domain naming context.
+     */
+    public ForestDomain(final String netbiosName, final String dnsRoot,
+            final String namingContext) {
+        this.netbiosName = netbiosName;
+        this.dnsRoot = dnsRoot;
+        this.namingContext = namingContext;
+    }
+
+    /**
+     * Getter for the netbiosName property.
+     *
+     * @see netbiosName
+     * @return the netbiosName property.
+     */
+    public String getNetbiosName() {
+        return this.netbiosName;
+    }
+
+    /**
+     * Getter for the dnsRoot property.
+     *
+     * @see dnsRoot
+     * @return the dnsRoot property.
+     */
+    public String getDnsRoot() {
+        return this.dnsRoot;
+    }
+
+    /**
+     * Getter for the namingContext property.
+     *
+     * @see namingContext
+     * @return the namingContext property.
+     */
+    public String getNamingContext() {
+        return this.namingContext;
+    }
+
+    @Override
+    public String toString() {
+        return this.netbiosName + " (" + this.dnsRoot + ")";
+    }
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.dc;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.naming.NamingException;
+import javax.naming.directory.*;
+import javax.naming.ldap.LdapName;
+
+import org.apache.commons.logging.*;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.ldap.core.*;
+import org.springframework.ldap.core.support.AbstractContextMapper;
+import org.springframework.ldap.support.LdapUtils;
+import org.springframework.security.ldap.DefaultSpringSecurityContextSource;
+import org.springframework.security.providers.ldap.ad.cache.ExpiringLruCache;
+import org.springframework.security.providers.ldap.ad.util.*;
+import org.springframework.util.Assert;
+
+/**
+ * Routes the logins of a multi-domain forest to the domain of the user.
+ * <p>
+ * The domains are read once from the crossRef entries (<tt>nETBIOSName</tt>, <tt>dnsRoot</tt>,
+ * <tt>nCName</tt>) of <code>CN=Partitions,CN=Configuration,&lt;forestRootDn&gt;</code> through
+ * <tt>globalCatalogContextSource</tt>, a context source with an empty base connected to a Global
+ * Catalog (port 3268), and kept until <code>load()</code> is called again.
+ * <p>
+ * A username is routed by its domain part: the NetBIOS domain of <code>DOMAIN\account</code> or the
+ * UPN suffix of <code>account@upn.suffix</code>, if it is the DNS name of a domain. Otherwise (an
+ * alternative UPN suffix, or no domain part) the account is looked up in the Global Catalog, which
+ * holds the users of all domains; a username without domain part must be unique in the forest.
+ * The domains found there are cached for 10 minutes.
+ * Usernames which cannot be routed go to <tt>defaultDomain</tt>, if set.
+ * <p>
+ * Each domain has its own context source (see <code>createContextSource</code>), connected to the
+ * DNS name of the domain, so the bind and user search go straight to a domain controller of the
+ * user's domain. Like the default context sources of <code>DomainControllerSelector</code>, they
+ * apply the login deadline to the connections they open.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class ForestDomainRouter implements InitializingBean {
+    /**
+     * Constant: LDAP filter of the crossRef entries of the domains.
+     */
+    public static final String CROSS_REF_FILTER = "(&(objectClass=crossRef)(nETBIOSName=*))";
+
+    /**
+     * Constant: parsed LDAP filter by user principal name.
+     */
+    private static final LdapFilterTemplate USER_PRINCIPAL_NAME_FILTER_TEMPLATE =
+            new LdapFilterTemplate("(&(objectClass=user)(userPrincipalName={0}))");
+
+    /**
+     * Constant: parsed LDAP filter by account name.
+     */
+    private static final LdapFilterTemplate ACCOUNT_NAME_FILTER_TEMPLATE =
+            new LdapFilterTemplate("(&(objectClass=user)(sAMAccountName={0}))");
+
+    /**
+     * Logger for this class and subclasses.
+     */
+    protected final Log logger = LogFactory.getLog(this.getClass());
+
+    /**
+     * Property: Context source with an empty base connected to a Global Catalog.
+     */
+    private final ContextSource globalCatalogContextSource;
+
+    /**
+     * Property: DN of the forest root domain, e.g. "DC=corp,DC=com".
+     */
+    private final String forestRootDn;
+
+    /**
+     * Property: NetBIOS or DNS name of the domain of usernames which cannot be routed; null rejects
+     * them.
+     */
+    private String defaultDomain;
+
+    /**
+     * Property: LDAP port of the domain controllers.
+     */
+    private int port = 389;
+
+    /**
+     * Domains, replaced as a whole.
+     */
+    private volatile List<ForestDomain> domains = Collections.<ForestDomain> emptyList();
+
+    /**
+     * Domains by lower-case NetBIOS and DNS name, replaced as a whole.
+     */
+    private volatile Map<String, ForestDomain> domainsByName =
+            Collections.<String, ForestDomain> emptyMap();
+
+    /**
+     * Domains of the accounts found in the global catalog, by lower-case username.
+     */
+    private final ExpiringLruCache<String, ForestDomain> accountDomains =
+            new ExpiringLruCache<String, ForestDomain>(10000, 10 * 60 * 1000);
+
+    /**
+     * Context sources of the domains by NetBIOS name, created on first use.
+     */
+    private final ConcurrentHashMap<String, ContextSource> contextSources =
+            new ConcurrentHashMap<String, ContextSource>();
+
+    /**
+     * Constructor specifying globalCatalogContextSource, forestRootDn.
+     *
+     * @param globalCatalogContextSource context source with an empty base connected to a Global
+     *            Catalog, e.g. "ldap://gc.corp.com:3268/", bound as a service account.
+     * @param forestRootDn DN of the forest root domain, e.g. "DC=corp,DC=com".
+     */
+    public ForestDomainRouter(final ContextSource globalCatalogContextSource,
+            final String forestRootDn) {
+        Assert.notNull(globalCatalogContextSource, "globalCatalogContextSource must not be null");
+        Assert.hasLength(forestRootDn, "forestRootDn must not be empty");
+        this.globalCatalogContextSource = globalCatalogContextSource;
+        this.forestRootDn = forestRootDn;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        load();
+
+        Assert.isTrue(this.defaultDomain == null || getDomain(this.defaultDomain) != null,
+            "defaultDomain " + this.defaultDomain + " is not a domain of the forest");
+    }
+
+    /**
+     * Reads the domains of the forest from the crossRef entries, replacing the routing table.
+     */
+    public void load() {
+        final SearchControls controls = new SearchControls();
+        controls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
+        controls.setReturningAttributes(new String[] { "nETBIOSName", "dnsRoot", "nCName" });
+
+        final LdapTemplate template = new LdapTemplate(this.globalCatalogContextSource);
+        final List<ForestDomain> loadedDomains = template.search(
+            "CN=Partitions,CN=Configuration," + this.forestRootDn, CROSS_REF_FILTER, controls,
+            new AttributesMapper<ForestDomain>() {
+                @Override
+                public ForestDomain mapFromAttributes(final Attributes attributes)
+                        throws NamingException {
+                    return new ForestDomain((String) attributes.get("nETBIOSName").get(),
+                        (String) attributes.get("dnsRoot").get(),
+                        (String) attributes.get("nCName").get());
+                }
+            });
+
+        final Map<String, ForestDomain> byName = new HashMap<String, ForestDomain>();
+        for (final ForestDomain domain : loadedDomains) {
+            byName.put(domain.getNetbiosName().toLowerCase(Locale.ENGLISH), domain);
+            byName.put(domain.getDnsRoot().toLowerCase(Locale.ENGLISH), domain);
+        }
+
+        this.domains = Collections.unmodifiableList(loadedDomains);
+        this.domainsByName = byName;
+        this.accountDomains.clear();
+
+        if (this.logger.isInfoEnabled()) {
+            this.logger.info("Loaded domains of forest " + this.forestRootDn + ": " + loadedDomains);
+        }
+    }
+
+    /**
+     * Returns the domain with the NetBIOS or DNS name.
+     *
+     * @param name NetBIOS or DNS name, case-insensitive.
+     * @return the domain, or null if the forest has no such domain.
+     */
+    public ForestDomain getDomain(final String name) {
+        return this.domainsByName.get(name.toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * Returns the domain holding the entry with the DN: the domain with the longest naming context
+     * the DN ends with.
+     *
+     * @param dn full DN of an entry.
+     * @return the domain, or null if the DN is not in a domain of the forest.
+     */
+    public ForestDomain getDomainOfDn(final String dn) {
+        final LdapName name = LdapUtils.newLdapName(dn);
+
+        ForestDomain result = null;
+        int resultSize = -1;
+        for (final ForestDomain domain : this.domains) {
+            final LdapName namingContext = LdapUtils.newLdapName(domain.getNamingContext());
+            if (name.startsWith(namingContext) && namingContext.size() > resultSize) {
+                result = domain;
+                resultSize = namingContext.size();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the domain a login with the username is routed to.
+     *
+     * @param username username as entered at login.
+     * @return the domain of the user, or null if the username cannot be routed.
+     */
+    public ForestDomain resolveDomain(final String username) {
+        final String domainName = NamingUtils.getDomainName(username);
+        if (domainName != null) {
+            final ForestDomain domain = getDomain(domainName);
+            if (domain != null) {
+                return domain;
+            }
+        }
+
+        ForestDomain domain = null;
+        if (domainName == null || NamingUtils.isUserPrincipalName(username)) {
+            // no domain part, or an alternative UPN suffix: ask the global catalog
+            final String key = username.toLowerCase(Locale.ENGLISH);
+            domain = this.accountDomains.get(key);
+            if (domain == null) {
+                domain = findDomainInGlobalCatalog(username);
+                if (domain != null) {
+                    this.accountDomains.put(key, domain);
+                }
+            }
+        }
+
+        if (domain == null && this.defaultDomain != null) {
+            domain = getDomain(this.defaultDomain);
+        }
+
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug("Username [" + username + "] routed to domain " + domain);
+        }
+
+        return domain;
+    }
+
+    /**
+     * Prepares the principal DN of the username in its domain: <code>account@dns.root</code>.
+     *
+     * @param username username as entered at login.
+     * @param domain domain of the user.
+     * @return principal DN to bind as.
+     */
+    public String preparePrincipalDn(final String username, final ForestDomain domain) {
+        return NamingUtils.getAccountName(username) + "@" + domain.getDnsRoot();
+    }
+
+    /**
+     * Returns the context source of the domain, creating it on first use.
+     *
+     * @param domain domain of the forest.
+     * @return context source connected to the domain, with the naming context as base.
+     */
+    public ContextSource getContextSource(final ForestDomain domain) {
+        final String key = domain.getNetbiosName().toLowerCase(Locale.ENGLISH);
+        ContextSource contextSource = this.contextSources.get(key);
+        if (contextSource == null) {
+            final ContextSource created = createContextSource(domain);
+            contextSource = this.contextSources.putIfAbsent(key, created);
+            if (contextSource == null) {
+                contextSource = created;
+            }
+        }
+
+        return contextSource;
+    }
+
+    /**
+     * Returns the domains of the forest.
+     *
+     * @return unmodifiable list of the domains.
+     */
+    public List<ForestDomain> getDomains() {
+        return this.domains;
+    }
+
+    /**
+     * Getter for the globalCatalogContextSource property.
+     *
+     * @see globalCatalogContextSource
+     * @return the globalCatalogContextSource property.
+     */
+    public ContextSource getGlobalCatalogContextSource() {
+        return this.globalCatalogContextSource;
+    }
+
+    /**
+     * Getter for the forestRootDn property.
+     *
+     * @see forestRootDn
+     * @return the forestRootDn property.
+     */
+    public String getForestRootDn() {
+        return this.forestRootDn;
+    }
+
+    /**
+     * Getter for the defaultDomain property.
+     *
+     * @see defaultDomain
+     * @return the defaultDomain property.
+     */
+    public String getDefaultDomain() {
+        return this.defaultDomain;
+    }
+
+    /**
+     * Setter for the defaultDomain property.
+     *
+     * @see defaultDomain
+     * @param defaultDomain the defaultDomain to set, null to reject usernames which cannot be
+     *            routed.
+     */
+    public void setDefaultDomain(final String defaultDomain) {
+        this.defaultDomain = defaultDomain;
+    }
+
+    /**
+     * Getter for the port property.
+     *
+     * @see port
+     * @return the port property.
+     */
+    public int getPort() {
+        return this.port;
+    }
+
+    /**
+     * Setter for the port property.
+     *
+     * @see port
+     * @param port the port to set.
+     */
+    public void setPort(final int port) {
+        Assert.isTrue(port > 0, "port must be positive");
+        this.port = port;
+    }
+
+    /**
+     * Creates the context source of one domain. Can be overridden to customize the context
+     * sources, e.g. to use a <code>DomainControllerSelector</code>.
+     *
+     * @param domain domain of the forest.
+     * @return initialized context source.
+     */
+    protected ContextSource createContextSource(final ForestDomain domain) {
+        final DefaultSpringSecurityContextSource contextSource =
+                new DefaultSpringSecurityContextSource("ldap://" + domain.getDnsRoot() + ":"
+                        + this.port + "/" + domain.getNamingContext());
+        contextSource.afterPropertiesSet();
+        // connections opened within a login deadline time out when it runs out
+        DeadlineAuthenticationStrategy.install(contextSource);
+
+        return contextSource;
+    }
+
+    /**
+     * Looks the account up in the global catalog, by user principal name or by account name.
+     *
+     * @param username username as entered at login.
+     * @return the domain of the account, or null if no unique account was found.
+     */
+    private ForestDomain findDomainInGlobalCatalog(final String username) {
+        final String filter;
+        if (NamingUtils.isUserPrincipalName(username)) {
+            filter = USER_PRINCIPAL_NAME_FILTER_TEMPLATE.render(username);
+        } else {
+            filter = ACCOUNT_NAME_FILTER_TEMPLATE.render(username);
+        }
+
+        final SearchControls controls = new SearchControls();
+        controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        // two results are enough to tell an ambiguous account name
+        controls.setCountLimit(2);
+        controls.setReturningAttributes(new String[0]);
+
+        final LdapTemplate template = new LdapTemplate(this.globalCatalogContextSource);
+        template.setIgnorePartialResultException(true);
+        final List<String> dns = template.search("", filter, controls,
+            new AbstractContextMapper<String>() {
+                @Override
+                protected String doMapFromContext(final DirContextOperations ctx) {
+                    return ctx.getNameInNamespace();
+                }
+            });
+
+        if (dns.size() != 1) {
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug(dns.size() + " accounts [" + username
+                        + "] found in the global catalog");
+            }
+
+            return null;
+        }
+
+        return getDomainOfDn(dns.get(0));
+    }
+}
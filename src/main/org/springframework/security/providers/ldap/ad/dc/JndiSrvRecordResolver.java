@@ -0,0 +1,131 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.dc;
+
+import java.util.*;
+
+import javax.naming.*;
+import javax.naming.directory.*;
+
+/**
+ * SrvRecordResolver using the JNDI DNS service provider.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class JndiSrvRecordResolver implements SrvRecordResolver {
+    /**
+     * Property: URL of the DNS server, e.g. "dns://10.0.0.1"; null uses the DNS servers of the
+     * host.
+     */
+    private String dnsUrl;
+
+    /**
+     * Property: Time in milliseconds to wait for the first answer of a DNS server.
+     */
+    private int timeout = 1000;
+
+    /**
+     * Property: Number of attempts per DNS server.
+     */
+    private int retries = 2;
+
+    @Override
+    public List<SrvRecord> resolve(final String name) throws NamingException {
+        final Hashtable<String, String> environment = new Hashtable<String, String>();
+        environment.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.dns.DnsContextFactory");
+        environment.put("com.sun.jndi.dns.timeout.initial", String.valueOf(this.timeout));
+        environment.put("com.sun.jndi.dns.timeout.retries", String.valueOf(this.retries));
+        if (this.dnsUrl != null) {
+            environment.put(Context.PROVIDER_URL, this.dnsUrl);
+        }
+
+        final DirContext ctx = new InitialDirContext(environment);
+        try {
+            final Attribute srv = ctx.getAttributes(name, new String[] { "SRV" }).get("SRV");
+            final List<SrvRecord> records = new ArrayList<SrvRecord>();
+            if (srv != null) {
+                for (int i = 0; i < srv.size(); i++) {
+                    records.add(SrvRecord.parse((String) srv.get(i)));
+                }
+            }
+
+            return records;
+        } catch (final NameNotFoundException e) {
+            return Collections.emptyList();
+        } finally {
+            ctx.close();
+        }
+    }
+
+    /**
+     * Getter for the dnsUrl property.
+     *
+     * @see dnsUrl
+     * @return the dnsUrl property.
+     */
+    public String getDnsUrl() {
+        return this.dnsUrl;
+    }
+
+    /**
+     * Setter for the dnsUrl property.
+     *
+     * @see dnsUrl
+     * @param dnsUrl the dnsUrl to set, null to use the DNS servers of the host.
+     */
+    public void setDnsUrl(final String dnsUrl) {
+        this.dnsUrl = dnsUrl;
+    }
+
+    /**
+     * Getter for the timeout property.
+     *
+     * @see timeout
+     * @return the timeout property.
+     */
+    public int getTimeout() {
+        return this.timeout;
+    }
+
+    /**
+     * Setter for the timeout property.
+     *
+     * @see timeout
+     * @param timeout the timeout to set.
+     */
+    public void setTimeout(final int timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Getter for the retries property.
+     *
+     * @see retries
+     * @return the retries property.
+     */
+    public int getRetries() {
+        return this.retries;
+    }
+
+    /**
+     * Setter for the retries property.
+     *
+     * @see retries
+     * @param retries the retries to set.
+     */
+    public void setRetries(final int retries) {
+        this.retries = retries;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.dc;
+
+/**
+ * A DNS SRV record (RFC 2782) of a domain controller.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class SrvRecord {
+    /**
+     * Property: Priority; records with the lowest priority are tried first.
+     */
+    private final int priority;
+
+    /**
+     * Property: Relative weight of records with the same priority.
+     */
+    private final int weight;
+
+    /**
+     * Property: Port of the service.
+     */
+    private final int port;
+
+    /**
+     * Property: Host name of the domain controller, without the trailing dot.
+     */
+    private final String target;
+
+    /**
+     * Constructor specifying priority, weight, port, target.
+     *
+     * @param priority priority; records with the lowest priority are tried first.
+     * @param weight relative weight of records with the same priority.
+     * @param port port of the service.
+     * @param target host name of the domain controller; a trailing dot is removed.
+     */
+    public SrvRecord(final int priority, final int weight, final int port, final String target) {
+        this.priority = priority;
+        this.weight = weight;
+        this.port = port;
+        this.target = target.endsWith(".") ? target.substring(0, target.length() - 1) : target;
+    }
+
+    /**
+     * Parses the value of a SRV record: "priority weight port target".
+     *
+     * @param value value of the record, e.g. "0 100 389 dc1.corp.com.".
+     * @return parsed record.
+     * @throws IllegalArgumentException if the value is not a SRV record.
+     */
+    public static SrvRecord parse(final String value) {
+        final String[] fields = value.trim().split("\\s+");
+        if (fields.length != 4) {
+            throw new IllegalArgumentException("Not a SRV record: " + value);
+        }
+
+        return new SrvRecord(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]),
+            Integer.parseInt(fields[2]), fields[3]);
+    }
+
+    /**
+     * Getter for the priority property.
+     *
+     * @see priority
+     * @return the priority property.
+     */
+    public int getPriority() {
+        return this.priority;
+    }
+
+    /**
+     * Getter for the weight property.
+     *
+     * @see weight
+     * @return the weight property.
+     */
+    public int getWeight() {
+        return this.weight;
+    }
+
+    /**
+     * Getter for the port property.
+     *
+     * @see port
+     * @return the port property.
+     */
+    public int getPort() {
+        return this.port;
+    }
+
+    /**
+     * Getter for the target property.
+     *
+     * @see target
+     * @return the target property.
+     */
+    public String getTarget() {
+        return this.target;
+    }
+
+    @Override
+    public String toString() {
+        return this.priority + " " + this.weight + " " + this.port + " " + this.target;
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.dc;
+
+import java.util.List;
+
+import javax.naming.NamingException;
+
+/**
+ * Resolves DNS SRV records. Used by {@link DomainControllerLocator}; replaceable, e.g. by a stand-in
+ * in tests.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public interface SrvRecordResolver {
+    /**
+     * Returns the SRV records of the name.
+     *
+     * @param name DNS name, e.g. "_ldap._tcp.dc._msdcs.corp.com".
+     * @return the records, empty if the name has none.
+     * @throws NamingException if the DNS lookup fails.
+     */
+    List<SrvRecord> resolve(String name) throws NamingException;
+}
@@ -0,0 +1,4 @@
+/**
+ * Selection of Active Directory domain controllers.
+ **/
+package org.springframework.security.providers.ldap.ad.dc;
@@ -0,0 +1,414 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.pool;
+
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import javax.naming.directory.DirContext;
+import javax.naming.ldap.LdapContext;
+
+import org.springframework.ldap.UncategorizedLdapException;
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.util.Assert;
+
+/**
+ * A {@link ContextSource} which limits the number of contexts of <tt>targetContextSource</tt> in
+ * use at once, so that one workload cannot take the capacity of another (bulkhead).
+ * <p>
+ * A permit is taken when a context is obtained and returned when it is closed. At most
+ * <tt>maxConcurrent</tt> contexts are in use; up to <tt>maxWaiting</tt> further callers wait at
+ * most <tt>maxWait</tt> milliseconds for a permit, in arrival order. Other callers are rejected at
+ * once with an <code>UncategorizedLdapException</code>, instead of queueing behind a slow workload.
+ * <p>
+ * Give the credential binds and the group searches a bulkhead each, over separate connection pools,
+ * e.g. <tt>bindContextSource</tt> of the authenticator wrapping one
+ * <code>PooledRebindContextSource</code> and <tt>bindContextSource</tt> or
+ * <tt>serviceContextSource</tt> of the authorities populator wrapping another. Size
+ * <tt>maxConcurrent</tt> to at most <tt>maxTotal</tt> of the wrapped pool, so callers wait here,
+ * where the queue is bounded, rather than in the pool.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class BulkheadContextSource implements ContextSource {
+    /**
+     * Invocation handler behind the contexts handed out: <code>close()</code> closes the target
+     * context and returns the permit, once.
+     */
+    private static class PermitInvocationHandler implements InvocationHandler {
+        /**
+         * Property: bulkhead the permit belongs to.
+         */
+        private final BulkheadContextSource bulkhead;
+
+        /**
+         * Property: context of the target context source.
+         */
+        private final DirContext target;
+
+        /**
+         * Property: true once the permit has been returned.
+         */
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        /**
+         * Constructor specifying bulkhead, target.
+         *
+         * @param bulkhead bulkhead the permit belongs to.
+         * @param target context of the target context source.
+         */
+        PermitInvocationHandler(final BulkheadContextSource bulkhead, final DirContext target) {
+            this.bulkhead = bulkhead;
+            this.target = target;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args)
+                throws Throwable {
+            try {
+                return method.invoke(this.target, args);
+            } catch (final InvocationTargetException e) {
+                throw e.getTargetException();
+            } finally {
+                if ("close".equals(method.getName()) && this.released.compareAndSet(false, true)) {
+                    this.bulkhead.releasePermit();
+                }
+            }
+        }
+    }
+
+    /**
+     * Property: Name of the bulkhead, for messages, e.g. "binds".
+     */
+    private final String name;
+
+    /**
+     * Property: Context source whose contexts are limited.
+     */
+    private final ContextSource targetContextSource;
+
+    /**
+     * Property: Maximum number of contexts in use at once.
+     */
+    private final int maxConcurrent;
+
+    /**
+     * Property: Maximum number of callers waiting for a permit; 0 rejects callers when all permits
+     * are taken.
+     */
+    private volatile int maxWaiting = 16;
+
+    /**
+     * Property: Maximum time in milliseconds to wait for a permit; negative means wait forever.
+     */
+    private volatile long maxWait = 5000;
+
+    /**
+     * Permits of the contexts in use, handed out in arrival order.
+     */
+    private final Semaphore permits;
+
+    /**
+     * Number of callers waiting for a permit.
+     */
+    private final AtomicInteger waitingCount = new AtomicInteger();
+
+    /**
+     * Number of permits handed out.
+     */
+    private final AtomicLong acquiredCount = new AtomicLong();
+
+    /**
+     * Number of callers rejected because maxWaiting callers were waiting.
+     */
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * Number of callers which got no permit within maxWait.
+     */
+    private final AtomicLong timedOutCount = new AtomicLong();
+
+    /**
+     * Total time in nanoseconds callers waited for a permit.
+     */
+    private final AtomicLong waitTime = new AtomicLong();
+
+    /**
+     * Constructor specifying name, targetContextSource, maxConcurrent.
+     *
+     * @param name name of the bulkhead, for messages, e.g. "binds".
+     * @param targetContextSource context source whose contexts are limited.
+     * @param maxConcurrent maximum number of contexts in use at once.
+     */
+    public BulkheadContextSource(final String name, final ContextSource targetContextSource,
+            final int maxConcurrent) {
+        Assert.hasLength(name, "name must not be empty");
+        Assert.notNull(targetContextSource, "targetContextSource must not be null");
+        Assert.isTrue(maxConcurrent > 0, "maxConcurrent must be positive");
+        this.name = name;
+        this.targetContextSource = targetContextSource;
+        this.maxConcurrent = maxConcurrent;
+        this.permits = new Semaphore(maxConcurrent, true);
+    }
+
+    @Override
+    public DirContext getContext(final String principal, final String credentials) {
+        acquirePermit();
+
+        final DirContext context;
+        try {
+            context = this.targetContextSource.getContext(principal, credentials);
+        } catch (final RuntimeException e) {
+            releasePermit();
+            throw e;
+        }
+
+        return createProxy(context);
+    }
+
+    @Override
+    public DirContext getReadOnlyContext() {
+        acquirePermit();
+
+        final DirContext context;
+        try {
+            context = this.targetContextSource.getReadOnlyContext();
+        } catch (final RuntimeException e) {
+            releasePermit();
+            throw e;
+        }
+
+        return createProxy(context);
+    }
+
+    @Override
+    public DirContext getReadWriteContext() {
+        acquirePermit();
+
+        final DirContext context;
+        try {
+            context = this.targetContextSource.getReadWriteContext();
+        } catch (final RuntimeException e) {
+            releasePermit();
+            throw e;
+        }
+
+        return createProxy(context);
+    }
+
+    /**
+     * Returns the number of contexts currently in use.
+     *
+     * @return number of contexts in use.
+     */
+    public int getActiveCount() {
+        return this.maxConcurrent - this.permits.availablePermits();
+    }
+
+    /**
+     * Returns the number of callers currently waiting for a permit.
+     *
+     * @return number of waiting callers.
+     */
+    public int getWaitingCount() {
+        return this.waitingCount.get();
+    }
+
+    /**
+     * Returns the number of permits handed out since the bulkhead was created.
+     *
+     * @return number of acquired permits.
+     */
+    public long getAcquiredCount() {
+        return this.acquiredCount.get();
+    }
+
+    /**
+     * Returns the number of callers rejected because maxWaiting callers were waiting.
+     *
+     * @return number of rejected callers.
+     */
+    public long getRejectedCount() {
+        return this.rejectedCount.get();
+    }
+
+    /**
+     * Returns the number of callers which got no permit within maxWait.
+     *
+     * @return number of timed out callers.
+     */
+    public long getTimedOutCount() {
+        return this.timedOutCount.get();
+    }
+
+    /**
+     * Returns the total time callers waited for a permit.
+     *
+     * @return total wait time in milliseconds.
+     */
+    public long getWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(this.waitTime.get());
+    }
+
+    /**
+     * Getter for the name property.
+     *
+     * @see name
+     * @return the name property.
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Getter for the targetContextSource property.
+     *
+     * @see targetContextSource
+     * @return the targetContextSource property.
+     */
+    public ContextSource getTargetContextSource() {
+        return this.targetContextSource;
+    }
+
+    /**
+     * Getter for the maxConcurrent property.
+     *
+     * @see maxConcurrent
+     * @return the maxConcurrent property.
+     */
+    public int getMaxConcurrent() {
+        return this.maxConcurrent;
+    }
+
+    /**
+     * Getter for the maxWaiting property.
+     *
+     * @see maxWaiting
+     * @return the maxWaiting property.
+     */
+    public int getMaxWaiting() {
+        return this.maxWaiting;
+    }
+
+    /**
+     * Setter for the maxWaiting property.
+     *
+     * @see maxWaiting
+     * @param maxWaiting the maxWaiting to set.
+     */
+    public void setMaxWaiting(final int maxWaiting) {
+        Assert.isTrue(maxWaiting >= 0, "maxWaiting must not be negative");
+        this.maxWaiting = maxWaiting;
+    }
+
+    /**
+     * Getter for the maxWait property.
+     *
+     * @see maxWait
+     * @return the maxWait property.
+     */
+    public long getMaxWait() {
+        return this.maxWait;
+    }
+
+    /**
+     * Setter for the maxWait property.
+     *
+     * @see maxWait
+     * @param maxWait the maxWait to set, in milliseconds; negative means wait forever.
+     */
+    public void setMaxWait(final long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Takes a permit, waiting for one if maxWaiting allows.
+     *
+     * @throws UncategorizedLdapException if no permit is available.
+     */
+    private void acquirePermit() {
+        // a zero timeout respects the arrival order, unlike tryAcquire()
+        if (tryAcquire(0)) {
+            this.acquiredCount.incrementAndGet();
+            return;
+        }
+
+        if (this.waitingCount.incrementAndGet() > this.maxWaiting) {
+            this.waitingCount.decrementAndGet();
+            this.rejectedCount.incrementAndGet();
+            throw new UncategorizedLdapException("LDAP bulkhead " + this.name + " full: "
+                    + this.maxConcurrent + " contexts in use, " + this.maxWaiting + " waiting");
+        }
+
+        final long start = System.nanoTime();
+        final boolean acquired;
+        try {
+            acquired = tryAcquire(this.maxWait);
+        } finally {
+            this.waitTime.addAndGet(System.nanoTime() - start);
+            this.waitingCount.decrementAndGet();
+        }
+
+        if (!acquired) {
+            this.timedOutCount.incrementAndGet();
+            throw new UncategorizedLdapException("LDAP bulkhead " + this.name
+                    + ": no context available within " + this.maxWait + " ms");
+        }
+
+        this.acquiredCount.incrementAndGet();
+    }
+
+    /**
+     * Waits for a permit.
+     *
+     * @param timeout maximum time in milliseconds to wait; negative means wait forever.
+     * @return true if the permit was taken.
+     */
+    private boolean tryAcquire(final long timeout) {
+        try {
+            if (timeout < 0) {
+                this.permits.acquire();
+                return true;
+            }
+
+            return this.permits.tryAcquire(timeout, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncategorizedLdapException("Interrupted while waiting for LDAP bulkhead "
+                    + this.name, e);
+        }
+    }
+
+    /**
+     * Returns a permit.
+     */
+    private void releasePermit() {
+        this.permits.release();
+    }
+
+    /**
+     * Wraps a context so that closing it returns the permit.
+     *
+     * @param context context of the target context source.
+     * @return proxy for the context.
+     */
+    private DirContext createProxy(final DirContext context) {
+        final Class<?> type = context instanceof LdapContext ? LdapContext.class : DirContext.class;
+
+        return (DirContext) Proxy.newProxyInstance(LdapContext.class.getClassLoader(),
+            new Class<?>[] { type }, new PermitInvocationHandler(this, context));
+    }
+}
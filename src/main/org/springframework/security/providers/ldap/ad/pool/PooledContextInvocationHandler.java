@@ -0,0 +1,99 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.pool;
+
+import java.lang.reflect.*;
+
+import javax.naming.*;
+
+/**
+ * Invocation handler behind the contexts handed out by {@link PooledRebindContextSource}.
+ * <code>close()</code> returns the connection to the pool instead of closing it; communication
+ * failures mark the connection as broken so that it is discarded on return.
+ *
+ * @author Valery Tydykov
+ *
+ */
+class PooledContextInvocationHandler implements InvocationHandler {
+    /**
+     * Property: pool the connection belongs to.
+     */
+    private final PooledRebindContextSource pool;
+
+    /**
+     * Property: pooled connection.
+     */
+    private final PooledLdapContext pooledContext;
+
+    /**
+     * Property: true once the context has been handed back to the pool.
+     */
+    private boolean closed;
+
+    /**
+     * Constructor specifying pool, pooledContext.
+     *
+     * @param pool pool the connection belongs to.
+     * @param pooledContext pooled connection.
+     */
+    PooledContextInvocationHandler(final PooledRebindContextSource pool,
+            final PooledLdapContext pooledContext) {
+        this.pool = pool;
+        this.pooledContext = pooledContext;
+    }
+
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object[] args)
+            throws Throwable {
+        final String methodName = method.getName();
+
+        if ("equals".equals(methodName)) {
+            return Boolean.valueOf(proxy == args[0]);
+        }
+
+        if ("hashCode".equals(methodName)) {
+            return Integer.valueOf(System.identityHashCode(proxy));
+        }
+
+        if ("close".equals(methodName)) {
+            synchronized (this) {
+                if (!this.closed) {
+                    this.closed = true;
+                    this.pool.release(this.pooledContext);
+                }
+            }
+
+            return null;
+        }
+
+        synchronized (this) {
+            if (this.closed) {
+                throw new IllegalStateException("Context has already been returned to the pool");
+            }
+        }
+
+        try {
+            return method.invoke(this.pooledContext.getContext(), args);
+        } catch (final InvocationTargetException e) {
+            final Throwable cause = e.getTargetException();
+            if (cause instanceof CommunicationException
+                    || cause instanceof ServiceUnavailableException) {
+                // connection is no longer usable: discard it when it is returned
+                this.pooledContext.markBroken();
+            }
+
+            throw cause;
+        }
+    }
+}
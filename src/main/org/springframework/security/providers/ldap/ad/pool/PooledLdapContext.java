@@ -0,0 +1,132 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.pool;
+
+import javax.naming.ldap.LdapContext;
+
+/**
+ * Connection held by {@link PooledRebindContextSource}: the physical LDAP context plus the
+ * bookkeeping needed for idle eviction and max-lifetime checks.
+ *
+ * @author Valery Tydykov
+ *
+ */
+class PooledLdapContext {
+    /**
+     * Property: physical LDAP context (one TCP connection).
+     */
+    private final LdapContext context;
+
+    /**
+     * Property: time the connection was opened, in milliseconds.
+     */
+    private final long createdTime;
+
+    /**
+     * Property: time the connection was last returned to the pool, in milliseconds.
+     */
+    private volatile long lastReturnedTime;
+
+    /**
+     * Property: true if the connection is currently bound as the service account.
+     */
+    private volatile boolean serviceBound;
+
+    /**
+     * Property: true if an operation on the connection failed with a communication error.
+     */
+    private volatile boolean broken;
+
+    /**
+     * Constructor specifying context, createdTime.
+     *
+     * @param context physical LDAP context.
+     * @param createdTime time the connection was opened, in milliseconds.
+     */
+    PooledLdapContext(final LdapContext context, final long createdTime) {
+        this.context = context;
+        this.createdTime = createdTime;
+        this.lastReturnedTime = createdTime;
+    }
+
+    /**
+     * Getter for the context property.
+     *
+     * @return the context property.
+     */
+    LdapContext getContext() {
+        return this.context;
+    }
+
+    /**
+     * Getter for the createdTime property.
+     *
+     * @return the createdTime property.
+     */
+    long getCreatedTime() {
+        return this.createdTime;
+    }
+
+    /**
+     * Getter for the lastReturnedTime property.
+     *
+     * @return the lastReturnedTime property.
+     */
+    long getLastReturnedTime() {
+        return this.lastReturnedTime;
+    }
+
+    /**
+     * Getter for the broken property.
+     *
+     * @return the broken property.
+     */
+    boolean isBroken() {
+        return this.broken;
+    }
+
+    /**
+     * Getter for the serviceBound property.
+     *
+     * @return the serviceBound property.
+     */
+    boolean isServiceBound() {
+        return this.serviceBound;
+    }
+
+    /**
+     * Marks the connection as unusable; it will be closed instead of returned to the pool.
+     */
+    void markBroken() {
+        this.broken = true;
+    }
+
+    /**
+     * Setter for the lastReturnedTime property.
+     *
+     * @param lastReturnedTime the lastReturnedTime to set.
+     */
+    void setLastReturnedTime(final long lastReturnedTime) {
+        this.lastReturnedTime = lastReturnedTime;
+    }
+
+    /**
+     * Setter for the serviceBound property.
+     *
+     * @param serviceBound the serviceBound to set.
+     */
+    void setServiceBound(final boolean serviceBound) {
+        this.serviceBound = serviceBound;
+    }
+}
@@ -0,0 +1,767 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.pool;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.Context;
+import javax.naming.directory.DirContext;
+import javax.naming.ldap.LdapContext;
+
+import org.apache.commons.logging.*;
+import org.springframework.beans.factory.*;
+import org.springframework.ldap.*;
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.ldap.support.LdapUtils;
+import org.springframework.security.providers.ldap.ad.util.LoginDeadline;
+import org.springframework.util.Assert;
+
+/**
+ * A {@link ContextSource} that keeps a bounded pool of LDAP connections and re-binds them with the
+ * requested principal instead of opening a new connection for every login.
+ * <p>
+ * <code>getContext(principal, credentials)</code> takes an idle connection and performs a simple
+ * bind on it (<code>LdapContext.reconnect</code> re-authenticates over the existing socket), so a
+ * login costs one bind round trip instead of a TCP (and TLS) handshake plus a bind. The connection
+ * is returned to the pool when the context is closed. New connections are opened through
+ * <tt>targetContextSource</tt>, which must produce <code>LdapContext</code> instances and should
+ * have JNDI connection pooling disabled. A pooled connection keeps the JNDI read timeout it was
+ * opened with, so new connections are opened outside any <code>LoginDeadline</code>, with the
+ * timeouts configured on <tt>targetContextSource</tt>.
+ * <p>
+ * If <tt>servicePrincipal</tt> is set, <code>getReadOnlyContext()</code> returns pooled connections
+ * bound as that principal, connections already bound as the service account are reused without a
+ * new bind, and the pool keeps at least <tt>minIdle</tt> such connections open. Otherwise
+ * <code>getReadOnlyContext()</code> is delegated to the target context source.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class PooledRebindContextSource implements ContextSource, InitializingBean,
+        DisposableBean {
+    /**
+     * Logger for this class and subclasses.
+     */
+    protected final Log logger = LogFactory.getLog(this.getClass());
+
+    /**
+     * Property: Context source used to open new connections.
+     */
+    private final ContextSource targetContextSource;
+
+    /**
+     * Property: Maximum number of connections (idle and in use); <code>ensureMinIdle()</code> does
+     * not open connections beyond it.
+     */
+    private int maxTotal = 8;
+
+    /**
+     * Property: Maximum number of idle connections kept in the pool.
+     */
+    private int maxIdle = 8;
+
+    /**
+     * Property: Minimum number of idle connections kept open (requires servicePrincipal).
+     */
+    private int minIdle;
+
+    /**
+     * Property: Maximum time in milliseconds to wait for a free connection; negative means wait
+     * forever.
+     */
+    private long maxWait = 5000;
+
+    /**
+     * Property: Time in milliseconds after which an idle connection is evicted; 0 disables idle
+     * eviction.
+     */
+    private long maxIdleTime = 5 * 60 * 1000;
+
+    /**
+     * Property: Time in milliseconds after which a connection is closed regardless of use; 0
+     * disables the limit.
+     */
+    private long maxLifetime = 30 * 60 * 1000;
+
+    /**
+     * Property: Time in milliseconds between runs of the idle evictor; 0 disables the evictor.
+     */
+    private long evictionInterval = 30 * 1000;
+
+    /**
+     * Property: If true idle connections are validated before they are handed out.
+     */
+    private boolean testOnBorrow;
+
+    /**
+     * Property: Principal used for read-only contexts and to open the minimum idle connections.
+     */
+    private String servicePrincipal;
+
+    /**
+     * Property: Credentials of servicePrincipal.
+     */
+    private String serviceCredentials;
+
+    /**
+     * Idle connections, most recently returned first.
+     */
+    private final BlockingDeque<PooledLdapContext> idleContexts =
+            new LinkedBlockingDeque<PooledLdapContext>();
+
+    /**
+     * Permits limiting the total number of connections to maxTotal.
+     */
+    private Semaphore permits;
+
+    /**
+     * Executor running the idle evictor.
+     */
+    private ScheduledExecutorService evictor;
+
+    /**
+     * True once the pool has been destroyed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Number of connections opened.
+     */
+    private final AtomicLong createdCount = new AtomicLong();
+
+    /**
+     * Number of connections closed.
+     */
+    private final AtomicLong destroyedCount = new AtomicLong();
+
+    /**
+     * Number of connections handed out.
+     */
+    private final AtomicLong borrowedCount = new AtomicLong();
+
+    /**
+     * Constructor specifying targetContextSource.
+     *
+     * @param targetContextSource context source used to open new connections.
+     */
+    public PooledRebindContextSource(final ContextSource targetContextSource) {
+        Assert.notNull(targetContextSource, "targetContextSource must not be null");
+        this.targetContextSource = targetContextSource;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        Assert.isTrue(this.maxTotal > 0, "maxTotal must be positive");
+        Assert.isTrue(this.maxIdle >= 0, "maxIdle must not be negative");
+        Assert.isTrue(this.minIdle >= 0 && this.minIdle <= this.maxIdle,
+            "minIdle must be between 0 and maxIdle");
+        Assert.isTrue(this.servicePrincipal == null || this.serviceCredentials != null,
+            "serviceCredentials must be set together with servicePrincipal");
+
+        this.permits = new Semaphore(this.maxTotal, true);
+
+        if (this.evictionInterval > 0) {
+            this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "ldap-pool-evictor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+            this.evictor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    evict();
+                }
+            }, this.evictionInterval, this.evictionInterval, TimeUnit.MILLISECONDS);
+        }
+
+        ensureMinIdle();
+    }
+
+    @Override
+    public void destroy() {
+        this.closed = true;
+
+        if (this.evictor != null) {
+            this.evictor.shutdownNow();
+        }
+
+        PooledLdapContext pooledContext = this.idleContexts.pollFirst();
+        while (pooledContext != null) {
+            destroy(pooledContext);
+            pooledContext = this.idleContexts.pollFirst();
+        }
+    }
+
+    /**
+     * Opens service-account connections until the pool holds <tt>minIdle</tt> idle connections.
+     * Does nothing if servicePrincipal is not set.
+     */
+    public void ensureMinIdle() {
+        if (this.servicePrincipal == null) {
+            return;
+        }
+
+        while (!this.closed && this.idleContexts.size() < this.minIdle
+                && getNumActive() + this.idleContexts.size() < this.maxTotal
+                && this.permits.tryAcquire()) {
+            try {
+                final PooledLdapContext pooledContext =
+                        create(this.servicePrincipal, this.serviceCredentials, true);
+                if (removeCredentials(pooledContext)) {
+                    this.idleContexts.offerLast(pooledContext);
+                } else {
+                    destroy(pooledContext);
+                }
+            } catch (final NamingException e) {
+                this.logger.warn("Could not open idle LDAP connection", e);
+                break;
+            } finally {
+                this.permits.release();
+            }
+        }
+    }
+
+    /**
+     * Closes idle connections that exceeded maxIdleTime (keeping minIdle) or maxLifetime, then tops
+     * the pool up to minIdle. Called periodically by the evictor.
+     */
+    public void evict() {
+        final long now = System.currentTimeMillis();
+
+        for (final PooledLdapContext pooledContext : this.idleContexts) {
+            final boolean idleTooLong = this.maxIdleTime > 0
+                    && now - pooledContext.getLastReturnedTime() > this.maxIdleTime
+                    && this.idleContexts.size() > this.minIdle;
+
+            if ((idleTooLong || isExpired(pooledContext, now))
+                    && this.idleContexts.removeFirstOccurrence(pooledContext)) {
+                destroy(pooledContext);
+            }
+        }
+
+        ensureMinIdle();
+    }
+
+    @Override
+    public DirContext getContext(final String principal, final String credentials)
+            throws NamingException {
+        return createProxy(borrow(principal, credentials, false));
+    }
+
+    @Override
+    public DirContext getReadOnlyContext() throws NamingException {
+        if (this.servicePrincipal == null) {
+            return this.targetContextSource.getReadOnlyContext();
+        }
+
+        return createProxy(borrow(this.servicePrincipal, this.serviceCredentials, true));
+    }
+
+    @Override
+    public DirContext getReadWriteContext() throws NamingException {
+        return getReadOnlyContext();
+    }
+
+    /**
+     * Returns the number of connections currently handed out.
+     *
+     * @return number of connections in use.
+     */
+    public int getNumActive() {
+        return this.permits == null ? 0 : this.maxTotal - this.permits.availablePermits();
+    }
+
+    /**
+     * Returns the number of idle connections.
+     *
+     * @return number of idle connections.
+     */
+    public int getNumIdle() {
+        return this.idleContexts.size();
+    }
+
+    /**
+     * Returns the number of connections opened since the pool was created.
+     *
+     * @return number of connections opened.
+     */
+    public long getCreatedCount() {
+        return this.createdCount.get();
+    }
+
+    /**
+     * Returns the number of connections closed since the pool was created.
+     *
+     * @return number of connections closed.
+     */
+    public long getDestroyedCount() {
+        return this.destroyedCount.get();
+    }
+
+    /**
+     * Returns the number of times a connection was handed out.
+     *
+     * @return number of borrowed connections.
+     */
+    public long getBorrowedCount() {
+        return this.borrowedCount.get();
+    }
+
+    /**
+     * Getter for the targetContextSource property.
+     *
+     * @see targetContextSource
+     * @return the targetContextSource property.
+     */
+    public ContextSource getTargetContextSource() {
+        return this.targetContextSource;
+    }
+
+    /**
+     * Getter for the maxTotal property.
+     *
+     * @see maxTotal
+     * @return the maxTotal property.
+     */
+    public int getMaxTotal() {
+        return this.maxTotal;
+    }
+
+    /**
+     * Setter for the maxTotal property.
+     *
+     * @see maxTotal
+     * @param maxTotal the maxTotal to set.
+     */
+    public void setMaxTotal(final int maxTotal) {
+        this.maxTotal = maxTotal;
+    }
+
+    /**
+     * Getter for the maxIdle property.
+     *
+     * @see maxIdle
+     * @return the maxIdle property.
+     */
+    public int getMaxIdle() {
+        return this.maxIdle;
+    }
+
+    /**
+     * Setter for the maxIdle property.
+     *
+     * @see maxIdle
+     * @param maxIdle the maxIdle to set.
+     */
+    public void setMaxIdle(final int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Getter for the minIdle property.
+     *
+     * @see minIdle
+     * @return the minIdle property.
+     */
+    public int getMinIdle() {
+        return this.minIdle;
+    }
+
+    /**
+     * Setter for the minIdle property.
+     *
+     * @see minIdle
+     * @param minIdle the minIdle to set.
+     */
+    public void setMinIdle(final int minIdle) {
+        this.minIdle = minIdle;
+    }
+
+    /**
+     * Getter for the maxWait property.
+     *
+     * @see maxWait
+     * @return the maxWait property.
+     */
+    public long getMaxWait() {
+        return this.maxWait;
+    }
+
+    /**
+     * Setter for the maxWait property.
+     *
+     * @see maxWait
+     * @param maxWait the maxWait to set.
+     */
+    public void setMaxWait(final long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Getter for the maxIdleTime property.
+     *
+     * @see maxIdleTime
+     * @return the maxIdleTime property.
+     */
+    public long getMaxIdleTime() {
+        return this.maxIdleTime;
+    }
+
+    /**
+     * Setter for the maxIdleTime property.
+     *
+     * @see maxIdleTime
+     * @param maxIdleTime the maxIdleTime to set.
+     */
+    public void setMaxIdleTime(final long maxIdleTime) {
+        this.maxIdleTime = maxIdleTime;
+    }
+
+    /**
+     * Getter for the maxLifetime property.
+     *
+     * @see maxLifetime
+     * @return the maxLifetime property.
+     */
+    public long getMaxLifetime() {
+        return this.maxLifetime;
+    }
+
+    /**
+     * Setter for the maxLifetime property.
+     *
+     * @see maxLifetime
+     * @param maxLifetime the maxLifetime to set.
+     */
+    public void setMaxLifetime(final long maxLifetime) {
+        this.maxLifetime = maxLifetime;
+    }
+
+    /**
+     * Getter for the evictionInterval property.
+     *
+     * @see evictionInterval
+     * @return the evictionInterval property.
+     */
+    public long getEvictionInterval() {
+        return this.evictionInterval;
+    }
+
+    /**
+     * Setter for the evictionInterval property.
+     *
+     * @see evictionInterval
+     * @param evictionInterval the evictionInterval to set.
+     */
+    public void setEvictionInterval(final long evictionInterval) {
+        this.evictionInterval = evictionInterval;
+    }
+
+    /**
+     * Getter for the testOnBorrow property.
+     *
+     * @see testOnBorrow
+     * @return the testOnBorrow property.
+     */
+    public boolean isTestOnBorrow() {
+        return this.testOnBorrow;
+    }
+
+    /**
+     * Setter for the testOnBorrow property.
+     *
+     * @see testOnBorrow
+     * @param testOnBorrow the testOnBorrow to set.
+     */
+    public void setTestOnBorrow(final boolean testOnBorrow) {
+        this.testOnBorrow = testOnBorrow;
+    }
+
+    /**
+     * Getter for the servicePrincipal property.
+     *
+     * @see servicePrincipal
+     * @return the servicePrincipal property.
+     */
+    public String getServicePrincipal() {
+        return this.servicePrincipal;
+    }
+
+    /**
+     * Setter for the servicePrincipal property.
+     *
+     * @see servicePrincipal
+     * @param servicePrincipal the servicePrincipal to set.
+     */
+    public void setServicePrincipal(final String servicePrincipal) {
+        this.servicePrincipal = servicePrincipal;
+    }
+
+    /**
+     * Setter for the serviceCredentials property.
+     *
+     * @see serviceCredentials
+     * @param serviceCredentials the serviceCredentials to set.
+     */
+    public void setServiceCredentials(final String serviceCredentials) {
+        this.serviceCredentials = serviceCredentials;
+    }
+
+    /**
+     * Returns a connection to the pool. Broken or expired connections, and connections exceeding
+     * maxIdle, are closed instead.
+     *
+     * @param pooledContext connection to return.
+     */
+    void release(final PooledLdapContext pooledContext) {
+        try {
+            final long now = System.currentTimeMillis();
+            if (this.closed || pooledContext.isBroken() || isExpired(pooledContext, now)
+                    || this.idleContexts.size() >= this.maxIdle
+                    || !removeCredentials(pooledContext)) {
+                destroy(pooledContext);
+            } else {
+                pooledContext.setLastReturnedTime(now);
+                this.idleContexts.offerFirst(pooledContext);
+            }
+        } finally {
+            this.permits.release();
+        }
+    }
+
+    /**
+     * Takes a connection from the pool (or opens a new one) and binds it as principal.
+     *
+     * @param principal principal to bind as.
+     * @param credentials credentials of the principal.
+     * @param service true if principal is the service account.
+     * @return connection bound as principal.
+     */
+    private PooledLdapContext borrow(final String principal, final String credentials,
+            final boolean service) {
+        Assert.state(this.permits != null, "afterPropertiesSet() has not been called");
+        Assert.state(!this.closed, "Pool has been destroyed");
+
+        acquirePermit();
+
+        boolean success = false;
+        try {
+            PooledLdapContext pooledContext = takeIdle();
+            while (pooledContext != null) {
+                if (service && pooledContext.isServiceBound()) {
+                    success = true;
+                    break;
+                }
+
+                try {
+                    rebind(pooledContext, principal, credentials);
+                    pooledContext.setServiceBound(service);
+                    success = true;
+                    break;
+                } catch (final javax.naming.AuthenticationException e) {
+                    destroy(pooledContext);
+                    throw LdapUtils.convertLdapException(e);
+                } catch (final javax.naming.NamingException e) {
+                    // stale connection: discard it and try the next one
+                    if (this.logger.isDebugEnabled()) {
+                        this.logger.debug("Discarding pooled LDAP connection: " + e);
+                    }
+
+                    destroy(pooledContext);
+                    pooledContext = takeIdle();
+                }
+            }
+
+            if (pooledContext == null) {
+                pooledContext = create(principal, credentials, service);
+                success = true;
+            }
+
+            this.borrowedCount.incrementAndGet();
+
+            return pooledContext;
+        } finally {
+            if (!success) {
+                this.permits.release();
+            }
+        }
+    }
+
+    /**
+     * Waits up to maxWait for a permit to hold a connection.
+     */
+    private void acquirePermit() {
+        try {
+            if (this.maxWait < 0) {
+                this.permits.acquire();
+            } else if (!this.permits.tryAcquire(this.maxWait, TimeUnit.MILLISECONDS)) {
+                throw new UncategorizedLdapException("LDAP connection pool exhausted: no connection"
+                        + " available within " + this.maxWait + " ms");
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncategorizedLdapException("Interrupted while waiting for LDAP connection",
+                e);
+        }
+    }
+
+    /**
+     * Opens a new connection bound as principal.
+     *
+     * @param principal principal to bind as.
+     * @param credentials credentials of the principal.
+     * @param service true if principal is the service account.
+     * @return new connection.
+     */
+    private PooledLdapContext create(final String principal, final String credentials,
+            final boolean service) {
+        // the connection outlives the login: it must not get the timeouts of a login deadline
+        final LoginDeadline deadline = LoginDeadline.remove();
+        final DirContext context;
+        try {
+            context = this.targetContextSource.getContext(principal, credentials);
+        } finally {
+            LoginDeadline.restore(deadline);
+        }
+
+        if (!(context instanceof LdapContext)) {
+            LdapUtils.closeContext(context);
+            throw new UncategorizedLdapException(
+                "targetContextSource must produce javax.naming.ldap.LdapContext instances");
+        }
+
+        this.createdCount.incrementAndGet();
+
+        final PooledLdapContext pooledContext =
+                new PooledLdapContext((LdapContext) context, System.currentTimeMillis());
+        pooledContext.setServiceBound(service);
+
+        return pooledContext;
+    }
+
+    /**
+     * Returns a proxy which returns the connection to the pool when closed.
+     *
+     * @param pooledContext connection to wrap.
+     * @return proxy for the connection.
+     */
+    private DirContext createProxy(final PooledLdapContext pooledContext) {
+        return (DirContext) Proxy.newProxyInstance(LdapContext.class.getClassLoader(),
+            new Class<?>[] { LdapContext.class },
+            new PooledContextInvocationHandler(this, pooledContext));
+    }
+
+    /**
+     * Closes a connection.
+     *
+     * @param pooledContext connection to close.
+     */
+    private void destroy(final PooledLdapContext pooledContext) {
+        this.destroyedCount.incrementAndGet();
+        LdapUtils.closeContext(pooledContext.getContext());
+    }
+
+    /**
+     * Checks whether the connection exceeded maxLifetime.
+     *
+     * @param pooledContext connection to check.
+     * @param now current time in milliseconds.
+     * @return true if the connection must be closed.
+     */
+    private boolean isExpired(final PooledLdapContext pooledContext, final long now) {
+        return this.maxLifetime > 0 && now - pooledContext.getCreatedTime() >= this.maxLifetime;
+    }
+
+    /**
+     * Re-authenticates the connection over the existing socket.
+     *
+     * @param pooledContext connection to bind.
+     * @param principal principal to bind as.
+     * @param credentials credentials of the principal.
+     * @throws javax.naming.NamingException if the bind fails.
+     */
+    private void rebind(final PooledLdapContext pooledContext, final String principal,
+            final String credentials) throws javax.naming.NamingException {
+        final LdapContext context = pooledContext.getContext();
+        context.addToEnvironment(Context.SECURITY_AUTHENTICATION, "simple");
+        context.addToEnvironment(Context.SECURITY_PRINCIPAL, principal);
+        context.addToEnvironment(Context.SECURITY_CREDENTIALS, credentials);
+        context.reconnect(null);
+    }
+
+    /**
+     * Removes the credentials of the last bind from the environment of the connection, so that
+     * later borrowers cannot read them with <code>getEnvironment()</code>.
+     *
+     * @param pooledContext connection returned to the pool.
+     * @return true if the credentials were removed, false if the connection must be discarded.
+     */
+    private boolean removeCredentials(final PooledLdapContext pooledContext) {
+        try {
+            pooledContext.getContext().removeFromEnvironment(Context.SECURITY_CREDENTIALS);
+            return true;
+        } catch (final javax.naming.NamingException e) {
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug("Discarding pooled LDAP connection: " + e);
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Takes the most recently returned idle connection, discarding expired or invalid ones.
+     *
+     * @return idle connection, or null if none is available.
+     */
+    private PooledLdapContext takeIdle() {
+        PooledLdapContext pooledContext = this.idleContexts.pollFirst();
+        while (pooledContext != null) {
+            if (!isExpired(pooledContext, System.currentTimeMillis())
+                    && (!this.testOnBorrow || validate(pooledContext))) {
+                return pooledContext;
+            }
+
+            destroy(pooledContext);
+            pooledContext = this.idleContexts.pollFirst();
+        }
+
+        return null;
+    }
+
+    /**
+     * Validates a connection by reading the objectClass of the context's base entry.
+     *
+     * @param pooledContext connection to validate.
+     * @return true if the connection is usable.
+     */
+    private boolean validate(final PooledLdapContext pooledContext) {
+        try {
+            pooledContext.getContext().getAttributes("", new String[] { "objectClass" });
+            return true;
+        } catch (final javax.naming.NamingException e) {
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug("Pooled LDAP connection failed validation: " + e);
+            }
+
+            return false;
+        }
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * Pooling of rebindable LDAP connections for Active Directory, and bulkheads bounding their use.
+ **/
+package org.springframework.security.providers.ldap.ad.pool;
@@ -14,19 +14,27 @@
 package org.springframework.security.providers.ldap.ad.populator;
 
 import java.util.*;
+import java.util.concurrent.*;
 
-import javax.naming.Context;
-import javax.naming.directory.SearchControls;
+import javax.naming.*;
+import javax.naming.directory.*;
+import javax.naming.ldap.LdapName;
 
 import org.apache.commons.logging.*;
+import org.springframework.core.task.AsyncListenableTaskExecutor;
 import org.springframework.ldap.core.*;
+import org.springframework.ldap.support.LdapUtils;
+import org.springframework.security.authentication.AuthenticationServiceException;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.ldap.DefaultSpringSecurityContextSource;
 import org.springframework.security.ldap.userdetails.LdapAuthoritiesPopulator;
-import org.springframework.security.providers.ldap.ad.ActiveDirectoryLdapTemplate;
+import org.springframework.security.providers.ldap.ad.*;
+import org.springframework.security.providers.ldap.ad.cache.*;
+import org.springframework.security.providers.ldap.ad.dc.*;
 import org.springframework.security.providers.ldap.ad.util.*;
 import org.springframework.util.Assert;
+import org.springframework.util.concurrent.*;
 
 /**
  * Obtains user role information from the directory. Uses ActiveDirectory - specific syntax for LDAP
@@ -35,6 +43,84 @@ import org.springframework.util.Assert;
  * It obtains roles by performing a search for "groups" the user is a member of. Can only use
  * <tt>DefaultSpringSecurityContextSource</tt> as contextSource. Similar to
  * <code>DefaultLdapAuthoritiesPopulator</code>
+ * <p>
+ * Binds are performed through <tt>bindContextSource</tt>, which defaults to contextSource. Set it to
+ * a <code>PooledRebindContextSource</code> to reuse pooled connections for the group search, and/or
+ * to a <code>DomainControllerSelector</code> to spread the searches over several domain controllers.
+ * <p>
+ * If <tt>serviceContextSource</tt> is set, the group lookup runs over its connections (e.g. a pooled
+ * context source bound as a service account) instead of binding as the user, so the user's password
+ * is not needed; set <tt>storeCredentials</tt> of the authenticator to false. The service account
+ * must be allowed to read the groups (and <tt>tokenGroups</tt> for <tt>TOKEN_GROUPS</tt>), and the
+ * base DN of serviceContextSource must be that of contextSource.
+ * <p>
+ * In a multi-domain forest set <tt>domainRouter</tt> (the one of the authenticator): the group
+ * lookup then binds as the user in the user's domain. <tt>groupSearchBase</tt> is relative to the
+ * naming context of that domain, the <tt>memberOf</tt> values are matched against it below the
+ * naming context of the domain of the user entry, and the <tt>tokenGroups</tt> SIDs are cached per
+ * domain.
+ * <p>
+ * Group searches use <tt>groupSearchProfile</tt> if set (scope, limits, alias dereferencing and
+ * whether objects are built), otherwise <tt>searchControls</tt>; only <tt>groupRoleAttribute</tt>
+ * is returned.
+ * <p>
+ * If <tt>groupSearchBases</tt> is set, the <tt>SEARCH</tt> strategy searches all of them instead of
+ * <tt>groupSearchBase</tt>, each with its own filter, scope, timeout and partial-result policy (see
+ * {@link GroupSearchBase}). The searches run concurrently on <tt>groupSearchExecutor</tt>, so a
+ * lookup takes as long as the slowest base, and the roles of all bases are merged.
+ * <p>
+ * With <tt>groupResolutionStrategy</tt> set to <tt>MEMBER_OF</tt> the roles are built from the
+ * <tt>memberOf</tt> values of the user entry found by the authenticator's user search, so a login
+ * needs no second bind and no group search. The role name is the value of the first RDN of each
+ * group DN (the CN for Active Directory groups); only groups below <tt>groupSearchBase</tt> are
+ * used.
+ * <p>
+ * With <tt>TOKEN_GROUPS</tt> the transitive (nested) membership is read from the constructed
+ * <tt>tokenGroups</tt> attribute of the user entry, and the group SIDs are mapped to role names by
+ * <tt>tokenGroupsResolver</tt>, which caches them.
+ * <p>
+ * With <tt>IN_CHAIN</tt> the direct and nested groups are found by one search with
+ * <tt>inChainSearchFilter</tt> (matching rule LDAP_MATCHING_RULE_IN_CHAIN), evaluated by the domain
+ * controller. Such searches are more expensive than direct member searches; they are limited by
+ * <tt>inChainTimeLimit</tt> instead of the configured time limit. Which of
+ * <tt>SEARCH</tt> (direct groups only), <tt>IN_CHAIN</tt> and <tt>TOKEN_GROUPS</tt> is fastest
+ * depends on the size and nesting of the groups, so measure it per deployment.
+ * <p>
+ * With <tt>INDEX</tt> the direct and nested groups are resolved from <tt>groupIndex</tt>, an
+ * in-memory copy of the groups kept up to date in the background, without contacting LDAP at login.
+ * <p>
+ * If <tt>authoritiesCache</tt> is set, the group roles found by the <tt>SEARCH</tt>,
+ * <tt>TOKEN_GROUPS</tt> and <tt>IN_CHAIN</tt> strategies are cached by user DN, so repeat logins
+ * need no group lookup.
+ * <p>
+ * <code>getGrantedAuthoritiesAsync</code> runs the lookup on <tt>asyncExecutor</tt>; the variant
+ * taking a future of the user entry chains it to <code>authenticateAsync</code> of the
+ * authenticator.
+ * <p>
+ * If <tt>singleFlight</tt> is set, concurrent lookups for the same user and password share one
+ * bind and search.
+ * <p>
+ * Group names are converted to authorities by <tt>roleMappingTable</tt>, which returns one shared
+ * instance per role. Set <tt>roleMappings</tt> to assign roles to groups explicitly, and
+ * <tt>dropUnmappedGroups</tt> to ignore all other groups.
+ * <p>
+ * If the authenticator started a {@link LoginDeadline} on the current thread (see
+ * <tt>loginTimeout</tt> of the authenticator), the group lookup is run within the rest of its
+ * budget and abandoned with an <code>AuthenticationServiceException</code> when it runs out. The
+ * connections opened for the lookup get the remaining time as their JNDI connect and read timeouts
+ * (see {@link DeadlineAuthenticationStrategy}), including those of the searches of
+ * <tt>groupSearchBases</tt>, which run with the deadline on <tt>groupSearchExecutor</tt>.
+ * <p>
+ * If <tt>circuitBreaker</tt> is set, the LDAP group lookups go through it and fail fast while the
+ * directory keeps failing or answering slowly. If <tt>lastKnownAuthorities</tt> is set, the roles
+ * of each successful LDAP group lookup are kept there, and returned instead when a later lookup for
+ * the same user is rejected by the circuit breaker, times out or fails to reach the directory.
+ * <p>
+ * To keep slow group lookups from starving the binds of other logins, set <tt>lookupExecutor</tt>,
+ * so the lookups run within a login deadline do not share the threads of
+ * <tt>loginExecutor</tt> of the authenticator, and give the group searches their own connections
+ * and permits, e.g. a <code>BulkheadContextSource</code> over a separate connection pool as
+ * <tt>bindContextSource</tt> or <tt>serviceContextSource</tt>.
  *
  * @author Valery Tydykov
  *
@@ -46,21 +132,59 @@ public class ActiveDirectoryAuthoritiesPopulator implements LdapAuthoritiesPopul
      */
     protected final Log logger = LogFactory.getLog(this.getClass());
 
+    /**
+     * Property: Executor of getGrantedAuthoritiesAsync; by default 8 daemon threads with a queue of
+     * 100.
+     */
+    private AsyncListenableTaskExecutor asyncExecutor;
+
+    /**
+     * Property: Cache of group roles by user DN; null disables caching.
+     */
+    private AuthoritiesCache authoritiesCache;
+
+    /**
+     * Property: Circuit breaker around the LDAP group lookups; null disables it.
+     */
+    private CircuitBreaker circuitBreaker;
+
     /**
      * Property: Context source against which bind operations will be performed.
      */
     private DefaultSpringSecurityContextSource contextSource;
 
     /**
-     * Property: If true user roles will be converted to upper case.
+     * Property: Context source used to bind as the user for the group search.
      */
-    private boolean convertToUpperCase = true;
+    private ContextSource bindContextSource;
 
     /**
      * Property: A default role which will be assigned to all authenticated users if set.
      */
     private org.springframework.security.core.GrantedAuthority defaultRole;
 
+    /**
+     * Property: How the groups of the user are determined.
+     */
+    private GroupResolutionStrategy groupResolutionStrategy = GroupResolutionStrategy.SEARCH;
+
+    /**
+     * Property: Index of the groups used by the INDEX strategy.
+     */
+    private ActiveDirectoryGroupIndex groupIndex;
+
+    /**
+     * Property: Executor of the group lookups run within a login deadline; null runs them on the
+     * executor of the deadline, shared with the binds.
+     */
+    private AsyncListenableTaskExecutor lookupExecutor;
+
+    /**
+     * Property: Roles of the last successful LDAP group lookup by lower-case user DN, returned when
+     * the directory is unavailable; null disables the fallback.
+     */
+    private ExpiringLruCache<String, Set<GrantedAuthority>> lastKnownAuthorities;
+
     /**
      * Property: The ID of the attribute which contains the role name for a group.
      */
@@ -71,21 +195,100 @@ public class ActiveDirectoryAuthoritiesPopulator implements LdapAuthoritiesPopul
      */
     private String groupSearchBase;
 
+    /**
+     * Property: Settings of the group searches; null to use searchControls.
+     */
+    private SearchProfile groupSearchProfile;
+
+    /**
+     * Property: Bases searched concurrently by the SEARCH strategy instead of groupSearchBase; empty
+     * to search groupSearchBase only.
+     */
+    private List<GroupSearchBase> groupSearchBases = Collections.emptyList();
+
+    /**
+     * Property: Routes the binds as the user to the domain of the user in a multi-domain forest;
+     * null binds through bindContextSource.
+     */
+    private ForestDomainRouter domainRouter;
+
+    /**
+     * Property: Executor of the searches of groupSearchBases; by default 8 daemon threads with a
+     * queue of 100.
+     */
+    private AsyncListenableTaskExecutor groupSearchExecutor;
+
     /**
      * Property: The pattern to be used for the user search. {0} is the user's DN
      */
     private String groupSearchFilter = "member={0}";
 
     /**
-     * Property: Attributes of the User's LDAP Object that contain role name information.
+     * Parsed groupSearchFilter.
+     */
+    private LdapFilterTemplate groupSearchFilterTemplate =
+            new LdapFilterTemplate(this.groupSearchFilter);
+
+    /**
+     * Constant: default of inChainSearchFilter, {0} is the user's DN.
+     */
+    public static final String IN_CHAIN_SEARCH_FILTER = "member:1.2.840.113556.1.4.1941:={0}";
+
+    /**
+     * Property: Filter of the IN_CHAIN group search. {0} is the user's DN.
+     */
+    private String inChainSearchFilter = IN_CHAIN_SEARCH_FILTER;
+
+    /**
+     * Parsed inChainSearchFilter.
+     */
+    private LdapFilterTemplate inChainSearchFilterTemplate =
+            new LdapFilterTemplate(this.inChainSearchFilter);
+
+    /**
+     * Property: Time limit in milliseconds of the IN_CHAIN group search; 0 means no limit.
+     */
+    private int inChainTimeLimit = 10000;
+
+    /**
+     * Property: Attribute of the user entry which contains the DNs of the user's groups.
      */
-    private String rolePrefix = "ROLE_";
+    private String memberOfAttribute = "memberOf";
+
+    /**
+     * Property: Number of entries per page of the group search; 0 disables paging.
+     */
+    private int pageSize = 500;
+
+    /**
+     * Property: Maps group names to shared authorities; holds the rolePrefix, convertToUpperCase,
+     * roleMappings and dropUnmappedGroups properties.
+     */
+    private final RoleMappingTable roleMappingTable = new RoleMappingTable();
 
     /**
      * Property: Controls used to determine whether group searches should be performed over the full
-     * sub-tree from the base DN. Modified by searchSubTree property
+     * sub-tree from the base DN, the default. Modified by searchSubTree property
+     */
+    private final SearchControls searchControls =
+            new SearchControls(SearchControls.SUBTREE_SCOPE, 0, 0, null, true, false);
+
+    /**
+     * Property: Context source used for the group lookup instead of binding as the user; null to
+     * bind as the user.
+     */
+    private ContextSource serviceContextSource;
+
+    /**
+     * Property: Coalesces concurrent lookups for the same user and password; null disables
+     * coalescing.
      */
-    private final SearchControls searchControls = new SearchControls();
+    private SingleFlight<String, Set<GrantedAuthority>> singleFlight;
+
+    /**
+     * Property: Resolver used by the TOKEN_GROUPS strategy.
+     */
+    private TokenGroupsResolver tokenGroupsResolver = new TokenGroupsResolver();
 
     /**
      * Constructor specifying contextSource, groupSearchBase.
@@ -100,6 +303,40 @@ public class ActiveDirectoryAuthoritiesPopulator implements LdapAuthoritiesPopul
         this.setGroupSearchBase(groupSearchBase);
     }
 
+    /**
+     * Getter for the asyncExecutor property. Creates the default executor on first use.
+     *
+     * @see asyncExecutor
+     * @return the asyncExecutor property.
+     */
+    public synchronized AsyncListenableTaskExecutor getAsyncExecutor() {
+        if (this.asyncExecutor == null) {
+            this.asyncExecutor = TaskExecutorUtils.createBoundedExecutor("ad-populator-", 8, 100);
+        }
+
+        return this.asyncExecutor;
+    }
+
+    /**
+     * Getter for the authoritiesCache property.
+     *
+     * @see authoritiesCache
+     * @return the authoritiesCache property.
+     */
+    public AuthoritiesCache getAuthoritiesCache() {
+        return this.authoritiesCache;
+    }
+
+    /**
+     * Getter for the circuitBreaker property.
+     *
+     * @see circuitBreaker
+     * @return the circuitBreaker property.
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return this.circuitBreaker;
+    }
+
     /**
      * Getter for the contextSource property.
      *
@@ -110,6 +347,16 @@ public class ActiveDirectoryAuthoritiesPopulator implements LdapAuthoritiesPopul
         return this.contextSource;
     }
 
+    /**
+     * Getter for the bindContextSource property.
+     *
+     * @see bindContextSource
+     * @return the bindContextSource property.
+     */
+    public ContextSource getBindContextSource() {
+        return this.bindContextSource;
+    }
+
     /**
      * Getter for the defaultRole property.
      *
@@ -124,15 +371,32 @@ public class ActiveDirectoryAuthoritiesPopulator implements LdapAuthoritiesPopul
     public final Collection<? extends GrantedAuthority> getGrantedAuthorities(
             final DirContextOperations user, final String username) {
         final String userDn = user.getNameInNamespace();
+        // the group lookup is the last step of the login
+        final LoginDeadline deadline = LoginDeadline.remove();
 
         if (this.logger.isDebugEnabled()) {
             this.logger.debug("Getting authorities for user " + userDn);
         }
 
-        // password must be supplied by the ActiveDirectoryBindAuthenticator
-        final String password = user.getStringAttribute(Context.SECURITY_CREDENTIALS);
-
-        final Set<GrantedAuthority> roles = getGroupMembershipRoles(userDn, username, password);
+        final Set<GrantedAuthority> roles;
+        if (this.groupResolutionStrategy == GroupResolutionStrategy.MEMBER_OF) {
+            roles = getMemberOfRoles(user);
+        } else if (this.groupResolutionStrategy == GroupResolutionStrategy.INDEX) {
+            roles = getIndexRoles(userDn);
+        } else if (this.authoritiesCache == null) {
+            // the set may be shared with concurrent logins: copy before adding the extra roles
+            roles = new HashSet<GrantedAuthority>(
+                getDirectoryRoles(user, userDn, username, deadline));
+        } else {
+            // cached sets are shared: copy before adding the extra roles
+            roles = new HashSet<GrantedAuthority>(
+                this.authoritiesCache.get(userDn, new Callable<Set<GrantedAuthority>>() {
+                    @Override
+                    public Set<GrantedAuthority> call() {
+                        return getDirectoryRoles(user, userDn, username, deadline);
+                    }
+                }));
+        }
 
         final Set<GrantedAuthority> extraRoles = getAdditionalRoles(user, username);
 
@@ -147,18 +411,81 @@ public class ActiveDirectoryAuthoritiesPopulator implements LdapAuthoritiesPopul
         return roles;
     }
 
+    /**
+     * Obtains the authorities of the user on asyncExecutor, without blocking the calling thread.
+     *
+     * @param user user entry returned by the authenticator.
+     * @param username username of the user.
+     * @return future of the authorities; fails with the exception getGrantedAuthorities() would
+     *         throw.
+     */
+    public ListenableFuture<Collection<? extends GrantedAuthority>> getGrantedAuthoritiesAsync(
+            final DirContextOperations user, final String username) {
+        return TaskExecutorUtils.submit(getAsyncExecutor(),
+            new Callable<Collection<? extends GrantedAuthority>>() {
+                @Override
+                public Collection<? extends GrantedAuthority> call() {
+                    return getGrantedAuthorities(user, username);
+                }
+            });
+    }
+
+    /**
+     * Obtains the authorities of the user once the user entry is available, e.g. from
+     * <code>authenticateAsync</code> of the authenticator.
+     *
+     * @param user future of the user entry.
+     * @param username username of the user.
+     * @return future of the authorities; fails with the exception of the user future or of
+     *         getGrantedAuthorities().
+     */
+    public ListenableFuture<Collection<? extends GrantedAuthority>> getGrantedAuthoritiesAsync(
+            final ListenableFuture<DirContextOperations> user, final String username) {
+        final SettableListenableFuture<Collection<? extends GrantedAuthority>> authorities =
+                new SettableListenableFuture<Collection<? extends GrantedAuthority>>();
+
+        user.addCallback(new ListenableFutureCallback<DirContextOperations>() {
+            @Override
+            public void onSuccess(final DirContextOperations result) {
+                getGrantedAuthoritiesAsync(result, username).addCallback(
+                    new ListenableFutureCallback<Collection<? extends GrantedAuthority>>() {
+                        @Override
+                        public void onSuccess(final Collection<? extends GrantedAuthority> result) {
+                            authorities.set(result);
+                        }
+
+                        @Override
+                        public void onFailure(final Throwable e) {
+                            authorities.setException(e);
+                        }
+                    });
+            }
+
+            @Override
+            public void onFailure(final Throwable e) {
+                authorities.setException(e);
+            }
+        });
+
+        return authorities;
+    }
+
     /**
      * Returns group membership roles from LDAP for principalDn, password, username. Searches for
      * roles userDn is member of.
      *
      * @param userDn LDAP user DN in form "username@dc1.dc2".
      * @param username username to search for in LDAP.
-     * @param password LDAP password.
+     * @param password LDAP password, not used with serviceContextSource.
      * @return group membership roles.
      */
     public Set<GrantedAuthority> getGroupMembershipRoles(final String userDn, final String username,
             final String password) {
 
+        if (!this.groupSearchBases.isEmpty()) {
+            return getMultiBaseRoles(userDn, username, password);
+        }
+
         final Set<GrantedAuthority> authorities = new HashSet<GrantedAuthority>();
 
         if (getGroupSearchBase() != null) {
@@ -168,32 +495,70 @@ public class ActiveDirectoryAuthoritiesPopulator implements LdapAuthoritiesPopul
                         + this.groupSearchBase + "'");
             }
 
-            final String principalDn = determinePrincipalDn(username);
-
-            // bind as principalDn/password
-            final ActiveDirectoryLdapTemplate template = new ActiveDirectoryLdapTemplate(
-                new BindWithSpecificDnContextSource(this.contextSource, principalDn, password));
-            template.setSearchControls(this.searchControls);
+            final ActiveDirectoryLdapTemplate template =
+                    createTemplate(resolveDomain(username), username, password);
 
             // search for roles userDn is member of
-            final Set<String> userRoles =
-                    template.searchForSingleAttributeValues(getGroupSearchBase(),
-                        this.groupSearchFilter, new String[] { userDn }, this.groupRoleAttribute);
+            authorities.addAll(searchGroupRoles(template, this.groupSearchBase,
+                this.groupSearchFilterTemplate.render(userDn)));
+        }
 
-            if (this.logger.isDebugEnabled()) {
-                this.logger.debug("Roles from search: " + userRoles);
-            }
+        return authorities;
+    }
+
+    /**
+     * Returns group membership roles from LDAP, searching all groupSearchBases concurrently on
+     * groupSearchExecutor. Optional bases which fail or time out are skipped.
+     *
+     * @param userDn full DN of the user.
+     * @param username username to bind as.
+     * @param password LDAP password, not used with serviceContextSource.
+     * @return group membership roles of all bases.
+     * @throws AuthenticationServiceException if a required base times out or fails with a checked
+     *             exception.
+     */
+    public Set<GrantedAuthority> getMultiBaseRoles(final String userDn, final String username,
+            final String password) {
+        final long startTime = System.currentTimeMillis();
+        final ForestDomain domain = resolveDomain(username);
+        // the connections of the searches get the timeouts of the login, if any
+        final LoginDeadline deadline = LoginDeadline.current();
 
-            // convert role names to SimpleGrantedAuthority objects
-            for (final String userRole : userRoles) {
-                String roleWithPrefix = userRole;
-                if (this.convertToUpperCase) {
-                    roleWithPrefix = roleWithPrefix.toUpperCase();
+        final Map<GroupSearchBase, Future<Set<GrantedAuthority>>> searches =
+                new LinkedHashMap<GroupSearchBase, Future<Set<GrantedAuthority>>>();
+        for (final GroupSearchBase searchBase : this.groupSearchBases) {
+            final Callable<Set<GrantedAuthority>> search = new Callable<Set<GrantedAuthority>>() {
+                @Override
+                public Set<GrantedAuthority> call() {
+                    final ActiveDirectoryLdapTemplate template =
+                            createTemplate(domain, username, password);
+                    template.setSearchControls(
+                        searchBase.createSearchControls(createGroupSearchControls()));
+
+                    return searchGroupRoles(template, searchBase.getBase(),
+                        searchBase.renderFilter(userDn));
                 }
+            };
+
+            searches.put(searchBase, TaskExecutorUtils.submit(getGroupSearchExecutor(),
+                deadline == null ? search : deadline.wrap(search)));
+        }
+
+        final Set<GrantedAuthority> authorities = new HashSet<GrantedAuthority>();
+        for (final Map.Entry<GroupSearchBase, Future<Set<GrantedAuthority>>> search : searches
+            .entrySet()) {
+            try {
+                authorities.addAll(awaitSearch(search.getKey(), search.getValue(), startTime));
+            } catch (final RuntimeException e) {
+                if (!search.getKey().isOptional()) {
+                    for (final Future<Set<GrantedAuthority>> other : searches.values()) {
+                        other.cancel(true);
+                    }
 
-                roleWithPrefix = this.rolePrefix + roleWithPrefix;
+                    throw e;
+                }
 
-                authorities.add(new SimpleGrantedAuthority(roleWithPrefix));
+                this.logger.warn("Ignoring failed group search of optional " + search.getKey(), e);
             }
         }
 
@@ -201,110 +566,558 @@ public class ActiveDirectoryAuthoritiesPopulator implements LdapAuthoritiesPopul
     }
 
     /**
-     * Getter for the groupRoleAttribute property.
+     * Returns direct and nested group membership roles from LDAP, found by one search with the
+     * LDAP_MATCHING_RULE_IN_CHAIN filter <tt>inChainSearchFilter</tt>, limited by
+     * <tt>inChainTimeLimit</tt>.
      *
-     * @see groupRoleAttribute
-     * @return the groupRoleAttribute property.
+     * @param userDn full DN of the user.
+     * @param username username to bind as.
+     * @param password LDAP password, not used with serviceContextSource.
+     * @return group membership roles.
      */
-    public String getGroupRoleAttribute() {
-        return this.groupRoleAttribute;
+    public Set<GrantedAuthority> getInChainRoles(final String userDn, final String username,
+            final String password) {
+        final Set<GrantedAuthority> authorities = new HashSet<GrantedAuthority>();
+
+        if (getGroupSearchBase() != null) {
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug("Searching for nested roles for user with DN = '" + userDn
+                        + "', with filter = '" + this.inChainSearchFilter + "', in search base '"
+                        + this.groupSearchBase + "'");
+            }
+
+            final ActiveDirectoryLdapTemplate template =
+                    createTemplate(resolveDomain(username), username, password);
+
+            // the in-chain search has its own time budget
+            final SearchControls controls = createGroupSearchControls();
+            controls.setTimeLimit(this.inChainTimeLimit);
+            template.setSearchControls(controls);
+
+            authorities.addAll(searchGroupRoles(template, this.groupSearchBase,
+                this.inChainSearchFilterTemplate.render(userDn)));
+        }
+
+        return authorities;
     }
 
     /**
-     * Getter for the groupSearchBase property.
+     * Returns direct and nested group membership roles from the <tt>tokenGroups</tt> attribute of
+     * the user entry.
      *
-     * @see groupSearchBase
-     * @return the groupSearchBase property.
+     * @param userDn full DN of the user.
+     * @param username username to bind as.
+     * @param password LDAP password, not used with serviceContextSource.
+     * @return group membership roles.
      */
-    public String getGroupSearchBase() {
-        return this.groupSearchBase;
+    public Set<GrantedAuthority> getTokenGroupsRoles(final String userDn, final String username,
+            final String password) {
+        final Set<GrantedAuthority> authorities = new HashSet<GrantedAuthority>();
+
+        final ForestDomain domain = resolveDomain(username);
+
+        // tokenGroups is read relative to the base DN of the context source of the domain
+        final LdapName baseDn = getBaseLdapName(domain);
+        final LdapName userName = LdapUtils.newLdapName(userDn);
+        Assert.state(userName.startsWith(baseDn), "User " + userDn + " is not below " + baseDn);
+        final String relativeUserDn = LdapUtils.removeFirst(userName, baseDn).toString();
+        final String namingContext = domain == null ? "" : domain.getNamingContext();
+
+        final ActiveDirectoryLdapTemplate template = createTemplate(domain, username, password);
+        final Set<String> groupNames = template.executeReadOnly(new ContextExecutor<Set<String>>() {
+            @Override
+            public Set<String> executeWithContext(final DirContext ctx) throws NamingException {
+                return ActiveDirectoryAuthoritiesPopulator.this.tokenGroupsResolver
+                    .resolveGroupNames(ctx, relativeUserDn,
+                        ActiveDirectoryAuthoritiesPopulator.this.groupSearchBase,
+                        ActiveDirectoryAuthoritiesPopulator.this.groupRoleAttribute, namingContext);
+            }
+        });
+
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug("Roles from " + TokenGroupsResolver.TOKEN_GROUPS_ATTRIBUTE + ": "
+                    + groupNames);
+        }
+
+        for (final String groupName : groupNames) {
+            addAuthority(authorities, groupName);
+        }
+
+        return authorities;
     }
 
     /**
-     * Getter for the groupSearchFilter property.
+     * Returns direct and nested group membership roles from <tt>groupIndex</tt>, without contacting
+     * LDAP.
      *
-     * @see groupSearchFilter
-     * @return the groupSearchFilter property.
+     * @param userDn full DN of the user.
+     * @return group membership roles.
      */
-    public String getGroupSearchFilter() {
-        return this.groupSearchFilter;
+    public Set<GrantedAuthority> getIndexRoles(final String userDn) {
+        Assert.state(this.groupIndex != null, "groupIndex must be set for the INDEX strategy");
+
+        final Set<String> groupNames = this.groupIndex.resolveGroupNames(userDn);
+
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug("Roles from group index: " + groupNames);
+        }
+
+        final Set<GrantedAuthority> authorities = new HashSet<GrantedAuthority>();
+        for (final String groupName : groupNames) {
+            addAuthority(authorities, groupName);
+        }
+
+        return authorities;
     }
 
     /**
-     * Getter for the rolePrefix property.
+     * Returns group membership roles from the <tt>memberOf</tt> attribute of the user entry,
+     * without contacting LDAP.
      *
-     * @see rolePrefix
-     * @return the rolePrefix property.
+     * @param user user entry returned by the authenticator.
+     * @return group membership roles.
      */
-    public String getRolePrefix() {
-        return this.rolePrefix;
+    public Set<GrantedAuthority> getMemberOfRoles(final DirContextOperations user) {
+        final Set<GrantedAuthority> authorities = new HashSet<GrantedAuthority>();
+
+        final String[] groupDns = user.getStringAttributes(this.memberOfAttribute);
+        if (groupDns == null) {
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug("No '" + this.memberOfAttribute + "' values found for user "
+                        + user.getNameInNamespace());
+            }
+
+            return authorities;
+        }
+
+        // groupSearchBase is relative to the naming context of the domain of the user
+        ForestDomain domain = null;
+        if (this.domainRouter != null) {
+            domain = this.domainRouter.getDomainOfDn(user.getNameInNamespace());
+        }
+
+        final LdapName groupSearchBaseDn = LdapUtils.prepend(
+            LdapUtils.newLdapName(this.groupSearchBase), getBaseLdapName(domain));
+
+        for (final String groupDn : groupDns) {
+            final LdapName groupName = LdapUtils.newLdapName(groupDn);
+            if (groupName.isEmpty() || !groupName.startsWith(groupSearchBaseDn)) {
+                continue;
+            }
+
+            // role name is the value of the first RDN, e.g. "Sales" for "CN=Sales,OU=Groups"
+            final Object roleName = groupName.getRdn(groupName.size() - 1).getValue();
+            addAuthority(authorities, roleName.toString());
+        }
+
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug("Roles from '" + this.memberOfAttribute + "': " + authorities);
+        }
+
+        return authorities;
     }
 
     /**
-     * Getter for the searchControls property.
+     * Getter for the domainRouter property.
      *
-     * @see searchControls
-     * @return the searchControls property.
+     * @see domainRouter
+     * @return the domainRouter property.
      */
-    public SearchControls getSearchControls() {
-        return this.searchControls;
+    public ForestDomainRouter getDomainRouter() {
+        return this.domainRouter;
     }
 
     /**
-     * Getter for the convertToUpperCase property.
+     * Getter for the groupIndex property.
      *
-     * @see convertToUpperCase
-     * @return the convertToUpperCase property.
+     * @see groupIndex
+     * @return the groupIndex property.
      */
-    public boolean isConvertToUpperCase() {
-        return this.convertToUpperCase;
+    public ActiveDirectoryGroupIndex getGroupIndex() {
+        return this.groupIndex;
     }
 
     /**
-     * Setter for the convertToUpperCase property.
+     * Getter for the groupSearchProfile property.
      *
-     * @see convertToUpperCase
-     * @param convertToUpperCase the convertToUpperCase to set
+     * @see groupSearchProfile
+     * @return the groupSearchProfile property.
      */
-    public void setConvertToUpperCase(final boolean convertToUpperCase) {
-        this.convertToUpperCase = convertToUpperCase;
+    public SearchProfile getGroupSearchProfile() {
+        return this.groupSearchProfile;
     }
 
     /**
-     * Setter for the defaultRole property.
+     * Getter for the groupSearchBases property.
      *
-     * @see defaultRole
-     * @param defaultRole the defaultRole to set
+     * @see groupSearchBases
+     * @return the groupSearchBases property.
      */
-    public void setDefaultRole(
-            final org.springframework.security.core.GrantedAuthority defaultRole) {
-        this.defaultRole = defaultRole;
+    public List<GroupSearchBase> getGroupSearchBases() {
+        return this.groupSearchBases;
     }
 
     /**
-     * The default role which will be assigned to all users.
+     * Getter for the groupSearchExecutor property. Creates the default executor on first use.
      *
-     * @param defaultRole the role name, including any desired prefix.
+     * @see groupSearchExecutor
+     * @return the groupSearchExecutor property.
      */
-    public void setDefaultRole(final String defaultRole) {
-        Assert.hasLength(defaultRole, "defaultRole must be not empty");
-        this.defaultRole = new SimpleGrantedAuthority(defaultRole);
+    public synchronized AsyncListenableTaskExecutor getGroupSearchExecutor() {
+        if (this.groupSearchExecutor == null) {
+            this.groupSearchExecutor =
+                    TaskExecutorUtils.createBoundedExecutor("ad-group-search-", 8, 100);
+        }
+
+        return this.groupSearchExecutor;
     }
 
     /**
-     * Setter for the groupRoleAttribute property.
+     * Getter for the groupRoleAttribute property.
      *
      * @see groupRoleAttribute
-     * @param groupRoleAttribute the groupRoleAttribute to set.
+     * @return the groupRoleAttribute property.
      */
-
-    public void setGroupRoleAttribute(final String groupRoleAttribute) {
-        Assert.hasLength(groupRoleAttribute, "groupRoleAttribute must be not empty");
-        this.groupRoleAttribute = groupRoleAttribute;
+    public String getGroupRoleAttribute() {
+        return this.groupRoleAttribute;
     }
 
     /**
-     * Setter for the groupSearchFilter property.
+     * Getter for the groupSearchBase property.
+     *
+     * @see groupSearchBase
+     * @return the groupSearchBase property.
+     */
+    public String getGroupSearchBase() {
+        return this.groupSearchBase;
+    }
+
+    /**
+     * Getter for the groupSearchFilter property.
+     *
+     * @see groupSearchFilter
+     * @return the groupSearchFilter property.
+     */
+    public String getGroupSearchFilter() {
+        return this.groupSearchFilter;
+    }
+
+    /**
+     * Getter for the groupResolutionStrategy property.
+     *
+     * @see groupResolutionStrategy
+     * @return the groupResolutionStrategy property.
+     */
+    public GroupResolutionStrategy getGroupResolutionStrategy() {
+        return this.groupResolutionStrategy;
+    }
+
+    /**
+     * Getter for the inChainSearchFilter property.
+     *
+     * @see inChainSearchFilter
+     * @return the inChainSearchFilter property.
+     */
+    public String getInChainSearchFilter() {
+        return this.inChainSearchFilter;
+    }
+
+    /**
+     * Getter for the inChainTimeLimit property.
+     *
+     * @see inChainTimeLimit
+     * @return the inChainTimeLimit property.
+     */
+    public int getInChainTimeLimit() {
+        return this.inChainTimeLimit;
+    }
+
+    /**
+     * Getter for the lastKnownAuthorities property.
+     *
+     * @see lastKnownAuthorities
+     * @return the lastKnownAuthorities property.
+     */
+    public ExpiringLruCache<String, Set<GrantedAuthority>> getLastKnownAuthorities() {
+        return this.lastKnownAuthorities;
+    }
+
+    /**
+     * Getter for the lookupExecutor property.
+     *
+     * @see lookupExecutor
+     * @return the lookupExecutor property.
+     */
+    public AsyncListenableTaskExecutor getLookupExecutor() {
+        return this.lookupExecutor;
+    }
+
+    /**
+     * Getter for the memberOfAttribute property.
+     *
+     * @see memberOfAttribute
+     * @return the memberOfAttribute property.
+     */
+    public String getMemberOfAttribute() {
+        return this.memberOfAttribute;
+    }
+
+    /**
+     * Getter for the serviceContextSource property.
+     *
+     * @see serviceContextSource
+     * @return the serviceContextSource property.
+     */
+    public ContextSource getServiceContextSource() {
+        return this.serviceContextSource;
+    }
+
+    /**
+     * Getter for the singleFlight property.
+     *
+     * @see singleFlight
+     * @return the singleFlight property.
+     */
+    public SingleFlight<String, Set<GrantedAuthority>> getSingleFlight() {
+        return this.singleFlight;
+    }
+
+    /**
+     * Getter for the tokenGroupsResolver property.
+     *
+     * @see tokenGroupsResolver
+     * @return the tokenGroupsResolver property.
+     */
+    public TokenGroupsResolver getTokenGroupsResolver() {
+        return this.tokenGroupsResolver;
+    }
+
+    /**
+     * Getter for the pageSize property.
+     *
+     * @see pageSize
+     * @return the pageSize property.
+     */
+    public int getPageSize() {
+        return this.pageSize;
+    }
+
+    /**
+     * Getter for the rolePrefix property.
+     *
+     * @see rolePrefix
+     * @return the rolePrefix property.
+     */
+    public String getRolePrefix() {
+        return this.roleMappingTable.getRolePrefix();
+    }
+
+    /**
+     * Getter for the roleMappingTable property.
+     *
+     * @see roleMappingTable
+     * @return the roleMappingTable property.
+     */
+    public RoleMappingTable getRoleMappingTable() {
+        return this.roleMappingTable;
+    }
+
+    /**
+     * Getter for the searchControls property.
+     *
+     * @see searchControls
+     * @return the searchControls property.
+     */
+    public SearchControls getSearchControls() {
+        return this.searchControls;
+    }
+
+    /**
+     * Getter for the convertToUpperCase property.
+     *
+     * @see convertToUpperCase
+     * @return the convertToUpperCase property.
+     */
+    public boolean isConvertToUpperCase() {
+        return this.roleMappingTable.isConvertToUpperCase();
+    }
+
+    /**
+     * Setter for the asyncExecutor property.
+     *
+     * @see asyncExecutor
+     * @param asyncExecutor the asyncExecutor to set.
+     */
+    public synchronized void setAsyncExecutor(final AsyncListenableTaskExecutor asyncExecutor) {
+        Assert.notNull(asyncExecutor, "asyncExecutor must not be null");
+        this.asyncExecutor = asyncExecutor;
+    }
+
+    /**
+     * Setter for the authoritiesCache property.
+     *
+     * @see authoritiesCache
+     * @param authoritiesCache the authoritiesCache to set, null to disable caching.
+     */
+    public void setAuthoritiesCache(final AuthoritiesCache authoritiesCache) {
+        this.authoritiesCache = authoritiesCache;
+    }
+
+    /**
+     * Setter for the bindContextSource property.
+     *
+     * @see bindContextSource
+     * @param bindContextSource the bindContextSource to set.
+     */
+    public void setBindContextSource(final ContextSource bindContextSource) {
+        Assert.notNull(bindContextSource, "bindContextSource must not be null");
+        this.bindContextSource = bindContextSource;
+        DeadlineAuthenticationStrategy.install(bindContextSource);
+    }
+
+    /**
+     * Setter for the circuitBreaker property.
+     *
+     * @see circuitBreaker
+     * @param circuitBreaker the circuitBreaker to set, null to disable it.
+     */
+    public void setCircuitBreaker(final CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Setter for the convertToUpperCase property.
+     *
+     * @see convertToUpperCase
+     * @param convertToUpperCase the convertToUpperCase to set
+     */
+    public void setConvertToUpperCase(final boolean convertToUpperCase) {
+        this.roleMappingTable.setConvertToUpperCase(convertToUpperCase);
+    }
+
+    /**
+     * Setter for the dropUnmappedGroups property: if true, groups without an entry in roleMappings
+     * get no role.
+     *
+     * @see RoleMappingTable#setDropUnmapped(boolean)
+     * @param dropUnmappedGroups the dropUnmappedGroups to set.
+     */
+    public void setDropUnmappedGroups(final boolean dropUnmappedGroups) {
+        this.roleMappingTable.setDropUnmapped(dropUnmappedGroups);
+    }
+
+    /**
+     * Setter for the defaultRole property.
+     *
+     * @see defaultRole
+     * @param defaultRole the defaultRole to set
+     */
+    public void setDefaultRole(
+            final org.springframework.security.core.GrantedAuthority defaultRole) {
+        this.defaultRole = defaultRole;
+    }
+
+    /**
+     * The default role which will be assigned to all users.
+     *
+     * @param defaultRole the role name, including any desired prefix.
+     */
+    public void setDefaultRole(final String defaultRole) {
+        Assert.hasLength(defaultRole, "defaultRole must be not empty");
+        this.defaultRole = new SimpleGrantedAuthority(defaultRole);
+    }
+
+    /**
+     * Setter for the domainRouter property.
+     *
+     * @see domainRouter
+     * @param domainRouter the domainRouter to set, null to bind through bindContextSource.
+     */
+    public void setDomainRouter(final ForestDomainRouter domainRouter) {
+        this.domainRouter = domainRouter;
+    }
+
+    /**
+     * Setter for the groupIndex property.
+     *
+     * @see groupIndex
+     * @param groupIndex the groupIndex to set.
+     */
+    public void setGroupIndex(final ActiveDirectoryGroupIndex groupIndex) {
+        this.groupIndex = groupIndex;
+    }
+
+    /**
+     * Setter for the groupSearchProfile property.
+     *
+     * @see groupSearchProfile
+     * @param groupSearchProfile the groupSearchProfile to set, null to use searchControls.
+     */
+    public void setGroupSearchProfile(final SearchProfile groupSearchProfile) {
+        this.groupSearchProfile = groupSearchProfile;
+    }
+
+    /**
+     * Setter for the groupSearchBases property.
+     *
+     * @see groupSearchBases
+     * @param groupSearchBases the groupSearchBases to set, empty to search groupSearchBase only.
+     */
+    public void setGroupSearchBases(final List<GroupSearchBase> groupSearchBases) {
+        Assert.notNull(groupSearchBases, "groupSearchBases must not be null");
+        Assert.noNullElements(groupSearchBases.toArray(), "groupSearchBases must not contain null");
+        this.groupSearchBases =
+                Collections.unmodifiableList(new ArrayList<GroupSearchBase>(groupSearchBases));
+    }
+
+    /**
+     * Setter for the groupSearchExecutor property.
+     *
+     * @see groupSearchExecutor
+     * @param groupSearchExecutor the groupSearchExecutor to set.
+     */
+    public synchronized void setGroupSearchExecutor(
+            final AsyncListenableTaskExecutor groupSearchExecutor) {
+        Assert.notNull(groupSearchExecutor, "groupSearchExecutor must not be null");
+        this.groupSearchExecutor = groupSearchExecutor;
+    }
+
+    /**
+     * Setter for the groupRoleAttribute property.
+     *
+     * @see groupRoleAttribute
+     * @param groupRoleAttribute the groupRoleAttribute to set.
+     */
+
+    public void setGroupRoleAttribute(final String groupRoleAttribute) {
+        Assert.hasLength(groupRoleAttribute, "groupRoleAttribute must be not empty");
+        this.groupRoleAttribute = groupRoleAttribute;
+    }
+
+    /**
+     * Setter for the lastKnownAuthorities property.
+     *
+     * @see lastKnownAuthorities
+     * @param lastKnownAuthorities the lastKnownAuthorities to set, null to disable the fallback;
+     *            its time to live bounds how long roles may be served while the directory is down.
+     */
+    public void setLastKnownAuthorities(
+            final ExpiringLruCache<String, Set<GrantedAuthority>> lastKnownAuthorities) {
+        this.lastKnownAuthorities = lastKnownAuthorities;
+    }
+
+    /**
+     * Setter for the lookupExecutor property.
+     *
+     * @see lookupExecutor
+     * @param lookupExecutor the lookupExecutor to set, null to use the executor of the deadline.
+     */
+    public void setLookupExecutor(final AsyncListenableTaskExecutor lookupExecutor) {
+        this.lookupExecutor = lookupExecutor;
+    }
+
+    /**
+     * Setter for the groupSearchFilter property.
      *
      * @see groupSearchFilter
      * @param groupSearchFilter the groupSearchFilter to set.
@@ -312,9 +1125,99 @@ public class ActiveDirectoryAuthoritiesPopulator implements LdapAuthoritiesPopul
 
     public void setGroupSearchFilter(final String groupSearchFilter) {
         Assert.hasLength(groupSearchFilter, "groupSearchFilter must be not empty");
+        this.groupSearchFilterTemplate = new LdapFilterTemplate(groupSearchFilter);
         this.groupSearchFilter = groupSearchFilter;
     }
 
+    /**
+     * Setter for the groupResolutionStrategy property.
+     *
+     * @see groupResolutionStrategy
+     * @param groupResolutionStrategy the groupResolutionStrategy to set.
+     */
+    public void setGroupResolutionStrategy(
+            final GroupResolutionStrategy groupResolutionStrategy) {
+        Assert.notNull(groupResolutionStrategy, "groupResolutionStrategy must not be null");
+        this.groupResolutionStrategy = groupResolutionStrategy;
+    }
+
+    /**
+     * Setter for the inChainSearchFilter property.
+     *
+     * @see inChainSearchFilter
+     * @param inChainSearchFilter the inChainSearchFilter to set.
+     */
+    public void setInChainSearchFilter(final String inChainSearchFilter) {
+        Assert.hasLength(inChainSearchFilter, "inChainSearchFilter must be not empty");
+        this.inChainSearchFilterTemplate = new LdapFilterTemplate(inChainSearchFilter);
+        this.inChainSearchFilter = inChainSearchFilter;
+    }
+
+    /**
+     * Setter for the inChainTimeLimit property.
+     *
+     * @see inChainTimeLimit
+     * @param inChainTimeLimit the inChainTimeLimit to set, 0 for no limit.
+     */
+    public void setInChainTimeLimit(final int inChainTimeLimit) {
+        Assert.isTrue(inChainTimeLimit >= 0, "inChainTimeLimit must not be negative");
+        this.inChainTimeLimit = inChainTimeLimit;
+    }
+
+    /**
+     * Setter for the memberOfAttribute property.
+     *
+     * @see memberOfAttribute
+     * @param memberOfAttribute the memberOfAttribute to set.
+     */
+    public void setMemberOfAttribute(final String memberOfAttribute) {
+        Assert.hasLength(memberOfAttribute, "memberOfAttribute must be not empty");
+        this.memberOfAttribute = memberOfAttribute;
+    }
+
+    /**
+     * Setter for the serviceContextSource property.
+     *
+     * @see serviceContextSource
+     * @param serviceContextSource the serviceContextSource to set, null to bind as the user.
+     */
+    public void setServiceContextSource(final ContextSource serviceContextSource) {
+        this.serviceContextSource = serviceContextSource;
+        DeadlineAuthenticationStrategy.install(serviceContextSource);
+    }
+
+    /**
+     * Setter for the singleFlight property.
+     *
+     * @see singleFlight
+     * @param singleFlight the singleFlight to set, null to disable coalescing.
+     */
+    public void setSingleFlight(final SingleFlight<String, Set<GrantedAuthority>> singleFlight) {
+        this.singleFlight = singleFlight;
+    }
+
+    /**
+     * Setter for the tokenGroupsResolver property.
+     *
+     * @see tokenGroupsResolver
+     * @param tokenGroupsResolver the tokenGroupsResolver to set.
+     */
+    public void setTokenGroupsResolver(final TokenGroupsResolver tokenGroupsResolver) {
+        Assert.notNull(tokenGroupsResolver, "tokenGroupsResolver must not be null");
+        this.tokenGroupsResolver = tokenGroupsResolver;
+    }
+
+    /**
+     * Setter for the pageSize property.
+     *
+     * @see pageSize
+     * @param pageSize the pageSize to set, 0 to disable paging.
+     */
+    public void setPageSize(final int pageSize) {
+        Assert.isTrue(pageSize >= 0, "pageSize must not be negative");
+        this.pageSize = pageSize;
+    }
+
     /**
      * Setter for the rolePrefix property.
      *
@@ -323,8 +1226,18 @@ public class ActiveDirectoryAuthoritiesPopulator implements LdapAuthoritiesPopul
      */
 
     public void setRolePrefix(final String rolePrefix) {
-        Assert.notNull(rolePrefix, "rolePrefix must not be null");
-        this.rolePrefix = rolePrefix;
+        this.roleMappingTable.setRolePrefix(rolePrefix);
+    }
+
+    /**
+     * Setter for the roleMappings property: roles by group name, used instead of rolePrefix and the
+     * group name.
+     *
+     * @see RoleMappingTable#setMappings(Map)
+     * @param roleMappings the roleMappings to set, e.g. "Domain Admins" to "ROLE_ADMIN".
+     */
+    public void setRoleMappings(final Map<String, String> roleMappings) {
+        this.roleMappingTable.setMappings(roleMappings);
     }
 
     /**
@@ -353,6 +1266,315 @@ public class ActiveDirectoryAuthoritiesPopulator implements LdapAuthoritiesPopul
         return null;
     }
 
+    /**
+     * Adds the shared authority of a group, unless the group is dropped by roleMappingTable.
+     *
+     * @param authorities set the authority is added to.
+     * @param groupName name of the group.
+     */
+    private void addAuthority(final Set<GrantedAuthority> authorities, final String groupName) {
+        final GrantedAuthority authority = this.roleMappingTable.getAuthority(groupName);
+        if (authority != null) {
+            authorities.add(authority);
+        }
+    }
+
+    /**
+     * Returns new search controls for group searches, from groupSearchProfile or searchControls.
+     *
+     * @return search controls.
+     */
+    private SearchControls createGroupSearchControls() {
+        if (this.groupSearchProfile != null) {
+            return this.groupSearchProfile.createSearchControls();
+        }
+
+        final SearchControls controls = this.searchControls;
+        return new SearchControls(controls.getSearchScope(), controls.getCountLimit(),
+            controls.getTimeLimit(), null, controls.getReturningObjFlag(),
+            controls.getDerefLinkFlag());
+    }
+
+    /**
+     * Waits for the search of a group search base until its timeout, measured from startTime.
+     *
+     * @param searchBase searched base.
+     * @param search future of the search.
+     * @param startTime time the searches were started.
+     * @return group membership roles found in the base.
+     */
+    private Set<GrantedAuthority> awaitSearch(final GroupSearchBase searchBase,
+            final Future<Set<GrantedAuthority>> search, final long startTime) {
+        try {
+            if (searchBase.getTimeout() == 0) {
+                return search.get();
+            }
+
+            final long remaining =
+                    startTime + searchBase.getTimeout() - System.currentTimeMillis();
+            return search.get(Math.max(remaining, 0), TimeUnit.MILLISECONDS);
+        } catch (final TimeoutException e) {
+            search.cancel(true);
+            throw new AuthenticationServiceException(
+                "Group search of " + searchBase + " timed out", e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw new AuthenticationServiceException("Group search of " + searchBase + " failed",
+                e.getCause());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            search.cancel(true);
+            throw new AuthenticationServiceException(
+                "Interrupted while waiting for the group search of " + searchBase, e);
+        }
+    }
+
+    /**
+     * Searches base with filter and converts the groupRoleAttribute values of the found groups to
+     * authorities.
+     *
+     * @param template template bound as the user.
+     * @param base the DN to search in.
+     * @param filter rendered group search filter.
+     * @return group membership roles.
+     */
+    private Set<GrantedAuthority> searchGroupRoles(final ActiveDirectoryLdapTemplate template,
+            final String base, final String filter) {
+        final Set<String> userRoles =
+                template.searchForSingleAttributeValues(base, filter, null, this.groupRoleAttribute);
+
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug("Roles from search: " + userRoles);
+        }
+
+        // convert role names to SimpleGrantedAuthority objects
+        final Set<GrantedAuthority> authorities = new HashSet<GrantedAuthority>();
+        for (final String userRole : userRoles) {
+            addAuthority(authorities, userRole);
+        }
+
+        return authorities;
+    }
+
+    /**
+     * Returns group membership roles from LDAP using the SEARCH, TOKEN_GROUPS or IN_CHAIN
+     * strategy through circuitBreaker, falling back to lastKnownAuthorities.
+     *
+     * @param user user entry returned by the authenticator.
+     * @param userDn full DN of the user.
+     * @param username username to bind as.
+     * @param deadline deadline of the login, null if none.
+     * @return group membership roles, shared between concurrent calls.
+     */
+    private Set<GrantedAuthority> getDirectoryRoles(final DirContextOperations user,
+            final String userDn, final String username, final LoginDeadline deadline) {
+        final Set<GrantedAuthority> roles;
+        try {
+            if (this.circuitBreaker == null) {
+                roles = getDirectoryRolesWithin(user, userDn, username, deadline);
+            } else {
+                roles = this.circuitBreaker.execute(new Callable<Set<GrantedAuthority>>() {
+                    @Override
+                    public Set<GrantedAuthority> call() {
+                        return getDirectoryRolesWithin(user, userDn, username, deadline);
+                    }
+                });
+            }
+        } catch (final RuntimeException e) {
+            final Set<GrantedAuthority> lastKnownRoles = getLastKnownRoles(userDn, e);
+            if (lastKnownRoles == null) {
+                throw e;
+            }
+
+            this.logger.warn("Group lookup of " + userDn + " failed, using last known roles", e);
+            return lastKnownRoles;
+        }
+
+        if (this.lastKnownAuthorities != null) {
+            this.lastKnownAuthorities.put(userDn.toLowerCase(Locale.ENGLISH), roles);
+        }
+
+        return roles;
+    }
+
+    /**
+     * Returns the roles of the last successful LDAP group lookup of userDn, if the lookup failed
+     * because the directory is unavailable.
+     *
+     * @param userDn full DN of the user.
+     * @param e exception of the failed lookup.
+     * @return last known roles, or null if there are none or e is not a directory failure.
+     */
+    private Set<GrantedAuthority> getLastKnownRoles(final String userDn,
+            final RuntimeException e) {
+        if (this.lastKnownAuthorities == null
+                || e instanceof org.springframework.ldap.AuthenticationException
+                || !(e instanceof AuthenticationServiceException
+                        || e instanceof org.springframework.ldap.NamingException)) {
+            // rejected credentials and configuration errors are not hidden
+            return null;
+        }
+
+        return this.lastKnownAuthorities.get(userDn.toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * Returns group membership roles from LDAP using the SEARCH, TOKEN_GROUPS or IN_CHAIN
+     * strategy, within deadline if set.
+     *
+     * @param user user entry returned by the authenticator.
+     * @param userDn full DN of the user.
+     * @param username username to bind as.
+     * @param deadline deadline of the login, null if none.
+     * @return group membership roles, shared between concurrent calls.
+     */
+    private Set<GrantedAuthority> getDirectoryRolesWithin(final DirContextOperations user,
+            final String userDn, final String username, final LoginDeadline deadline) {
+        if (deadline == null) {
+            return shareDirectoryRoles(user, userDn, username);
+        }
+
+        final Callable<Set<GrantedAuthority>> lookup = new Callable<Set<GrantedAuthority>>() {
+            @Override
+            public Set<GrantedAuthority> call() {
+                return shareDirectoryRoles(user, userDn, username);
+            }
+        };
+        final String operation = "group lookup of " + userDn;
+
+        if (this.lookupExecutor == null) {
+            return deadline.call(lookup, operation);
+        }
+
+        return deadline.call(lookup, operation, this.lookupExecutor);
+    }
+
+    /**
+     * Returns group membership roles from LDAP using the SEARCH, TOKEN_GROUPS or IN_CHAIN
+     * strategy. Concurrent calls for the same user and password share one lookup.
+     *
+     * @param user user entry returned by the authenticator.
+     * @param userDn full DN of the user.
+     * @param username username to bind as.
+     * @return group membership roles, shared between concurrent calls.
+     */
+    private Set<GrantedAuthority> shareDirectoryRoles(final DirContextOperations user,
+            final String userDn, final String username) {
+        final String password;
+        final String key;
+        if (this.serviceContextSource == null) {
+            // password must be supplied by the ActiveDirectoryBindAuthenticator
+            password = user.getStringAttribute(Context.SECURITY_CREDENTIALS);
+            Assert.state(password != null, "No password in the user entry: set "
+                    + "serviceContextSource, or storeCredentials of the authenticator");
+            key = SingleFlight.credentialKey(userDn, password);
+        } else {
+            // the result does not depend on the password: all lookups for the user are shared
+            password = null;
+            key = userDn.toLowerCase(Locale.ENGLISH);
+        }
+
+        if (this.singleFlight == null) {
+            return loadDirectoryRoles(userDn, username, password);
+        }
+
+        return this.singleFlight.execute(key,
+            new Callable<Set<GrantedAuthority>>() {
+                @Override
+                public Set<GrantedAuthority> call() {
+                    return loadDirectoryRoles(userDn, username, password);
+                }
+            });
+    }
+
+    /**
+     * Returns group membership roles from LDAP using the SEARCH, TOKEN_GROUPS or IN_CHAIN
+     * strategy.
+     *
+     * @param userDn full DN of the user.
+     * @param username username to bind as.
+     * @param password LDAP password, not used with serviceContextSource.
+     * @return group membership roles.
+     */
+    private Set<GrantedAuthority> loadDirectoryRoles(final String userDn, final String username,
+            final String password) {
+        if (this.groupResolutionStrategy == GroupResolutionStrategy.TOKEN_GROUPS) {
+            return getTokenGroupsRoles(userDn, username, password);
+        }
+
+        if (this.groupResolutionStrategy == GroupResolutionStrategy.IN_CHAIN) {
+            return getInChainRoles(userDn, username, password);
+        }
+
+        return getGroupMembershipRoles(userDn, username, password);
+    }
+
+    /**
+     * Returns the domain the group lookup of username is routed to by domainRouter.
+     *
+     * @param username username of the user.
+     * @return the domain of the user, or null if the lookup is not routed.
+     */
+    private ForestDomain resolveDomain(final String username) {
+        if (this.serviceContextSource != null || this.domainRouter == null) {
+            return null;
+        }
+
+        final ForestDomain domain = this.domainRouter.resolveDomain(username);
+        Assert.state(domain != null, "No domain of the forest for " + username);
+
+        return domain;
+    }
+
+    /**
+     * Returns the base DN of the contexts of the group lookup.
+     *
+     * @param domain domain the lookup is routed to, null if not routed.
+     * @return the naming context of domain, or the base DN of contextSource.
+     */
+    private LdapName getBaseLdapName(final ForestDomain domain) {
+        if (domain == null) {
+            return this.contextSource.getBaseLdapName();
+        }
+
+        return LdapUtils.newLdapName(domain.getNamingContext());
+    }
+
+    /**
+     * Creates a template bound as username/password, or using serviceContextSource if set.
+     *
+     * @param domain domain the lookup is routed to, null if not routed.
+     * @param username username to bind as.
+     * @param password LDAP password, not used with serviceContextSource.
+     * @return template for the group lookup.
+     */
+    private ActiveDirectoryLdapTemplate createTemplate(final ForestDomain domain,
+            final String username, final String password) {
+        final ContextSource templateContextSource;
+        if (this.serviceContextSource != null) {
+            templateContextSource = this.serviceContextSource;
+        } else if (domain != null) {
+            // bind as the user in the domain of the user
+            templateContextSource = new BindWithSpecificDnContextSource(
+                this.domainRouter.getContextSource(domain),
+                this.domainRouter.preparePrincipalDn(username, domain), password);
+        } else {
+            // bind as principalDn/password
+            templateContextSource = new BindWithSpecificDnContextSource(this.bindContextSource,
+                determinePrincipalDn(username), password);
+        }
+
+        final ActiveDirectoryLdapTemplate template =
+                new ActiveDirectoryLdapTemplate(templateContextSource);
+        template.setSearchControls(createGroupSearchControls());
+        template.setPageSize(this.pageSize);
+
+        return template;
+    }
+
     /**
      * Generates principalDn in the form: <code>username@dc1.dc2</code>.
      *
@@ -375,6 +1597,8 @@ public class ActiveDirectoryAuthoritiesPopulator implements LdapAuthoritiesPopul
     private void setContextSource(final DefaultSpringSecurityContextSource contextSource) {
         Assert.notNull(contextSource, "contextSource must not be null");
         this.contextSource = contextSource;
+        this.bindContextSource = contextSource;
+        DeadlineAuthenticationStrategy.install(contextSource);
     }
 
     /**
@@ -0,0 +1,668 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.populator;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.naming.directory.*;
+
+import org.apache.commons.logging.*;
+import org.springframework.beans.factory.*;
+import org.springframework.ldap.core.*;
+import org.springframework.ldap.support.LdapUtils;
+import org.springframework.security.providers.ldap.ad.*;
+import org.springframework.util.Assert;
+
+/**
+ * In-memory index of the groups below <tt>groupSearchBase</tt>: group names by DN and by objectSid,
+ * and the membership edges between users, groups and their parent groups. Used by the
+ * <tt>INDEX</tt> group resolution strategy of the authorities populator, which resolves the direct
+ * and nested groups of a user by walking the index instead of searching the directory on every
+ * login.
+ * <p>
+ * The index is loaded by a paged search in <code>afterPropertiesSet</code>. Every
+ * <tt>refreshInterval</tt> milliseconds the groups whose <tt>uSNChanged</tt> is greater than the
+ * highest one seen so far are read again. A renamed or moved group keeps its objectSid: its entry
+ * under the old DN is replaced, and the members of the other groups are renamed with it. Deleted
+ * groups, and groups moved out of <tt>groupSearchBase</tt>, do not match such a search, so the
+ * whole index is reloaded every <tt>fullReloadInterval</tt> milliseconds; so are renamed groups
+ * whose objectSid is not indexed. Update sequence numbers are local to a domain controller:
+ * contextSource must always connect to the same one.
+ * <p>
+ * Each load or refresh builds a new immutable snapshot which replaces the previous one, so lookups
+ * never wait for a refresh. To index objectSid, list it in the JNDI environment property
+ * <tt>java.naming.ldap.attributes.binary</tt> of contextSource.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class ActiveDirectoryGroupIndex implements InitializingBean, DisposableBean {
+    /**
+     * Group of the index.
+     */
+    static final class Group {
+        /**
+         * Lower-case full DN of the group.
+         */
+        private final String dn;
+
+        /**
+         * Name of the group.
+         */
+        private final String name;
+
+        /**
+         * String form of the objectSid, null if not read.
+         */
+        private final String sid;
+
+        /**
+         * Lower-case full DNs of the members (users and groups).
+         */
+        private final Set<String> members;
+
+        /**
+         * Constructor specifying dn, name, sid, members.
+         *
+         * @param dn lower-case full DN of the group.
+         * @param name name of the group.
+         * @param sid string form of the objectSid, may be null.
+         * @param members lower-case full DNs of the members.
+         */
+        Group(final String dn, final String name, final String sid, final Set<String> members) {
+            this.dn = dn;
+            this.name = name;
+            this.sid = sid;
+            this.members = members;
+        }
+    }
+
+    /**
+     * Immutable state of the index, replaced as a whole.
+     */
+    static final class Snapshot {
+        /**
+         * Groups by lower-case DN.
+         */
+        private final Map<String, Group> groups;
+
+        /**
+         * Lower-case DNs of the groups a user or group is a direct member of, by lower-case DN of
+         * the member.
+         */
+        private final Map<String, List<String>> memberOf = new HashMap<String, List<String>>();
+
+        /**
+         * Groups by objectSid.
+         */
+        private final Map<String, Group> groupsBySid = new HashMap<String, Group>();
+
+        /**
+         * Highest uSNChanged of the indexed groups.
+         */
+        private final long highestUsn;
+
+        /**
+         * Constructor specifying groups, highestUsn.
+         *
+         * @param groups groups by lower-case DN, not copied.
+         * @param highestUsn highest uSNChanged of the groups.
+         */
+        Snapshot(final Map<String, Group> groups, final long highestUsn) {
+            this.groups = groups;
+            this.highestUsn = highestUsn;
+
+            for (final Group group : groups.values()) {
+                for (final String member : group.members) {
+                    List<String> parents = this.memberOf.get(member);
+                    if (parents == null) {
+                        parents = new ArrayList<String>(2);
+                        this.memberOf.put(member, parents);
+                    }
+                    parents.add(group.dn);
+                }
+
+                if (group.sid != null) {
+                    this.groupsBySid.put(group.sid, group);
+                }
+            }
+        }
+    }
+
+    /**
+     * Constant: attribute holding the update sequence number of the last change of an entry.
+     */
+    public static final String USN_CHANGED_ATTRIBUTE = "uSNChanged";
+
+    /**
+     * Constant: attribute holding the members of a group.
+     */
+    private static final String MEMBER_ATTRIBUTE = "member";
+
+    /**
+     * Constant: attribute holding the SID of a group.
+     */
+    private static final String OBJECT_SID_ATTRIBUTE = "objectSid";
+
+    /**
+     * Logger for this class and subclasses.
+     */
+    protected final Log logger = LogFactory.getLog(this.getClass());
+
+    /**
+     * Property: Context source used to read the groups.
+     */
+    private final ContextSource contextSource;
+
+    /**
+     * Property: The base DN of the indexed groups, relative to the base DN of contextSource.
+     */
+    private final String groupSearchBase;
+
+    /**
+     * Property: Filter selecting the indexed groups.
+     */
+    private String groupSearchFilter = "(objectClass=group)";
+
+    /**
+     * Property: The ID of the attribute which contains the name of a group.
+     */
+    private String groupRoleAttribute = "cn";
+
+    /**
+     * Property: Number of entries per page of the group searches; 0 disables paging.
+     */
+    private int pageSize = 500;
+
+    /**
+     * Property: Interval in milliseconds between incremental refreshes; 0 disables refreshing.
+     */
+    private long refreshInterval = 60000;
+
+    /**
+     * Property: Interval in milliseconds between full reloads, which remove deleted groups; 0
+     * disables full reloads.
+     */
+    private long fullReloadInterval = 3600000;
+
+    /**
+     * Current state of the index; null until loaded.
+     */
+    private volatile Snapshot snapshot;
+
+    /**
+     * Time of the last full load, guarded by this.
+     */
+    private long lastLoadTime;
+
+    /**
+     * Executor running the refreshes.
+     */
+    private ScheduledExecutorService refresher;
+
+    /**
+     * Constructor specifying contextSource, groupSearchBase.
+     *
+     * @param contextSource context source used to read the groups.
+     * @param groupSearchBase the base DN of the indexed groups; an empty string indexes groups from
+     *            the base DN of contextSource.
+     */
+    public ActiveDirectoryGroupIndex(final ContextSource contextSource,
+            final String groupSearchBase) {
+        Assert.notNull(contextSource, "contextSource must not be null");
+        Assert.notNull(groupSearchBase, "groupSearchBase must not be null");
+        this.contextSource = contextSource;
+        this.groupSearchBase = groupSearchBase;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        load();
+
+        if (this.refreshInterval > 0) {
+            this.refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "ldap-group-index");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+            this.refresher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refresh();
+                    } catch (final RuntimeException e) {
+                        // keep the last snapshot, retry at the next interval
+                        ActiveDirectoryGroupIndex.this.logger.warn("Group index refresh failed", e);
+                    }
+                }
+            }, this.refreshInterval, this.refreshInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (this.refresher != null) {
+            this.refresher.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads all groups and replaces the index.
+     */
+    public synchronized void load() {
+        final long startTime = currentTimeMillis();
+        final Map<String, Group> groups = new HashMap<String, Group>();
+        final long highestUsn = readGroups(this.groupSearchFilter, groups);
+
+        this.snapshot = new Snapshot(groups, highestUsn);
+        this.lastLoadTime = startTime;
+
+        if (this.logger.isInfoEnabled()) {
+            this.logger.info("Group index loaded " + groups.size() + " groups in "
+                    + (currentTimeMillis() - startTime) + " ms");
+        }
+    }
+
+    /**
+     * Reads the groups changed since the last load or refresh and replaces them in the index, or
+     * reloads the index if fullReloadInterval has passed.
+     */
+    public synchronized void refresh() {
+        final Snapshot current = this.snapshot;
+        if (current == null || this.fullReloadInterval > 0
+                && currentTimeMillis() - this.lastLoadTime >= this.fullReloadInterval) {
+            load();
+            return;
+        }
+
+        final Map<String, Group> changedGroups = new HashMap<String, Group>();
+        final long highestUsn = readGroups("(&" + this.groupSearchFilter + "("
+                + USN_CHANGED_ATTRIBUTE + ">=" + (current.highestUsn + 1) + "))", changedGroups);
+        if (changedGroups.isEmpty()) {
+            return;
+        }
+
+        // copy on write: lookups keep using the current snapshot
+        final Map<String, Group> groups = new HashMap<String, Group>(current.groups);
+        // new DNs of the renamed or moved groups by old DN
+        final Map<String, String> renamedDns = new HashMap<String, String>();
+        for (final Group group : changedGroups.values()) {
+            final Group previous = group.sid == null ? null : current.groupsBySid.get(group.sid);
+            if (previous != null && !previous.dn.equals(group.dn)) {
+                groups.remove(previous.dn);
+                renamedDns.put(previous.dn, group.dn);
+            }
+        }
+        groups.putAll(changedGroups);
+        if (!renamedDns.isEmpty()) {
+            renameMembers(groups, renamedDns);
+        }
+        this.snapshot = new Snapshot(groups, Math.max(current.highestUsn, highestUsn));
+
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug("Group index refreshed " + changedGroups.size() + " groups");
+        }
+    }
+
+    /**
+     * Returns the names of the groups the user is a direct or nested member of.
+     *
+     * @param userDn full DN of the user.
+     * @return names of the groups.
+     */
+    public Set<String> resolveGroupNames(final String userDn) {
+        final Snapshot current = this.snapshot;
+        Assert.state(current != null, "The group index has not been loaded");
+
+        final Set<String> groupNames = new HashSet<String>();
+        final Set<String> visited = new HashSet<String>();
+        final Deque<String> pending = new ArrayDeque<String>();
+        pending.add(toKey(userDn));
+
+        // breadth-first walk up the membership edges; visited guards against cycles
+        while (!pending.isEmpty()) {
+            final List<String> parents = current.memberOf.get(pending.poll());
+            if (parents == null) {
+                continue;
+            }
+
+            for (final String parent : parents) {
+                if (visited.add(parent)) {
+                    groupNames.add(current.groups.get(parent).name);
+                    pending.add(parent);
+                }
+            }
+        }
+
+        return groupNames;
+    }
+
+    /**
+     * Returns the name of the group with the SID.
+     *
+     * @param sid string form of the objectSid, e.g. "S-1-5-21-...".
+     * @return name of the group, or null if the SID is not indexed.
+     */
+    public String getGroupNameBySid(final String sid) {
+        final Snapshot current = this.snapshot;
+
+        final Group group = current == null ? null : current.groupsBySid.get(sid);
+
+        return group == null ? null : group.name;
+    }
+
+    /**
+     * Returns the number of indexed groups.
+     *
+     * @return number of groups, 0 if not loaded.
+     */
+    public int getGroupCount() {
+        final Snapshot current = this.snapshot;
+
+        return current == null ? 0 : current.groups.size();
+    }
+
+    /**
+     * Returns the highest uSNChanged of the indexed groups.
+     *
+     * @return highest update sequence number, 0 if not known.
+     */
+    public long getHighestUsn() {
+        final Snapshot current = this.snapshot;
+
+        return current == null ? 0 : current.highestUsn;
+    }
+
+    /**
+     * Returns true once the index has been loaded.
+     *
+     * @return true if lookups can be served.
+     */
+    public boolean isLoaded() {
+        return this.snapshot != null;
+    }
+
+    /**
+     * Getter for the contextSource property.
+     *
+     * @see contextSource
+     * @return the contextSource property.
+     */
+    public ContextSource getContextSource() {
+        return this.contextSource;
+    }
+
+    /**
+     * Getter for the fullReloadInterval property.
+     *
+     * @see fullReloadInterval
+     * @return the fullReloadInterval property.
+     */
+    public long getFullReloadInterval() {
+        return this.fullReloadInterval;
+    }
+
+    /**
+     * Getter for the groupRoleAttribute property.
+     *
+     * @see groupRoleAttribute
+     * @return the groupRoleAttribute property.
+     */
+    public String getGroupRoleAttribute() {
+        return this.groupRoleAttribute;
+    }
+
+    /**
+     * Getter for the groupSearchBase property.
+     *
+     * @see groupSearchBase
+     * @return the groupSearchBase property.
+     */
+    public String getGroupSearchBase() {
+        return this.groupSearchBase;
+    }
+
+    /**
+     * Getter for the groupSearchFilter property.
+     *
+     * @see groupSearchFilter
+     * @return the groupSearchFilter property.
+     */
+    public String getGroupSearchFilter() {
+        return this.groupSearchFilter;
+    }
+
+    /**
+     * Getter for the pageSize property.
+     *
+     * @see pageSize
+     * @return the pageSize property.
+     */
+    public int getPageSize() {
+        return this.pageSize;
+    }
+
+    /**
+     * Getter for the refreshInterval property.
+     *
+     * @see refreshInterval
+     * @return the refreshInterval property.
+     */
+    public long getRefreshInterval() {
+        return this.refreshInterval;
+    }
+
+    /**
+     * Setter for the fullReloadInterval property.
+     *
+     * @see fullReloadInterval
+     * @param fullReloadInterval the fullReloadInterval to set, 0 to disable full reloads.
+     */
+    public void setFullReloadInterval(final long fullReloadInterval) {
+        Assert.isTrue(fullReloadInterval >= 0, "fullReloadInterval must not be negative");
+        this.fullReloadInterval = fullReloadInterval;
+    }
+
+    /**
+     * Setter for the groupRoleAttribute property.
+     *
+     * @see groupRoleAttribute
+     * @param groupRoleAttribute the groupRoleAttribute to set.
+     */
+    public void setGroupRoleAttribute(final String groupRoleAttribute) {
+        Assert.hasLength(groupRoleAttribute, "groupRoleAttribute must be not empty");
+        this.groupRoleAttribute = groupRoleAttribute;
+    }
+
+    /**
+     * Setter for the groupSearchFilter property.
+     *
+     * @see groupSearchFilter
+     * @param groupSearchFilter the groupSearchFilter to set, e.g. "(objectClass=group)".
+     */
+    public void setGroupSearchFilter(final String groupSearchFilter) {
+        Assert.isTrue(groupSearchFilter != null && groupSearchFilter.startsWith("("),
+            "groupSearchFilter must be a parenthesized filter");
+        this.groupSearchFilter = groupSearchFilter;
+    }
+
+    /**
+     * Setter for the pageSize property.
+     *
+     * @see pageSize
+     * @param pageSize the pageSize to set, 0 to disable paging.
+     */
+    public void setPageSize(final int pageSize) {
+        Assert.isTrue(pageSize >= 0, "pageSize must not be negative");
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Setter for the refreshInterval property.
+     *
+     * @see refreshInterval
+     * @param refreshInterval the refreshInterval to set, 0 to disable refreshing.
+     */
+    public void setRefreshInterval(final long refreshInterval) {
+        Assert.isTrue(refreshInterval >= 0, "refreshInterval must not be negative");
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * Returns the current time; overridden by tests.
+     *
+     * @return current time in milliseconds.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Searches groupSearchBase with filter and adds the found groups to groups.
+     *
+     * @param filter group filter.
+     * @param groups map the groups are added to, by lower-case DN.
+     * @return highest uSNChanged of the found groups, 0 if none.
+     */
+    private long readGroups(final String filter, final Map<String, Group> groups) {
+        final ActiveDirectoryLdapTemplate template =
+                new ActiveDirectoryLdapTemplate(this.contextSource);
+        template.setPageSize(this.pageSize);
+
+        final SearchControls controls = new SearchControls();
+        controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        controls.setReturningAttributes(new String[] { this.groupRoleAttribute, MEMBER_ATTRIBUTE,
+                OBJECT_SID_ATTRIBUTE, USN_CHANGED_ATTRIBUTE });
+        controls.setReturningObjFlag(true);
+
+        final long[] highestUsn = new long[1];
+        // groups with more members than the server returns at once, by relative DN
+        final Map<String, Group> rangedGroups = new HashMap<String, Group>();
+
+        final SearchResultVisitor visitor = new SearchResultVisitor() {
+            @Override
+            public boolean visit(final DirContextOperations entry) {
+                final String name = entry.getStringAttribute(
+                    ActiveDirectoryGroupIndex.this.groupRoleAttribute);
+                if (name == null) {
+                    return true;
+                }
+
+                final Set<String> members = new HashSet<String>();
+                final String[] memberDns = entry.getStringAttributes(MEMBER_ATTRIBUTE);
+                if (memberDns != null) {
+                    for (final String memberDn : memberDns) {
+                        members.add(toKey(memberDn));
+                    }
+                }
+
+                final Group group =
+                        new Group(toKey(entry.getNameInNamespace()), name, getSid(entry), members);
+                groups.put(group.dn, group);
+
+                if (memberDns == null && hasRangedMembers(entry)) {
+                    rangedGroups.put(entry.getDn().toString(), group);
+                }
+
+                final String usn = entry.getStringAttribute(USN_CHANGED_ATTRIBUTE);
+                if (usn != null) {
+                    highestUsn[0] = Math.max(highestUsn[0], Long.parseLong(usn));
+                }
+
+                return true;
+            }
+        };
+
+        template.searchVisiting(this.groupSearchBase, filter, null, controls, visitor);
+
+        // read the members of large groups after the paged search has ended
+        for (final Map.Entry<String, Group> rangedGroup : rangedGroups.entrySet()) {
+            for (final String memberDn : template.readAttributeValues(rangedGroup.getKey(),
+                MEMBER_ATTRIBUTE)) {
+                rangedGroup.getValue().members.add(toKey(memberDn));
+            }
+        }
+
+        return highestUsn[0];
+    }
+
+    /**
+     * Replaces the old DNs of renamed groups in the members of groups. The directory renames the
+     * member values without changing the uSNChanged of the groups holding them, so these groups
+     * are not read again. Groups are copied, not modified: the current snapshot still uses them.
+     *
+     * @param groups groups by lower-case DN, updated in place.
+     * @param renamedDns new lower-case DNs by old lower-case DN.
+     */
+    private static void renameMembers(final Map<String, Group> groups,
+            final Map<String, String> renamedDns) {
+        for (final Map.Entry<String, Group> entry : groups.entrySet()) {
+            final Group group = entry.getValue();
+            if (Collections.disjoint(group.members, renamedDns.keySet())) {
+                continue;
+            }
+
+            final Set<String> members = new HashSet<String>(group.members.size());
+            for (final String member : group.members) {
+                final String renamedDn = renamedDns.get(member);
+                members.add(renamedDn == null ? member : renamedDn);
+            }
+            entry.setValue(new Group(group.dn, group.name, group.sid, members));
+        }
+    }
+
+    /**
+     * Returns true if the entry holds a range of the member values, e.g. member;range=0-1499.
+     *
+     * @param entry group entry.
+     * @return true if more members must be read.
+     */
+    private static boolean hasRangedMembers(final DirContextOperations entry) {
+        final Enumeration<String> ids = entry.getAttributes().getIDs();
+        while (ids.hasMoreElements()) {
+            if (ids.nextElement().toLowerCase(Locale.ENGLISH).startsWith(MEMBER_ATTRIBUTE + ";")) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the string form of the objectSid of the entry.
+     *
+     * @param entry group entry.
+     * @return SID, or null if not returned as binary value.
+     */
+    private static String getSid(final DirContextOperations entry) {
+        final Object sid = entry.getObjectAttribute(OBJECT_SID_ATTRIBUTE);
+
+        return sid instanceof byte[] ? LdapUtils.convertBinarySidToString((byte[]) sid) : null;
+    }
+
+    /**
+     * Returns the index key of a DN.
+     *
+     * @param dn DN.
+     * @return lower-case DN.
+     */
+    private static String toKey(final String dn) {
+        return dn.toLowerCase(Locale.ENGLISH);
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.populator;
+
+/**
+ * How {@link ActiveDirectoryAuthoritiesPopulator} determines the groups a user is a member of.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public enum GroupResolutionStrategy {
+    /**
+     * Binds again and searches <tt>groupSearchBase</tt> with <tt>groupSearchFilter</tt>. Returns
+     * direct memberships only.
+     */
+    SEARCH,
+
+    /**
+     * Reads the group DNs from the <tt>memberOf</tt> attribute of the user entry returned by the
+     * authenticator. No additional bind or search is performed. Returns direct memberships only.
+     */
+    MEMBER_OF,
+
+    /**
+     * Binds again and reads the constructed <tt>tokenGroups</tt> attribute of the user entry; SIDs
+     * are mapped to group names through a cache. Returns direct and nested memberships.
+     */
+    TOKEN_GROUPS,
+
+    /**
+     * Binds again and searches <tt>groupSearchBase</tt> with <tt>inChainSearchFilter</tt>, which
+     * uses the LDAP_MATCHING_RULE_IN_CHAIN matching rule: the domain controller computes the
+     * transitive closure, so direct and nested memberships are returned by one (paged) search.
+     */
+    IN_CHAIN,
+
+    /**
+     * Resolves the groups from the in-memory <code>ActiveDirectoryGroupIndex</code>. No bind or
+     * search is performed at login. Returns direct and nested memberships.
+     */
+    INDEX
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.populator;
+
+import javax.naming.directory.SearchControls;
+
+import org.springframework.security.providers.ldap.ad.util.LdapFilterTemplate;
+import org.springframework.util.Assert;
+
+/**
+ * One of several bases searched for groups by {@link ActiveDirectoryAuthoritiesPopulator}, with its
+ * own filter, scope, time limit and partial-result policy.
+ * <p>
+ * If an <tt>optional</tt> base fails or does not answer within <tt>timeout</tt>, the roles found in
+ * the other bases are returned; if a required base fails, the lookup fails.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class GroupSearchBase {
+    /**
+     * Property: The base DN of the search, relative to the base DN of the context source.
+     */
+    private final String base;
+
+    /**
+     * Property: The filter of the search. {0} is the user's DN
+     */
+    private String filter = "member={0}";
+
+    /**
+     * Parsed filter.
+     */
+    private LdapFilterTemplate filterTemplate = new LdapFilterTemplate(this.filter);
+
+    /**
+     * Property: If true failures and timeouts of this base are ignored.
+     */
+    private boolean optional;
+
+    /**
+     * Property: If true the whole sub-tree below base is searched, otherwise one level.
+     */
+    private boolean searchSubtree = true;
+
+    /**
+     * Property: Time in milliseconds the search may take; 0 means no limit.
+     */
+    private int timeout;
+
+    /**
+     * Constructor specifying base.
+     *
+     * @param base the base DN of the search; an empty string searches from the base DN of the
+     *            context source.
+     */
+    public GroupSearchBase(final String base) {
+        Assert.notNull(base, "base must not be null");
+        this.base = base;
+    }
+
+    /**
+     * Renders the filter for the user.
+     *
+     * @param userDn full DN of the user.
+     * @return filter of the search.
+     */
+    public String renderFilter(final String userDn) {
+        return this.filterTemplate.render(userDn);
+    }
+
+    /**
+     * Returns the search controls of this base.
+     *
+     * @param defaults controls the other settings are copied from.
+     * @return new search controls with the scope and time limit of this base.
+     */
+    public SearchControls createSearchControls(final SearchControls defaults) {
+        final SearchControls controls = new SearchControls();
+        controls.setCountLimit(defaults.getCountLimit());
+        controls.setDerefLinkFlag(defaults.getDerefLinkFlag());
+        controls.setReturningObjFlag(defaults.getReturningObjFlag());
+        controls.setSearchScope(
+            this.searchSubtree ? SearchControls.SUBTREE_SCOPE : SearchControls.ONELEVEL_SCOPE);
+        controls.setTimeLimit(this.timeout);
+
+        return controls;
+    }
+
+    /**
+     * Getter for the base property.
+     *
+     * @see base
+     * @return the base property.
+     */
+    public String getBase() {
+        return this.base;
+    }
+
+    /**
+     * Getter for the filter property.
+     *
+     * @see filter
+     * @return the filter property.
+     */
+    public String getFilter() {
+        return this.filter;
+    }
+
+    /**
+     * Getter for the timeout property.
+     *
+     * @see timeout
+     * @return the timeout property.
+     */
+    public int getTimeout() {
+        return this.timeout;
+    }
+
+    /**
+     * Getter for the optional property.
+     *
+     * @see optional
+     * @return the optional property.
+     */
+    public boolean isOptional() {
+        return this.optional;
+    }
+
+    /**
+     * Getter for the searchSubtree property.
+     *
+     * @see searchSubtree
+     * @return the searchSubtree property.
+     */
+    public boolean isSearchSubtree() {
+        return this.searchSubtree;
+    }
+
+    /**
+     * Setter for the filter property.
+     *
+     * @see filter
+     * @param filter the filter to set.
+     */
+    public void setFilter(final String filter) {
+        Assert.hasLength(filter, "filter must be not empty");
+        this.filterTemplate = new LdapFilterTemplate(filter);
+        this.filter = filter;
+    }
+
+    /**
+     * Setter for the optional property.
+     *
+     * @see optional
+     * @param optional the optional to set.
+     */
+    public void setOptional(final boolean optional) {
+        this.optional = optional;
+    }
+
+    /**
+     * Setter for the searchSubtree property.
+     *
+     * @see searchSubtree
+     * @param searchSubtree the searchSubtree to set.
+     */
+    public void setSearchSubtree(final boolean searchSubtree) {
+        this.searchSubtree = searchSubtree;
+    }
+
+    /**
+     * Setter for the timeout property.
+     *
+     * @see timeout
+     * @param timeout the timeout to set, 0 for no limit.
+     */
+    public void setTimeout(final int timeout) {
+        Assert.isTrue(timeout >= 0, "timeout must not be negative");
+        this.timeout = timeout;
+    }
+
+    @Override
+    public String toString() {
+        return "GroupSearchBase [base=" + this.base + ", filter=" + this.filter + "]";
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.populator;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.util.Assert;
+
+/**
+ * Maps group names to authorities, returning one shared <code>GrantedAuthority</code> instance per
+ * role, so that logins do not allocate authorities and all sessions with a role reference the same
+ * object.
+ * <p>
+ * By default the role of a group is <tt>rolePrefix</tt> followed by the group name, converted to
+ * upper case if <tt>convertToUpperCase</tt> is true. <tt>mappings</tt> assigns roles to group names
+ * explicitly (group names are compared case-insensitively, roles are used as given); with
+ * <tt>dropUnmapped</tt> set groups without an explicit mapping get no role.
+ * <p>
+ * Configure the table before use: changing a property clears it.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class RoleMappingTable {
+    /**
+     * Constant: stored for groups which get no role.
+     */
+    private static final GrantedAuthority NO_ROLE = new SimpleGrantedAuthority("NO_ROLE");
+
+    /**
+     * Authorities by group name; NO_ROLE for dropped groups.
+     */
+    private final ConcurrentMap<String, GrantedAuthority> authoritiesByGroup =
+            new ConcurrentHashMap<String, GrantedAuthority>();
+
+    /**
+     * Shared authorities by role name.
+     */
+    private final ConcurrentMap<String, GrantedAuthority> authoritiesByRole =
+            new ConcurrentHashMap<String, GrantedAuthority>();
+
+    /**
+     * Property: If true roles are converted to upper case.
+     */
+    private volatile boolean convertToUpperCase = true;
+
+    /**
+     * Property: If true groups without an explicit mapping get no role.
+     */
+    private volatile boolean dropUnmapped;
+
+    /**
+     * Property: Explicit roles by lower-case group name.
+     */
+    private volatile Map<String, String> mappings = Collections.emptyMap();
+
+    /**
+     * Property: Maximum number of group names kept in the table; further groups get authorities
+     * which are not shared.
+     */
+    private volatile int maxSize = 10000;
+
+    /**
+     * Property: Prefix of the roles of groups without an explicit mapping.
+     */
+    private volatile String rolePrefix = "ROLE_";
+
+    /**
+     * Returns the shared authority of the group.
+     *
+     * @param groupName name of the group.
+     * @return authority, or null if the group gets no role.
+     */
+    public GrantedAuthority getAuthority(final String groupName) {
+        GrantedAuthority authority = this.authoritiesByGroup.get(groupName);
+        if (authority == null) {
+            authority = createAuthority(groupName);
+            if (this.authoritiesByGroup.size() < this.maxSize) {
+                final GrantedAuthority existing =
+                        this.authoritiesByGroup.putIfAbsent(groupName, authority);
+                if (existing != null) {
+                    authority = existing;
+                }
+            }
+        }
+
+        return authority == NO_ROLE ? null : authority;
+    }
+
+    /**
+     * Removes all groups from the table.
+     */
+    public void clear() {
+        this.authoritiesByGroup.clear();
+        this.authoritiesByRole.clear();
+    }
+
+    /**
+     * Returns the number of group names in the table.
+     *
+     * @return number of entries.
+     */
+    public int size() {
+        return this.authoritiesByGroup.size();
+    }
+
+    /**
+     * Getter for the mappings property.
+     *
+     * @see mappings
+     * @return the mappings property, by lower-case group name.
+     */
+    public Map<String, String> getMappings() {
+        return this.mappings;
+    }
+
+    /**
+     * Getter for the maxSize property.
+     *
+     * @see maxSize
+     * @return the maxSize property.
+     */
+    public int getMaxSize() {
+        return this.maxSize;
+    }
+
+    /**
+     * Getter for the rolePrefix property.
+     *
+     * @see rolePrefix
+     * @return the rolePrefix property.
+     */
+    public String getRolePrefix() {
+        return this.rolePrefix;
+    }
+
+    /**
+     * Getter for the convertToUpperCase property.
+     *
+     * @see convertToUpperCase
+     * @return the convertToUpperCase property.
+     */
+    public boolean isConvertToUpperCase() {
+        return this.convertToUpperCase;
+    }
+
+    /**
+     * Getter for the dropUnmapped property.
+     *
+     * @see dropUnmapped
+     * @return the dropUnmapped property.
+     */
+    public boolean isDropUnmapped() {
+        return this.dropUnmapped;
+    }
+
+    /**
+     * Setter for the convertToUpperCase property.
+     *
+     * @see convertToUpperCase
+     * @param convertToUpperCase the convertToUpperCase to set.
+     */
+    public void setConvertToUpperCase(final boolean convertToUpperCase) {
+        this.convertToUpperCase = convertToUpperCase;
+        clear();
+    }
+
+    /**
+     * Setter for the dropUnmapped property.
+     *
+     * @see dropUnmapped
+     * @param dropUnmapped the dropUnmapped to set.
+     */
+    public void setDropUnmapped(final boolean dropUnmapped) {
+        this.dropUnmapped = dropUnmapped;
+        clear();
+    }
+
+    /**
+     * Setter for the mappings property.
+     *
+     * @see mappings
+     * @param mappings roles by group name, e.g. "Domain Admins" to "ROLE_ADMIN".
+     */
+    public void setMappings(final Map<String, String> mappings) {
+        Assert.notNull(mappings, "mappings must not be null");
+        final Map<String, String> lowerCaseMappings = new HashMap<String, String>();
+        for (final Map.Entry<String, String> mapping : mappings.entrySet()) {
+            Assert.hasLength(mapping.getValue(), "role of " + mapping.getKey() + " is empty");
+            lowerCaseMappings.put(mapping.getKey().toLowerCase(Locale.ENGLISH),
+                mapping.getValue());
+        }
+
+        this.mappings = Collections.unmodifiableMap(lowerCaseMappings);
+        clear();
+    }
+
+    /**
+     * Setter for the maxSize property.
+     *
+     * @see maxSize
+     * @param maxSize the maxSize to set.
+     */
+    public void setMaxSize(final int maxSize) {
+        Assert.isTrue(maxSize >= 0, "maxSize must not be negative");
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Setter for the rolePrefix property.
+     *
+     * @see rolePrefix
+     * @param rolePrefix the rolePrefix to set.
+     */
+    public void setRolePrefix(final String rolePrefix) {
+        Assert.notNull(rolePrefix, "rolePrefix must not be null");
+        this.rolePrefix = rolePrefix;
+        clear();
+    }
+
+    /**
+     * Determines the role of a group and returns its shared authority.
+     *
+     * @param groupName name of the group.
+     * @return shared authority, or NO_ROLE.
+     */
+    private GrantedAuthority createAuthority(final String groupName) {
+        String role = this.mappings.get(groupName.toLowerCase(Locale.ENGLISH));
+        if (role == null) {
+            if (this.dropUnmapped) {
+                return NO_ROLE;
+            }
+
+            role = this.convertToUpperCase ? groupName.toUpperCase() : groupName;
+            role = this.rolePrefix + role;
+        }
+
+        GrantedAuthority authority = this.authoritiesByRole.get(role);
+        if (authority == null) {
+            authority = new SimpleGrantedAuthority(role);
+            if (this.authoritiesByRole.size() < this.maxSize) {
+                final GrantedAuthority existing =
+                        this.authoritiesByRole.putIfAbsent(role, authority);
+                if (existing != null) {
+                    authority = existing;
+                }
+            }
+        }
+
+        return authority;
+    }
+}
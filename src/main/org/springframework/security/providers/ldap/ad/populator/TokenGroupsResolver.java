@@ -0,0 +1,329 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.populator;
+
+import java.util.*;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.directory.*;
+
+import org.apache.commons.logging.*;
+import org.springframework.ldap.support.LdapUtils;
+import org.springframework.security.providers.ldap.ad.cache.ExpiringLruCache;
+import org.springframework.security.providers.ldap.ad.util.NamingUtils;
+import org.springframework.util.Assert;
+
+/**
+ * Resolves the transitive group membership of a user from the Active Directory
+ * <tt>tokenGroups</tt> attribute.
+ * <p>
+ * <tt>tokenGroups</tt> is a constructed attribute holding the objectSid of every group the user is
+ * a member of, directly or through nesting. It is read with a base-scope read on the user entry. The
+ * SIDs are mapped to group names through a bounded, time-limited cache; SIDs missing from the cache
+ * are looked up with one OR-filter search per <tt>batchSize</tt> SIDs. Each SID matches at most one
+ * group, so a search returns at most <tt>batchSize</tt> entries, which is kept within the default
+ * <tt>MaxPageSize</tt> of Active Directory (1000). SIDs which do not match a group below the search
+ * base are cached as well, so repeat logins are resolved from memory.
+ * <p>
+ * The attributes holding SIDs are added to the binary attributes of the context for the duration
+ * of the lookup only, keeping the binary attributes configured by other users of the context.
+ * <p>
+ * The cache is specific to one search base and role attribute: use one resolver per populator. In a
+ * multi-domain forest the cached SIDs are kept per naming context, since the same SID may map to a
+ * group below the search base of one domain and to none below that of another.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class TokenGroupsResolver {
+    /**
+     * Constant: name of the constructed attribute holding the SIDs of all groups of the user.
+     */
+    public static final String TOKEN_GROUPS_ATTRIBUTE = "tokenGroups";
+
+    /**
+     * Constant: JNDI environment property listing attributes to be returned as byte[].
+     */
+    private static final String BINARY_ATTRIBUTES_PROPERTY = "java.naming.ldap.attributes.binary";
+
+    /**
+     * Constant: cached name of SIDs which do not map to a group.
+     */
+    private static final String NO_GROUP = "";
+
+    /**
+     * Constant: maximum batchSize, the default MaxPageSize of Active Directory.
+     */
+    private static final int MAX_BATCH_SIZE = 1000;
+
+    /**
+     * Logger for this class and subclasses.
+     */
+    protected final Log logger = LogFactory.getLog(this.getClass());
+
+    /**
+     * Property: Cache mapping SID strings (S-1-5-...) to group names; in a forest the SID strings
+     * are prefixed by the lower-case naming context and '|'.
+     */
+    private final ExpiringLruCache<String, String> sidCache;
+
+    /**
+     * Property: Maximum number of SIDs looked up with one search.
+     */
+    private int batchSize = 50;
+
+    /**
+     * Property: The ID of the attribute which contains the SID of a group.
+     */
+    private String sidAttribute = "objectSid";
+
+    /**
+     * Creates a resolver with a cache of 10000 SIDs valid for one hour.
+     */
+    public TokenGroupsResolver() {
+        this(new ExpiringLruCache<String, String>(10000, 60 * 60 * 1000));
+    }
+
+    /**
+     * Constructor specifying sidCache.
+     *
+     * @param sidCache cache mapping SID strings to group names.
+     */
+    public TokenGroupsResolver(final ExpiringLruCache<String, String> sidCache) {
+        Assert.notNull(sidCache, "sidCache must not be null");
+        this.sidCache = sidCache;
+    }
+
+    /**
+     * Returns the names of all groups (direct and nested) of the user.
+     *
+     * @param ctx context to use, relative to the base DN of the context source.
+     * @param userDn DN of the user, relative to the base DN of the context source.
+     * @param groupSearchBase the DN under which groups are looked up.
+     * @param groupRoleAttribute the ID of the attribute which contains the group name.
+     * @return names of the groups of the user.
+     * @throws javax.naming.NamingException if the LDAP operations fail.
+     */
+    public Set<String> resolveGroupNames(final DirContext ctx, final String userDn,
+            final String groupSearchBase, final String groupRoleAttribute)
+            throws javax.naming.NamingException {
+        return resolveGroupNames(ctx, userDn, groupSearchBase, groupRoleAttribute, "");
+    }
+
+    /**
+     * Returns the names of all groups (direct and nested) of the user, caching the SIDs per naming
+     * context.
+     *
+     * @param ctx context to use, relative to the base DN of the context source.
+     * @param userDn DN of the user, relative to the base DN of the context source.
+     * @param groupSearchBase the DN under which groups are looked up.
+     * @param groupRoleAttribute the ID of the attribute which contains the group name.
+     * @param namingContext DN of the domain ctx is connected to, empty if there is only one.
+     * @return names of the groups of the user.
+     * @throws javax.naming.NamingException if the LDAP operations fail.
+     */
+    public Set<String> resolveGroupNames(final DirContext ctx, final String userDn,
+            final String groupSearchBase, final String groupRoleAttribute,
+            final String namingContext) throws javax.naming.NamingException {
+        Assert.notNull(namingContext, "namingContext must not be null");
+        final String cachePrefix =
+                namingContext.length() == 0 ? "" : namingContext.toLowerCase(Locale.ENGLISH) + '|';
+
+        final Object binaryAttributes = ctx.getEnvironment().get(BINARY_ATTRIBUTES_PROPERTY);
+        ctx.addToEnvironment(BINARY_ATTRIBUTES_PROPERTY, (binaryAttributes == null ? ""
+                : binaryAttributes + " ") + TOKEN_GROUPS_ATTRIBUTE + " " + this.sidAttribute);
+        try {
+            return resolveBinaryGroupNames(ctx, userDn, groupSearchBase, groupRoleAttribute,
+                cachePrefix);
+        } finally {
+            // the context may be pooled or shared
+            if (binaryAttributes == null) {
+                ctx.removeFromEnvironment(BINARY_ATTRIBUTES_PROPERTY);
+            } else {
+                ctx.addToEnvironment(BINARY_ATTRIBUTES_PROPERTY, binaryAttributes);
+            }
+        }
+    }
+
+    /**
+     * Getter for the sidCache property.
+     *
+     * @see sidCache
+     * @return the sidCache property.
+     */
+    public ExpiringLruCache<String, String> getSidCache() {
+        return this.sidCache;
+    }
+
+    /**
+     * Getter for the batchSize property.
+     *
+     * @see batchSize
+     * @return the batchSize property.
+     */
+    public int getBatchSize() {
+        return this.batchSize;
+    }
+
+    /**
+     * Setter for the batchSize property.
+     *
+     * @see batchSize
+     * @param batchSize the batchSize to set, at most 1000.
+     */
+    public void setBatchSize(final int batchSize) {
+        Assert.isTrue(batchSize > 0 && batchSize <= MAX_BATCH_SIZE,
+            "batchSize must be between 1 and " + MAX_BATCH_SIZE);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Getter for the sidAttribute property.
+     *
+     * @see sidAttribute
+     * @return the sidAttribute property.
+     */
+    public String getSidAttribute() {
+        return this.sidAttribute;
+    }
+
+    /**
+     * Setter for the sidAttribute property.
+     *
+     * @see sidAttribute
+     * @param sidAttribute the sidAttribute to set.
+     */
+    public void setSidAttribute(final String sidAttribute) {
+        Assert.hasLength(sidAttribute, "sidAttribute must be not empty");
+        this.sidAttribute = sidAttribute;
+    }
+
+    /**
+     * Returns the names of all groups of the user, with the SID attributes returned as byte[].
+     *
+     * @param ctx context to use, relative to the base DN of the context source.
+     * @param userDn DN of the user, relative to the base DN of the context source.
+     * @param groupSearchBase the DN under which groups are looked up.
+     * @param groupRoleAttribute the ID of the attribute which contains the group name.
+     * @param cachePrefix prefix of the cache keys of the naming context.
+     * @return names of the groups of the user.
+     * @throws javax.naming.NamingException if the LDAP operations fail.
+     */
+    private Set<String> resolveBinaryGroupNames(final DirContext ctx, final String userDn,
+            final String groupSearchBase, final String groupRoleAttribute,
+            final String cachePrefix) throws javax.naming.NamingException {
+        // base-scope read of the constructed attribute
+        final Attributes attributes =
+                ctx.getAttributes(userDn, new String[] { TOKEN_GROUPS_ATTRIBUTE });
+        final Attribute tokenGroups = attributes.get(TOKEN_GROUPS_ATTRIBUTE);
+
+        final Set<String> groupNames = new HashSet<String>();
+        if (tokenGroups == null) {
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug("No " + TOKEN_GROUPS_ATTRIBUTE + " found for " + userDn);
+            }
+
+            return groupNames;
+        }
+
+        final List<byte[]> unresolvedSids = new ArrayList<byte[]>();
+        final NamingEnumeration<?> values = tokenGroups.getAll();
+        try {
+            while (values.hasMore()) {
+                final byte[] sid = (byte[]) values.next();
+                final String groupName =
+                        this.sidCache.get(cachePrefix + LdapUtils.convertBinarySidToString(sid));
+                if (groupName == null) {
+                    unresolvedSids.add(sid);
+                } else if (groupName.length() > 0) {
+                    groupNames.add(groupName);
+                }
+            }
+        } finally {
+            values.close();
+        }
+
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug(TOKEN_GROUPS_ATTRIBUTE + " of " + userDn + ": " + tokenGroups.size()
+                    + " SIDs, " + unresolvedSids.size() + " not cached");
+        }
+
+        for (int i = 0; i < unresolvedSids.size(); i += this.batchSize) {
+            final List<byte[]> batch =
+                    unresolvedSids.subList(i, Math.min(i + this.batchSize, unresolvedSids.size()));
+            lookupGroupNames(ctx, batch, groupSearchBase, groupRoleAttribute, cachePrefix,
+                groupNames);
+        }
+
+        return groupNames;
+    }
+
+    /**
+     * Searches for the groups with the given SIDs, adds their names to groupNames and caches the
+     * result for every SID.
+     *
+     * @param ctx context to use.
+     * @param sids SIDs to look up.
+     * @param groupSearchBase the DN under which groups are looked up.
+     * @param groupRoleAttribute the ID of the attribute which contains the group name.
+     * @param cachePrefix prefix of the cache keys of the naming context.
+     * @param groupNames set the names of the found groups are added to.
+     * @throws javax.naming.NamingException if the search fails.
+     */
+    private void lookupGroupNames(final DirContext ctx, final List<byte[]> sids,
+            final String groupSearchBase, final String groupRoleAttribute,
+            final String cachePrefix, final Set<String> groupNames)
+            throws javax.naming.NamingException {
+        final StringBuilder filter = new StringBuilder("(|");
+        for (final byte[] sid : sids) {
+            filter.append('(').append(this.sidAttribute).append('=')
+                .append(NamingUtils.escapeFilterValue(sid)).append(')');
+        }
+        filter.append(')');
+
+        final SearchControls controls = new SearchControls();
+        controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        controls.setReturningAttributes(new String[] { this.sidAttribute, groupRoleAttribute });
+
+        final Set<String> foundSids = new HashSet<String>();
+        final NamingEnumeration<SearchResult> results =
+                ctx.search(groupSearchBase, filter.toString(), controls);
+        try {
+            while (results.hasMore()) {
+                final Attributes attributes = results.next().getAttributes();
+                final Attribute sidValue = attributes.get(this.sidAttribute);
+                final Attribute nameValue = attributes.get(groupRoleAttribute);
+                if (sidValue == null || nameValue == null) {
+                    continue;
+                }
+
+                final String sid = LdapUtils.convertBinarySidToString((byte[]) sidValue.get());
+                final String groupName = nameValue.get().toString();
+                this.sidCache.put(cachePrefix + sid, groupName);
+                foundSids.add(sid);
+                groupNames.add(groupName);
+            }
+        } finally {
+            results.close();
+        }
+
+        // remember SIDs that do not map to a group below groupSearchBase
+        for (final byte[] sid : sids) {
+            final String sidString = LdapUtils.convertBinarySidToString(sid);
+            if (!foundSids.contains(sidString)) {
+                this.sidCache.put(cachePrefix + sidString, NO_GROUP);
+            }
+        }
+    }
+}
@@ -18,7 +18,6 @@ import javax.naming.directory.DirContext;
 import org.springframework.dao.DataAccessException;
 import org.springframework.ldap.NamingException;
 import org.springframework.ldap.core.ContextSource;
-import org.springframework.security.ldap.DefaultSpringSecurityContextSource;
 
 /**
  * A {@link ContextSource} that binds with specific DN.
@@ -30,7 +29,7 @@ public class BindWithSpecificDnContextSource implements ContextSource {
     /**
      * Property: contextFactory to get context from.
      */
-    private final DefaultSpringSecurityContextSource contextFactory;
+    private final ContextSource contextFactory;
 
     /**
      * Property: password of user to be used for binding.
@@ -49,8 +48,8 @@ public class BindWithSpecificDnContextSource implements ContextSource {
      * @param userDn DN of user to be used for binding.
      * @param password password of user to be used for binding.
      */
-    public BindWithSpecificDnContextSource(final DefaultSpringSecurityContextSource contextFactory,
-            final String userDn, final String password) {
+    public BindWithSpecificDnContextSource(final ContextSource contextFactory, final String userDn,
+            final String password) {
         this.contextFactory = contextFactory;
         this.userDn = userDn;
         this.password = password;
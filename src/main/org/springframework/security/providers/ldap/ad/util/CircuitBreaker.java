@@ -0,0 +1,557 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.util;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.logging.*;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.util.Assert;
+
+/**
+ * Circuit breaker around calls to a directory, so that threads fail fast instead of piling up
+ * when the directory is slow or down.
+ * <p>
+ * The outcome of the last <tt>windowSize</tt> calls is kept. Once it holds at least
+ * <tt>minimumCalls</tt> calls, the circuit opens if the rate of failed calls reaches
+ * <tt>failureRateThreshold</tt>, or the rate of calls taking <tt>slowCallDuration</tt> or longer
+ * reaches <tt>slowCallRateThreshold</tt>. Exceptions of <tt>ignoredExceptions</tt> (by default
+ * rejected credentials: the directory answered) count as successful calls.
+ * <p>
+ * While the circuit is open, calls are rejected with {@link CircuitBreakerOpenException}. After
+ * <tt>openDuration</tt> milliseconds it becomes half-open: <tt>halfOpenProbes</tt> calls are let
+ * through; if all of them succeed fast, the circuit closes again, otherwise it opens again.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class CircuitBreaker {
+    /**
+     * State of the circuit.
+     */
+    public enum State {
+        /**
+         * Calls are let through and their outcome recorded.
+         */
+        CLOSED,
+
+        /**
+         * Calls are rejected.
+         */
+        OPEN,
+
+        /**
+         * A limited number of probe calls are let through.
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * Logger for this class and subclasses.
+     */
+    protected final Log logger = LogFactory.getLog(this.getClass());
+
+    /**
+     * Property: Name of the circuit, for messages.
+     */
+    private final String name;
+
+    /**
+     * Property: Number of calls whose outcome is kept.
+     */
+    private int windowSize = 20;
+
+    /**
+     * Property: Number of calls in the window needed before the circuit can open.
+     */
+    private int minimumCalls = 10;
+
+    /**
+     * Property: Rate of failed calls at which the circuit opens, from 0 to 1.
+     */
+    private double failureRateThreshold = 0.5;
+
+    /**
+     * Property: Duration in milliseconds from which a call is slow; 0 disables the slow call rate.
+     */
+    private long slowCallDuration = 2000;
+
+    /**
+     * Property: Rate of slow calls at which the circuit opens, from 0 to 1.
+     */
+    private double slowCallRateThreshold = 0.8;
+
+    /**
+     * Property: Time in milliseconds the circuit stays open before probing.
+     */
+    private long openDuration = 30000;
+
+    /**
+     * Property: Number of successful probe calls needed to close the circuit.
+     */
+    private int halfOpenProbes = 3;
+
+    /**
+     * Property: Exceptions counted as successful calls.
+     */
+    private List<Class<? extends Throwable>> ignoredExceptions =
+            new ArrayList<Class<? extends Throwable>>(Arrays.<Class<? extends Throwable>> asList(
+                BadCredentialsException.class,
+                org.springframework.ldap.AuthenticationException.class));
+
+    /**
+     * State of the circuit.
+     */
+    private State state = State.CLOSED;
+
+    /**
+     * Failure flags of the calls in the window, used as a ring buffer.
+     */
+    private boolean[] failures = new boolean[0];
+
+    /**
+     * Slow flags of the calls in the window, used as a ring buffer.
+     */
+    private boolean[] slowCalls = new boolean[0];
+
+    /**
+     * Index of the next call in the ring buffers.
+     */
+    private int next;
+
+    /**
+     * Number of calls in the window.
+     */
+    private int callCount;
+
+    /**
+     * Number of failed calls in the window.
+     */
+    private int failureCount;
+
+    /**
+     * Number of slow calls in the window.
+     */
+    private int slowCallCount;
+
+    /**
+     * Time the circuit was opened.
+     */
+    private long openedAt;
+
+    /**
+     * Number of probe calls running.
+     */
+    private int probesInFlight;
+
+    /**
+     * Number of successful probe calls.
+     */
+    private int probeSuccesses;
+
+    /**
+     * Number of rejected calls.
+     */
+    private long rejectedCount;
+
+    /**
+     * Constructor specifying name.
+     *
+     * @param name name of the circuit, for messages, e.g. "ldap-bind".
+     */
+    public CircuitBreaker(final String name) {
+        Assert.hasLength(name, "name must not be empty");
+        this.name = name;
+        reset();
+    }
+
+    /**
+     * Runs callable if the circuit allows it, recording its outcome.
+     *
+     * @param callable the call to the directory.
+     * @return result of callable.
+     * @throws CircuitBreakerOpenException if the circuit is open.
+     */
+    public <T> T execute(final Callable<T> callable) {
+        final boolean probe = acquirePermission();
+
+        final long start = currentTimeMillis();
+        try {
+            final T result = callable.call();
+            onResult(probe, true, currentTimeMillis() - start);
+            return result;
+        } catch (final RuntimeException e) {
+            onResult(probe, isIgnored(e), currentTimeMillis() - start);
+            throw e;
+        } catch (final Error e) {
+            onResult(probe, false, currentTimeMillis() - start);
+            throw e;
+        } catch (final Exception e) {
+            onResult(probe, false, currentTimeMillis() - start);
+            throw new IllegalStateException("Call of " + this.name + " failed", e);
+        }
+    }
+
+    /**
+     * Returns the state of the circuit.
+     *
+     * @return the state.
+     */
+    public synchronized State getState() {
+        return this.state;
+    }
+
+    /**
+     * Returns the rate of failed calls in the window.
+     *
+     * @return failure rate from 0 to 1.
+     */
+    public synchronized double getFailureRate() {
+        return this.callCount == 0 ? 0 : (double) this.failureCount / this.callCount;
+    }
+
+    /**
+     * Returns the rate of slow calls in the window.
+     *
+     * @return slow call rate from 0 to 1.
+     */
+    public synchronized double getSlowCallRate() {
+        return this.callCount == 0 ? 0 : (double) this.slowCallCount / this.callCount;
+    }
+
+    /**
+     * Returns the number of calls rejected because the circuit was open.
+     *
+     * @return number of rejected calls.
+     */
+    public synchronized long getRejectedCount() {
+        return this.rejectedCount;
+    }
+
+    /**
+     * Getter for the name property.
+     *
+     * @see name
+     * @return the name property.
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Getter for the windowSize property.
+     *
+     * @see windowSize
+     * @return the windowSize property.
+     */
+    public synchronized int getWindowSize() {
+        return this.windowSize;
+    }
+
+    /**
+     * Setter for the windowSize property. Clears the window.
+     *
+     * @see windowSize
+     * @param windowSize the windowSize to set.
+     */
+    public synchronized void setWindowSize(final int windowSize) {
+        Assert.isTrue(windowSize > 0, "windowSize must be positive");
+        this.windowSize = windowSize;
+        reset();
+    }
+
+    /**
+     * Getter for the minimumCalls property.
+     *
+     * @see minimumCalls
+     * @return the minimumCalls property.
+     */
+    public synchronized int getMinimumCalls() {
+        return this.minimumCalls;
+    }
+
+    /**
+     * Setter for the minimumCalls property.
+     *
+     * @see minimumCalls
+     * @param minimumCalls the minimumCalls to set.
+     */
+    public synchronized void setMinimumCalls(final int minimumCalls) {
+        Assert.isTrue(minimumCalls > 0, "minimumCalls must be positive");
+        this.minimumCalls = minimumCalls;
+    }
+
+    /**
+     * Getter for the failureRateThreshold property.
+     *
+     * @see failureRateThreshold
+     * @return the failureRateThreshold property.
+     */
+    public synchronized double getFailureRateThreshold() {
+        return this.failureRateThreshold;
+    }
+
+    /**
+     * Setter for the failureRateThreshold property.
+     *
+     * @see failureRateThreshold
+     * @param failureRateThreshold the failureRateThreshold to set.
+     */
+    public synchronized void setFailureRateThreshold(final double failureRateThreshold) {
+        Assert.isTrue(failureRateThreshold > 0 && failureRateThreshold <= 1,
+            "failureRateThreshold must be between 0 and 1");
+        this.failureRateThreshold = failureRateThreshold;
+    }
+
+    /**
+     * Getter for the slowCallDuration property.
+     *
+     * @see slowCallDuration
+     * @return the slowCallDuration property.
+     */
+    public synchronized long getSlowCallDuration() {
+        return this.slowCallDuration;
+    }
+
+    /**
+     * Setter for the slowCallDuration property.
+     *
+     * @see slowCallDuration
+     * @param slowCallDuration the slowCallDuration to set, 0 to disable the slow call rate.
+     */
+    public synchronized void setSlowCallDuration(final long slowCallDuration) {
+        Assert.isTrue(slowCallDuration >= 0, "slowCallDuration must not be negative");
+        this.slowCallDuration = slowCallDuration;
+    }
+
+    /**
+     * Getter for the slowCallRateThreshold property.
+     *
+     * @see slowCallRateThreshold
+     * @return the slowCallRateThreshold property.
+     */
+    public synchronized double getSlowCallRateThreshold() {
+        return this.slowCallRateThreshold;
+    }
+
+    /**
+     * Setter for the slowCallRateThreshold property.
+     *
+     * @see slowCallRateThreshold
+     * @param slowCallRateThreshold the slowCallRateThreshold to set.
+     */
+    public synchronized void setSlowCallRateThreshold(final double slowCallRateThreshold) {
+        Assert.isTrue(slowCallRateThreshold > 0 && slowCallRateThreshold <= 1,
+            "slowCallRateThreshold must be between 0 and 1");
+        this.slowCallRateThreshold = slowCallRateThreshold;
+    }
+
+    /**
+     * Getter for the openDuration property.
+     *
+     * @see openDuration
+     * @return the openDuration property.
+     */
+    public synchronized long getOpenDuration() {
+        return this.openDuration;
+    }
+
+    /**
+     * Setter for the openDuration property.
+     *
+     * @see openDuration
+     * @param openDuration the openDuration to set.
+     */
+    public synchronized void setOpenDuration(final long openDuration) {
+        Assert.isTrue(openDuration >= 0, "openDuration must not be negative");
+        this.openDuration = openDuration;
+    }
+
+    /**
+     * Getter for the halfOpenProbes property.
+     *
+     * @see halfOpenProbes
+     * @return the halfOpenProbes property.
+     */
+    public synchronized int getHalfOpenProbes() {
+        return this.halfOpenProbes;
+    }
+
+    /**
+     * Setter for the halfOpenProbes property.
+     *
+     * @see halfOpenProbes
+     * @param halfOpenProbes the halfOpenProbes to set.
+     */
+    public synchronized void setHalfOpenProbes(final int halfOpenProbes) {
+        Assert.isTrue(halfOpenProbes > 0, "halfOpenProbes must be positive");
+        this.halfOpenProbes = halfOpenProbes;
+    }
+
+    /**
+     * Getter for the ignoredExceptions property.
+     *
+     * @see ignoredExceptions
+     * @return the ignoredExceptions property.
+     */
+    public synchronized List<Class<? extends Throwable>> getIgnoredExceptions() {
+        return Collections.unmodifiableList(this.ignoredExceptions);
+    }
+
+    /**
+     * Setter for the ignoredExceptions property.
+     *
+     * @see ignoredExceptions
+     * @param ignoredExceptions the ignoredExceptions to set.
+     */
+    public synchronized void setIgnoredExceptions(
+            final List<Class<? extends Throwable>> ignoredExceptions) {
+        Assert.notNull(ignoredExceptions, "ignoredExceptions must not be null");
+        this.ignoredExceptions = new ArrayList<Class<? extends Throwable>>(ignoredExceptions);
+    }
+
+    /**
+     * Returns the current time in milliseconds. Can be overridden, e.g. in tests.
+     *
+     * @return the current time in milliseconds.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Lets a call through or rejects it, moving from OPEN to HALF_OPEN after openDuration.
+     *
+     * @return true if the call is a probe of the half-open circuit.
+     * @throws CircuitBreakerOpenException if the call is rejected.
+     */
+    private synchronized boolean acquirePermission() {
+        if (this.state == State.OPEN) {
+            if (currentTimeMillis() - this.openedAt < this.openDuration) {
+                this.rejectedCount++;
+                throw new CircuitBreakerOpenException("Circuit " + this.name + " is open");
+            }
+
+            this.state = State.HALF_OPEN;
+            this.probesInFlight = 0;
+            this.probeSuccesses = 0;
+            this.logger.info("Circuit " + this.name + " half-open");
+        }
+
+        if (this.state == State.HALF_OPEN) {
+            if (this.probesInFlight >= this.halfOpenProbes) {
+                this.rejectedCount++;
+                throw new CircuitBreakerOpenException("Circuit " + this.name + " is half-open");
+            }
+
+            this.probesInFlight++;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Records the outcome of a call.
+     *
+     * @param probe true if the call was a probe of the half-open circuit.
+     * @param success true if the call succeeded.
+     * @param duration duration of the call in milliseconds.
+     */
+    private synchronized void onResult(final boolean probe, final boolean success,
+            final long duration) {
+        final boolean slow = this.slowCallDuration > 0 && duration >= this.slowCallDuration;
+
+        if (probe) {
+            if (this.state != State.HALF_OPEN) {
+                return;
+            }
+
+            this.probesInFlight--;
+            if (!success || slow) {
+                open();
+            } else if (++this.probeSuccesses >= this.halfOpenProbes) {
+                reset();
+                this.logger.info("Circuit " + this.name + " closed");
+            }
+
+            return;
+        }
+
+        if (this.state != State.CLOSED) {
+            // started before the circuit opened
+            return;
+        }
+
+        if (this.callCount == this.windowSize) {
+            // the oldest call leaves the window
+            this.failureCount -= this.failures[this.next] ? 1 : 0;
+            this.slowCallCount -= this.slowCalls[this.next] ? 1 : 0;
+        } else {
+            this.callCount++;
+        }
+
+        this.failures[this.next] = !success;
+        this.slowCalls[this.next] = slow;
+        this.failureCount += success ? 0 : 1;
+        this.slowCallCount += slow ? 1 : 0;
+        this.next = (this.next + 1) % this.windowSize;
+
+        if (this.callCount >= this.minimumCalls
+                && (getFailureRate() >= this.failureRateThreshold
+                        || getSlowCallRate() >= this.slowCallRateThreshold)) {
+            open();
+        }
+    }
+
+    /**
+     * Opens the circuit.
+     */
+    private void open() {
+        this.logger.warn("Circuit " + this.name + " opened: failure rate " + getFailureRate()
+                + ", slow call rate " + getSlowCallRate());
+        this.state = State.OPEN;
+        this.openedAt = currentTimeMillis();
+    }
+
+    /**
+     * Closes the circuit and clears the window.
+     */
+    private void reset() {
+        this.state = State.CLOSED;
+        this.failures = new boolean[this.windowSize];
+        this.slowCalls = new boolean[this.windowSize];
+        this.next = 0;
+        this.callCount = 0;
+        this.failureCount = 0;
+        this.slowCallCount = 0;
+    }
+
+    /**
+     * Returns true if the exception counts as a successful call.
+     *
+     * @param e exception of the call.
+     * @return true if e is an instance of one of ignoredExceptions.
+     */
+    private synchronized boolean isIgnored(final RuntimeException e) {
+        for (final Class<? extends Throwable> ignored : this.ignoredExceptions) {
+            if (ignored.isInstance(e)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.util;
+
+import org.springframework.security.authentication.AuthenticationServiceException;
+
+/**
+ * Thrown by {@link CircuitBreaker} when a call is rejected because the circuit is open.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class CircuitBreakerOpenException extends AuthenticationServiceException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor specifying msg.
+     *
+     * @param msg the detail message.
+     */
+    public CircuitBreakerOpenException(final String msg) {
+        super(msg);
+    }
+}
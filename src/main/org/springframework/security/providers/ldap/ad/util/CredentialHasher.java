@@ -0,0 +1,116 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.util;
+
+import java.nio.charset.Charset;
+import java.security.*;
+import java.security.spec.InvalidKeySpecException;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.springframework.util.Assert;
+
+/**
+ * Hashes username/password pairs with PBKDF2 (HMAC-SHA1) so that credentials can be compared
+ * without being kept in memory. The salt is the username plus a random value generated per
+ * instance, so hashes are not comparable across instances or restarts.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class CredentialHasher {
+    /**
+     * Constant: key derivation algorithm.
+     */
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA1";
+
+    /**
+     * Constant: length of the derived hash in bits.
+     */
+    private static final int HASH_LENGTH = 160;
+
+    /**
+     * Constant: charset used to encode usernames.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Property: number of PBKDF2 iterations; higher is slower to compute and to brute-force.
+     */
+    private final int iterations;
+
+    /**
+     * Property: random salt of this instance.
+     */
+    private final byte[] salt = new byte[16];
+
+    /**
+     * Constructor specifying iterations.
+     *
+     * @param iterations number of PBKDF2 iterations.
+     */
+    public CredentialHasher(final int iterations) {
+        Assert.isTrue(iterations > 0, "iterations must be positive");
+        this.iterations = iterations;
+        new SecureRandom().nextBytes(this.salt);
+    }
+
+    /**
+     * Computes the hash of username/password.
+     *
+     * @param username username, used as part of the salt.
+     * @param password password to hash.
+     * @return hash of the credentials.
+     */
+    public byte[] hash(final String username, final String password) {
+        final byte[] usernameBytes = username.getBytes(UTF8);
+        final byte[] fullSalt = new byte[this.salt.length + usernameBytes.length];
+        System.arraycopy(this.salt, 0, fullSalt, 0, this.salt.length);
+        System.arraycopy(usernameBytes, 0, fullSalt, this.salt.length, usernameBytes.length);
+
+        final PBEKeySpec keySpec =
+                new PBEKeySpec(password.toCharArray(), fullSalt, this.iterations, HASH_LENGTH);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(keySpec).getEncoded();
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        } catch (final InvalidKeySpecException e) {
+            throw new IllegalStateException("Could not hash credentials", e);
+        } finally {
+            keySpec.clearPassword();
+        }
+    }
+
+    /**
+     * Compares two hashes in time independent of their content.
+     *
+     * @param expected expected hash.
+     * @param actual actual hash.
+     * @return true if the hashes are equal.
+     */
+    public boolean matches(final byte[] expected, final byte[] actual) {
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    /**
+     * Getter for the iterations property.
+     *
+     * @see iterations
+     * @return the iterations property.
+     */
+    public int getIterations() {
+        return this.iterations;
+    }
+}
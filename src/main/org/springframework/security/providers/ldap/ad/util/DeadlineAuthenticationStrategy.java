@@ -0,0 +1,124 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.util;
+
+import java.util.Hashtable;
+
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
+
+import org.springframework.beans.DirectFieldAccessor;
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.ldap.core.support.*;
+import org.springframework.util.Assert;
+
+/**
+ * A {@link DirContextAuthenticationStrategy} that bounds the connections opened within a
+ * {@link LoginDeadline} by the rest of its budget: the JNDI connect and read timeouts of each
+ * connection opened while a deadline is current are set to the remaining time. A domain controller
+ * that stops answering then frees the login thread when the deadline runs out, instead of when the
+ * operating system gives up on the socket.
+ * <p>
+ * Connections taken from the JNDI connection pool outlive the login, so they keep their configured
+ * timeouts. The environment is otherwise set up by <tt>delegate</tt>.
+ * <p>
+ * Use <code>install()</code> to add the timeouts to the strategy a context source already has,
+ * e.g. the strategy of <code>DefaultSpringSecurityContextSource</code>, which disables connection
+ * pooling for binds as users.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class DeadlineAuthenticationStrategy implements DirContextAuthenticationStrategy {
+    /**
+     * Constant: JNDI environment property enabling the LDAP connection pool.
+     */
+    private static final String CONNECT_POOL_PROPERTY = "com.sun.jndi.ldap.connect.pool";
+
+    /**
+     * Property: Strategy setting up the environment and the created contexts.
+     */
+    private final DirContextAuthenticationStrategy delegate;
+
+    /**
+     * Constructor using simple authentication.
+     */
+    public DeadlineAuthenticationStrategy() {
+        this(new SimpleDirContextAuthenticationStrategy());
+    }
+
+    /**
+     * Constructor specifying delegate.
+     *
+     * @param delegate strategy setting up the environment and the created contexts.
+     */
+    public DeadlineAuthenticationStrategy(final DirContextAuthenticationStrategy delegate) {
+        Assert.notNull(delegate, "delegate must not be null");
+        this.delegate = delegate;
+    }
+
+    /**
+     * Adds the deadline timeouts to the authentication strategy of contextSource, if it is an
+     * <code>AbstractContextSource</code> which does not use a DeadlineAuthenticationStrategy yet.
+     * Other context sources open their connections themselves and are left unchanged.
+     *
+     * @param contextSource context source to bound by the login deadline.
+     * @return true if the context source uses a DeadlineAuthenticationStrategy.
+     */
+    public static boolean install(final ContextSource contextSource) {
+        if (!(contextSource instanceof AbstractContextSource)) {
+            return false;
+        }
+
+        synchronized (contextSource) {
+            // AbstractContextSource has no getter for its strategy
+            final DirContextAuthenticationStrategy strategy =
+                    (DirContextAuthenticationStrategy) new DirectFieldAccessor(contextSource)
+                        .getPropertyValue("authenticationStrategy");
+            if (!(strategy instanceof DeadlineAuthenticationStrategy)) {
+                ((AbstractContextSource) contextSource).setAuthenticationStrategy(
+                    new DeadlineAuthenticationStrategy(strategy));
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public void setupEnvironment(final Hashtable<String, Object> env, final String userDn,
+            final String password) throws NamingException {
+        this.delegate.setupEnvironment(env, userDn, password);
+
+        final LoginDeadline deadline = LoginDeadline.current();
+        if (deadline != null && !"true".equals(String.valueOf(env.get(CONNECT_POOL_PROPERTY)))) {
+            deadline.applyTimeouts(env);
+        }
+    }
+
+    @Override
+    public DirContext processContextAfterCreation(final DirContext ctx, final String userDn,
+            final String password) throws NamingException {
+        return this.delegate.processContextAfterCreation(ctx, userDn, password);
+    }
+
+    /**
+     * Getter for the delegate property.
+     *
+     * @see delegate
+     * @return the delegate property.
+     */
+    public DirContextAuthenticationStrategy getDelegate() {
+        return this.delegate;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.util;
+
+import java.util.*;
+
+import org.springframework.util.Assert;
+
+/**
+ * LDAP search filter with <code>{0}</code>, <code>{1}</code>... parameter placeholders, parsed once
+ * and rendered with the parameter values escaped according to RFC 4515.
+ * <p>
+ * Unlike <code>MessageFormat</code>, quotes have no special meaning, and parameter values cannot
+ * change the structure of the filter: <code>*</code>, <code>(</code>, <code>)</code>,
+ * <code>\</code> and NUL are escaped, as well as braces, which JNDI would otherwise treat as
+ * argument placeholders. byte[] values are escaped byte by byte. Rendering reuses a per-thread
+ * buffer. Instances are immutable and thread-safe.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public final class LdapFilterTemplate {
+    /**
+     * Constant: hexadecimal digits used to escape filter values.
+     */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Constant: capacity above which the per-thread buffer is not kept.
+     */
+    private static final int MAX_BUFFER_CAPACITY = 4096;
+
+    /**
+     * Per-thread buffer used to render filters.
+     */
+    private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
+    /**
+     * Property: Filter with placeholders.
+     */
+    private final String filter;
+
+    /**
+     * Text before each placeholder, followed by the text after the last one.
+     */
+    private final String[] literals;
+
+    /**
+     * Parameter index of each placeholder.
+     */
+    private final int[] parameterIndexes;
+
+    /**
+     * Property: Number of parameters required to render the filter.
+     */
+    private final int parameterCount;
+
+    /**
+     * Constructor specifying filter.
+     *
+     * @param filter filter with <code>{n}</code> placeholders, e.g. "(member={0})".
+     * @throws IllegalArgumentException if a placeholder is not closed or not a number.
+     */
+    public LdapFilterTemplate(final String filter) {
+        Assert.hasLength(filter, "filter must be not empty");
+        this.filter = filter;
+
+        final List<String> literalList = new ArrayList<String>();
+        final List<Integer> indexList = new ArrayList<Integer>();
+        int start = 0;
+        int open = filter.indexOf('{');
+        while (open >= 0) {
+            final int close = filter.indexOf('}', open);
+            Assert.isTrue(close > open + 1, "Unclosed or empty placeholder in filter: " + filter);
+            final int index;
+            try {
+                index = Integer.parseInt(filter.substring(open + 1, close));
+            } catch (final NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid placeholder in filter: " + filter, e);
+            }
+            Assert.isTrue(index >= 0, "Invalid placeholder in filter: " + filter);
+
+            literalList.add(filter.substring(start, open));
+            indexList.add(Integer.valueOf(index));
+            start = close + 1;
+            open = filter.indexOf('{', start);
+        }
+        literalList.add(filter.substring(start));
+
+        this.literals = literalList.toArray(new String[literalList.size()]);
+        this.parameterIndexes = new int[indexList.size()];
+        int count = 0;
+        for (int i = 0; i < this.parameterIndexes.length; i++) {
+            this.parameterIndexes[i] = indexList.get(i).intValue();
+            count = Math.max(count, this.parameterIndexes[i] + 1);
+        }
+        this.parameterCount = count;
+    }
+
+    /**
+     * Renders the filter, replacing each placeholder with the escaped value of its parameter.
+     *
+     * @param params parameter values; byte[] values are escaped byte by byte, other values are
+     *            converted with toString().
+     * @return rendered filter.
+     * @throws IllegalArgumentException if fewer parameters than required are given, or one is null.
+     */
+    public String render(final Object... params) {
+        Assert.isTrue(params.length >= this.parameterCount,
+            "Filter " + this.filter + " requires " + this.parameterCount + " parameters");
+
+        StringBuilder buffer = BUFFER.get();
+        if (buffer.capacity() > MAX_BUFFER_CAPACITY) {
+            // do not keep a huge buffer after rendering a huge filter
+            buffer = new StringBuilder(256);
+            BUFFER.set(buffer);
+        }
+        buffer.setLength(0);
+
+        for (int i = 0; i < this.parameterIndexes.length; i++) {
+            buffer.append(this.literals[i]);
+
+            final Object param = params[this.parameterIndexes[i]];
+            Assert.notNull(param, "Filter parameters must not be null");
+            if (param instanceof byte[]) {
+                for (final byte b : (byte[]) param) {
+                    appendEscaped(buffer, b & 0xff);
+                }
+            } else {
+                escape(param.toString(), buffer);
+            }
+        }
+        buffer.append(this.literals[this.literals.length - 1]);
+
+        return buffer.toString();
+    }
+
+    /**
+     * Appends value to buffer, escaped for use in an LDAP search filter.
+     *
+     * @param value value to escape.
+     * @param buffer buffer to append to.
+     */
+    public static void escape(final String value, final StringBuilder buffer) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '*':
+                case '(':
+                case ')':
+                case '\\':
+                case '{':
+                case '}':
+                case '\0':
+                    appendEscaped(buffer, c);
+                    break;
+                default:
+                    buffer.append(c);
+            }
+        }
+    }
+
+    /**
+     * Escapes value for use in an LDAP search filter.
+     *
+     * @param value value to escape.
+     * @return escaped value.
+     */
+    public static String escape(final String value) {
+        final StringBuilder buffer = new StringBuilder(value.length() + 8);
+        escape(value, buffer);
+
+        return buffer.toString();
+    }
+
+    /**
+     * Getter for the filter property.
+     *
+     * @see filter
+     * @return the filter property.
+     */
+    public String getFilter() {
+        return this.filter;
+    }
+
+    /**
+     * Getter for the parameterCount property.
+     *
+     * @see parameterCount
+     * @return the parameterCount property.
+     */
+    public int getParameterCount() {
+        return this.parameterCount;
+    }
+
+    @Override
+    public String toString() {
+        return this.filter;
+    }
+
+    /**
+     * Appends the escape sequence <code>\xx</code> of an octet.
+     *
+     * @param buffer buffer to append to.
+     * @param octet value from 0 to 255.
+     */
+    private static void appendEscaped(final StringBuilder buffer, final int octet) {
+        buffer.append('\\');
+        buffer.append(HEX_DIGITS[(octet >> 4) & 0x0f]);
+        buffer.append(HEX_DIGITS[octet & 0x0f]);
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.util;
+
+import java.util.Hashtable;
+import java.util.concurrent.*;
+
+import org.springframework.core.task.*;
+import org.springframework.security.authentication.AuthenticationServiceException;
+import org.springframework.util.Assert;
+
+/**
+ * Time budget of one login, shared by the bind, the user search and the group lookup. The
+ * authenticator starts it for the current thread; the authorities populator picks it up (see
+ * <code>remove()</code>), so the whole login is bounded.
+ * <p>
+ * Operations run with <code>call()</code> execute on <tt>executor</tt>, with the deadline current
+ * on the executor thread, while the calling thread waits at most the remaining time; when the
+ * budget runs out the operation is cancelled (interrupted) and abandoned. A blocked socket connect
+ * ignores the interrupt, so its thread is only freed when the connect times out:
+ * {@link DeadlineAuthenticationStrategy} sets the JNDI connect and read timeouts of each connection
+ * opened within the deadline to the remaining time (see <code>applyTimeouts()</code>). Tasks of the
+ * login submitted to other executors keep the deadline if submitted through <code>wrap()</code>.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public final class LoginDeadline {
+    /**
+     * Deadline of the login running on the current thread.
+     */
+    private static final ThreadLocal<LoginDeadline> CURRENT = new ThreadLocal<LoginDeadline>();
+
+    /**
+     * Constant: JNDI environment property of the LDAP connect timeout in milliseconds.
+     */
+    public static final String CONNECT_TIMEOUT_PROPERTY = "com.sun.jndi.ldap.connect.timeout";
+
+    /**
+     * Constant: JNDI environment property of the LDAP read timeout in milliseconds.
+     */
+    public static final String READ_TIMEOUT_PROPERTY = "com.sun.jndi.ldap.read.timeout";
+
+    /**
+     * Property: Total time of the login in milliseconds.
+     */
+    private final long budget;
+
+    /**
+     * Value of System.nanoTime() at which the budget runs out.
+     */
+    private final long deadline;
+
+    /**
+     * Property: Executor of the operations run within the deadline.
+     */
+    private final AsyncListenableTaskExecutor executor;
+
+    /**
+     * Constructor specifying budget, executor. The budget starts now.
+     *
+     * @param budget total time of the login in milliseconds.
+     * @param executor executor of the operations run within the deadline.
+     */
+    public LoginDeadline(final long budget, final AsyncListenableTaskExecutor executor) {
+        Assert.isTrue(budget > 0, "budget must be positive");
+        Assert.notNull(executor, "executor must not be null");
+        this.budget = budget;
+        this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budget);
+        this.executor = executor;
+    }
+
+    /**
+     * Starts a deadline for the login running on the current thread, replacing any previous one.
+     *
+     * @param budget total time of the login in milliseconds.
+     * @param executor executor of the operations run within the deadline.
+     * @return the started deadline.
+     */
+    public static LoginDeadline start(final long budget,
+            final AsyncListenableTaskExecutor executor) {
+        final LoginDeadline loginDeadline = new LoginDeadline(budget, executor);
+        CURRENT.set(loginDeadline);
+
+        return loginDeadline;
+    }
+
+    /**
+     * Returns the deadline of the login running on the current thread.
+     *
+     * @return the deadline, or null if none was started.
+     */
+    public static LoginDeadline current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Removes the deadline of the current thread, e.g. at the last step of the login.
+     *
+     * @return the removed deadline, or null if none was started.
+     */
+    public static LoginDeadline remove() {
+        final LoginDeadline loginDeadline = CURRENT.get();
+        CURRENT.remove();
+
+        return loginDeadline;
+    }
+
+    /**
+     * Makes loginDeadline the deadline of the current thread again, e.g. after
+     * <code>remove()</code>.
+     *
+     * @param loginDeadline deadline to restore, null to remove the deadline of the current thread.
+     */
+    public static void restore(final LoginDeadline loginDeadline) {
+        if (loginDeadline == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(loginDeadline);
+        }
+    }
+
+    /**
+     * Runs task on executor and waits for its result at most the remaining time.
+     *
+     * @param task operation to run.
+     * @param operation description of the operation, for error messages.
+     * @return result of the task.
+     * @throws AuthenticationServiceException if the budget runs out, the executor rejects the task
+     *             or the task fails with a checked exception.
+     */
+    public <T> T call(final Callable<T> task, final String operation) {
+        return call(task, operation, this.executor);
+    }
+
+    /**
+     * Runs task on the given executor instead of the executor of the deadline, e.g. to keep slow
+     * operations of one kind from taking the threads of another, and waits for its result at most
+     * the remaining time.
+     *
+     * @param task operation to run.
+     * @param operation description of the operation, for error messages.
+     * @param taskExecutor executor to run the task on.
+     * @return result of the task.
+     * @throws AuthenticationServiceException if the budget runs out, the executor rejects the task
+     *             or the task fails with a checked exception.
+     */
+    public <T> T call(final Callable<T> task, final String operation,
+            final AsyncListenableTaskExecutor taskExecutor) {
+        Assert.notNull(taskExecutor, "taskExecutor must not be null");
+        check(operation);
+
+        final Future<T> future;
+        try {
+            future = taskExecutor.submit(wrap(task));
+        } catch (final TaskRejectedException e) {
+            throw new AuthenticationServiceException("Could not start " + operation, e);
+        }
+
+        try {
+            // nanoseconds: a wait rounded down to milliseconds could end before the deadline
+            return future.get(this.deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (final TimeoutException e) {
+            future.cancel(true);
+            throw expired(operation, e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+
+            throw new AuthenticationServiceException(operation + " failed", cause);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            throw new AuthenticationServiceException("Interrupted while waiting for " + operation,
+                e);
+        }
+    }
+
+    /**
+     * Returns a task running task with this deadline current on the executor thread, so the
+     * connections it opens get the remaining time as their timeouts. Used by <code>call()</code>,
+     * and for tasks of a login submitted to other executors.
+     *
+     * @param task operation to run.
+     * @return task to submit.
+     */
+    public <T> Callable<T> wrap(final Callable<T> task) {
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                final LoginDeadline previous = CURRENT.get();
+                CURRENT.set(LoginDeadline.this);
+                try {
+                    return task.call();
+                } finally {
+                    restore(previous);
+                }
+            }
+        };
+    }
+
+    /**
+     * Sets the JNDI connect and read timeouts in environment to the remaining time, keeping
+     * configured timeouts that are shorter.
+     *
+     * @param environment JNDI environment of a connection about to be opened.
+     */
+    public void applyTimeouts(final Hashtable<String, Object> environment) {
+        // at least 1 ms: 0 would disable the timeout
+        final long remaining = Math.max(getRemainingMillis(), 1);
+        applyTimeout(environment, CONNECT_TIMEOUT_PROPERTY, remaining);
+        applyTimeout(environment, READ_TIMEOUT_PROPERTY, remaining);
+    }
+
+    /**
+     * Fails if the budget has run out.
+     *
+     * @param operation description of the next operation, for error messages.
+     * @throws AuthenticationServiceException if the budget has run out.
+     */
+    public void check(final String operation) {
+        if (isExpired()) {
+            throw expired(operation, null);
+        }
+    }
+
+    /**
+     * Returns the remaining time.
+     *
+     * @return remaining time in milliseconds, 0 if the budget has run out.
+     */
+    public long getRemainingMillis() {
+        return Math.max(TimeUnit.NANOSECONDS.toMillis(this.deadline - System.nanoTime()), 0);
+    }
+
+    /**
+     * Returns true if the budget has run out.
+     *
+     * @return true if the deadline has passed.
+     */
+    public boolean isExpired() {
+        return this.deadline - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Getter for the budget property.
+     *
+     * @see budget
+     * @return the budget property.
+     */
+    public long getBudget() {
+        return this.budget;
+    }
+
+    /**
+     * Getter for the executor property.
+     *
+     * @see executor
+     * @return the executor property.
+     */
+    public AsyncListenableTaskExecutor getExecutor() {
+        return this.executor;
+    }
+
+    /**
+     * Sets a timeout property in environment to remaining, unless it is set to a shorter positive
+     * value.
+     *
+     * @param environment JNDI environment.
+     * @param property name of the timeout property.
+     * @param remaining remaining time in milliseconds.
+     */
+    private static void applyTimeout(final Hashtable<String, Object> environment,
+            final String property, final long remaining) {
+        final Object configured = environment.get(property);
+        if (configured != null) {
+            try {
+                final long timeout = Long.parseLong(configured.toString());
+                if (timeout > 0 && timeout <= remaining) {
+                    return;
+                }
+            } catch (final NumberFormatException e) {
+                // replaced by the remaining time
+            }
+        }
+
+        environment.put(property, String.valueOf(remaining));
+    }
+
+    /**
+     * Creates the exception thrown when the budget runs out.
+     *
+     * @param operation description of the abandoned operation.
+     * @param cause cause, may be null.
+     * @return exception to throw.
+     */
+    private AuthenticationServiceException expired(final String operation,
+            final Throwable cause) {
+        return new AuthenticationServiceException(
+            "Login deadline of " + this.budget + " ms exceeded during " + operation, cause);
+    }
+}
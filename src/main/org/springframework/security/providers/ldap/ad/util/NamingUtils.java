@@ -15,6 +15,12 @@ package org.springframework.security.providers.ldap.ad.util;
 
 import java.util.List;
 
+import javax.naming.Name;
+import javax.naming.directory.Attributes;
+import javax.naming.ldap.LdapName;
+
+import org.springframework.ldap.core.*;
+import org.springframework.ldap.support.LdapUtils;
 import org.springframework.security.util.StringUtils;
 import org.springframework.util.Assert;
 
@@ -26,6 +32,11 @@ import org.springframework.util.Assert;
  *
  */
 public final class NamingUtils {
+    /**
+     * Constant: hexadecimal digits used to escape filter values.
+     */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     /**
      * Utility class should not be instantiated.
      *
@@ -60,6 +71,120 @@ public final class NamingUtils {
         return result;
     }
 
+    /**
+     * Prepares the DN of a domain from its DNS name: "DC=dc1,DC=dc2". Inverse of
+     * prepareDomainControllers.
+     *
+     * @param dnsName DNS name of the domain. Example: "dc1.dc2".
+     * @return DN of the domain.
+     */
+    public static String prepareRootDn(final String dnsName) {
+        Assert.hasLength(dnsName, "dnsName must not be empty");
+        final StringBuilder result = new StringBuilder();
+        for (final String label : StringUtils.tokenizeString(dnsName, ".")) {
+            if (result.length() > 0) {
+                result.append(',');
+            }
+
+            result.append("DC=").append(label);
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Returns an independent copy of an LDAP entry: changes to the copy do not affect the original
+     * and vice versa.
+     *
+     * @param entry entry to copy.
+     * @return copy of the entry.
+     */
+    public static DirContextOperations copyEntry(final DirContextOperations entry) {
+        final LdapName fullDn = LdapUtils.newLdapName(entry.getNameInNamespace());
+        final Name dn = entry.getDn();
+        final Name base = fullDn.getPrefix(fullDn.size() - dn.size());
+
+        final Attributes attributes;
+        try {
+            // returns a copy of the attributes
+            attributes = entry.getAttributes("");
+        } catch (final javax.naming.NamingException e) {
+            throw LdapUtils.convertLdapException(e);
+        }
+
+        return new DirContextAdapter(attributes, dn, base);
+    }
+
+    /**
+     * Returns the account name part of a username given as <code>DOMAIN\account</code>,
+     * <code>account@upn.suffix</code> or <code>account</code>.
+     *
+     * @param username username as entered at login.
+     * @return account name without the domain.
+     */
+    public static String getAccountName(final String username) {
+        final int backslash = username.indexOf('\\');
+        if (backslash >= 0) {
+            return username.substring(backslash + 1);
+        }
+
+        final int at = username.lastIndexOf('@');
+        if (at >= 0) {
+            return username.substring(0, at);
+        }
+
+        return username;
+    }
+
+    /**
+     * Returns the domain part of a username: the NetBIOS domain name of
+     * <code>DOMAIN\account</code>, or the UPN suffix of <code>account@upn.suffix</code>.
+     *
+     * @param username username as entered at login.
+     * @return NetBIOS domain name or UPN suffix, null if the username has no domain part.
+     */
+    public static String getDomainName(final String username) {
+        final int backslash = username.indexOf('\\');
+        if (backslash >= 0) {
+            return username.substring(0, backslash);
+        }
+
+        final int at = username.lastIndexOf('@');
+        if (at >= 0) {
+            return username.substring(at + 1);
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns true if the username is a user principal name: <code>account@upn.suffix</code>.
+     *
+     * @param username username as entered at login.
+     * @return true for a user principal name.
+     */
+    public static boolean isUserPrincipalName(final String username) {
+        return username.indexOf('\\') < 0 && username.lastIndexOf('@') >= 0;
+    }
+
+    /**
+     * Escapes a binary value for use in an LDAP search filter (RFC 4515): every byte is written as
+     * <code>\xx</code>. Example: objectSid values.
+     *
+     * @param value binary value.
+     * @return escaped value.
+     */
+    public static String escapeFilterValue(final byte[] value) {
+        final StringBuilder result = new StringBuilder(value.length * 3);
+        for (final byte b : value) {
+            result.append('\\');
+            result.append(HEX_DIGITS[(b >> 4) & 0x0f]);
+            result.append(HEX_DIGITS[b & 0x0f]);
+        }
+
+        return result.toString();
+    }
+
     /**
      * Prepare principal DN in the form required by Active Directory: <code>username@dc1.dc2</code>.
      *
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.util;
+
+import java.nio.charset.Charset;
+import java.security.*;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.security.crypto.codec.Hex;
+
+/**
+ * Coalesces concurrent identical calls: while a call for a key is running, further calls for the
+ * same key wait for it and receive its result (or its exception) instead of running again. Results
+ * are not kept after the call completes.
+ *
+ * @param <K> type of the keys.
+ * @param <V> type of the results.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class SingleFlight<K, V> {
+    /**
+     * Constant: charset used to encode credential keys.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Running calls by key.
+     */
+    private final ConcurrentHashMap<K, FutureTask<V>> calls =
+            new ConcurrentHashMap<K, FutureTask<V>>();
+
+    /**
+     * Number of calls which received the result of another running call.
+     */
+    private final AtomicLong sharedCount = new AtomicLong();
+
+    /**
+     * Runs callable, or waits for the running call with the same key.
+     *
+     * @param key key identifying identical calls.
+     * @param callable computes the result.
+     * @return result of the call.
+     */
+    public V execute(final K key, final Callable<V> callable) {
+        final FutureTask<V> task = new FutureTask<V>(callable);
+        final FutureTask<V> runningTask = this.calls.putIfAbsent(key, task);
+        if (runningTask != null) {
+            this.sharedCount.incrementAndGet();
+            return getResult(runningTask);
+        }
+
+        try {
+            task.run();
+        } finally {
+            this.calls.remove(key, task);
+        }
+
+        return getResult(task);
+    }
+
+    /**
+     * Returns the number of running calls.
+     *
+     * @return number of running calls.
+     */
+    public int getInFlightCount() {
+        return this.calls.size();
+    }
+
+    /**
+     * Returns the number of calls which received the result of another running call.
+     *
+     * @return number of shared calls.
+     */
+    public long getSharedCount() {
+        return this.sharedCount.get();
+    }
+
+    /**
+     * Returns a key identifying name/password, e.g. a login. The password is digested with SHA-256
+     * and hex-encoded, so it is not kept in the key.
+     *
+     * @param name name, compared case-insensitively.
+     * @param password password, may be null.
+     * @return key for name/password.
+     */
+    public static String credentialKey(final String name, final String password) {
+        final byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256")
+                .digest(password == null ? new byte[0] : password.getBytes(UTF8));
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+
+        return name.toLowerCase(Locale.ENGLISH) + ':' + new String(Hex.encode(digest));
+    }
+
+    /**
+     * Waits for task and returns its result, rethrowing its exception.
+     *
+     * @param task completed or running task.
+     * @return result of the task.
+     */
+    private V getResult(final FutureTask<V> task) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (final InterruptedException e) {
+                    // the result is shared: keep waiting, restore the interrupt afterwards
+                    interrupted = true;
+                } catch (final ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+
+                    throw new IllegalStateException("Call failed", cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
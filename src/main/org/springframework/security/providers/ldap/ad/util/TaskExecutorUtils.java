@@ -0,0 +1,79 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.util;
+
+import java.util.concurrent.Callable;
+
+import org.springframework.core.task.*;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.util.concurrent.*;
+
+/**
+ * Utilities that create the executors used by the asynchronous authenticator and authorities
+ * populator methods.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public final class TaskExecutorUtils {
+    /**
+     * Utility class should not be instantiated.
+     *
+     * @throws InstantiationException always, since this constructor should never be called.
+     */
+    private TaskExecutorUtils() throws InstantiationException {
+    }
+
+    /**
+     * Creates an initialized executor with a fixed number of daemon threads and a bounded queue.
+     * Tasks submitted while the queue is full are rejected.
+     *
+     * @param threadNamePrefix prefix of the thread names.
+     * @param poolSize number of threads.
+     * @param queueCapacity maximum number of waiting tasks.
+     * @return initialized executor.
+     */
+    public static AsyncListenableTaskExecutor createBoundedExecutor(final String threadNamePrefix,
+            final int poolSize, final int queueCapacity) {
+        final ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix(threadNamePrefix);
+        executor.setDaemon(true);
+        executor.setCorePoolSize(poolSize);
+        executor.setMaxPoolSize(poolSize);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setAllowCoreThreadTimeOut(true);
+        executor.initialize();
+
+        return executor;
+    }
+
+    /**
+     * Submits task to executor. If the executor rejects the task, the returned future fails with
+     * the TaskRejectedException instead of it being thrown to the caller.
+     *
+     * @param executor executor to run the task.
+     * @param task task to run.
+     * @return future of the result of the task.
+     */
+    public static <T> ListenableFuture<T> submit(final AsyncListenableTaskExecutor executor,
+            final Callable<T> task) {
+        try {
+            return executor.submitListenable(task);
+        } catch (final TaskRejectedException e) {
+            final SettableListenableFuture<T> future = new SettableListenableFuture<T>();
+            future.setException(e);
+            return future;
+        }
+    }
+}
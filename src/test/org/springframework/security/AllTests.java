@@ -24,6 +24,7 @@ public class AllTests extends TestCase {
 
     public static Test suite() {
         TestSuite suite = new TestSuite();
+        suite.addTest(org.springframework.security.providers.AllTests.suite());
         suite.addTest(org.springframework.security.ui.AllTests.suite());
         suite.addTest(org.springframework.security.userdetails.AllTests.suite());
         suite.addTest(org.springframework.security.util.AllTests.suite());
@@ -0,0 +1,610 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+import javax.naming.*;
+import javax.naming.directory.*;
+import javax.naming.ldap.*;
+
+import junit.framework.TestCase;
+
+import org.springframework.ldap.core.*;
+import org.springframework.ldap.support.LdapUtils;
+
+/**
+ * Tests for ActiveDirectoryLdapTemplate against a fake directory supporting the paged results
+ * control.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class ActiveDirectoryLdapTemplateTest extends TestCase {
+
+    /**
+     * ContextSource of a fake directory holding group entries. Searches return all groups, in pages
+     * if the paged results control is set. Members of ranged groups are returned two at a time.
+     */
+    static class FakeContextSource implements ContextSource {
+        static final int RANGE_SIZE = 2;
+
+        final List<SearchResult> entries = new ArrayList<SearchResult>();
+
+        final Map<String, List<String>> rangedMembers = new HashMap<String, List<String>>();
+
+        int rangeReads;
+
+        int searches;
+
+        /**
+         * Number of the search whose results end with a referral, 0 for none.
+         */
+        int referralSearch;
+
+        Control[] requestControls;
+
+        void addGroup(final String cn, final String... members) {
+            final Attributes attributes = new BasicAttributes(true);
+            attributes.put("cn", cn);
+            if (members.length > 0) {
+                final Attribute member = new BasicAttribute("member");
+                for (final String value : members) {
+                    member.add(value);
+                }
+                attributes.put(member);
+            }
+
+            addEntry("cn=" + cn + ",ou=groups", attributes);
+        }
+
+        void addRangedGroup(final String cn, final String... members) {
+            final String dn = "cn=" + cn + ",ou=groups";
+            this.rangedMembers.put(dn, Arrays.asList(members));
+
+            final Attributes attributes = new BasicAttributes(true);
+            attributes.put("cn", cn);
+            attributes.put(getRange(dn, 0));
+            addEntry(dn, attributes);
+        }
+
+        void addEntry(final String dn, final Attributes attributes) {
+            final Object object = new DirContextAdapter(attributes, LdapUtils.newLdapName(dn));
+            this.entries.add(new SearchResult(dn, object, attributes));
+        }
+
+        /**
+         * Returns the members of a ranged group from start, as member;range=start-end.
+         */
+        Attribute getRange(final String dn, final int start) {
+            final List<String> members = this.rangedMembers.get(dn);
+            final int end = Math.min(start + RANGE_SIZE, members.size());
+            final String last = end == members.size() ? "*" : String.valueOf(end - 1);
+            final Attribute range = new BasicAttribute("member;range=" + start + "-" + last);
+            for (final String member : members.subList(start, end)) {
+                range.add(member);
+            }
+
+            return range;
+        }
+
+        @Override
+        public DirContext getContext(final String principal, final String credentials) {
+            return getReadOnlyContext();
+        }
+
+        @Override
+        public DirContext getReadOnlyContext() {
+            return (DirContext) Proxy.newProxyInstance(LdapContext.class.getClassLoader(),
+                new Class<?>[] { LdapContext.class }, new InvocationHandler() {
+                    private int offset;
+
+                    private int nextOffset;
+
+                    /**
+                     * Number of entries returned by the searches over this context.
+                     */
+                    private int returned;
+
+                    @Override
+                    public Object invoke(final Object proxy, final Method method,
+                            final Object[] args) throws Throwable {
+                        if ("setRequestControls".equals(method.getName())) {
+                            FakeContextSource.this.requestControls = (Control[]) args[0];
+                        } else if ("search".equals(method.getName())) {
+                            return search(args[0].toString(), args[args.length - 1]);
+                        } else if ("getResponseControls".equals(method.getName())) {
+                            return getResponseControls();
+                        } else if ("getAttributes".equals(method.getName())) {
+                            return getAttributes((String) args[0], (String[]) args[1]);
+                        }
+
+                        return null;
+                    }
+
+                    private NamingEnumeration<SearchResult> search(final String base,
+                            final Object controls) throws Exception {
+                        FakeContextSource.this.searches++;
+                        final List<SearchResult> all = FakeContextSource.this.entries;
+                        int pageSize = all.size();
+                        final Control[] paging = FakeContextSource.this.requestControls;
+                        if (paging != null && paging.length > 0) {
+                            pageSize = pageSizeOf(paging[0]);
+                        }
+
+                        this.nextOffset = Math.min(this.offset + pageSize, all.size());
+                        // the count limit applies to all pages of the search
+                        final long countLimit = ((SearchControls) controls).getCountLimit();
+                        final boolean limited =
+                                countLimit > 0 && this.returned + pageSize > countLimit
+                                        && all.size() > countLimit;
+                        if (limited) {
+                            this.nextOffset = (int) countLimit;
+                        }
+
+                        final List<SearchResult> page = new ArrayList<SearchResult>(
+                            all.subList(this.offset, this.nextOffset));
+                        this.returned += page.size();
+                        this.offset = this.nextOffset;
+
+                        if (!((SearchControls) controls).getReturningObjFlag()) {
+                            // no object: the name is relative to the search base
+                            for (int i = 0; i < page.size(); i++) {
+                                final SearchResult result = page.get(i);
+                                final LdapName name = LdapUtils.removeFirst(
+                                    LdapUtils.newLdapName(result.getName()),
+                                    LdapUtils.newLdapName(base));
+                                page.set(i, new SearchResult(name.toString(), null,
+                                    result.getAttributes()));
+                            }
+                        }
+
+                        if (limited) {
+                            return new SizeLimitEnumeration<SearchResult>(page.iterator());
+                        }
+
+                        final FakeContextSource source = FakeContextSource.this;
+                        if (source.searches == source.referralSearch) {
+                            return new ReferralEnumeration<SearchResult>(page.iterator());
+                        }
+
+                        return new IteratorEnumeration<SearchResult>(page.iterator());
+                    }
+
+                    private Attributes getAttributes(final String dn, final String[] ids) {
+                        FakeContextSource.this.rangeReads++;
+                        // member;range=start-*
+                        final String id = ids[0];
+                        final int start = Integer.parseInt(
+                            id.substring(id.indexOf('=') + 1, id.lastIndexOf('-')));
+
+                        final Attributes attributes = new BasicAttributes(true);
+                        attributes.put(getRange(dn, start));
+
+                        return attributes;
+                    }
+
+                    private Control[] getResponseControls() throws Exception {
+                        final boolean more =
+                                this.offset < FakeContextSource.this.entries.size();
+                        final byte[] cookie =
+                                more ? new byte[] { (byte) this.offset } : new byte[0];
+
+                        return new Control[] { new PagedResultsResponseControl(
+                            PagedResultsControl.OID, false, encode(cookie)) };
+                    }
+                });
+        }
+
+        @Override
+        public DirContext getReadWriteContext() {
+            return getReadOnlyContext();
+        }
+
+        /**
+         * Decodes the page size of a paged results control: SEQUENCE { INTEGER, OCTET STRING }.
+         */
+        static int pageSizeOf(final Control control) {
+            final byte[] value = control.getEncodedValue();
+            // 0x30 len 0x02 intLen int...
+            final int intLength = value[3];
+            int size = 0;
+            for (int i = 0; i < intLength; i++) {
+                size = (size << 8) | (value[4 + i] & 0xff);
+            }
+
+            return size;
+        }
+
+        /**
+         * Encodes a paged results response value: SEQUENCE { INTEGER 0, OCTET STRING cookie }.
+         */
+        static byte[] encode(final byte[] cookie) {
+            final byte[] value = new byte[7 + cookie.length];
+            value[0] = 0x30;
+            value[1] = (byte) (5 + cookie.length);
+            value[2] = 0x02;
+            value[3] = 0x01;
+            value[4] = 0x00;
+            value[5] = 0x04;
+            value[6] = (byte) cookie.length;
+            System.arraycopy(cookie, 0, value, 7, cookie.length);
+
+            return value;
+        }
+    }
+
+    /**
+     * NamingEnumeration over an iterator.
+     */
+    static class IteratorEnumeration<T> implements NamingEnumeration<T> {
+        private final Iterator<T> iterator;
+
+        IteratorEnumeration(final Iterator<T> iterator) {
+            this.iterator = iterator;
+        }
+
+        @Override
+        public void close() {
+            // Do nothing
+        }
+
+        @Override
+        public boolean hasMore() throws NamingException {
+            return this.iterator.hasNext();
+        }
+
+        @Override
+        public T next() {
+            return this.iterator.next();
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            return this.iterator.hasNext();
+        }
+
+        @Override
+        public T nextElement() {
+            return next();
+        }
+    }
+
+    /**
+     * NamingEnumeration over an iterator, ending with a referral that is not followed.
+     */
+    static class ReferralEnumeration<T> extends IteratorEnumeration<T> {
+        ReferralEnumeration(final Iterator<T> iterator) {
+            super(iterator);
+        }
+
+        @Override
+        public boolean hasMore() throws NamingException {
+            if (!super.hasMore()) {
+                throw new PartialResultException("Unprocessed Continuation Reference(s)");
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * NamingEnumeration over an iterator, ending with more entries than the count limit.
+     */
+    static class SizeLimitEnumeration<T> extends IteratorEnumeration<T> {
+        SizeLimitEnumeration(final Iterator<T> iterator) {
+            super(iterator);
+        }
+
+        @Override
+        public boolean hasMore() throws NamingException {
+            if (!super.hasMore()) {
+                throw new SizeLimitExceededException("Sizelimit Exceeded");
+            }
+
+            return true;
+        }
+    }
+
+    private FakeContextSource contextSource;
+
+    private ActiveDirectoryLdapTemplate template;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.contextSource = new FakeContextSource();
+        for (int i = 0; i < 5; i++) {
+            this.contextSource.addGroup("group" + i);
+        }
+
+        this.template = new ActiveDirectoryLdapTemplate(this.contextSource);
+        this.template.setPageSize(2);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.ActiveDirectoryLdapTemplate#searchForSingleAttributeValues(java.lang.String, java.lang.String, java.lang.Object[], java.lang.String)}
+     * .
+     */
+    public final void testSearchForSingleAttributeValuesPaged() {
+        final Set<String> values =
+                this.template.searchForSingleAttributeValues("", "(member=cn=bob)", null, "cn");
+
+        assertEquals(5, values.size());
+        assertTrue(values.contains("group4"));
+        assertEquals(3, this.contextSource.searches);
+        // the control is removed from the context after the search
+        assertNull(this.contextSource.requestControls);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.ActiveDirectoryLdapTemplate#searchForSingleAttributeValues(java.lang.String, java.lang.String, java.lang.Object[], java.lang.String)}
+     * .
+     */
+    public final void testSearchForSingleAttributeValuesPagedWithReferral() {
+        this.template.setIgnorePartialResultException(true);
+        // the first of three pages ends with a referral
+        this.contextSource.referralSearch = 1;
+
+        final Set<String> values =
+                this.template.searchForSingleAttributeValues("", "(member=cn=bob)", null, "cn");
+
+        // the pages after the referral are read
+        assertEquals(5, values.size());
+        assertTrue(values.contains("group4"));
+        assertEquals(3, this.contextSource.searches);
+        assertNull(this.contextSource.requestControls);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.ActiveDirectoryLdapTemplate#searchForSingleAttributeValues(java.lang.String, java.lang.String, java.lang.Object[], java.lang.String)}
+     * .
+     */
+    public final void testSearchForSingleAttributeValuesPagedWithReferralNotIgnored() {
+        this.contextSource.referralSearch = 1;
+
+        try {
+            this.template.searchForSingleAttributeValues("", "(member=cn=bob)", null, "cn");
+            fail("PartialResultException expected");
+        } catch (final org.springframework.ldap.PartialResultException e) {
+            assertEquals(1, this.contextSource.searches);
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.ActiveDirectoryLdapTemplate#searchForSingleAttributeValues(java.lang.String, java.lang.String, java.lang.Object[], java.lang.String)}
+     * .
+     */
+    public final void testSearchForSingleAttributeValuesPagedWithCountLimit() {
+        final SearchControls controls = new SearchControls();
+        controls.setReturningObjFlag(true);
+        controls.setCountLimit(3);
+        this.template.setSearchControls(controls);
+
+        final Set<String> values =
+                this.template.searchForSingleAttributeValues("", "(member=cn=bob)", null, "cn");
+
+        // the entries up to the count limit are returned
+        assertEquals(new HashSet<String>(Arrays.asList("group0", "group1", "group2")), values);
+        // the third page is not requested
+        assertEquals(2, this.contextSource.searches);
+        assertNull(this.contextSource.requestControls);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.ActiveDirectoryLdapTemplate#searchForSingleAttributeValues(java.lang.String, java.lang.String, java.lang.Object[], java.lang.String)}
+     * .
+     */
+    public final void testSearchForSingleAttributeValuesNotPagedWithCountLimit() {
+        this.template.setPageSize(0);
+        final SearchControls controls = new SearchControls();
+        controls.setReturningObjFlag(true);
+        controls.setCountLimit(3);
+        this.template.setSearchControls(controls);
+
+        final Set<String> values =
+                this.template.searchForSingleAttributeValues("", "(member=cn=bob)", null, "cn");
+
+        assertEquals(3, values.size());
+        assertEquals(1, this.contextSource.searches);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.ActiveDirectoryLdapTemplate#searchForSingleAttributeValues(java.lang.String, java.lang.String, java.lang.Object[], java.lang.String)}
+     * .
+     */
+    public final void testSearchForSingleAttributeValuesCountLimitNotIgnored() {
+        this.template.setIgnoreSizeLimitExceededException(false);
+        final SearchControls controls = new SearchControls();
+        controls.setReturningObjFlag(true);
+        controls.setCountLimit(3);
+        this.template.setSearchControls(controls);
+
+        try {
+            this.template.searchForSingleAttributeValues("", "(member=cn=bob)", null, "cn");
+            fail("SizeLimitExceededException expected");
+        } catch (final org.springframework.ldap.SizeLimitExceededException e) {
+            assertEquals(2, this.contextSource.searches);
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.ActiveDirectoryLdapTemplate#searchForSingleAttributeValues(java.lang.String, java.lang.String, java.lang.Object[], java.lang.String)}
+     * .
+     */
+    public final void testSearchForSingleAttributeValuesNotPaged() {
+        this.template.setPageSize(0);
+
+        final Set<String> values =
+                this.template.searchForSingleAttributeValues("", "(member=cn=bob)", null, "cn");
+
+        assertEquals(5, values.size());
+        assertEquals(1, this.contextSource.searches);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.ActiveDirectoryLdapTemplate#searchForSingleAttributeValues(java.lang.String, java.lang.String, java.lang.Object[], java.lang.String)}
+     * .
+     */
+    public final void testSearchForSingleAttributeValuesRanged() {
+        this.contextSource.entries.clear();
+        this.contextSource.addGroup("small", "cn=alice");
+        this.contextSource.addRangedGroup("large", "cn=u0", "cn=u1", "cn=u2", "cn=u3", "cn=u4");
+
+        final Set<String> values = this.template.searchForSingleAttributeValues("",
+            "(objectClass=group)", null, "member");
+
+        assertEquals(6, values.size());
+        assertTrue(values.contains("cn=alice"));
+        assertTrue(values.contains("cn=u4"));
+        // ranges 2-3 and 4-*
+        assertEquals(2, this.contextSource.rangeReads);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.ActiveDirectoryLdapTemplate#searchForSingleAttributeValues(java.lang.String, java.lang.String, java.lang.Object[], java.lang.String)}
+     * .
+     */
+    public final void testSearchForSingleAttributeValuesRangedWithoutObjects() {
+        this.contextSource.entries.clear();
+        this.contextSource.addRangedGroup("large", "cn=u0", "cn=u1", "cn=u2", "cn=u3", "cn=u4");
+        final SearchControls controls = new SearchControls();
+        controls.setReturningObjFlag(false);
+        this.template.setSearchControls(controls);
+
+        final Set<String> values = this.template.searchForSingleAttributeValues("ou=groups",
+            "(objectClass=group)", null, "member");
+
+        // the ranges are read from the full DN of the group
+        assertEquals(5, values.size());
+        assertEquals(2, this.contextSource.rangeReads);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.ActiveDirectoryLdapTemplate#readAttributeValues(java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testReadAttributeValues() {
+        this.contextSource.addRangedGroup("large", "cn=u0", "cn=u1", "cn=u2");
+
+        final Set<String> values =
+                this.template.readAttributeValues("cn=large,ou=groups", "member");
+
+        assertEquals(Arrays.asList("cn=u0", "cn=u1", "cn=u2"), new ArrayList<String>(values));
+        // ranges 0-1 and 2-*
+        assertEquals(2, this.contextSource.rangeReads);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.ActiveDirectoryLdapTemplate#searchVisiting(java.lang.String, java.lang.String, java.lang.Object[], javax.naming.directory.SearchControls, org.springframework.security.providers.ldap.ad.SearchResultVisitor)}
+     * .
+     */
+    public final void testSearchWithVisitor() {
+        final List<String> names = new ArrayList<String>();
+
+        this.template.searchVisiting("", "(objectClass=group)", null, new SearchControls(),
+            new SearchResultVisitor() {
+                @Override
+                public boolean visit(final DirContextOperations entry) {
+                    names.add(entry.getStringAttribute("cn"));
+                    return true;
+                }
+            });
+
+        assertEquals(Arrays.asList("group0", "group1", "group2", "group3", "group4"), names);
+        assertEquals(3, this.contextSource.searches);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.ActiveDirectoryLdapTemplate#searchVisiting(java.lang.String, java.lang.String, java.lang.Object[], javax.naming.directory.SearchControls, org.springframework.security.providers.ldap.ad.SearchResultVisitor)}
+     * .
+     */
+    public final void testSearchWithVisitorWithoutObjects() {
+        final SearchControls controls = new SearchControls();
+        controls.setReturningObjFlag(false);
+        final List<Name> dns = new ArrayList<Name>();
+
+        this.template.searchVisiting("ou=groups", "(objectClass=group)", null, controls,
+            new SearchResultVisitor() {
+                @Override
+                public boolean visit(final DirContextOperations entry) {
+                    dns.add(entry.getDn());
+                    return true;
+                }
+            });
+
+        assertEquals(5, dns.size());
+        assertEquals(LdapUtils.newLdapName("cn=group0,ou=groups"), dns.get(0));
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.ActiveDirectoryLdapTemplate#searchVisiting(java.lang.String, java.lang.String, java.lang.Object[], javax.naming.directory.SearchControls, org.springframework.security.providers.ldap.ad.SearchResultVisitor)}
+     * .
+     */
+    public final void testSearchWithVisitorEndsEarly() {
+        final List<String> names = new ArrayList<String>();
+
+        this.template.searchVisiting("", "(objectClass=group)", null, new SearchControls(),
+            new SearchResultVisitor() {
+                @Override
+                public boolean visit(final DirContextOperations entry) {
+                    names.add(entry.getStringAttribute("cn"));
+                    return !"group2".equals(entry.getStringAttribute("cn"));
+                }
+            });
+
+        assertEquals(Arrays.asList("group0", "group1", "group2"), names);
+        // the third page is not requested
+        assertEquals(2, this.contextSource.searches);
+        assertNull(this.contextSource.requestControls);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.ActiveDirectoryLdapTemplate#searchVisiting(java.lang.String, java.lang.String, java.lang.Object[], javax.naming.directory.SearchControls, org.springframework.security.providers.ldap.ad.SearchResultVisitor)}
+     * .
+     */
+    public final void testSearchWithVisitorNotPaged() {
+        this.template.setPageSize(0);
+        final int[] visited = new int[1];
+
+        this.template.searchVisiting("", "(objectClass=group)", null, new SearchControls(),
+            new SearchResultVisitor() {
+                @Override
+                public boolean visit(final DirContextOperations entry) {
+                    visited[0]++;
+                    return true;
+                }
+            });
+
+        assertEquals(5, visited[0]);
+        assertEquals(1, this.contextSource.searches);
+        assertNull(this.contextSource.requestControls);
+    }
+}
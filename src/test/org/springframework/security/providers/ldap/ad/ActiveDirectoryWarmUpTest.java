@@ -0,0 +1,170 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad;
+
+import java.util.Arrays;
+
+import javax.naming.directory.DirContext;
+
+import junit.framework.TestCase;
+
+import org.springframework.ldap.CommunicationException;
+import org.springframework.security.providers.ldap.ad.ActiveDirectoryLdapTemplateTest.FakeContextSource;
+import org.springframework.security.providers.ldap.ad.pool.PooledRebindContextSource;
+
+/**
+ * Tests for ActiveDirectoryWarmUp.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class ActiveDirectoryWarmUpTest extends TestCase {
+
+    /**
+     * Fake directory which cannot be reached while down is true.
+     */
+    static class UnreachableContextSource extends FakeContextSource {
+        boolean down;
+
+        @Override
+        public DirContext getReadOnlyContext() {
+            if (this.down) {
+                throw new CommunicationException(
+                    new javax.naming.CommunicationException("connection refused"));
+            }
+
+            return super.getReadOnlyContext();
+        }
+    }
+
+    private UnreachableContextSource serviceContextSource;
+
+    private ActiveDirectoryWarmUp warmUp;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.serviceContextSource = new UnreachableContextSource();
+        for (int i = 0; i < 3; i++) {
+            this.serviceContextSource.addGroup("group" + i);
+        }
+
+        this.warmUp = new ActiveDirectoryWarmUp();
+        this.warmUp.setServiceContextSource(this.serviceContextSource);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.ActiveDirectoryWarmUp#start()} .
+     */
+    public final void testStart() {
+        this.warmUp.setSyntheticIterations(3);
+        assertFalse(this.warmUp.isReady());
+
+        this.warmUp.start();
+
+        assertTrue(this.warmUp.isReady());
+        assertTrue(this.warmUp.isRunning());
+        assertEquals(3, this.serviceContextSource.searches);
+        // a single page per search
+        assertNull(this.serviceContextSource.requestControls);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.ActiveDirectoryWarmUp#start()} .
+     */
+    public final void testStartAsynchronous() throws Exception {
+        this.warmUp.setAsynchronous(true);
+
+        this.warmUp.start();
+
+        for (int i = 0; i < 500 && !this.warmUp.isReady(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(this.warmUp.isReady());
+        assertEquals(1, this.serviceContextSource.searches);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.ActiveDirectoryWarmUp#warmUp()} .
+     */
+    public final void testWarmUpOpensPoolConnections() throws Exception {
+        final UnreachableContextSource target = new UnreachableContextSource() {
+            @Override
+            public DirContext getContext(final String principal, final String credentials) {
+                if (this.down) {
+                    throw new CommunicationException(
+                        new javax.naming.CommunicationException("connection refused"));
+                }
+
+                return super.getContext(principal, credentials);
+            }
+        };
+        final PooledRebindContextSource pool = new PooledRebindContextSource(target);
+        pool.setEvictionInterval(0);
+        pool.setServicePrincipal("service@corp.com");
+        pool.setServiceCredentials("secret");
+        pool.setMinIdle(2);
+        try {
+            // the directory cannot be reached when the pool is created
+            target.down = true;
+            pool.afterPropertiesSet();
+            assertEquals(0, pool.getNumIdle());
+
+            target.down = false;
+            this.warmUp.setPools(Arrays.asList(pool));
+            this.warmUp.setServiceContextSource(null);
+            this.warmUp.warmUp();
+
+            assertEquals(2, pool.getNumIdle());
+        } finally {
+            pool.destroy();
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.ActiveDirectoryWarmUp#start()} .
+     */
+    public final void testStartMoreGroupsThanCountLimit() {
+        for (int i = 3; i < 15; i++) {
+            this.serviceContextSource.addGroup("group" + i);
+        }
+        this.warmUp.setSyntheticIterations(3);
+
+        this.warmUp.start();
+
+        // the truncated result does not fail the synthetic searches
+        assertTrue(this.warmUp.isReady());
+        assertEquals(3, this.serviceContextSource.searches);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.ActiveDirectoryWarmUp#warmUp()} .
+     */
+    public final void testWarmUpFailure() {
+        this.serviceContextSource.down = true;
+        this.warmUp.setSyntheticIterations(3);
+
+        this.warmUp.warmUp();
+
+        // failures do not prevent readiness
+        assertTrue(this.warmUp.isReady());
+        assertEquals(0, this.serviceContextSource.searches);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.authenticator;
+
+import java.util.*;
+
+import junit.framework.TestCase;
+
+import org.springframework.ldap.core.*;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.security.authentication.*;
+import org.springframework.security.core.*;
+import org.springframework.security.ldap.authentication.LdapAuthenticator;
+import org.springframework.security.ldap.userdetails.LdapAuthoritiesPopulator;
+import org.springframework.security.providers.ldap.ad.util.*;
+
+/**
+ * Tests for ActiveDirectoryAuthenticationProvider.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class ActiveDirectoryAuthenticationProviderTest extends TestCase {
+
+    private ThreadPoolTaskExecutor loginExecutor;
+
+    /**
+     * Authenticator starting a login deadline, like ActiveDirectoryBindAuthenticator; rejects
+     * passwords other than "secret".
+     */
+    private LdapAuthenticator authenticator;
+
+    /**
+     * Populator which does not use the login deadline.
+     */
+    private LdapAuthoritiesPopulator populator;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.loginExecutor =
+                (ThreadPoolTaskExecutor) TaskExecutorUtils.createBoundedExecutor("login-", 1, 1);
+
+        this.authenticator = new LdapAuthenticator() {
+            @Override
+            public DirContextOperations authenticate(final Authentication authentication) {
+                LoginDeadline.start(5000,
+                    ActiveDirectoryAuthenticationProviderTest.this.loginExecutor);
+                if (!"secret".equals(authentication.getCredentials())) {
+                    throw new BadCredentialsException("Bad credentials");
+                }
+
+                return new DirContextAdapter("cn=bob,ou=people,dc=corp,dc=com");
+            }
+        };
+
+        this.populator = new LdapAuthoritiesPopulator() {
+            @Override
+            public Collection<? extends GrantedAuthority> getGrantedAuthorities(
+                    final DirContextOperations userData, final String username) {
+                return Collections.emptyList();
+            }
+        };
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        LoginDeadline.remove();
+        this.loginExecutor.shutdown();
+
+        super.tearDown();
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.authenticator.ActiveDirectoryAuthenticationProvider#authenticate(org.springframework.security.core.Authentication)}
+     * .
+     */
+    public final void testAuthenticateRemovesDeadline() {
+        final ActiveDirectoryAuthenticationProvider provider =
+                new ActiveDirectoryAuthenticationProvider(this.authenticator, this.populator);
+
+        final Authentication authentication =
+                provider.authenticate(new UsernamePasswordAuthenticationToken("bob", "secret"));
+
+        assertTrue(authentication.isAuthenticated());
+        // the populator did not take the deadline: it does not stay on the thread
+        assertNull(LoginDeadline.current());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.authenticator.ActiveDirectoryAuthenticationProvider#authenticate(org.springframework.security.core.Authentication)}
+     * .
+     */
+    public final void testAuthenticateWithoutAuthoritiesRemovesDeadline() {
+        final ActiveDirectoryAuthenticationProvider provider =
+                new ActiveDirectoryAuthenticationProvider(this.authenticator);
+
+        provider.authenticate(new UsernamePasswordAuthenticationToken("bob", "secret"));
+
+        assertNull(LoginDeadline.current());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.authenticator.ActiveDirectoryAuthenticationProvider#authenticate(org.springframework.security.core.Authentication)}
+     * .
+     */
+    public final void testAuthenticateFailedRemovesDeadline() {
+        final ActiveDirectoryAuthenticationProvider provider =
+                new ActiveDirectoryAuthenticationProvider(this.authenticator, this.populator);
+
+        try {
+            provider.authenticate(new UsernamePasswordAuthenticationToken("bob", "wrong"));
+            fail("BadCredentialsException expected");
+        } catch (final BadCredentialsException e) {
+            assertNull(LoginDeadline.current());
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.authenticator;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.directory.*;
+
+import junit.framework.TestCase;
+
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.ldap.core.*;
+import org.springframework.ldap.support.LdapUtils;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.security.authentication.*;
+import org.springframework.security.ldap.DefaultSpringSecurityContextSource;
+import org.springframework.security.providers.ldap.ad.util.TaskExecutorUtils;
+import org.springframework.util.concurrent.ListenableFuture;
+
+/**
+ * Tests for authenticateAsync of ActiveDirectoryBindAuthenticator, against a fake directory.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class ActiveDirectoryBindAuthenticatorAsyncTest extends TestCase {
+
+    /**
+     * NamingEnumeration over a list.
+     */
+    static class ListEnumeration<T> implements NamingEnumeration<T> {
+        private final Iterator<T> iterator;
+
+        ListEnumeration(final List<T> list) {
+            this.iterator = list.iterator();
+        }
+
+        @Override
+        public void close() {
+            // Do nothing
+        }
+
+        @Override
+        public boolean hasMore() {
+            return this.iterator.hasNext();
+        }
+
+        @Override
+        public T next() {
+            return this.iterator.next();
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            return hasMore();
+        }
+
+        @Override
+        public T nextElement() {
+            return next();
+        }
+    }
+
+    private ActiveDirectoryBindAuthenticator authenticator;
+
+    private ThreadPoolTaskExecutor executor;
+
+    /**
+     * Thread of the last bind.
+     */
+    private Thread bindThread;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.authenticator = new ActiveDirectoryBindAuthenticator(
+            new DefaultSpringSecurityContextSource("ldap://localhost:389/dc=corp,dc=com"));
+        this.authenticator.setBindContextSource(new ContextSource() {
+            @Override
+            public DirContext getContext(final String principal, final String credentials) {
+                if ("bad".equals(credentials)) {
+                    throw new org.springframework.ldap.AuthenticationException(
+                        new javax.naming.AuthenticationException("bad credentials"));
+                }
+
+                ActiveDirectoryBindAuthenticatorAsyncTest.this.bindThread = Thread.currentThread();
+                return createContext();
+            }
+
+            @Override
+            public DirContext getReadOnlyContext() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public DirContext getReadWriteContext() {
+                throw new UnsupportedOperationException();
+            }
+        });
+
+        this.executor =
+                (ThreadPoolTaskExecutor) TaskExecutorUtils.createBoundedExecutor("async-", 1, 1);
+        this.authenticator.setAsyncExecutor(this.executor);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.executor.shutdown();
+
+        super.tearDown();
+    }
+
+    /**
+     * Returns a context whose searches find the user bob.
+     */
+    private DirContext createContext() {
+        return (DirContext) Proxy.newProxyInstance(DirContext.class.getClassLoader(),
+            new Class<?>[] { DirContext.class }, new InvocationHandler() {
+                @Override
+                public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                    if ("getNameInNamespace".equals(method.getName())) {
+                        return "dc=corp,dc=com";
+                    }
+
+                    if ("search".equals(method.getName())) {
+                        final Attributes attributes = new BasicAttributes(true);
+                        attributes.put("sAMAccountName", "bob");
+                        return new ListEnumeration<SearchResult>(Collections.singletonList(
+                            new SearchResult("cn=bob,ou=people", new DirContextAdapter(attributes,
+                                LdapUtils.newLdapName("cn=bob,ou=people")), attributes)));
+                    }
+
+                    return null;
+                }
+            });
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.authenticator.ActiveDirectoryBindAuthenticator#authenticateAsync(org.springframework.security.core.Authentication)}
+     * .
+     */
+    public final void testAuthenticateAsync() throws Exception {
+        final ListenableFuture<DirContextOperations> future = this.authenticator
+            .authenticateAsync(new UsernamePasswordAuthenticationToken("bob", "secret"));
+
+        final DirContextOperations user = future.get(5, TimeUnit.SECONDS);
+        assertEquals("bob", user.getStringAttribute("sAMAccountName"));
+        assertEquals(LdapUtils.newLdapName("cn=bob,ou=people"), user.getDn());
+        // the bind ran on the executor
+        assertTrue(this.bindThread.getName().startsWith("async-"));
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.authenticator.ActiveDirectoryBindAuthenticator#authenticateAsync(org.springframework.security.core.Authentication)}
+     * .
+     */
+    public final void testAuthenticateAsyncBadCredentials() throws Exception {
+        final ListenableFuture<DirContextOperations> future = this.authenticator
+            .authenticateAsync(new UsernamePasswordAuthenticationToken("bob", "bad"));
+
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("ExecutionException expected");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof BadCredentialsException);
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.authenticator.ActiveDirectoryBindAuthenticator#authenticateAsync(org.springframework.security.core.Authentication)}
+     * .
+     */
+    public final void testAuthenticateAsyncRejected() throws Exception {
+        this.executor.shutdown();
+
+        // the rejection is reported through the future, not thrown to the caller
+        final ListenableFuture<DirContextOperations> future = this.authenticator
+            .authenticateAsync(new UsernamePasswordAuthenticationToken("bob", "secret"));
+
+        assertTrue(future.isDone());
+        try {
+            future.get();
+            fail("ExecutionException expected");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof TaskRejectedException);
+            assertNull(this.bindThread);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.authenticator;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+import javax.naming.directory.*;
+
+import junit.framework.TestCase;
+
+import org.springframework.ldap.core.*;
+import org.springframework.ldap.support.LdapUtils;
+import org.springframework.security.authentication.*;
+import org.springframework.security.ldap.DefaultSpringSecurityContextSource;
+import org.springframework.security.providers.ldap.ad.authenticator.ActiveDirectoryBindAuthenticatorAsyncTest.ListEnumeration;
+import org.springframework.security.providers.ldap.ad.dc.FakeForestDomainRouter;
+
+/**
+ * Tests for ActiveDirectoryBindAuthenticator routed by a ForestDomainRouter, against a fake forest
+ * corp.com with the child domain child.corp.com.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class ActiveDirectoryBindAuthenticatorForestTest extends TestCase {
+
+    /**
+     * ContextSource of one domain of the fake forest, whose searches find the user bob.
+     */
+    static class DomainContextSource implements ContextSource {
+        /**
+         * DN of the naming context of the domain.
+         */
+        private final String namingContext;
+
+        /**
+         * Principal of the last bind.
+         */
+        String principal;
+
+        /**
+         * Filter of the last user search.
+         */
+        String filter;
+
+        DomainContextSource(final String namingContext) {
+            this.namingContext = namingContext;
+        }
+
+        @Override
+        public DirContext getContext(final String principal, final String credentials) {
+            this.principal = principal;
+            return createContext();
+        }
+
+        @Override
+        public DirContext getReadOnlyContext() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public DirContext getReadWriteContext() {
+            throw new UnsupportedOperationException();
+        }
+
+        private DirContext createContext() {
+            return (DirContext) Proxy.newProxyInstance(DirContext.class.getClassLoader(),
+                new Class<?>[] { DirContext.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method,
+                            final Object[] args) {
+                        if ("getNameInNamespace".equals(method.getName())) {
+                            return DomainContextSource.this.namingContext;
+                        }
+
+                        if ("search".equals(method.getName())) {
+                            DomainContextSource.this.filter = (String) args[1];
+                            final Attributes attributes = new BasicAttributes(true);
+                            attributes.put("sAMAccountName", "bob");
+                            // the object factory sets the base DN of the context
+                            final DirContextAdapter user = new DirContextAdapter(attributes,
+                                LdapUtils.newLdapName("CN=bob,CN=Users"),
+                                LdapUtils.newLdapName(DomainContextSource.this.namingContext));
+                            return new ListEnumeration<SearchResult>(Collections.singletonList(
+                                new SearchResult("CN=bob,CN=Users", user, attributes)));
+                        }
+
+                        return null;
+                    }
+                });
+        }
+    }
+
+    private final DomainContextSource corp = new DomainContextSource("DC=corp,DC=com");
+
+    private final DomainContextSource child = new DomainContextSource("DC=child,DC=corp,DC=com");
+
+    private ActiveDirectoryBindAuthenticator authenticator;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        final Map<String, ContextSource> domainContextSources =
+                new HashMap<String, ContextSource>();
+        domainContextSources.put("CORP", this.corp);
+        domainContextSources.put("CHILD", this.child);
+
+        this.authenticator = new ActiveDirectoryBindAuthenticator(
+            new DefaultSpringSecurityContextSource("ldap://localhost:389/DC=corp,DC=com"));
+        this.authenticator.setDomainRouter(new FakeForestDomainRouter(domainContextSources));
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.authenticator.ActiveDirectoryBindAuthenticator#authenticate(org.springframework.security.core.Authentication)}
+     * .
+     */
+    public final void testAuthenticateByNetbiosDomain() {
+        final DirContextOperations user = this.authenticator
+            .authenticate(new UsernamePasswordAuthenticationToken("CHILD\\bob", "secret"));
+
+        // bound and searched in the child domain, with the account name only
+        assertEquals("bob@child.corp.com", this.child.principal);
+        assertEquals("(&(objectClass=user)(samAccountName=bob))", this.child.filter);
+        assertEquals("CN=bob,CN=Users,DC=child,DC=corp,DC=com", user.getNameInNamespace());
+        assertNull(this.corp.principal);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.authenticator.ActiveDirectoryBindAuthenticator#authenticate(org.springframework.security.core.Authentication)}
+     * .
+     */
+    public final void testAuthenticateByUserPrincipalName() {
+        final DirContextOperations user = this.authenticator
+            .authenticate(new UsernamePasswordAuthenticationToken("bob@corp.com", "secret"));
+
+        assertEquals("bob@corp.com", this.corp.principal);
+        assertEquals("CN=bob,CN=Users,DC=corp,DC=com", user.getNameInNamespace());
+        assertNull(this.child.principal);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.authenticator.ActiveDirectoryBindAuthenticator#authenticate(org.springframework.security.core.Authentication)}
+     * .
+     */
+    public final void testAuthenticateNotRouted() {
+        try {
+            this.authenticator
+                .authenticate(new UsernamePasswordAuthenticationToken("OTHER\\bob", "secret"));
+            fail("BadCredentialsException expected");
+        } catch (final BadCredentialsException e) {
+            // no domain of the forest is contacted
+            assertNull(this.corp.principal);
+            assertNull(this.child.principal);
+        }
+    }
+}
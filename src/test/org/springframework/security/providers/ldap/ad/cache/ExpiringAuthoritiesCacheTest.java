@@ -0,0 +1,159 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.cache;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import junit.framework.TestCase;
+
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+
+/**
+ * Tests for ExpiringAuthoritiesCache.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class ExpiringAuthoritiesCacheTest extends TestCase {
+
+    /**
+     * Cache with a controllable clock.
+     */
+    static class TestCache extends ExpiringAuthoritiesCache {
+        long now = 1000;
+
+        TestCache(final int maxSize, final long timeToLive) {
+            super(maxSize, timeToLive);
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return this.now;
+        }
+    }
+
+    /**
+     * Loader counting its calls.
+     */
+    static class CountingLoader implements Callable<Set<GrantedAuthority>> {
+        int calls;
+
+        String role = "ROLE_SALES";
+
+        @Override
+        public Set<GrantedAuthority> call() {
+            this.calls++;
+            return new HashSet<GrantedAuthority>(
+                Collections.singleton(new SimpleGrantedAuthority(this.role)));
+        }
+    }
+
+    private TestCache cache;
+
+    private CountingLoader loader;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.cache = new TestCache(10, 1000);
+        this.loader = new CountingLoader();
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.cache.ExpiringAuthoritiesCache#get(java.lang.String, java.util.concurrent.Callable)}
+     * .
+     */
+    public final void testGet() {
+        final Set<GrantedAuthority> first = this.cache.get("CN=Bob,DC=example", this.loader);
+        final Set<GrantedAuthority> second = this.cache.get("cn=bob,dc=example", this.loader);
+
+        assertSame(first, second);
+        assertEquals(1, this.loader.calls);
+        assertEquals(1, this.cache.getHitCount());
+        assertEquals(1, this.cache.getMissCount());
+
+        try {
+            first.clear();
+            fail("UnsupportedOperationException expected");
+        } catch (final UnsupportedOperationException expected) {
+            // expected
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.cache.ExpiringAuthoritiesCache#get(java.lang.String, java.util.concurrent.Callable)}
+     * .
+     */
+    public final void testGetExpired() {
+        this.cache.get("cn=bob", this.loader);
+
+        this.cache.now += 1000;
+        this.cache.get("cn=bob", this.loader);
+
+        assertEquals(2, this.loader.calls);
+        assertEquals(1, this.cache.getEvictionCount());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.cache.ExpiringAuthoritiesCache#get(java.lang.String, java.util.concurrent.Callable)}
+     * .
+     */
+    public final void testRefreshAhead() {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        this.cache.setRefreshAfter(500);
+        this.cache.setRefreshExecutor(new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                tasks.add(command);
+            }
+        });
+
+        this.cache.get("cn=bob", this.loader);
+        this.loader.role = "ROLE_ADMINS";
+
+        this.cache.now += 600;
+        // stale entry is returned, one refresh is scheduled
+        assertTrue(this.cache.get("cn=bob", this.loader)
+            .contains(new SimpleGrantedAuthority("ROLE_SALES")));
+        this.cache.get("cn=bob", this.loader);
+        assertEquals(1, tasks.size());
+
+        tasks.get(0).run();
+
+        assertTrue(this.cache.get("cn=bob", this.loader)
+            .contains(new SimpleGrantedAuthority("ROLE_ADMINS")));
+        assertEquals(2, this.loader.calls);
+        assertEquals(1, this.cache.getRefreshCount());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.cache.ExpiringAuthoritiesCache#invalidate(java.lang.String)}
+     * .
+     */
+    public final void testInvalidate() {
+        this.cache.get("cn=bob", this.loader);
+
+        assertTrue(this.cache.invalidate("CN=Bob"));
+        this.cache.get("cn=bob", this.loader);
+
+        assertEquals(2, this.loader.calls);
+    }
+}
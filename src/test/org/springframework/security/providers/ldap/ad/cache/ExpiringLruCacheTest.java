@@ -0,0 +1,111 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.cache;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for ExpiringLruCache.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class ExpiringLruCacheTest extends TestCase {
+
+    /**
+     * Cache with a controllable clock.
+     */
+    static class TestCache extends ExpiringLruCache<String, String> {
+        long now = 1000;
+
+        TestCache(final int maxSize, final long timeToLive) {
+            super(maxSize, timeToLive);
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return this.now;
+        }
+    }
+
+    private TestCache cache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.cache = new TestCache(2, 100);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.cache.ExpiringLruCache#get(java.lang.Object)}
+     * .
+     */
+    public final void testGet() {
+        this.cache.put("key1", "value1");
+
+        assertEquals("value1", this.cache.get("key1"));
+        assertEquals(null, this.cache.get("key2"));
+        assertEquals(1, this.cache.getHitCount());
+        assertEquals(1, this.cache.getMissCount());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.cache.ExpiringLruCache#get(java.lang.Object)}
+     * .
+     */
+    public final void testGetExpired() {
+        this.cache.put("key1", "value1");
+
+        this.cache.now += 100;
+
+        assertEquals(null, this.cache.get("key1"));
+        assertEquals(0, this.cache.size());
+        assertEquals(1, this.cache.getEvictionCount());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.cache.ExpiringLruCache#put(java.lang.Object, java.lang.Object)}
+     * .
+     */
+    public final void testPutEvictsLeastRecentlyUsed() {
+        this.cache.put("key1", "value1");
+        this.cache.put("key2", "value2");
+
+        // key1 becomes the most recently used entry
+        this.cache.get("key1");
+        this.cache.put("key3", "value3");
+
+        assertEquals(2, this.cache.size());
+        assertEquals("value1", this.cache.get("key1"));
+        assertEquals(null, this.cache.get("key2"));
+        assertEquals(1, this.cache.getEvictionCount());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.cache.ExpiringLruCache#remove(java.lang.Object)}
+     * .
+     */
+    public final void testRemove() {
+        this.cache.put("key1", "value1");
+
+        assertTrue(this.cache.remove("key1"));
+        assertFalse(this.cache.remove("key1"));
+        assertEquals(null, this.cache.get("key1"));
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.cache;
+
+import junit.framework.TestCase;
+
+import org.springframework.security.providers.ldap.ad.util.CredentialHasher;
+
+/**
+ * Tests for FailedCredentialCache.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class FailedCredentialCacheTest extends TestCase {
+
+    /**
+     * Cache with a controllable clock.
+     */
+    static class TestCache extends FailedCredentialCache {
+        long now = 1000;
+
+        TestCache(final int maxSize, final long window) {
+            super(maxSize, window, new CredentialHasher(10));
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return this.now;
+        }
+    }
+
+    private TestCache cache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.cache = new TestCache(2, 10000);
+        this.cache.setBackoffThreshold(3);
+        this.cache.setInitialBackoff(100);
+        this.cache.setMaxBackoff(300);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.cache.FailedCredentialCache#isRejected(java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testIsRejectedSamePassword() {
+        assertFalse(this.cache.isRejected("bob", "stale"));
+
+        this.cache.recordFailure("bob", "stale");
+
+        assertTrue(this.cache.isRejected("BOB", "stale"));
+        assertFalse(this.cache.isRejected("bob", "fixed"));
+        assertEquals(1, this.cache.getRejectedCount());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.cache.FailedCredentialCache#isRejected(java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testIsRejectedAfterWindow() {
+        this.cache.recordFailure("bob", "stale");
+
+        this.cache.now += 10000;
+
+        assertFalse(this.cache.isRejected("bob", "stale"));
+        assertEquals(0, this.cache.size());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.cache.FailedCredentialCache#isRejected(java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testBackoff() {
+        this.cache.recordFailure("bob", "one");
+        this.cache.recordFailure("bob", "two");
+        this.cache.recordFailure("bob", "three");
+
+        // any password is rejected during the backoff
+        assertTrue(this.cache.isRejected("bob", "four"));
+        this.cache.now += 100;
+        assertFalse(this.cache.isRejected("bob", "four"));
+
+        // backoff doubles with each further failure, up to maxBackoff
+        this.cache.recordFailure("bob", "four");
+        this.cache.now += 199;
+        assertTrue(this.cache.isRejected("bob", "five"));
+        this.cache.now += 1;
+        assertFalse(this.cache.isRejected("bob", "five"));
+        assertEquals(4, this.cache.getFailureCount("bob"));
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.cache.FailedCredentialCache#recordSuccess(java.lang.String)}
+     * .
+     */
+    public final void testRecordSuccess() {
+        this.cache.recordFailure("bob", "stale");
+        this.cache.recordSuccess("bob");
+
+        assertFalse(this.cache.isRejected("bob", "stale"));
+        assertEquals(0, this.cache.getFailureCount("bob"));
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.cache.FailedCredentialCache#recordFailure(java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testRecordFailureBounded() {
+        this.cache.recordFailure("alice", "x");
+        this.cache.recordFailure("bob", "x");
+        this.cache.recordFailure("carol", "x");
+
+        assertEquals(2, this.cache.size());
+        assertEquals(0, this.cache.getFailureCount("carol"));
+
+        // expired records make room
+        this.cache.now += 10000;
+        this.cache.recordFailure("carol", "x");
+        assertEquals(1, this.cache.getFailureCount("carol"));
+    }
+}
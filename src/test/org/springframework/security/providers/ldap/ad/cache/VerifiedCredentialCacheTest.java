@@ -0,0 +1,108 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.cache;
+
+import javax.naming.directory.BasicAttributes;
+
+import junit.framework.TestCase;
+
+import org.springframework.ldap.core.*;
+import org.springframework.ldap.support.LdapUtils;
+import org.springframework.security.providers.ldap.ad.util.CredentialHasher;
+
+/**
+ * Tests for VerifiedCredentialCache.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class VerifiedCredentialCacheTest extends TestCase {
+
+    private VerifiedCredentialCache cache;
+
+    private DirContextAdapter user;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.cache = new VerifiedCredentialCache(10, 60000, new CredentialHasher(10));
+
+        this.user = new DirContextAdapter(new BasicAttributes(true),
+            LdapUtils.newLdapName("cn=bob,ou=people"), LdapUtils.newLdapName("dc=example,dc=com"));
+        this.user.setAttributeValue("sAMAccountName", "bob");
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.cache.VerifiedCredentialCache#get(java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testGet() {
+        this.cache.put("bob", "secret", this.user);
+
+        final DirContextOperations cached = this.cache.get("BOB", "secret");
+
+        assertNotNull(cached);
+        assertEquals("bob", cached.getStringAttribute("sAMAccountName"));
+        assertEquals(LdapUtils.newLdapName("cn=bob,ou=people"), cached.getDn());
+        assertEquals("cn=bob,ou=people,dc=example,dc=com", cached.getNameInNamespace());
+        assertEquals(1, this.cache.getHitCount());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.cache.VerifiedCredentialCache#get(java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testGetWrongPassword() {
+        this.cache.put("bob", "secret", this.user);
+
+        assertNull(this.cache.get("bob", "wrong"));
+        assertNull(this.cache.get("alice", "secret"));
+        assertEquals(0, this.cache.getHitCount());
+        assertEquals(2, this.cache.getMissCount());
+        assertEquals(1, this.cache.getMismatchCount());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.cache.VerifiedCredentialCache#get(java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testGetReturnsCopy() {
+        this.cache.put("bob", "secret", this.user);
+
+        this.cache.get("bob", "secret").addAttributeValue("java.naming.security.credentials",
+            "secret");
+        this.user.setAttributeValue("sAMAccountName", "changed");
+
+        final DirContextOperations cached = this.cache.get("bob", "secret");
+        assertNull(cached.getObjectAttribute("java.naming.security.credentials"));
+        assertEquals("bob", cached.getStringAttribute("sAMAccountName"));
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.cache.VerifiedCredentialCache#invalidate(java.lang.String)}
+     * .
+     */
+    public final void testInvalidate() {
+        this.cache.put("bob", "secret", this.user);
+
+        assertTrue(this.cache.invalidate("Bob"));
+        assertNull(this.cache.get("bob", "secret"));
+        assertEquals(0, this.cache.size());
+    }
+}
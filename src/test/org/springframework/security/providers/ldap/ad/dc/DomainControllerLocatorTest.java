@@ -0,0 +1,208 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.dc;
+
+import java.util.*;
+
+import javax.naming.NamingException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for DomainControllerLocator with a stand-in SRV record resolver.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class DomainControllerLocatorTest extends TestCase {
+
+    private static final String SITE_RECORDS = "_ldap._tcp.Berlin._sites.dc._msdcs.corp.com";
+
+    private static final String DOMAIN_RECORDS = "_ldap._tcp.dc._msdcs.corp.com";
+
+    /**
+     * SRV records of the stand-in DNS, by name.
+     */
+    private final Map<String, List<SrvRecord>> records = new HashMap<String, List<SrvRecord>>();
+
+    /**
+     * True if DNS lookups fail.
+     */
+    private boolean dnsDown;
+
+    /**
+     * Number of DNS lookups which fail with a runtime exception, as a malformed record would.
+     */
+    private volatile int malformedLookups;
+
+    /**
+     * Value returned by the random number generator of the locator.
+     */
+    private int randomValue;
+
+    private DomainControllerLocator locator;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.records.put(SITE_RECORDS,
+            Arrays.asList(SrvRecord.parse("0 100 389 berlin-dc1.corp.com.")));
+        this.records.put(DOMAIN_RECORDS, Arrays.asList(
+            SrvRecord.parse("0 100 389 berlin-dc1.corp.com."),
+            SrvRecord.parse("0 100 389 paris-dc1.corp.com."),
+            SrvRecord.parse("10 100 389 backup-dc.corp.com.")));
+
+        this.locator = new DomainControllerLocator("corp.com") {
+            @Override
+            protected int nextRandom(final int bound) {
+                return Math.min(DomainControllerLocatorTest.this.randomValue, bound - 1);
+            }
+        };
+        this.locator.setRefreshInterval(0);
+        this.locator.setResolver(new SrvRecordResolver() {
+            @Override
+            public List<SrvRecord> resolve(final String name) throws NamingException {
+                if (DomainControllerLocatorTest.this.dnsDown) {
+                    throw new javax.naming.CommunicationException("DNS server not reachable");
+                }
+                if (DomainControllerLocatorTest.this.malformedLookups > 0) {
+                    DomainControllerLocatorTest.this.malformedLookups--;
+                    throw new IllegalArgumentException("Malformed SRV record");
+                }
+
+                final List<SrvRecord> result = DomainControllerLocatorTest.this.records.get(name);
+                return result == null ? Collections.<SrvRecord> emptyList() : result;
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.locator.destroy();
+
+        super.tearDown();
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.dc.DomainControllerLocator#locate()} .
+     */
+    public final void testLocateSite() throws Exception {
+        this.locator.setSiteName("Berlin");
+
+        assertEquals(Arrays.asList("ldap://berlin-dc1.corp.com:389/DC=corp,DC=com"),
+            this.locator.locate());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.dc.DomainControllerLocator#locate()} .
+     */
+    public final void testLocateSiteWithoutDomainControllers() throws Exception {
+        this.locator.setSiteName("Madrid");
+
+        final List<String> urls = this.locator.locate();
+
+        assertEquals(3, urls.size());
+        // lowest priority value last
+        assertEquals("ldap://backup-dc.corp.com:389/DC=corp,DC=com", urls.get(2));
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.dc.DomainControllerLocator#locate()} .
+     */
+    public final void testLocateIncludeOtherSites() throws Exception {
+        this.locator.setSiteName("Berlin");
+        this.locator.setIncludeOtherSites(true);
+        this.randomValue = 200;
+
+        final List<String> urls = this.locator.locate();
+
+        // the site first, no duplicates
+        assertEquals(Arrays.asList("ldap://berlin-dc1.corp.com:389/DC=corp,DC=com",
+            "ldap://paris-dc1.corp.com:389/DC=corp,DC=com",
+            "ldap://backup-dc.corp.com:389/DC=corp,DC=com"), urls);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.dc.DomainControllerLocator#locate()} .
+     */
+    public final void testLocateWeighted() throws Exception {
+        this.records.put(DOMAIN_RECORDS, Arrays.asList(SrvRecord.parse("0 10 389 light"),
+            SrvRecord.parse("0 0 389 spare"), SrvRecord.parse("0 90 389 heavy")));
+
+        // running weights: spare 0, light 10, heavy 100
+        this.randomValue = 50;
+        assertEquals("ldap://heavy:389/DC=corp,DC=com", this.locator.locate().get(0));
+
+        this.randomValue = 5;
+        assertEquals("ldap://light:389/DC=corp,DC=com", this.locator.locate().get(0));
+
+        this.randomValue = 0;
+        assertEquals("ldap://spare:389/DC=corp,DC=com", this.locator.locate().get(0));
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.dc.DomainControllerLocator#refresh()} .
+     */
+    public final void testRefresh() {
+        final DomainControllerSelector selector =
+                new DomainControllerSelector(Arrays.asList("ldap://old-dc:389/DC=corp,DC=com"));
+        selector.setProbeInterval(0);
+        selector.afterPropertiesSet();
+        this.locator.setSiteName("Berlin");
+        this.locator.setDomainControllerSelector(selector);
+
+        this.locator.afterPropertiesSet();
+
+        assertEquals(this.locator.getProviderUrls(), selector.getProviderUrls());
+        assertEquals(1, selector.getDomainControllers().size());
+        assertEquals("ldap://berlin-dc1.corp.com:389/DC=corp,DC=com",
+            selector.getDomainControllers().get(0).getUrl());
+
+        // a failed lookup keeps the domain controllers
+        this.dnsDown = true;
+        this.locator.refresh();
+
+        assertEquals(1, selector.getDomainControllers().size());
+        assertEquals(1, this.locator.getProviderUrls().size());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.dc.DomainControllerLocator#afterPropertiesSet()}
+     * .
+     */
+    public final void testScheduledRefreshAfterRuntimeException() throws Exception {
+        this.locator.setRefreshInterval(10);
+        this.locator.afterPropertiesSet();
+        assertEquals(3, this.locator.getProviderUrls().size());
+
+        // the next refresh fails, the ones after it find the new domain controller
+        this.malformedLookups = 1;
+        this.records.put(DOMAIN_RECORDS,
+            Arrays.asList(SrvRecord.parse("0 100 389 new-dc.corp.com.")));
+        for (int i = 0; i < 500 && this.locator.getProviderUrls().size() != 1; i++) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(0, this.malformedLookups);
+        assertEquals(Arrays.asList("ldap://new-dc.corp.com:389/DC=corp,DC=com"),
+            this.locator.getProviderUrls());
+    }
+}
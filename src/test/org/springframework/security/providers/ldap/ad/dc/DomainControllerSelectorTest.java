@@ -0,0 +1,278 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.dc;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+import javax.naming.directory.DirContext;
+
+import junit.framework.TestCase;
+
+import org.springframework.ldap.*;
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.security.ldap.DefaultSpringSecurityContextSource;
+
+/**
+ * Tests for DomainControllerSelector.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class DomainControllerSelectorTest extends TestCase {
+
+    /**
+     * ContextSource of a fake domain controller. Credentials "bad" fail the bind.
+     */
+    static class FakeContextSource implements ContextSource {
+        boolean down;
+
+        int opened;
+
+        /**
+         * Duration in milliseconds of the searches.
+         */
+        long searchTime;
+
+        /**
+         * If true the searches fail with a communication error.
+         */
+        boolean searchFails;
+
+        @Override
+        public DirContext getContext(final String principal, final String credentials) {
+            if (this.down) {
+                throw new CommunicationException(
+                    new javax.naming.CommunicationException("connection refused"));
+            }
+
+            if ("bad".equals(credentials)) {
+                throw new AuthenticationException(
+                    new javax.naming.AuthenticationException("bad credentials"));
+            }
+
+            this.opened++;
+
+            return (DirContext) Proxy.newProxyInstance(DirContext.class.getClassLoader(),
+                new Class<?>[] { DirContext.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method,
+                            final Object[] args) throws Exception {
+                        if ("search".equals(method.getName())) {
+                            Thread.sleep(FakeContextSource.this.searchTime);
+                            if (FakeContextSource.this.searchFails) {
+                                throw new javax.naming.CommunicationException("connection reset");
+                            }
+                        }
+
+                        return null;
+                    }
+                });
+        }
+
+        @Override
+        public DirContext getReadOnlyContext() {
+            return getContext("", "");
+        }
+
+        @Override
+        public DirContext getReadWriteContext() {
+            return getReadOnlyContext();
+        }
+    }
+
+    private final Map<String, FakeContextSource> contextSources =
+            new HashMap<String, FakeContextSource>();
+
+    private DomainControllerSelector selector;
+
+    private DomainController dc1;
+
+    private DomainController dc2;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.selector = new DomainControllerSelector(Arrays.asList("ldap://dc1/dc=example,dc=com",
+            "ldap://dc2/dc=example,dc=com")) {
+            @Override
+            protected ContextSource createContextSource(final String providerUrl) {
+                final FakeContextSource contextSource = new FakeContextSource();
+                DomainControllerSelectorTest.this.contextSources.put(providerUrl, contextSource);
+                return contextSource;
+            }
+
+            @Override
+            protected ContextSource createProbeContextSource(final String providerUrl) {
+                return DomainControllerSelectorTest.this.contextSources.get(providerUrl);
+            }
+        };
+        this.selector.setProbeInterval(0);
+        this.selector.afterPropertiesSet();
+
+        this.dc1 = this.selector.getDomainControllers().get(0);
+        this.dc2 = this.selector.getDomainControllers().get(1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.selector.destroy();
+
+        super.tearDown();
+    }
+
+    private FakeContextSource fake(final DomainController domainController) {
+        return this.contextSources.get(domainController.getUrl());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.dc.DomainControllerSelector#getContext(java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testGetContextPrefersFastest() {
+        this.dc1.recordSuccess(50, 0.3);
+        this.dc2.recordSuccess(5, 0.3);
+
+        this.selector.getContext("bob", "secret");
+
+        assertEquals(0, fake(this.dc1).opened);
+        assertEquals(1, fake(this.dc2).opened);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.dc.DomainControllerSelector#getContext(java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testGetContextFailsOverAndEjects() {
+        fake(this.dc1).down = true;
+
+        this.selector.getContext("bob", "secret");
+        this.selector.getContext("bob", "secret");
+
+        assertTrue(this.dc1.isEjected());
+        assertEquals(2, this.dc1.getFailureCount());
+
+        // ejected domain controller is not tried any more
+        this.selector.getContext("bob", "secret");
+        assertEquals(2, this.dc1.getFailureCount());
+        assertEquals(3, fake(this.dc2).opened);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.dc.DomainControllerSelector#getContext(java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testGetContextBadCredentials() {
+        try {
+            this.selector.getContext("bob", "bad");
+            fail("AuthenticationException expected");
+        } catch (final AuthenticationException expected) {
+            // expected
+        }
+
+        assertEquals(0, this.dc1.getFailureCount());
+        assertEquals(0.0, this.dc1.getErrorRate(), 0);
+        assertEquals(0, this.dc2.getSuccessCount());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.dc.DomainControllerSelector#getContext(java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testGetContextAllDown() {
+        fake(this.dc1).down = true;
+        fake(this.dc2).down = true;
+
+        try {
+            this.selector.getContext("bob", "secret");
+            fail("CommunicationException expected");
+        } catch (final CommunicationException expected) {
+            // expected
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.dc.DomainControllerSelector#probe()}.
+     */
+    public final void testProbeReinstates() {
+        fake(this.dc1).down = true;
+        this.selector.probe();
+        this.selector.probe();
+        assertTrue(this.dc1.isEjected());
+
+        fake(this.dc1).down = false;
+        this.selector.probe();
+
+        assertFalse(this.dc1.isEjected());
+        assertEquals(0.0, this.dc1.getErrorRate(), 0);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.dc.DomainControllerSelector#getContext(java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testGetContextMeasuresOperations() throws Exception {
+        this.dc1.recordSuccess(5, 0.3);
+        this.dc2.recordSuccess(5, 0.3);
+        fake(this.dc1).searchTime = 100;
+
+        // dc1 connects fast but searches slowly
+        final DirContext ctx = this.selector.getContext("bob", "secret");
+        ctx.search("ou=groups", "(objectClass=group)", null);
+        ctx.close();
+
+        assertTrue(this.dc1.getLatency() > this.dc2.getLatency() + 20);
+        this.selector.getContext("bob", "secret");
+        assertEquals(1, fake(this.dc2).opened);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.dc.DomainControllerSelector#getContext(java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testGetContextOperationFails() throws Exception {
+        fake(this.dc1).searchFails = true;
+
+        final DirContext ctx = this.selector.getContext("bob", "secret");
+        try {
+            ctx.search("ou=groups", "(objectClass=group)", null);
+            fail("CommunicationException expected");
+        } catch (final javax.naming.CommunicationException expected) {
+            assertEquals(1, this.dc1.getFailureCount());
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.dc.DomainControllerSelector#createProbeContextSource(java.lang.String)}
+     * .
+     */
+    public final void testCreateProbeContextSourceUnpooled() {
+        final DomainControllerSelector defaultSelector =
+                new DomainControllerSelector(Arrays.asList("ldap://dc1/dc=example,dc=com"));
+
+        assertTrue(((DefaultSpringSecurityContextSource) defaultSelector
+            .createContextSource("ldap://dc1/dc=example,dc=com")).isPooled());
+        assertFalse(((DefaultSpringSecurityContextSource) defaultSelector
+            .createProbeContextSource("ldap://dc1/dc=example,dc=com")).isPooled());
+    }
+}
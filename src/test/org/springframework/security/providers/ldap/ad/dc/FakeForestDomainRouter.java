@@ -0,0 +1,112 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.dc;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+import javax.naming.directory.*;
+
+import org.springframework.ldap.core.*;
+import org.springframework.ldap.support.LdapUtils;
+import org.springframework.security.providers.ldap.ad.dc.ForestDomainRouterTest.ListEnumeration;
+
+/**
+ * ForestDomainRouter of a fake forest corp.com (CORP) with the child domain child.corp.com (CHILD).
+ * The domains are read from a fake Global Catalog which holds no users; the context sources of the
+ * domains are supplied by the test.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class FakeForestDomainRouter extends ForestDomainRouter {
+    /**
+     * Context sources of the domains by NetBIOS name.
+     */
+    private final Map<String, ContextSource> domainContextSources;
+
+    /**
+     * Constructor specifying domainContextSources. Loads the domains.
+     *
+     * @param domainContextSources context sources of the domains by NetBIOS name.
+     */
+    public FakeForestDomainRouter(final Map<String, ContextSource> domainContextSources) {
+        super(new ContextSource() {
+            @Override
+            public DirContext getContext(final String principal, final String credentials) {
+                return createGlobalCatalogContext();
+            }
+
+            @Override
+            public DirContext getReadOnlyContext() {
+                return createGlobalCatalogContext();
+            }
+
+            @Override
+            public DirContext getReadWriteContext() {
+                return createGlobalCatalogContext();
+            }
+        }, "DC=corp,DC=com");
+        this.domainContextSources = domainContextSources;
+
+        afterPropertiesSet();
+    }
+
+    @Override
+    protected ContextSource createContextSource(final ForestDomain domain) {
+        final ContextSource contextSource =
+                this.domainContextSources.get(domain.getNetbiosName());
+        if (contextSource == null) {
+            throw new AssertionError("no context source of domain " + domain);
+        }
+
+        return contextSource;
+    }
+
+    /**
+     * Returns a context whose searches return the crossRef entries of the domains.
+     */
+    static DirContext createGlobalCatalogContext() {
+        return (DirContext) Proxy.newProxyInstance(DirContext.class.getClassLoader(),
+            new Class<?>[] { DirContext.class }, new InvocationHandler() {
+                @Override
+                public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                    if ("search".equals(method.getName())) {
+                        final List<SearchResult> results = new ArrayList<SearchResult>();
+                        if (((String) args[1]).contains("crossRef")) {
+                            results.add(createCrossRef("CORP", "corp.com", "DC=corp,DC=com"));
+                            results.add(createCrossRef("CHILD", "child.corp.com",
+                                "DC=child,DC=corp,DC=com"));
+                        }
+
+                        return new ListEnumeration(results);
+                    }
+
+                    return null;
+                }
+            });
+    }
+
+    private static SearchResult createCrossRef(final String netbiosName, final String dnsRoot,
+            final String namingContext) {
+        final Attributes attributes = new BasicAttributes(true);
+        attributes.put("nETBIOSName", netbiosName);
+        attributes.put("dnsRoot", dnsRoot);
+        attributes.put("nCName", namingContext);
+        final String dn = "CN=" + netbiosName + ",CN=Partitions,CN=Configuration,DC=corp,DC=com";
+
+        return new SearchResult(dn, new DirContextAdapter(attributes, LdapUtils.newLdapName(dn)),
+            attributes);
+    }
+}
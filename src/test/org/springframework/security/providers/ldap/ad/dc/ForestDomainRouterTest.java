@@ -0,0 +1,289 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.dc;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.directory.*;
+
+import junit.framework.TestCase;
+
+import org.springframework.beans.DirectFieldAccessor;
+import org.springframework.ldap.core.*;
+import org.springframework.ldap.support.LdapUtils;
+import org.springframework.security.ldap.DefaultSpringSecurityContextSource;
+import org.springframework.security.providers.ldap.ad.util.DeadlineAuthenticationStrategy;
+
+/**
+ * Tests for ForestDomainRouter against a fake Global Catalog of the forest corp.com with the child
+ * domain child.corp.com.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class ForestDomainRouterTest extends TestCase {
+
+    /**
+     * NamingEnumeration over a list of search results.
+     */
+    static class ListEnumeration implements NamingEnumeration<SearchResult> {
+        private final Iterator<SearchResult> iterator;
+
+        ListEnumeration(final List<SearchResult> results) {
+            this.iterator = results.iterator();
+        }
+
+        @Override
+        public void close() {
+            // Do nothing
+        }
+
+        @Override
+        public boolean hasMore() {
+            return this.iterator.hasNext();
+        }
+
+        @Override
+        public SearchResult next() {
+            return this.iterator.next();
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            return hasMore();
+        }
+
+        @Override
+        public SearchResult nextElement() {
+            return next();
+        }
+    }
+
+    /**
+     * Entries of the fake global catalog by full DN.
+     */
+    private final Map<String, Attributes> entries = new LinkedHashMap<String, Attributes>();
+
+    /**
+     * Number of user searches.
+     */
+    private int userSearches;
+
+    private ForestDomainRouter router;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        addCrossRef("CORP", "corp.com", "DC=corp,DC=com");
+        addCrossRef("CHILD", "child.corp.com", "DC=child,DC=corp,DC=com");
+        addUser("CN=bob,CN=Users,DC=child,DC=corp,DC=com", "bob", "bob@corp.example");
+        addUser("CN=alice,CN=Users,DC=corp,DC=com", "alice", "alice@corp.com");
+        addUser("CN=alice,CN=Users,DC=child,DC=corp,DC=com", "alice", "alice@child.corp.com");
+
+        this.router = new ForestDomainRouter(new ContextSource() {
+            @Override
+            public DirContext getContext(final String principal, final String credentials) {
+                return createContext();
+            }
+
+            @Override
+            public DirContext getReadOnlyContext() {
+                return createContext();
+            }
+
+            @Override
+            public DirContext getReadWriteContext() {
+                return createContext();
+            }
+        }, "DC=corp,DC=com");
+        this.router.afterPropertiesSet();
+    }
+
+    private void addCrossRef(final String netbiosName, final String dnsRoot,
+            final String namingContext) {
+        final Attributes attributes = new BasicAttributes(true);
+        attributes.put("objectClass", "crossRef");
+        attributes.put("nETBIOSName", netbiosName);
+        attributes.put("dnsRoot", dnsRoot);
+        attributes.put("nCName", namingContext);
+        this.entries.put("CN=" + netbiosName + ",CN=Partitions,CN=Configuration,DC=corp,DC=com",
+            attributes);
+    }
+
+    private void addUser(final String dn, final String accountName,
+            final String userPrincipalName) {
+        final Attributes attributes = new BasicAttributes(true);
+        attributes.put("objectClass", "user");
+        attributes.put("sAMAccountName", accountName);
+        attributes.put("userPrincipalName", userPrincipalName);
+        this.entries.put(dn, attributes);
+    }
+
+    /**
+     * Returns a context whose searches match the filters used by ForestDomainRouter.
+     */
+    private DirContext createContext() {
+        return (DirContext) Proxy.newProxyInstance(DirContext.class.getClassLoader(),
+            new Class<?>[] { DirContext.class }, new InvocationHandler() {
+                @Override
+                public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                    if ("search".equals(method.getName())) {
+                        return search((String) args[1]);
+                    }
+
+                    return null;
+                }
+            });
+    }
+
+    private NamingEnumeration<SearchResult> search(final String filter) {
+        final List<SearchResult> results = new ArrayList<SearchResult>();
+        if (filter.contains("crossRef")) {
+            for (final Map.Entry<String, Attributes> entry : this.entries.entrySet()) {
+                if (entry.getValue().get("nETBIOSName") != null) {
+                    results.add(createResult(entry.getKey(), entry.getValue()));
+                }
+            }
+        } else {
+            this.userSearches++;
+            for (final Map.Entry<String, Attributes> entry : this.entries.entrySet()) {
+                final Attributes attributes = entry.getValue();
+                if (attributes.get("sAMAccountName") != null
+                        && (filter.contains("(sAMAccountName=" + value(attributes, "sAMAccountName")
+                                + ")") || filter.contains("(userPrincipalName="
+                                + value(attributes, "userPrincipalName") + ")"))) {
+                    results.add(createResult(entry.getKey(), attributes));
+                }
+            }
+        }
+
+        return new ListEnumeration(results);
+    }
+
+    private static String value(final Attributes attributes, final String id) {
+        try {
+            return (String) attributes.get(id).get();
+        } catch (final javax.naming.NamingException e) {
+            throw LdapUtils.convertLdapException(e);
+        }
+    }
+
+    private static SearchResult createResult(final String dn, final Attributes attributes) {
+        final SearchResult result = new SearchResult(dn,
+            new DirContextAdapter(attributes, LdapUtils.newLdapName(dn)), attributes);
+        result.setNameInNamespace(dn);
+        return result;
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.dc.ForestDomainRouter#load()} .
+     */
+    public final void testLoad() {
+        assertEquals(2, this.router.getDomains().size());
+        assertEquals("DC=child,DC=corp,DC=com",
+            this.router.getDomain("child").getNamingContext());
+        assertSame(this.router.getDomain("CHILD"), this.router.getDomain("Child.Corp.Com"));
+        assertNull(this.router.getDomain("other"));
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.dc.ForestDomainRouter#resolveDomain(java.lang.String)}
+     * .
+     */
+    public final void testResolveDomainByDomainPart() {
+        assertEquals("CHILD", this.router.resolveDomain("CHILD\\bob").getNetbiosName());
+        assertEquals("CHILD", this.router.resolveDomain("bob@child.corp.com").getNetbiosName());
+        assertEquals("CORP", this.router.resolveDomain("alice@corp.com").getNetbiosName());
+        // routed without asking the global catalog
+        assertEquals(0, this.userSearches);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.dc.ForestDomainRouter#resolveDomain(java.lang.String)}
+     * .
+     */
+    public final void testResolveDomainFromGlobalCatalog() {
+        // alternative UPN suffix
+        assertEquals("CHILD", this.router.resolveDomain("bob@corp.example").getNetbiosName());
+        // no domain part
+        assertEquals("CHILD", this.router.resolveDomain("bob").getNetbiosName());
+        assertEquals(2, this.userSearches);
+
+        // cached
+        assertEquals("CHILD", this.router.resolveDomain("BOB").getNetbiosName());
+        assertEquals(2, this.userSearches);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.dc.ForestDomainRouter#resolveDomain(java.lang.String)}
+     * .
+     */
+    public final void testResolveDomainNotRouted() {
+        // alice exists in both domains
+        assertNull(this.router.resolveDomain("alice"));
+        // unknown NetBIOS domain
+        assertNull(this.router.resolveDomain("OTHER\\bob"));
+
+        this.router.setDefaultDomain("CORP");
+        assertEquals("CORP", this.router.resolveDomain("alice").getNetbiosName());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.dc.ForestDomainRouter#getDomainOfDn(java.lang.String)}
+     * .
+     */
+    public final void testGetDomainOfDn() {
+        assertEquals("CHILD",
+            this.router.getDomainOfDn("CN=x,DC=child,DC=corp,DC=com").getNetbiosName());
+        assertEquals("CORP", this.router.getDomainOfDn("cn=x,dc=corp,dc=com").getNetbiosName());
+        assertNull(this.router.getDomainOfDn("CN=x,DC=other,DC=com"));
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.dc.ForestDomainRouter#preparePrincipalDn(java.lang.String, org.springframework.security.providers.ldap.ad.dc.ForestDomain)}
+     * .
+     */
+    public final void testPreparePrincipalDn() {
+        final ForestDomain child = this.router.getDomain("CHILD");
+
+        assertEquals("bob@child.corp.com", this.router.preparePrincipalDn("CHILD\\bob", child));
+        assertEquals("bob@child.corp.com",
+            this.router.preparePrincipalDn("bob@corp.example", child));
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.dc.ForestDomainRouter#createContextSource(org.springframework.security.providers.ldap.ad.dc.ForestDomain)}
+     * .
+     */
+    public final void testCreateContextSource() {
+        final ContextSource contextSource =
+                this.router.getContextSource(this.router.getDomain("CHILD"));
+
+        assertEquals("DC=child,DC=corp,DC=com",
+            ((DefaultSpringSecurityContextSource) contextSource).getBaseLdapPathAsString());
+        assertTrue(new DirectFieldAccessor(contextSource)
+            .getPropertyValue("authenticationStrategy") instanceof DeadlineAuthenticationStrategy);
+        assertSame(contextSource, this.router.getContextSource(this.router.getDomain("child")));
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.pool;
+
+import java.util.concurrent.*;
+
+import javax.naming.directory.DirContext;
+import javax.naming.ldap.LdapContext;
+
+import junit.framework.TestCase;
+
+import org.springframework.ldap.*;
+import org.springframework.security.providers.ldap.ad.pool.PooledRebindContextSourceTest.FakeContextSource;
+
+/**
+ * Tests for BulkheadContextSource.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class BulkheadContextSourceTest extends TestCase {
+
+    private FakeContextSource targetContextSource;
+
+    private BulkheadContextSource bulkhead;
+
+    private ExecutorService executor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.targetContextSource = new FakeContextSource();
+        this.bulkhead = new BulkheadContextSource("binds", this.targetContextSource, 1);
+        this.executor = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.executor.shutdownNow();
+
+        super.tearDown();
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.pool.BulkheadContextSource#getContext(java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testGetContext() throws Exception {
+        final DirContext context = this.bulkhead.getContext("user1", "password1");
+
+        assertTrue(context instanceof LdapContext);
+        assertEquals(1, this.bulkhead.getActiveCount());
+
+        context.close();
+        // closing twice returns the permit once
+        context.close();
+        assertEquals(0, this.bulkhead.getActiveCount());
+        assertEquals(1, this.bulkhead.getAcquiredCount());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.pool.BulkheadContextSource#getContext(java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testGetContextFailureReturnsPermit() {
+        try {
+            this.bulkhead.getContext("user1", "bad");
+            fail("AuthenticationException expected");
+        } catch (final AuthenticationException e) {
+            assertEquals(0, this.bulkhead.getActiveCount());
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.pool.BulkheadContextSource#getContext(java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testGetContextTimedOut() throws Exception {
+        this.bulkhead.setMaxWait(10);
+
+        final DirContext context = this.bulkhead.getContext("user1", "password1");
+        try {
+            this.bulkhead.getContext("user2", "password2");
+            fail("UncategorizedLdapException expected");
+        } catch (final UncategorizedLdapException e) {
+            assertEquals(1, this.bulkhead.getTimedOutCount());
+            assertEquals(0, this.bulkhead.getWaitingCount());
+            assertTrue(this.bulkhead.getWaitTime() >= 9);
+        } finally {
+            context.close();
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.pool.BulkheadContextSource#getContext(java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testGetContextQueueFull() throws Exception {
+        this.bulkhead.setMaxWaiting(1);
+        this.bulkhead.setMaxWait(-1);
+
+        final DirContext context = this.bulkhead.getContext("user1", "password1");
+
+        // the second caller waits for the permit
+        final Future<DirContext> waiting = this.executor.submit(new Callable<DirContext>() {
+            @Override
+            public DirContext call() {
+                return BulkheadContextSourceTest.this.bulkhead.getContext("user2", "password2");
+            }
+        });
+        while (this.bulkhead.getWaitingCount() == 0) {
+            Thread.sleep(1);
+        }
+
+        // the third is rejected at once
+        try {
+            this.bulkhead.getReadOnlyContext();
+            fail("UncategorizedLdapException expected");
+        } catch (final UncategorizedLdapException e) {
+            assertEquals(1, this.bulkhead.getRejectedCount());
+        }
+
+        context.close();
+        waiting.get(5, TimeUnit.SECONDS).close();
+        assertEquals(2, this.bulkhead.getAcquiredCount());
+        assertEquals(0, this.bulkhead.getActiveCount());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.pool.BulkheadContextSource#getContext(java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testGetContextSeparateBulkheads() throws Exception {
+        final BulkheadContextSource searches =
+                new BulkheadContextSource("searches", this.targetContextSource, 1);
+        searches.setMaxWaiting(0);
+
+        // all search permits are taken: the binds are not affected
+        final DirContext search = searches.getReadOnlyContext();
+        try {
+            searches.getReadOnlyContext();
+            fail("UncategorizedLdapException expected");
+        } catch (final UncategorizedLdapException e) {
+            // expected
+        }
+
+        this.bulkhead.getContext("user1", "password1").close();
+        assertEquals(1, this.bulkhead.getAcquiredCount());
+        search.close();
+    }
+}
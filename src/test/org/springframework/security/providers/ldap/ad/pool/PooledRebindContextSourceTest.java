@@ -0,0 +1,339 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.pool;
+
+import java.lang.reflect.*;
+import java.util.Hashtable;
+
+import javax.naming.Context;
+import javax.naming.directory.*;
+import javax.naming.ldap.LdapContext;
+
+import junit.framework.TestCase;
+
+import org.springframework.ldap.*;
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.security.providers.ldap.ad.util.*;
+
+/**
+ * Tests for PooledRebindContextSource.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class PooledRebindContextSourceTest extends TestCase {
+
+    /**
+     * ContextSource producing fake LdapContext instances. Credentials "bad" fail the bind.
+     */
+    static class FakeContextSource implements ContextSource {
+        int opened;
+
+        int rebinds;
+
+        /**
+         * Environment of the last opened context.
+         */
+        Hashtable<String, Object> environment;
+
+        /**
+         * Login deadline current when the last context was opened.
+         */
+        LoginDeadline deadline;
+
+        @Override
+        public DirContext getContext(final String principal, final String credentials) {
+            if ("bad".equals(credentials)) {
+                throw new AuthenticationException(
+                    new javax.naming.AuthenticationException("bad credentials"));
+            }
+
+            this.opened++;
+            this.deadline = LoginDeadline.current();
+
+            final Hashtable<String, Object> environment = new Hashtable<String, Object>();
+            environment.put(Context.SECURITY_PRINCIPAL, principal);
+            environment.put(Context.SECURITY_CREDENTIALS, credentials);
+            this.environment = environment;
+            return (DirContext) Proxy.newProxyInstance(LdapContext.class.getClassLoader(),
+                new Class<?>[] { LdapContext.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method,
+                            final Object[] args) throws Throwable {
+                        if ("addToEnvironment".equals(method.getName())) {
+                            return environment.put((String) args[0], args[1]);
+                        }
+
+                        if ("removeFromEnvironment".equals(method.getName())) {
+                            return environment.remove(args[0]);
+                        }
+
+                        if ("getEnvironment".equals(method.getName())) {
+                            return new Hashtable<String, Object>(environment);
+                        }
+
+                        if ("reconnect".equals(method.getName())) {
+                            FakeContextSource.this.rebinds++;
+                            if ("bad".equals(environment.get(Context.SECURITY_CREDENTIALS))) {
+                                throw new javax.naming.AuthenticationException("bad credentials");
+                            }
+                        }
+
+                        return null;
+                    }
+                });
+        }
+
+        @Override
+        public DirContext getReadOnlyContext() {
+            return getContext("anonymous", "");
+        }
+
+        @Override
+        public DirContext getReadWriteContext() {
+            return getReadOnlyContext();
+        }
+    }
+
+    private FakeContextSource targetContextSource;
+
+    private PooledRebindContextSource pool;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.targetContextSource = new FakeContextSource();
+        this.pool = new PooledRebindContextSource(this.targetContextSource);
+        this.pool.setEvictionInterval(0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.pool.destroy();
+
+        super.tearDown();
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.pool.PooledRebindContextSource#getContext(java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testGetContextReusesConnection() throws Exception {
+        this.pool.afterPropertiesSet();
+
+        this.pool.getContext("user1", "password1").close();
+        final DirContext context = this.pool.getContext("user2", "password2");
+
+        assertEquals(1, this.targetContextSource.opened);
+        assertEquals(1, this.targetContextSource.rebinds);
+        assertEquals(1, this.pool.getNumActive());
+
+        context.close();
+        assertEquals(0, this.pool.getNumActive());
+        assertEquals(1, this.pool.getNumIdle());
+        assertEquals(2, this.pool.getBorrowedCount());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.pool.PooledRebindContextSource#getContext(java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testGetContextOutsideLoginDeadline() throws Exception {
+        this.pool.afterPropertiesSet();
+        final ThreadPoolTaskExecutor executor =
+                (ThreadPoolTaskExecutor) TaskExecutorUtils.createBoundedExecutor("login-", 1, 1);
+        try {
+            final LoginDeadline deadline = LoginDeadline.start(5000, executor);
+
+            this.pool.getContext("user1", "password1").close();
+
+            // the pooled connection must not keep the timeouts of the login
+            assertEquals(1, this.targetContextSource.opened);
+            assertNull(this.targetContextSource.deadline);
+            assertSame(deadline, LoginDeadline.current());
+        } finally {
+            LoginDeadline.remove();
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.pool.PooledRebindContextSource#getContext(java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testGetContextPoolExhausted() throws Exception {
+        this.pool.setMaxTotal(1);
+        this.pool.setMaxWait(10);
+        this.pool.afterPropertiesSet();
+
+        final DirContext context = this.pool.getContext("user1", "password1");
+        try {
+            this.pool.getContext("user2", "password2");
+            fail("exception expected");
+        } catch (final UncategorizedLdapException e) {
+            // expected
+        }
+
+        context.close();
+        this.pool.getContext("user2", "password2").close();
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.pool.PooledRebindContextSource#getContext(java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testGetContextBadCredentialsDiscardsConnection() throws Exception {
+        this.pool.afterPropertiesSet();
+
+        this.pool.getContext("user1", "password1").close();
+        try {
+            this.pool.getContext("user1", "bad");
+            fail("exception expected");
+        } catch (final AuthenticationException e) {
+            // expected
+        }
+
+        assertEquals(1, this.pool.getDestroyedCount());
+        assertEquals(0, this.pool.getNumIdle());
+        assertEquals(0, this.pool.getNumActive());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.pool.PooledRebindContextSource#getContext(java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testGetContextMaxLifetime() throws Exception {
+        this.pool.setMaxLifetime(1);
+        this.pool.afterPropertiesSet();
+
+        this.pool.getContext("user1", "password1").close();
+        Thread.sleep(5);
+        this.pool.getContext("user1", "password1").close();
+
+        assertEquals(2, this.targetContextSource.opened);
+        assertTrue(this.pool.getDestroyedCount() >= 1);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.pool.PooledRebindContextSource#evict()}.
+     */
+    public final void testEvict() throws Exception {
+        this.pool.setMaxIdleTime(1);
+        this.pool.afterPropertiesSet();
+
+        this.pool.getContext("user1", "password1").close();
+        assertEquals(1, this.pool.getNumIdle());
+
+        Thread.sleep(5);
+        this.pool.evict();
+
+        assertEquals(0, this.pool.getNumIdle());
+        assertEquals(1, this.pool.getDestroyedCount());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.pool.PooledRebindContextSource#getReadOnlyContext()}
+     * .
+     */
+    public final void testGetReadOnlyContextServiceAccount() throws Exception {
+        this.pool.setServicePrincipal("service");
+        this.pool.setServiceCredentials("servicePassword");
+        this.pool.setMinIdle(2);
+        this.pool.afterPropertiesSet();
+
+        assertEquals(2, this.pool.getNumIdle());
+
+        // connection already bound as the service account: no rebind
+        this.pool.getReadOnlyContext().close();
+        assertEquals(0, this.targetContextSource.rebinds);
+
+        // user bind, then service account again: rebind twice
+        this.pool.getContext("user1", "password1").close();
+        this.pool.getReadOnlyContext().close();
+        assertEquals(2, this.targetContextSource.rebinds);
+        assertEquals(2, this.targetContextSource.opened);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.pool.PooledRebindContextSource#getContext(java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testGetContextRemovesCredentialsOnRelease() throws Exception {
+        this.pool.afterPropertiesSet();
+
+        final DirContext context = this.pool.getContext("user1", "password1");
+        assertEquals("password1", context.getEnvironment().get(Context.SECURITY_CREDENTIALS));
+        context.close();
+
+        // the idle connection does not keep the password of user1
+        assertEquals(1, this.pool.getNumIdle());
+        assertNull(this.targetContextSource.environment.get(Context.SECURITY_CREDENTIALS));
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.pool.PooledRebindContextSource#getReadOnlyContext()}
+     * .
+     */
+    public final void testGetReadOnlyContextWithoutCredentials() throws Exception {
+        this.pool.setServicePrincipal("service");
+        this.pool.setServiceCredentials("servicePassword");
+        this.pool.setMinIdle(1);
+        this.pool.afterPropertiesSet();
+
+        final DirContext service = this.pool.getReadOnlyContext();
+        try {
+            // reused without a rebind, and without the service password
+            assertEquals(0, this.targetContextSource.rebinds);
+            assertNull(service.getEnvironment().get(Context.SECURITY_CREDENTIALS));
+        } finally {
+            service.close();
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.pool.PooledRebindContextSource#ensureMinIdle()}
+     * .
+     */
+    public final void testEnsureMinIdleWithinMaxTotal() throws Exception {
+        this.pool.setServicePrincipal("service");
+        this.pool.setServiceCredentials("servicePassword");
+        this.pool.setMaxTotal(2);
+        this.pool.setMinIdle(2);
+        this.pool.afterPropertiesSet();
+
+        final DirContext first = this.pool.getContext("user1", "password1");
+        final DirContext second = this.pool.getContext("user2", "password2");
+        this.pool.ensureMinIdle();
+
+        // both connections are in use: no idle connection is opened beyond maxTotal
+        assertEquals(0, this.pool.getNumIdle());
+        assertEquals(2, this.targetContextSource.opened);
+
+        first.close();
+        second.close();
+        assertEquals(2, this.pool.getNumIdle());
+    }
+}
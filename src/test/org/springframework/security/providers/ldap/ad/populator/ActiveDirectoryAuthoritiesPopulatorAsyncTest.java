@@ -0,0 +1,106 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.populator;
+
+import java.util.Collection;
+import java.util.concurrent.*;
+
+import junit.framework.TestCase;
+
+import org.springframework.core.task.support.TaskExecutorAdapter;
+import org.springframework.ldap.core.*;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.ldap.DefaultSpringSecurityContextSource;
+import org.springframework.util.concurrent.*;
+
+/**
+ * Tests for ActiveDirectoryAuthoritiesPopulator looking up the groups once the user has been
+ * authenticated, on its <tt>asyncExecutor</tt>. The groups are read from the memberOf attribute of
+ * the user entry (MEMBER_OF strategy), so no LDAP server is needed.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class ActiveDirectoryAuthoritiesPopulatorAsyncTest extends TestCase {
+
+    private ActiveDirectoryAuthoritiesPopulator populator;
+
+    private DirContextAdapter user;
+
+    private ExecutorService executor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        final DefaultSpringSecurityContextSource contextSource =
+                new DefaultSpringSecurityContextSource("ldap://localhost:389/dc=corp,dc=com");
+
+        this.executor = Executors.newSingleThreadExecutor();
+        this.populator = new ActiveDirectoryAuthoritiesPopulator(contextSource, "ou=groups");
+        this.populator.setGroupResolutionStrategy(GroupResolutionStrategy.MEMBER_OF);
+        this.populator.setAsyncExecutor(new TaskExecutorAdapter(this.executor));
+
+        this.user = new DirContextAdapter("cn=bob,ou=people,dc=corp,dc=com");
+        this.user.setAttributeValues("memberOf",
+            new String[] { "CN=Sales,OU=Groups,DC=corp,DC=com",
+                    "CN=Admins,OU=Groups,DC=corp,DC=com" });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.executor.shutdownNow();
+
+        super.tearDown();
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryAuthoritiesPopulator#getGrantedAuthoritiesAsync(org.springframework.util.concurrent.ListenableFuture, java.lang.String)}
+     * .
+     */
+    public final void testGetGrantedAuthoritiesAsync() throws Exception {
+        final SettableListenableFuture<DirContextOperations> userFuture =
+                new SettableListenableFuture<DirContextOperations>();
+        final ListenableFuture<Collection<? extends GrantedAuthority>> authorities =
+                this.populator.getGrantedAuthoritiesAsync(userFuture, "bob");
+        assertFalse(authorities.isDone());
+
+        userFuture.set(this.user);
+
+        assertEquals(2, authorities.get(5, TimeUnit.SECONDS).size());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryAuthoritiesPopulator#getGrantedAuthoritiesAsync(org.springframework.util.concurrent.ListenableFuture, java.lang.String)}
+     * .
+     */
+    public final void testGetGrantedAuthoritiesAsyncUserFailed() throws Exception {
+        final SettableListenableFuture<DirContextOperations> userFuture =
+                new SettableListenableFuture<DirContextOperations>();
+        final ListenableFuture<Collection<? extends GrantedAuthority>> authorities =
+                this.populator.getGrantedAuthoritiesAsync(userFuture, "bob");
+
+        final RuntimeException failure = new RuntimeException("bad credentials");
+        userFuture.setException(failure);
+
+        try {
+            authorities.get(5, TimeUnit.SECONDS);
+            fail("ExecutionException expected");
+        } catch (final ExecutionException e) {
+            assertSame(failure, e.getCause());
+        }
+    }
+}
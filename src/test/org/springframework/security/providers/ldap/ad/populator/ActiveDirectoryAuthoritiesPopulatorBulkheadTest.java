@@ -0,0 +1,103 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.populator;
+
+import junit.framework.TestCase;
+
+import org.springframework.ldap.core.DirContextAdapter;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.security.providers.ldap.ad.pool.BulkheadContextSource;
+import org.springframework.security.providers.ldap.ad.util.*;
+
+/**
+ * Tests for ActiveDirectoryAuthoritiesPopulator isolating the group lookups from the binds: the
+ * lookups run on their own <tt>lookupExecutor</tt> and take their connections through a
+ * BulkheadContextSource.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class ActiveDirectoryAuthoritiesPopulatorBulkheadTest extends TestCase {
+    private FakeGroupDirectory directory;
+
+    private ActiveDirectoryAuthoritiesPopulator populator;
+
+    private BulkheadContextSource bulkhead;
+
+    private DirContextAdapter user;
+
+    private ThreadPoolTaskExecutor loginExecutor;
+
+    private ThreadPoolTaskExecutor lookupExecutor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.directory = new FakeGroupDirectory();
+        this.bulkhead = new BulkheadContextSource("group-lookups", this.directory, 1);
+
+        this.populator = this.directory.createPopulator();
+        this.populator.setBindContextSource(this.bulkhead);
+
+        this.user = FakeGroupDirectory.createUser("bob");
+
+        this.loginExecutor =
+                (ThreadPoolTaskExecutor) TaskExecutorUtils.createBoundedExecutor("login-", 1, 1);
+        this.lookupExecutor =
+                (ThreadPoolTaskExecutor) TaskExecutorUtils.createBoundedExecutor("lookup-", 1, 1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        LoginDeadline.remove();
+        this.loginExecutor.shutdown();
+        this.lookupExecutor.shutdown();
+
+        super.tearDown();
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryAuthoritiesPopulator#getGrantedAuthorities(org.springframework.ldap.core.DirContextOperations, java.lang.String)}
+     * .
+     */
+    public final void testGetGrantedAuthoritiesOnLookupExecutor() {
+        this.populator.setLookupExecutor(this.lookupExecutor);
+        LoginDeadline.start(5000, this.loginExecutor);
+
+        assertEquals(2, this.populator.getGrantedAuthorities(this.user, "bob").size());
+
+        // the lookup did not take a thread of the binds
+        assertTrue(this.directory.getSearchThread().getName().startsWith("lookup-"));
+        // its connection was taken from the bulkhead of the lookups, and returned
+        assertEquals(1, this.bulkhead.getAcquiredCount());
+        assertEquals(0, this.bulkhead.getActiveCount());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryAuthoritiesPopulator#getGrantedAuthorities(org.springframework.ldap.core.DirContextOperations, java.lang.String)}
+     * .
+     */
+    public final void testGetGrantedAuthoritiesWithoutLookupExecutor() {
+        LoginDeadline.start(5000, this.loginExecutor);
+
+        assertEquals(2, this.populator.getGrantedAuthorities(this.user, "bob").size());
+
+        // without lookupExecutor the lookup shares the threads of the binds
+        assertTrue(this.directory.getSearchThread().getName().startsWith("login-"));
+        assertEquals(0, this.bulkhead.getActiveCount());
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.populator;
+
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.springframework.ldap.core.DirContextAdapter;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.providers.ldap.ad.cache.ExpiringLruCache;
+import org.springframework.security.providers.ldap.ad.util.*;
+
+/**
+ * Tests for ActiveDirectoryAuthoritiesPopulator with a circuit breaker and the last known
+ * authorities as fallback, against a fake directory which can be made unavailable.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class ActiveDirectoryAuthoritiesPopulatorCircuitBreakerTest extends TestCase {
+
+    private FakeGroupDirectory directory;
+
+    private ActiveDirectoryAuthoritiesPopulator populator;
+
+    private DirContextAdapter user;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.directory = new FakeGroupDirectory();
+        this.populator = this.directory.createPopulator();
+        this.user = FakeGroupDirectory.createUser("bob");
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryAuthoritiesPopulator#getGrantedAuthorities(org.springframework.ldap.core.DirContextOperations, java.lang.String)}
+     * .
+     */
+    public final void testGetGrantedAuthoritiesLastKnown() {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker("ldap-groups");
+        circuitBreaker.setWindowSize(1);
+        circuitBreaker.setMinimumCalls(1);
+        this.populator.setCircuitBreaker(circuitBreaker);
+        this.populator.setLastKnownAuthorities(
+            new ExpiringLruCache<String, Set<GrantedAuthority>>(10, 60000));
+
+        assertEquals(2, this.populator.getGrantedAuthorities(this.user, "bob").size());
+
+        // the directory fails: the roles of the last lookup are used, and the circuit opens
+        this.directory.setUnavailable(true);
+        assertEquals(2, this.populator.getGrantedAuthorities(this.user, "bob").size());
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+        // the circuit is open: the directory is not searched
+        this.directory.setUnavailable(false);
+        assertEquals(2, this.populator.getGrantedAuthorities(this.user, "bob").size());
+        assertEquals(1, this.directory.getSearches());
+        assertEquals(1, circuitBreaker.getRejectedCount());
+
+        // no roles are known for alice
+        final DirContextAdapter alice = FakeGroupDirectory.createUser("alice");
+        try {
+            this.populator.getGrantedAuthorities(alice, "alice");
+            fail("CircuitBreakerOpenException expected");
+        } catch (final CircuitBreakerOpenException e) {
+            assertEquals(2, circuitBreaker.getRejectedCount());
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryAuthoritiesPopulator#getGrantedAuthorities(org.springframework.ldap.core.DirContextOperations, java.lang.String)}
+     * .
+     */
+    public final void testGetGrantedAuthoritiesUnavailable() {
+        this.directory.setUnavailable(true);
+
+        try {
+            this.populator.getGrantedAuthorities(this.user, "bob");
+            fail("CommunicationException expected");
+        } catch (final org.springframework.ldap.CommunicationException e) {
+            // no fallback configured
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.populator;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.*;
+
+import junit.framework.TestCase;
+
+import org.springframework.ldap.core.DirContextAdapter;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.security.authentication.AuthenticationServiceException;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.ldap.DefaultSpringSecurityContextSource;
+import org.springframework.security.providers.ldap.ad.util.*;
+
+/**
+ * Tests for ActiveDirectoryAuthoritiesPopulator running the group lookup within the login deadline
+ * started by the authenticator.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class ActiveDirectoryAuthoritiesPopulatorDeadlineTest extends TestCase {
+
+    private FakeGroupDirectory directory;
+
+    private ActiveDirectoryAuthoritiesPopulator populator;
+
+    private DirContextAdapter user;
+
+    private ThreadPoolTaskExecutor loginExecutor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.directory = new FakeGroupDirectory();
+        this.populator = this.directory.createPopulator();
+        this.user = FakeGroupDirectory.createUser("bob");
+
+        this.loginExecutor =
+                (ThreadPoolTaskExecutor) TaskExecutorUtils.createBoundedExecutor("login-", 1, 1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        LoginDeadline.remove();
+        this.loginExecutor.shutdown();
+
+        super.tearDown();
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryAuthoritiesPopulator#getGrantedAuthorities(org.springframework.ldap.core.DirContextOperations, java.lang.String)}
+     * .
+     */
+    public final void testGetGrantedAuthoritiesWithinDeadline() {
+        LoginDeadline.start(5000, this.loginExecutor);
+
+        final Collection<? extends GrantedAuthority> authorities =
+                this.populator.getGrantedAuthorities(this.user, "bob");
+
+        assertEquals(2, authorities.size());
+        // the lookup ran on the executor, and the deadline ended with the login
+        assertNotSame(Thread.currentThread(), this.directory.getSearchThread());
+        assertNull(LoginDeadline.current());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryAuthoritiesPopulator#getGrantedAuthorities(org.springframework.ldap.core.DirContextOperations, java.lang.String)}
+     * .
+     */
+    public final void testGetGrantedAuthoritiesDeadlineExpired() throws Exception {
+        LoginDeadline.start(1, this.loginExecutor);
+        Thread.sleep(10);
+
+        try {
+            this.populator.getGrantedAuthorities(this.user, "bob");
+            fail("AuthenticationServiceException expected");
+        } catch (final AuthenticationServiceException e) {
+            assertEquals(0, this.directory.getSearches());
+            assertNull(LoginDeadline.current());
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryAuthoritiesPopulator#getGrantedAuthorities(org.springframework.ldap.core.DirContextOperations, java.lang.String)}
+     * .
+     */
+    public final void testGetGrantedAuthoritiesDomainControllerHangs() throws Exception {
+        final ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        final List<Socket> backlog = fillBacklog(server);
+        try {
+            final DefaultSpringSecurityContextSource contextSource =
+                    new DefaultSpringSecurityContextSource(
+                        "ldap://127.0.0.1:" + server.getLocalPort() + "/dc=corp,dc=com");
+            contextSource.afterPropertiesSet();
+            this.populator.setBindContextSource(contextSource);
+
+            LoginDeadline.start(300, this.loginExecutor);
+            try {
+                this.populator.getGrantedAuthorities(this.user, "bob");
+                fail("AuthenticationServiceException expected");
+            } catch (final AuthenticationServiceException e) {
+                assertTrue(e.getMessage().contains("exceeded"));
+            }
+
+            // a blocked connect ignores the interrupt: only its timeout frees the thread
+            final long end = System.currentTimeMillis() + 5000;
+            while (this.loginExecutor.getActiveCount() > 0 && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+
+            assertEquals(0, this.loginExecutor.getActiveCount());
+        } finally {
+            for (final Socket socket : backlog) {
+                socket.close();
+            }
+
+            server.close();
+        }
+    }
+
+    /**
+     * Fills the accept queue of server, which is never accepted from: further connection attempts
+     * are not answered, as by a domain controller which hangs.
+     *
+     * @param server server socket.
+     * @return connections filling the queue, to close after the test.
+     */
+    private static List<Socket> fillBacklog(final ServerSocket server) throws Exception {
+        final List<Socket> backlog = new ArrayList<Socket>();
+        final InetSocketAddress address =
+                new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+        for (int i = 0; i < 100; i++) {
+            final Socket socket = new Socket();
+            try {
+                socket.connect(address, 200);
+            } catch (final SocketTimeoutException e) {
+                socket.close();
+                return backlog;
+            }
+
+            backlog.add(socket);
+        }
+
+        fail("Could not fill the accept queue");
+        return backlog;
+    }
+}
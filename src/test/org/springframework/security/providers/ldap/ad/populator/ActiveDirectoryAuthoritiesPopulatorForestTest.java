@@ -0,0 +1,264 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.populator;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+import javax.naming.*;
+import javax.naming.directory.*;
+import javax.naming.ldap.LdapContext;
+
+import junit.framework.TestCase;
+
+import org.springframework.ldap.core.*;
+import org.springframework.ldap.support.LdapUtils;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.ldap.DefaultSpringSecurityContextSource;
+import org.springframework.security.providers.ldap.ad.dc.FakeForestDomainRouter;
+import org.springframework.security.providers.ldap.ad.populator.TokenGroupsResolverTest.CollectionEnumeration;
+import org.springframework.security.providers.ldap.ad.util.NamingUtils;
+
+/**
+ * Tests for ActiveDirectoryAuthoritiesPopulator routed by a ForestDomainRouter, against a fake
+ * forest corp.com with the child domain child.corp.com. The group Sales is found below the group
+ * search base of the child domain only.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class ActiveDirectoryAuthoritiesPopulatorForestTest extends TestCase {
+
+    private static final String SALES_SID = "S-1-5-21-100-200-300-1101";
+
+    /**
+     * ContextSource of one domain of the fake forest, recording the binds and reads.
+     */
+    static class DomainContextSource implements ContextSource {
+        /**
+         * Groups of the domain by SID.
+         */
+        final Map<String, String> groups = new HashMap<String, String>();
+
+        final Hashtable<String, Object> environment = new Hashtable<String, Object>();
+
+        /**
+         * Principal of the last bind.
+         */
+        String principal;
+
+        /**
+         * DN of the last tokenGroups read.
+         */
+        String userDn;
+
+        /**
+         * Base of the last group search.
+         */
+        String searchBase;
+
+        @Override
+        public DirContext getContext(final String principal, final String credentials) {
+            this.principal = principal;
+            return createContext();
+        }
+
+        @Override
+        public DirContext getReadOnlyContext() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public DirContext getReadWriteContext() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Returns a context which reads the tokenGroups of every user as the SID of Sales, and
+         * whose searches return the groups of the domain.
+         */
+        private DirContext createContext() {
+            return (DirContext) Proxy.newProxyInstance(LdapContext.class.getClassLoader(),
+                new Class<?>[] { LdapContext.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method,
+                            final Object[] args) {
+                        if ("getEnvironment".equals(method.getName())) {
+                            return DomainContextSource.this.environment;
+                        }
+
+                        if ("getAttributes".equals(method.getName())) {
+                            DomainContextSource.this.userDn = (String) args[0];
+                            final Attributes attributes = new BasicAttributes(true);
+                            attributes.put("tokenGroups",
+                                LdapUtils.convertStringSidToBinary(SALES_SID));
+                            return attributes;
+                        }
+
+                        if ("search".equals(method.getName())) {
+                            DomainContextSource.this.searchBase = (String) args[0];
+                            return search((String) args[1]);
+                        }
+
+                        return null;
+                    }
+                });
+        }
+
+        /**
+         * Returns the groups of the domain; for an objectSid filter only those with a matching
+         * SID.
+         */
+        private NamingEnumeration<SearchResult> search(final String filter) {
+            final List<SearchResult> results = new ArrayList<SearchResult>();
+            for (final Map.Entry<String, String> group : this.groups.entrySet()) {
+                final byte[] sid = LdapUtils.convertStringSidToBinary(group.getKey());
+                final String sidFilter = "(objectSid=" + NamingUtils.escapeFilterValue(sid) + ")";
+                if (!filter.contains("objectSid") || filter.contains(sidFilter)) {
+                    final Attributes attributes = new BasicAttributes(true);
+                    attributes.put("objectSid", sid);
+                    attributes.put("cn", group.getValue());
+                    final String dn = "cn=" + group.getValue() + ",ou=groups";
+                    results.add(new SearchResult(dn,
+                        new DirContextAdapter(attributes, LdapUtils.newLdapName(dn)), attributes));
+                }
+            }
+
+            return new CollectionEnumeration<SearchResult>(results);
+        }
+    }
+
+    private final DomainContextSource corp = new DomainContextSource();
+
+    private final DomainContextSource child = new DomainContextSource();
+
+    private ActiveDirectoryAuthoritiesPopulator populator;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.child.groups.put(SALES_SID, "Sales");
+
+        final Map<String, ContextSource> domainContextSources =
+                new HashMap<String, ContextSource>();
+        domainContextSources.put("CORP", this.corp);
+        domainContextSources.put("CHILD", this.child);
+
+        this.populator = new ActiveDirectoryAuthoritiesPopulator(
+            new DefaultSpringSecurityContextSource("ldap://localhost:389/DC=corp,DC=com"),
+            "OU=Groups");
+        this.populator.setDomainRouter(new FakeForestDomainRouter(domainContextSources));
+    }
+
+    private static DirContextAdapter createUser(final String dn) {
+        final DirContextAdapter user = new DirContextAdapter(dn);
+        user.setAttributeValue(Context.SECURITY_CREDENTIALS, "secret");
+        return user;
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryAuthoritiesPopulator#getGrantedAuthorities(org.springframework.ldap.core.DirContextOperations, java.lang.String)}
+     * .
+     */
+    public final void testGetGrantedAuthoritiesSearch() {
+        final Collection<? extends GrantedAuthority> authorities = this.populator
+            .getGrantedAuthorities(createUser("CN=bob,CN=Users,DC=child,DC=corp,DC=com"),
+                "CHILD\\bob");
+
+        assertEquals(Collections.singleton(new SimpleGrantedAuthority("ROLE_SALES")),
+            new HashSet<GrantedAuthority>(authorities));
+        // bound as the user in the child domain, searched relative to its naming context
+        assertEquals("bob@child.corp.com", this.child.principal);
+        assertEquals("OU=Groups", this.child.searchBase);
+        assertNull(this.corp.principal);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryAuthoritiesPopulator#getGrantedAuthorities(org.springframework.ldap.core.DirContextOperations, java.lang.String)}
+     * .
+     */
+    public final void testGetGrantedAuthoritiesTokenGroups() {
+        this.populator.setGroupResolutionStrategy(GroupResolutionStrategy.TOKEN_GROUPS);
+
+        final Collection<? extends GrantedAuthority> authorities = this.populator
+            .getGrantedAuthorities(createUser("CN=bob,CN=Users,DC=child,DC=corp,DC=com"),
+                "CHILD\\bob");
+
+        assertEquals(Collections.singleton(new SimpleGrantedAuthority("ROLE_SALES")),
+            new HashSet<GrantedAuthority>(authorities));
+        // relative to the naming context of the child domain, not to the base DN of contextSource
+        assertEquals("CN=bob,CN=Users", this.child.userDn);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryAuthoritiesPopulator#getGrantedAuthorities(org.springframework.ldap.core.DirContextOperations, java.lang.String)}
+     * .
+     */
+    public final void testGetGrantedAuthoritiesTokenGroupsCachedPerDomain() {
+        this.populator.setGroupResolutionStrategy(GroupResolutionStrategy.TOKEN_GROUPS);
+
+        // the SID of Sales has no group below the group search base of the root domain
+        assertTrue(this.populator.getGrantedAuthorities(
+            createUser("CN=alice,CN=Users,DC=corp,DC=com"), "CORP\\alice").isEmpty());
+
+        final Collection<? extends GrantedAuthority> authorities = this.populator
+            .getGrantedAuthorities(createUser("CN=bob,CN=Users,DC=child,DC=corp,DC=com"),
+                "CHILD\\bob");
+
+        assertEquals(Collections.singleton(new SimpleGrantedAuthority("ROLE_SALES")),
+            new HashSet<GrantedAuthority>(authorities));
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryAuthoritiesPopulator#getGrantedAuthorities(org.springframework.ldap.core.DirContextOperations, java.lang.String)}
+     * .
+     */
+    public final void testGetGrantedAuthoritiesTokenGroupsUserOutsideDomain() {
+        this.populator.setGroupResolutionStrategy(GroupResolutionStrategy.TOKEN_GROUPS);
+
+        try {
+            this.populator.getGrantedAuthorities(createUser("CN=bob,CN=Users,DC=other,DC=com"),
+                "CHILD\\bob");
+            fail("IllegalStateException expected");
+        } catch (final IllegalStateException e) {
+            // the DN is not read as if it were relative to the naming context
+            assertNull(this.child.userDn);
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryAuthoritiesPopulator#getMemberOfRoles(org.springframework.ldap.core.DirContextOperations)}
+     * .
+     */
+    public final void testGetMemberOfRoles() {
+        final DirContextAdapter user =
+                new DirContextAdapter("CN=bob,CN=Users,DC=child,DC=corp,DC=com");
+        user.setAttributeValues("memberOf", new String[] {
+                "CN=Sales,OU=Groups,DC=child,DC=corp,DC=com",
+                "CN=Staff,OU=Groups,DC=corp,DC=com" });
+
+        final Set<GrantedAuthority> authorities = this.populator.getMemberOfRoles(user);
+
+        // only the groups below the group search base of the domain of the user
+        assertEquals(Collections.singleton(new SimpleGrantedAuthority("ROLE_SALES")),
+            authorities);
+    }
+}
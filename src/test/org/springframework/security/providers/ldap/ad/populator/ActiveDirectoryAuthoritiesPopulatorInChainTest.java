@@ -0,0 +1,94 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.populator;
+
+import java.util.Collection;
+
+import javax.naming.directory.SearchControls;
+
+import junit.framework.TestCase;
+
+import org.springframework.ldap.core.DirContextAdapter;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+
+/**
+ * Tests for ActiveDirectoryAuthoritiesPopulator with the IN_CHAIN group resolution strategy, against
+ * a fake directory which records the group search.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class ActiveDirectoryAuthoritiesPopulatorInChainTest extends TestCase {
+
+    private FakeGroupDirectory directory;
+
+    private ActiveDirectoryAuthoritiesPopulator populator;
+
+    private DirContextAdapter user;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.directory = new FakeGroupDirectory();
+        this.populator = this.directory.createPopulator();
+        this.user = FakeGroupDirectory.createUser("bob");
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryAuthoritiesPopulator#getGrantedAuthorities(org.springframework.ldap.core.DirContextOperations, java.lang.String)}
+     * .
+     */
+    public final void testGetGrantedAuthorities() {
+        final Collection<? extends GrantedAuthority> authorities =
+                this.populator.getGrantedAuthorities(this.user, "bob");
+
+        assertEquals(2, authorities.size());
+        assertTrue(authorities.contains(new SimpleGrantedAuthority("ROLE_SALES")));
+        assertTrue(authorities.contains(new SimpleGrantedAuthority("ROLE_STAFF")));
+        assertEquals("member:1.2.840.113556.1.4.1941:=cn=bob,ou=people,dc=corp,dc=com",
+            this.directory.getFilter());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryAuthoritiesPopulator#getGrantedAuthorities(org.springframework.ldap.core.DirContextOperations, java.lang.String)}
+     * .
+     */
+    public final void testGetGrantedAuthoritiesSearchesSubtree() {
+        this.populator.getGrantedAuthorities(this.user, "bob");
+
+        // groups in nested OUs below the group search base are found by default
+        assertEquals(SearchControls.SUBTREE_SCOPE, this.directory.getControls().getSearchScope());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryAuthoritiesPopulator#getInChainRoles(java.lang.String, java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testGetInChainRolesTimeLimit() {
+        this.populator.setInChainTimeLimit(2500);
+        this.populator.getSearchControls().setTimeLimit(100);
+        this.populator.setSearchSubtree(false);
+
+        this.populator.getInChainRoles("cn=bob,ou=people,dc=corp,dc=com", "bob", "secret");
+
+        assertEquals(2500, this.directory.getControls().getTimeLimit());
+        assertEquals(SearchControls.ONELEVEL_SCOPE, this.directory.getControls().getSearchScope());
+        assertEquals("cn", this.directory.getControls().getReturningAttributes()[0]);
+    }
+}
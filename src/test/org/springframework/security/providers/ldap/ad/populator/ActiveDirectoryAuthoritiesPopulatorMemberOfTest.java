@@ -0,0 +1,86 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.populator;
+
+import java.util.*;
+
+import junit.framework.TestCase;
+
+import org.springframework.ldap.core.*;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.ldap.DefaultSpringSecurityContextSource;
+
+/**
+ * Tests for ActiveDirectoryAuthoritiesPopulator with the MEMBER_OF group resolution strategy. No
+ * LDAP server is needed: the groups are read from the user entry.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class ActiveDirectoryAuthoritiesPopulatorMemberOfTest extends TestCase {
+
+    private ActiveDirectoryAuthoritiesPopulator populator;
+
+    private DirContextAdapter user;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        final DefaultSpringSecurityContextSource contextSource =
+                new DefaultSpringSecurityContextSource("ldap://localhost:389/dc=corp,dc=com");
+
+        this.populator = new ActiveDirectoryAuthoritiesPopulator(contextSource, "ou=groups");
+        this.populator.setGroupResolutionStrategy(GroupResolutionStrategy.MEMBER_OF);
+
+        this.user = new DirContextAdapter("cn=bob,ou=people,dc=corp,dc=com");
+        this.user.setAttributeValues("memberOf",
+            new String[] { "CN=Sales,OU=Groups,DC=corp,DC=com",
+                    "CN=Admins,OU=Groups,DC=corp,DC=com",
+                    "CN=Printers,OU=Resources,DC=corp,DC=com" });
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryAuthoritiesPopulator#getGrantedAuthorities(org.springframework.ldap.core.DirContextOperations, java.lang.String)}
+     * .
+     */
+    public final void testGetGrantedAuthorities() {
+        this.populator.setDefaultRole("ROLE_USER");
+
+        final Collection<? extends GrantedAuthority> authorities =
+                this.populator.getGrantedAuthorities(this.user, "bob");
+
+        assertEquals(3, authorities.size());
+        assertTrue(authorities.contains(new SimpleGrantedAuthority("ROLE_SALES")));
+        assertTrue(authorities.contains(new SimpleGrantedAuthority("ROLE_ADMINS")));
+        assertTrue(authorities.contains(new SimpleGrantedAuthority("ROLE_USER")));
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryAuthoritiesPopulator#getMemberOfRoles(org.springframework.ldap.core.DirContextOperations)}
+     * .
+     */
+    public final void testGetMemberOfRolesNoGroups() {
+        final DirContextAdapter userWithoutGroups =
+                new DirContextAdapter("cn=joe,ou=people,dc=corp,dc=com");
+
+        final Set<GrantedAuthority> authorities =
+                this.populator.getMemberOfRoles(userWithoutGroups);
+
+        assertTrue(authorities.isEmpty());
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.populator;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.naming.directory.*;
+
+import junit.framework.TestCase;
+
+import org.springframework.core.task.support.TaskExecutorAdapter;
+import org.springframework.ldap.core.DirContextAdapter;
+import org.springframework.security.authentication.AuthenticationServiceException;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.providers.ldap.ad.util.LoginDeadline;
+
+/**
+ * Tests for ActiveDirectoryAuthoritiesPopulator searching several group search bases, against a
+ * fake directory with one group per base. Searches of the base "ou=slow" do not return within the
+ * test timeouts.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class ActiveDirectoryAuthoritiesPopulatorMultiBaseTest extends TestCase {
+
+    private ActiveDirectoryAuthoritiesPopulator populator;
+
+    private DirContextAdapter user;
+
+    private ExecutorService executor;
+
+    /**
+     * Groups of the fake directory by base.
+     */
+    private final Map<String, String> groups = new HashMap<String, String>();
+
+    /**
+     * Controls of the searches by base.
+     */
+    private final Map<String, SearchControls> controls =
+            new ConcurrentHashMap<String, SearchControls>();
+
+    /**
+     * Login deadlines current during the searches, by base.
+     */
+    private final Map<String, LoginDeadline> deadlines =
+            new ConcurrentHashMap<String, LoginDeadline>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.groups.put("ou=sales", "Sales");
+        this.groups.put("ou=it", "Admins");
+        this.groups.put("ou=slow", "Slow");
+
+        this.executor = Executors.newFixedThreadPool(3);
+        this.populator = new ActiveDirectoryAuthoritiesPopulator(
+            FakeGroupDirectory.createContextSource(), "ou=groups");
+        this.populator.setGroupSearchExecutor(new TaskExecutorAdapter(this.executor));
+        this.populator.setBindContextSource(new FakeGroupDirectory() {
+            /**
+             * Returns the group of the searched base.
+             */
+            @Override
+            protected List<SearchResult> search(final String base,
+                    final SearchControls searchControls) throws Exception {
+                final ActiveDirectoryAuthoritiesPopulatorMultiBaseTest test =
+                        ActiveDirectoryAuthoritiesPopulatorMultiBaseTest.this;
+                test.controls.put(base, searchControls);
+                if (LoginDeadline.current() != null) {
+                    test.deadlines.put(base, LoginDeadline.current());
+                }
+                if ("ou=slow".equals(base)) {
+                    Thread.sleep(5000);
+                }
+
+                return Collections.singletonList(createGroup(test.groups.get(base), base));
+            }
+        });
+
+        this.user = FakeGroupDirectory.createUser("bob");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.executor.shutdownNow();
+
+        super.tearDown();
+    }
+
+    private static GroupSearchBase createBase(final String base, final boolean optional) {
+        final GroupSearchBase searchBase = new GroupSearchBase(base);
+        searchBase.setOptional(optional);
+        searchBase.setTimeout(200);
+        return searchBase;
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryAuthoritiesPopulator#getGrantedAuthorities(org.springframework.ldap.core.DirContextOperations, java.lang.String)}
+     * .
+     */
+    public final void testGetGrantedAuthorities() {
+        final GroupSearchBase it = createBase("ou=it", false);
+        it.setSearchSubtree(false);
+        this.populator.setGroupSearchBases(Arrays.asList(createBase("ou=sales", false), it));
+
+        final Collection<? extends GrantedAuthority> authorities =
+                this.populator.getGrantedAuthorities(this.user, "bob");
+
+        assertEquals(2, authorities.size());
+        assertTrue(authorities.contains(new SimpleGrantedAuthority("ROLE_SALES")));
+        assertTrue(authorities.contains(new SimpleGrantedAuthority("ROLE_ADMINS")));
+        assertEquals(SearchControls.ONELEVEL_SCOPE, this.controls.get("ou=it").getSearchScope());
+        assertEquals(200, this.controls.get("ou=it").getTimeLimit());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryAuthoritiesPopulator#getGrantedAuthorities(org.springframework.ldap.core.DirContextOperations, java.lang.String)}
+     * .
+     */
+    public final void testGetGrantedAuthoritiesWithinLoginDeadline() {
+        this.populator.setGroupSearchBases(
+            Arrays.asList(createBase("ou=sales", false), createBase("ou=it", false)));
+        final LoginDeadline deadline =
+                LoginDeadline.start(5000, new TaskExecutorAdapter(this.executor));
+
+        assertEquals(2, this.populator.getGrantedAuthorities(this.user, "bob").size());
+
+        // the connections of the searches get the timeouts of the login
+        assertSame(deadline, this.deadlines.get("ou=sales"));
+        assertSame(deadline, this.deadlines.get("ou=it"));
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryAuthoritiesPopulator#getMultiBaseRoles(java.lang.String, java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testGetMultiBaseRolesOptionalTimeout() {
+        this.populator.setGroupSearchBases(
+            Arrays.asList(createBase("ou=sales", false), createBase("ou=slow", true)));
+
+        final long startTime = System.currentTimeMillis();
+        final Set<GrantedAuthority> authorities = this.populator
+            .getMultiBaseRoles("cn=bob,ou=people,dc=corp,dc=com", "bob", "secret");
+
+        assertEquals(Collections.singleton(new SimpleGrantedAuthority("ROLE_SALES")),
+            authorities);
+        assertTrue(System.currentTimeMillis() - startTime < 4000);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryAuthoritiesPopulator#getMultiBaseRoles(java.lang.String, java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testGetMultiBaseRolesRequiredTimeout() {
+        this.populator.setGroupSearchBases(
+            Arrays.asList(createBase("ou=sales", false), createBase("ou=slow", false)));
+
+        try {
+            this.populator.getMultiBaseRoles("cn=bob,ou=people,dc=corp,dc=com", "bob", "secret");
+            fail("AuthenticationServiceException expected");
+        } catch (final AuthenticationServiceException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+}
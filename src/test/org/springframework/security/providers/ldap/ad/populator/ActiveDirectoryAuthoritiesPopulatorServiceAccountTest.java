@@ -0,0 +1,114 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.populator;
+
+import java.util.Collection;
+
+import javax.naming.directory.DirContext;
+
+import junit.framework.TestCase;
+
+import org.springframework.ldap.core.*;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+
+/**
+ * Tests for ActiveDirectoryAuthoritiesPopulator searching the groups with a service account when
+ * the password of the user is not available.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class ActiveDirectoryAuthoritiesPopulatorServiceAccountTest extends TestCase {
+    /**
+     * ContextSource which must not be used: the user is not bound.
+     */
+    static class UnusedContextSource implements ContextSource {
+        @Override
+        public DirContext getContext(final String principal, final String credentials) {
+            throw new AssertionError("the user must not be bound");
+        }
+
+        @Override
+        public DirContext getReadOnlyContext() {
+            throw new AssertionError("the user must not be bound");
+        }
+
+        @Override
+        public DirContext getReadWriteContext() {
+            throw new AssertionError("the user must not be bound");
+        }
+    }
+
+    private ActiveDirectoryAuthoritiesPopulator populator;
+
+    /**
+     * Number of contexts obtained from the service account.
+     */
+    private int serviceContexts;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.populator = new FakeGroupDirectory().createPopulator();
+        this.populator.setBindContextSource(new UnusedContextSource());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryAuthoritiesPopulator#getGrantedAuthorities(org.springframework.ldap.core.DirContextOperations, java.lang.String)}
+     * .
+     */
+    public final void testGetGrantedAuthoritiesServiceAccount() {
+        this.populator.setServiceContextSource(new FakeGroupDirectory() {
+            @Override
+            public DirContext getContext(final String principal, final String credentials) {
+                throw new AssertionError("the service account must not be re-bound");
+            }
+
+            @Override
+            public DirContext getReadOnlyContext() {
+                ActiveDirectoryAuthoritiesPopulatorServiceAccountTest.this.serviceContexts++;
+                return super.getReadOnlyContext();
+            }
+        });
+
+        // the authenticator did not store the password
+        final DirContextAdapter userWithoutPassword =
+                new DirContextAdapter("cn=bob,ou=people,dc=corp,dc=com");
+
+        final Collection<? extends GrantedAuthority> authorities =
+                this.populator.getGrantedAuthorities(userWithoutPassword, "bob");
+
+        assertEquals(2, authorities.size());
+        assertTrue(authorities.contains(new SimpleGrantedAuthority("ROLE_SALES")));
+        assertEquals(1, this.serviceContexts);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryAuthoritiesPopulator#getGrantedAuthorities(org.springframework.ldap.core.DirContextOperations, java.lang.String)}
+     * .
+     */
+    public final void testGetGrantedAuthoritiesWithoutPassword() {
+        try {
+            this.populator.getGrantedAuthorities(
+                new DirContextAdapter("cn=bob,ou=people,dc=corp,dc=com"), "bob");
+            fail("IllegalStateException expected");
+        } catch (final IllegalStateException e) {
+            assertTrue(e.getMessage().contains("serviceContextSource"));
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.populator;
+
+import java.util.*;
+
+import org.springframework.security.ldap.AbstractLdapIntegrationTests;
+
+/**
+ * Tests for ActiveDirectoryGroupIndex.
+ * <p>
+ * Uses embedded LDAP server: the groups of test-server.ldif are groupOfNames entries without
+ * uSNChanged. {See AbstractLdapIntegrationTests}
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class ActiveDirectoryGroupIndexIntegrationTest extends AbstractLdapIntegrationTests {
+
+    private ActiveDirectoryGroupIndex index;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.index = new ActiveDirectoryGroupIndex(getContextSource(), "ou=groups");
+        this.index.setGroupSearchFilter("(objectClass=groupOfNames)");
+        this.index.setRefreshInterval(0);
+        this.index.setPageSize(2);
+        this.index.afterPropertiesSet();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.index.destroy();
+
+        super.tearDown();
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryGroupIndex#resolveGroupNames(java.lang.String)}
+     * .
+     */
+    public final void testResolveGroupNames() {
+        assertEquals(3, this.index.getGroupCount());
+
+        assertEquals(Collections.singleton("developers"),
+            this.index.resolveGroupNames("uid=bob,ou=people,dc=springframework,dc=org"));
+        assertEquals(new HashSet<String>(Arrays.asList("developers", "managers", "submanagers")),
+            this.index.resolveGroupNames("uid=ben,ou=people,dc=springframework,dc=org"));
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.populator;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+import javax.naming.directory.*;
+import javax.naming.ldap.LdapContext;
+
+import junit.framework.TestCase;
+
+import org.springframework.ldap.core.*;
+import org.springframework.ldap.support.LdapUtils;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.ldap.DefaultSpringSecurityContextSource;
+import org.springframework.security.providers.ldap.ad.populator.TokenGroupsResolverTest.CollectionEnumeration;
+
+/**
+ * Tests for ActiveDirectoryGroupIndex against a fake directory which evaluates the uSNChanged term
+ * of incremental searches.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class ActiveDirectoryGroupIndexTest extends TestCase {
+
+    /**
+     * Index with a controllable clock.
+     */
+    static class TestIndex extends ActiveDirectoryGroupIndex {
+        long now = 1000;
+
+        TestIndex(final ContextSource contextSource) {
+            super(contextSource, "ou=groups");
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return this.now;
+        }
+    }
+
+    private static final String BOB = "CN=Bob,OU=People,DC=corp,DC=com";
+
+    private static final String SALES = "cn=sales,ou=groups,dc=corp,dc=com";
+
+    private static final String STAFF = "cn=staff,ou=groups,dc=corp,dc=com";
+
+    private static final String ADMINS = "cn=admins,ou=groups,dc=corp,dc=com";
+
+    /**
+     * Group entries of the fake directory by DN.
+     */
+    private final Map<String, SearchResult> entries = new LinkedHashMap<String, SearchResult>();
+
+    /**
+     * Filters of all searches.
+     */
+    private final List<String> filters = new ArrayList<String>();
+
+    private TestIndex index;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        putGroup(SALES, "Sales", 10, BOB);
+        putGroup(STAFF, "Staff", 11, SALES.toUpperCase());
+        putGroup(ADMINS, "Admins", 12);
+
+        this.index = new TestIndex(new ContextSource() {
+            @Override
+            public DirContext getContext(final String principal, final String credentials) {
+                return createContext();
+            }
+
+            @Override
+            public DirContext getReadOnlyContext() {
+                return createContext();
+            }
+
+            @Override
+            public DirContext getReadWriteContext() {
+                return createContext();
+            }
+        });
+        this.index.setRefreshInterval(0);
+        this.index.setFullReloadInterval(10000);
+        this.index.afterPropertiesSet();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.index.destroy();
+
+        super.tearDown();
+    }
+
+    private void putGroup(final String dn, final String cn, final long usn,
+            final String... members) {
+        putGroup(dn, cn, null, usn, members);
+    }
+
+    private void putGroup(final String dn, final String cn, final String sid, final long usn,
+            final String... members) {
+        final Attributes attributes = new BasicAttributes(true);
+        attributes.put("cn", cn);
+        if (sid != null) {
+            attributes.put("objectSid", LdapUtils.convertStringSidToBinary(sid));
+        }
+        attributes.put(ActiveDirectoryGroupIndex.USN_CHANGED_ATTRIBUTE, String.valueOf(usn));
+        if (members.length > 0) {
+            final Attribute member = new BasicAttribute("member");
+            for (final String value : members) {
+                member.add(value);
+            }
+            attributes.put(member);
+        }
+
+        this.entries.put(dn, new SearchResult(dn,
+            new DirContextAdapter(attributes, LdapUtils.newLdapName(dn)), attributes));
+    }
+
+    /**
+     * Returns a context whose searches return the groups, or with a (uSNChanged>=n) term only the
+     * groups changed since n.
+     */
+    private DirContext createContext() {
+        return (DirContext) Proxy.newProxyInstance(LdapContext.class.getClassLoader(),
+            new Class<?>[] { LdapContext.class }, new InvocationHandler() {
+                @Override
+                public Object invoke(final Object proxy, final Method method, final Object[] args)
+                        throws Exception {
+                    if (!"search".equals(method.getName())) {
+                        return null;
+                    }
+
+                    final String filter = (String) args[1];
+                    ActiveDirectoryGroupIndexTest.this.filters.add(filter);
+
+                    long minUsn = 0;
+                    final int usnIndex = filter.indexOf(">=");
+                    if (usnIndex > 0) {
+                        minUsn = Long.parseLong(filter.substring(usnIndex + 2, filter.indexOf(')',
+                            usnIndex)));
+                    }
+
+                    final List<SearchResult> results = new ArrayList<SearchResult>();
+                    for (final SearchResult entry : ActiveDirectoryGroupIndexTest.this.entries
+                        .values()) {
+                        final String usn = (String) entry.getAttributes()
+                            .get(ActiveDirectoryGroupIndex.USN_CHANGED_ATTRIBUTE).get();
+                        if (Long.parseLong(usn) >= minUsn) {
+                            results.add(entry);
+                        }
+                    }
+
+                    return new CollectionEnumeration<SearchResult>(results);
+                }
+            });
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryGroupIndex#resolveGroupNames(java.lang.String)}
+     * .
+     */
+    public final void testResolveGroupNames() {
+        final Set<String> groupNames = this.index.resolveGroupNames(BOB.toLowerCase());
+
+        assertEquals(new HashSet<String>(Arrays.asList("Sales", "Staff")), groupNames);
+        assertEquals(3, this.index.getGroupCount());
+        assertEquals(12, this.index.getHighestUsn());
+        assertTrue(this.index.resolveGroupNames("cn=joe,ou=people,dc=corp,dc=com").isEmpty());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryGroupIndex#resolveGroupNames(java.lang.String)}
+     * .
+     */
+    public final void testResolveGroupNamesCycle() {
+        // Sales is a member of Staff and Staff of Sales
+        putGroup(SALES, "Sales", 13, BOB, STAFF);
+        this.index.refresh();
+
+        assertEquals(2, this.index.resolveGroupNames(BOB).size());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryGroupIndex#refresh()}
+     * .
+     */
+    public final void testRefresh() {
+        putGroup(ADMINS, "Admins", 20, BOB);
+
+        this.index.refresh();
+
+        assertEquals("(&(objectClass=group)(uSNChanged>=13))",
+            this.filters.get(this.filters.size() - 1));
+        assertEquals(3, this.index.resolveGroupNames(BOB).size());
+        assertEquals(20, this.index.getHighestUsn());
+        assertEquals(3, this.index.getGroupCount());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryGroupIndex#refresh()}
+     * .
+     */
+    public final void testRefreshFullReloadRemovesDeletedGroups() {
+        this.entries.remove(STAFF);
+
+        // incremental refresh does not see the deletion
+        this.index.refresh();
+        assertEquals(3, this.index.getGroupCount());
+
+        this.index.now += 10000;
+        this.index.refresh();
+
+        assertEquals(2, this.index.getGroupCount());
+        assertEquals(Collections.singleton("Sales"), this.index.resolveGroupNames(BOB));
+        assertEquals("(objectClass=group)", this.filters.get(this.filters.size() - 1));
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryGroupIndex#refresh()}
+     * .
+     */
+    public final void testRefreshRenamedGroup() {
+        final String sid = "S-1-5-21-100-200-300-1101";
+        putGroup(SALES, "Sales", sid, 13, BOB);
+        this.index.load();
+        assertEquals("Sales", this.index.getGroupNameBySid(sid));
+
+        // Sales is renamed and moved; Staff still lists it under its new DN, but is not changed
+        this.entries.remove(SALES);
+        final String renamed = "cn=sales emea,ou=emea,ou=groups,dc=corp,dc=com";
+        putGroup(renamed, "Sales EMEA", sid, 20, BOB);
+        this.index.refresh();
+
+        assertEquals(3, this.index.getGroupCount());
+        assertEquals("Sales EMEA", this.index.getGroupNameBySid(sid));
+        assertEquals(new HashSet<String>(Arrays.asList("Sales EMEA", "Staff")),
+            this.index.resolveGroupNames(BOB));
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryAuthoritiesPopulator#getGrantedAuthorities(org.springframework.ldap.core.DirContextOperations, java.lang.String)}
+     * .
+     */
+    public final void testPopulatorIndexStrategy() {
+        final ActiveDirectoryAuthoritiesPopulator populator =
+                new ActiveDirectoryAuthoritiesPopulator(
+                    new DefaultSpringSecurityContextSource("ldap://localhost:389/dc=corp,dc=com"),
+                    "ou=groups");
+        populator.setGroupResolutionStrategy(GroupResolutionStrategy.INDEX);
+        populator.setGroupIndex(this.index);
+        final int searches = this.filters.size();
+
+        final Collection<? extends GrantedAuthority> authorities =
+                populator.getGrantedAuthorities(new DirContextAdapter(BOB), "bob");
+
+        assertEquals(2, authorities.size());
+        assertTrue(authorities.contains(new SimpleGrantedAuthority("ROLE_STAFF")));
+        assertEquals(searches, this.filters.size());
+    }
+}
@@ -18,6 +18,8 @@ public class AllTestsRealServer extends TestCase {
         TestSuite suite = new TestSuite();
         suite
             .addTestSuite(org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryAuthoritiesPopulatorTest.class);
+        suite
+            .addTestSuite(org.springframework.security.providers.ldap.ad.populator.ActiveDirectoryGroupIndexIntegrationTest.class);
         return suite;
     }
 }
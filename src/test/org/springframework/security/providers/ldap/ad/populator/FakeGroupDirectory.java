@@ -0,0 +1,228 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.populator;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.*;
+import javax.naming.directory.*;
+import javax.naming.ldap.LdapContext;
+
+import org.springframework.ldap.core.*;
+import org.springframework.ldap.support.LdapUtils;
+import org.springframework.security.ldap.DefaultSpringSecurityContextSource;
+import org.springframework.security.providers.ldap.ad.populator.TokenGroupsResolverTest.CollectionEnumeration;
+
+/**
+ * Fake directory for the ActiveDirectoryAuthoritiesPopulator tests. Its contexts answer every
+ * search with the groups Sales and Staff in ou=groups (see <code>search</code>, which tests can
+ * override) and record the last search. While <tt>unavailable</tt> is true the searches fail as if
+ * the directory were down.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class FakeGroupDirectory implements ContextSource {
+    /**
+     * URL of the directory, with its base DN.
+     */
+    public static final String URL = "ldap://localhost:389/dc=corp,dc=com";
+
+    /**
+     * Password of the users.
+     */
+    public static final String PASSWORD = "secret";
+
+    /**
+     * Number of searches which reached the directory.
+     */
+    private final AtomicInteger searches = new AtomicInteger();
+
+    /**
+     * Filter of the last search.
+     */
+    private volatile String filter;
+
+    /**
+     * Controls of the last search.
+     */
+    private volatile SearchControls controls;
+
+    /**
+     * Thread of the last search.
+     */
+    private volatile Thread searchThread;
+
+    /**
+     * If true the searches fail as if the directory were down.
+     */
+    private volatile boolean unavailable;
+
+    /**
+     * Returns the context source of the populator, whose base DN is the one of the directory.
+     *
+     * @return context source with URL.
+     */
+    public static DefaultSpringSecurityContextSource createContextSource() {
+        return new DefaultSpringSecurityContextSource(URL);
+    }
+
+    /**
+     * Returns a populator with the IN_CHAIN strategy which searches ou=groups of this directory.
+     *
+     * @return populator binding through this directory.
+     */
+    public ActiveDirectoryAuthoritiesPopulator createPopulator() {
+        final ActiveDirectoryAuthoritiesPopulator populator =
+                new ActiveDirectoryAuthoritiesPopulator(createContextSource(), "ou=groups");
+        populator.setGroupResolutionStrategy(GroupResolutionStrategy.IN_CHAIN);
+        populator.setBindContextSource(this);
+
+        return populator;
+    }
+
+    /**
+     * Returns the user cn in ou=people, as the authenticator returns it, with PASSWORD.
+     *
+     * @param cn common name of the user.
+     * @return user entry.
+     */
+    public static DirContextAdapter createUser(final String cn) {
+        final DirContextAdapter user =
+                new DirContextAdapter("cn=" + cn + ",ou=people,dc=corp,dc=com");
+        user.setAttributeValue(Context.SECURITY_CREDENTIALS, PASSWORD);
+
+        return user;
+    }
+
+    /**
+     * Returns the group cn in base, as returned by a search.
+     *
+     * @param cn common name of the group.
+     * @param base DN of the container of the group, relative to the base DN.
+     * @return search result.
+     */
+    public static SearchResult createGroup(final String cn, final String base) {
+        final Attributes attributes = new BasicAttributes(true);
+        attributes.put("cn", cn);
+        final String dn = "cn=" + cn + "," + base;
+
+        return new SearchResult(dn, new DirContextAdapter(attributes, LdapUtils.newLdapName(dn)),
+            attributes);
+    }
+
+    @Override
+    public DirContext getContext(final String principal, final String credentials) {
+        return createContext();
+    }
+
+    @Override
+    public DirContext getReadOnlyContext() {
+        return createContext();
+    }
+
+    @Override
+    public DirContext getReadWriteContext() {
+        return createContext();
+    }
+
+    /**
+     * Returns a context whose searches are answered by <code>search</code>.
+     */
+    private DirContext createContext() {
+        return (DirContext) Proxy.newProxyInstance(LdapContext.class.getClassLoader(),
+            new Class<?>[] { LdapContext.class }, new InvocationHandler() {
+                @Override
+                public Object invoke(final Object proxy, final Method method, final Object[] args)
+                        throws Exception {
+                    if ("search".equals(method.getName())) {
+                        if (FakeGroupDirectory.this.unavailable) {
+                            throw new CommunicationException("connection refused");
+                        }
+
+                        FakeGroupDirectory.this.searches.incrementAndGet();
+                        FakeGroupDirectory.this.filter = (String) args[1];
+                        FakeGroupDirectory.this.controls = (SearchControls) args[3];
+                        FakeGroupDirectory.this.searchThread = Thread.currentThread();
+
+                        return new CollectionEnumeration<SearchResult>(
+                            search(args[0].toString(), (SearchControls) args[3]));
+                    }
+
+                    return null;
+                }
+            });
+    }
+
+    /**
+     * Answers a search, after it has been recorded. Returns the groups Sales and Staff (Sales is
+     * nested in Staff).
+     *
+     * @param base base DN of the search.
+     * @param searchControls controls of the search.
+     * @return found groups.
+     * @throws Exception if the search fails.
+     */
+    protected List<SearchResult> search(final String base, final SearchControls searchControls)
+            throws Exception {
+        return Arrays.asList(createGroup("Sales", "ou=groups"), createGroup("Staff", "ou=groups"));
+    }
+
+    /**
+     * Returns the number of searches which reached the directory.
+     *
+     * @return number of searches.
+     */
+    public int getSearches() {
+        return this.searches.get();
+    }
+
+    /**
+     * Returns the filter of the last search.
+     *
+     * @return filter, null if there was no search.
+     */
+    public String getFilter() {
+        return this.filter;
+    }
+
+    /**
+     * Returns the controls of the last search.
+     *
+     * @return controls, null if there was no search.
+     */
+    public SearchControls getControls() {
+        return this.controls;
+    }
+
+    /**
+     * Returns the thread of the last search.
+     *
+     * @return thread, null if there was no search.
+     */
+    public Thread getSearchThread() {
+        return this.searchThread;
+    }
+
+    /**
+     * Makes the directory unavailable, or available again.
+     *
+     * @param unavailable true if the searches fail as if the directory were down.
+     */
+    public void setUnavailable(final boolean unavailable) {
+        this.unavailable = unavailable;
+    }
+}
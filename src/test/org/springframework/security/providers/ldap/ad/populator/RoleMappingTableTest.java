@@ -0,0 +1,115 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.populator;
+
+import java.util.*;
+
+import junit.framework.TestCase;
+
+import org.springframework.security.core.GrantedAuthority;
+
+/**
+ * Tests for RoleMappingTable.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class RoleMappingTableTest extends TestCase {
+
+    private RoleMappingTable table;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.table = new RoleMappingTable();
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.RoleMappingTable#getAuthority(java.lang.String)}
+     * .
+     */
+    public final void testGetAuthorityShared() {
+        final GrantedAuthority sales = this.table.getAuthority("Sales");
+
+        assertEquals("ROLE_SALES", sales.getAuthority());
+        assertSame(sales, this.table.getAuthority("Sales"));
+        // another spelling of the group maps to the same role
+        assertSame(sales, this.table.getAuthority("SALES"));
+        assertEquals(2, this.table.size());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.RoleMappingTable#getAuthority(java.lang.String)}
+     * .
+     */
+    public final void testGetAuthorityMapped() {
+        final Map<String, String> mappings = new HashMap<String, String>();
+        mappings.put("Domain Admins", "ROLE_ADMIN");
+        mappings.put("Enterprise Admins", "ROLE_ADMIN");
+        this.table.setMappings(mappings);
+
+        final GrantedAuthority admin = this.table.getAuthority("domain admins");
+
+        assertEquals("ROLE_ADMIN", admin.getAuthority());
+        assertSame(admin, this.table.getAuthority("Enterprise Admins"));
+        assertEquals("ROLE_SALES", this.table.getAuthority("Sales").getAuthority());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.RoleMappingTable#getAuthority(java.lang.String)}
+     * .
+     */
+    public final void testGetAuthorityDropUnmapped() {
+        this.table.setMappings(Collections.singletonMap("Sales", "ROLE_SALES_STAFF"));
+        this.table.setDropUnmapped(true);
+
+        assertEquals("ROLE_SALES_STAFF", this.table.getAuthority("Sales").getAuthority());
+        assertNull(this.table.getAuthority("Printers"));
+        assertNull(this.table.getAuthority("Printers"));
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.RoleMappingTable#setRolePrefix(java.lang.String)}
+     * .
+     */
+    public final void testSetRolePrefixClears() {
+        this.table.getAuthority("Sales");
+
+        this.table.setRolePrefix("");
+        this.table.setConvertToUpperCase(false);
+
+        assertEquals(0, this.table.size());
+        assertEquals("Sales", this.table.getAuthority("Sales").getAuthority());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.RoleMappingTable#getAuthority(java.lang.String)}
+     * .
+     */
+    public final void testGetAuthorityMaxSize() {
+        this.table.setMaxSize(1);
+
+        this.table.getAuthority("Sales");
+        final GrantedAuthority admins = this.table.getAuthority("Admins");
+
+        assertEquals(1, this.table.size());
+        assertEquals("ROLE_ADMINS", admins.getAuthority());
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.populator;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.directory.*;
+
+import junit.framework.TestCase;
+
+import org.springframework.ldap.support.LdapUtils;
+import org.springframework.security.providers.ldap.ad.util.NamingUtils;
+
+/**
+ * Tests for TokenGroupsResolver.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class TokenGroupsResolverTest extends TestCase {
+
+    /**
+     * NamingEnumeration over a collection.
+     */
+    static class CollectionEnumeration<T> implements NamingEnumeration<T> {
+        private final Iterator<T> iterator;
+
+        CollectionEnumeration(final Collection<T> collection) {
+            this.iterator = collection.iterator();
+        }
+
+        @Override
+        public void close() {
+            // Do nothing
+        }
+
+        @Override
+        public boolean hasMore() {
+            return this.iterator.hasNext();
+        }
+
+        @Override
+        public T next() {
+            return this.iterator.next();
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            return hasMore();
+        }
+
+        @Override
+        public T nextElement() {
+            return next();
+        }
+    }
+
+    private static final String SALES_SID = "S-1-5-21-100-200-300-1101";
+
+    private static final String ADMINS_SID = "S-1-5-21-100-200-300-1102";
+
+    private static final String BUILTIN_SID = "S-1-5-32-545";
+
+    /**
+     * Groups known to the fake directory, by SID.
+     */
+    private final Map<String, String> groups = new HashMap<String, String>();
+
+    private int searches;
+
+    /**
+     * Environment of the fake context.
+     */
+    private final Hashtable<String, Object> environment = new Hashtable<String, Object>();
+
+    /**
+     * Binary attributes of the context during the last read of tokenGroups.
+     */
+    private Object binaryAttributes;
+
+    private DirContext ctx;
+
+    private TokenGroupsResolver resolver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.groups.put(SALES_SID, "Sales");
+        this.groups.put(ADMINS_SID, "Admins");
+
+        this.resolver = new TokenGroupsResolver();
+
+        this.ctx = (DirContext) Proxy.newProxyInstance(DirContext.class.getClassLoader(),
+            new Class<?>[] { DirContext.class }, new InvocationHandler() {
+                @Override
+                public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                    if ("getEnvironment".equals(method.getName())) {
+                        return TokenGroupsResolverTest.this.environment;
+                    }
+
+                    if ("addToEnvironment".equals(method.getName())) {
+                        return TokenGroupsResolverTest.this.environment.put((String) args[0],
+                            args[1]);
+                    }
+
+                    if ("removeFromEnvironment".equals(method.getName())) {
+                        return TokenGroupsResolverTest.this.environment.remove(args[0]);
+                    }
+
+                    if ("getAttributes".equals(method.getName())) {
+                        TokenGroupsResolverTest.this.binaryAttributes =
+                                TokenGroupsResolverTest.this.environment
+                                    .get("java.naming.ldap.attributes.binary");
+                        final Attribute tokenGroups = new BasicAttribute("tokenGroups");
+                        tokenGroups.add(LdapUtils.convertStringSidToBinary(SALES_SID));
+                        tokenGroups.add(LdapUtils.convertStringSidToBinary(ADMINS_SID));
+                        tokenGroups.add(LdapUtils.convertStringSidToBinary(BUILTIN_SID));
+                        final Attributes attributes = new BasicAttributes(true);
+                        attributes.put(tokenGroups);
+                        return attributes;
+                    }
+
+                    if ("search".equals(method.getName())) {
+                        TokenGroupsResolverTest.this.searches++;
+                        return search((String) args[1]);
+                    }
+
+                    return null;
+                }
+            });
+    }
+
+    /**
+     * Returns the groups whose escaped SID appears in the filter.
+     *
+     * @param filter OR filter of objectSid values.
+     * @return matching groups.
+     */
+    private NamingEnumeration<SearchResult> search(final String filter) {
+        final List<SearchResult> results = new ArrayList<SearchResult>();
+        for (final Map.Entry<String, String> group : this.groups.entrySet()) {
+            final byte[] sid = LdapUtils.convertStringSidToBinary(group.getKey());
+            if (filter.contains("(objectSid=" + NamingUtils.escapeFilterValue(sid) + ")")) {
+                final Attributes attributes = new BasicAttributes(true);
+                attributes.put("objectSid", sid);
+                attributes.put("cn", group.getValue());
+                results.add(new SearchResult("cn=" + group.getValue(), null, attributes));
+            }
+        }
+
+        return new CollectionEnumeration<SearchResult>(results);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.TokenGroupsResolver#resolveGroupNames(javax.naming.directory.DirContext, java.lang.String, java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testResolveGroupNames() throws Exception {
+        final Set<String> groupNames =
+                this.resolver.resolveGroupNames(this.ctx, "cn=bob", "ou=groups", "cn");
+
+        assertEquals(2, groupNames.size());
+        assertTrue(groupNames.contains("Sales"));
+        assertTrue(groupNames.contains("Admins"));
+        assertEquals(1, this.searches);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.TokenGroupsResolver#resolveGroupNames(javax.naming.directory.DirContext, java.lang.String, java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testResolveGroupNamesFromCache() throws Exception {
+        this.resolver.resolveGroupNames(this.ctx, "cn=bob", "ou=groups", "cn");
+
+        // second login: all SIDs, including the one without a group, come from the cache
+        final Set<String> groupNames =
+                this.resolver.resolveGroupNames(this.ctx, "cn=bob", "ou=groups", "cn");
+
+        assertEquals(2, groupNames.size());
+        assertEquals(1, this.searches);
+        assertEquals(3, this.resolver.getSidCache().size());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.TokenGroupsResolver#resolveGroupNames(javax.naming.directory.DirContext, java.lang.String, java.lang.String, java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testResolveGroupNamesPerNamingContext() throws Exception {
+        // Sales is not below the group search base of the first domain
+        this.groups.remove(SALES_SID);
+        final Set<String> rootGroupNames = this.resolver.resolveGroupNames(this.ctx, "cn=alice",
+            "ou=groups", "cn", "DC=corp,DC=com");
+        assertEquals(Collections.singleton("Admins"), rootGroupNames);
+
+        this.groups.put(SALES_SID, "Sales");
+        final Set<String> childGroupNames = this.resolver.resolveGroupNames(this.ctx, "cn=bob",
+            "ou=groups", "cn", "DC=child,DC=corp,DC=com");
+
+        // the SID without a group in the first domain is looked up again in the second
+        assertTrue(childGroupNames.contains("Sales"));
+        assertEquals(2, this.searches);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.TokenGroupsResolver#resolveGroupNames(javax.naming.directory.DirContext, java.lang.String, java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testResolveGroupNamesInBatches() throws Exception {
+        this.resolver.setBatchSize(2);
+
+        final Set<String> groupNames =
+                this.resolver.resolveGroupNames(this.ctx, "cn=bob", "ou=groups", "cn");
+
+        assertEquals(2, groupNames.size());
+        assertEquals(2, this.searches);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.TokenGroupsResolver#resolveGroupNames(javax.naming.directory.DirContext, java.lang.String, java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testResolveGroupNamesKeepsBinaryAttributes() throws Exception {
+        this.environment.put("java.naming.ldap.attributes.binary", "objectGUID");
+
+        this.resolver.resolveGroupNames(this.ctx, "cn=bob", "ou=groups", "cn");
+
+        assertEquals("objectGUID tokenGroups objectSid", this.binaryAttributes);
+        // restored on the possibly shared context
+        assertEquals("objectGUID", this.environment.get("java.naming.ldap.attributes.binary"));
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.TokenGroupsResolver#resolveGroupNames(javax.naming.directory.DirContext, java.lang.String, java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testResolveGroupNamesRemovesBinaryAttributes() throws Exception {
+        this.resolver.resolveGroupNames(this.ctx, "cn=bob", "ou=groups", "cn");
+
+        assertEquals("tokenGroups objectSid", this.binaryAttributes);
+        assertFalse(this.environment.containsKey("java.naming.ldap.attributes.binary"));
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.populator.TokenGroupsResolver#setBatchSize(int)}
+     * .
+     */
+    public final void testSetBatchSizeAboveMaxPageSize() {
+        try {
+            this.resolver.setBatchSize(1001);
+            fail("IllegalArgumentException expected");
+        } catch (final IllegalArgumentException e) {
+            assertEquals(50, this.resolver.getBatchSize());
+        }
+    }
+}
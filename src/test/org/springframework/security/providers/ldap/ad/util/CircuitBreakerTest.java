@@ -0,0 +1,243 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.util;
+
+import java.util.concurrent.Callable;
+
+import junit.framework.TestCase;
+
+import org.springframework.security.authentication.BadCredentialsException;
+
+/**
+ * Tests for CircuitBreaker.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class CircuitBreakerTest extends TestCase {
+
+    private CircuitBreaker circuitBreaker;
+
+    /**
+     * Current time of the circuit breaker.
+     */
+    private long now = 1000;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.circuitBreaker = new CircuitBreaker("test") {
+            @Override
+            protected long currentTimeMillis() {
+                return CircuitBreakerTest.this.now;
+            }
+        };
+        this.circuitBreaker.setWindowSize(4);
+        this.circuitBreaker.setMinimumCalls(4);
+        this.circuitBreaker.setFailureRateThreshold(0.5);
+        this.circuitBreaker.setSlowCallDuration(100);
+        this.circuitBreaker.setSlowCallRateThreshold(0.75);
+        this.circuitBreaker.setOpenDuration(5000);
+        this.circuitBreaker.setHalfOpenProbes(2);
+    }
+
+    /**
+     * Runs a call taking duration milliseconds.
+     *
+     * @param duration duration of the call.
+     * @param exception exception thrown by the call, null to succeed.
+     */
+    private void call(final long duration, final RuntimeException exception) {
+        this.circuitBreaker.execute(new Callable<String>() {
+            @Override
+            public String call() {
+                CircuitBreakerTest.this.now += duration;
+                if (exception != null) {
+                    throw exception;
+                }
+
+                return "ok";
+            }
+        });
+    }
+
+    /**
+     * Runs a call failing with IllegalStateException.
+     */
+    private void failCall(final long duration) {
+        try {
+            call(duration, new IllegalStateException("down"));
+            fail("IllegalStateException expected");
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.util.CircuitBreaker#execute(java.util.concurrent.Callable)}
+     * .
+     */
+    public final void testExecuteOpensOnFailureRate() {
+        call(1, null);
+        failCall(1);
+        call(1, null);
+        assertEquals(CircuitBreaker.State.CLOSED, this.circuitBreaker.getState());
+
+        // 2 of 4 calls failed
+        failCall(1);
+        assertEquals(CircuitBreaker.State.OPEN, this.circuitBreaker.getState());
+        assertEquals(0.5, this.circuitBreaker.getFailureRate(), 0.001);
+
+        try {
+            call(1, null);
+            fail("CircuitBreakerOpenException expected");
+        } catch (final CircuitBreakerOpenException e) {
+            assertEquals(1, this.circuitBreaker.getRejectedCount());
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.util.CircuitBreaker#execute(java.util.concurrent.Callable)}
+     * .
+     */
+    public final void testExecuteOpensOnSlowCallRate() {
+        call(100, null);
+        call(150, null);
+        call(1, null);
+        call(200, null);
+
+        assertEquals(CircuitBreaker.State.OPEN, this.circuitBreaker.getState());
+        assertEquals(0, this.circuitBreaker.getFailureRate(), 0.001);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.util.CircuitBreaker#execute(java.util.concurrent.Callable)}
+     * .
+     */
+    public final void testExecuteSlidingWindow() {
+        failCall(1);
+        call(1, null);
+        call(1, null);
+        call(1, null);
+        // the first failure left the window
+        failCall(1);
+        call(1, null);
+
+        assertEquals(CircuitBreaker.State.CLOSED, this.circuitBreaker.getState());
+        assertEquals(0.25, this.circuitBreaker.getFailureRate(), 0.001);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.util.CircuitBreaker#execute(java.util.concurrent.Callable)}
+     * .
+     */
+    public final void testExecuteIgnoredExceptions() {
+        for (int i = 0; i < 4; i++) {
+            try {
+                call(1, new BadCredentialsException("wrong password"));
+                fail("BadCredentialsException expected");
+            } catch (final BadCredentialsException e) {
+                // the directory answered
+            }
+        }
+
+        assertEquals(CircuitBreaker.State.CLOSED, this.circuitBreaker.getState());
+        assertEquals(0, this.circuitBreaker.getFailureRate(), 0.001);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.util.CircuitBreaker#execute(java.util.concurrent.Callable)}
+     * .
+     */
+    public final void testExecuteHalfOpenCloses() {
+        openCircuit();
+
+        this.now += 5000;
+        call(1, null);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, this.circuitBreaker.getState());
+        call(1, null);
+
+        assertEquals(CircuitBreaker.State.CLOSED, this.circuitBreaker.getState());
+        assertEquals(0, this.circuitBreaker.getFailureRate(), 0.001);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.util.CircuitBreaker#execute(java.util.concurrent.Callable)}
+     * .
+     */
+    public final void testExecuteHalfOpenReopens() {
+        openCircuit();
+
+        this.now += 5000;
+        call(1, null);
+        failCall(1);
+        assertEquals(CircuitBreaker.State.OPEN, this.circuitBreaker.getState());
+
+        // open for another openDuration
+        this.now += 4000;
+        try {
+            call(1, null);
+            fail("CircuitBreakerOpenException expected");
+        } catch (final CircuitBreakerOpenException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.util.CircuitBreaker#execute(java.util.concurrent.Callable)}
+     * .
+     */
+    public final void testExecuteHalfOpenLimitsProbes() {
+        openCircuit();
+        this.now += 5000;
+        this.circuitBreaker.setHalfOpenProbes(1);
+
+        // the probe is running while another call arrives
+        this.circuitBreaker.execute(new Callable<String>() {
+            @Override
+            public String call() {
+                try {
+                    CircuitBreakerTest.this.call(1, null);
+                    fail("CircuitBreakerOpenException expected");
+                } catch (final CircuitBreakerOpenException e) {
+                    // expected
+                }
+
+                return "ok";
+            }
+        });
+
+        assertEquals(CircuitBreaker.State.CLOSED, this.circuitBreaker.getState());
+        assertEquals(1, this.circuitBreaker.getRejectedCount());
+    }
+
+    /**
+     * Opens the circuit with failing calls.
+     */
+    private void openCircuit() {
+        for (int i = 0; i < 4; i++) {
+            failCall(1);
+        }
+
+        assertEquals(CircuitBreaker.State.OPEN, this.circuitBreaker.getState());
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.util;
+
+import java.util.Hashtable;
+
+import javax.naming.Context;
+
+import junit.framework.TestCase;
+
+import org.springframework.beans.DirectFieldAccessor;
+import org.springframework.ldap.core.support.DirContextAuthenticationStrategy;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.security.ldap.DefaultSpringSecurityContextSource;
+
+/**
+ * Tests for DeadlineAuthenticationStrategy.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class DeadlineAuthenticationStrategyTest extends TestCase {
+
+    private ThreadPoolTaskExecutor executor;
+
+    private DeadlineAuthenticationStrategy strategy;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.executor =
+                (ThreadPoolTaskExecutor) TaskExecutorUtils.createBoundedExecutor("test-", 1, 1);
+        this.strategy = new DeadlineAuthenticationStrategy();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        LoginDeadline.remove();
+        this.executor.shutdown();
+
+        super.tearDown();
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.util.DeadlineAuthenticationStrategy#setupEnvironment(java.util.Hashtable, java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testSetupEnvironmentWithinDeadline() throws Exception {
+        LoginDeadline.start(5000, this.executor);
+        final Hashtable<String, Object> environment = new Hashtable<String, Object>();
+
+        this.strategy.setupEnvironment(environment, "bob@corp.com", "secret");
+
+        assertEquals("bob@corp.com", environment.get(Context.SECURITY_PRINCIPAL));
+        assertNotNull(environment.get(LoginDeadline.CONNECT_TIMEOUT_PROPERTY));
+        assertNotNull(environment.get(LoginDeadline.READ_TIMEOUT_PROPERTY));
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.util.DeadlineAuthenticationStrategy#setupEnvironment(java.util.Hashtable, java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testSetupEnvironmentWithoutDeadline() throws Exception {
+        final Hashtable<String, Object> environment = new Hashtable<String, Object>();
+
+        this.strategy.setupEnvironment(environment, "bob@corp.com", "secret");
+
+        assertNull(environment.get(LoginDeadline.READ_TIMEOUT_PROPERTY));
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.util.DeadlineAuthenticationStrategy#setupEnvironment(java.util.Hashtable, java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testSetupEnvironmentPooled() throws Exception {
+        LoginDeadline.start(5000, this.executor);
+        final Hashtable<String, Object> environment = new Hashtable<String, Object>();
+        environment.put("com.sun.jndi.ldap.connect.pool", "true");
+
+        this.strategy.setupEnvironment(environment, "service@corp.com", "secret");
+
+        // a pooled connection outlives the login
+        assertNull(environment.get(LoginDeadline.READ_TIMEOUT_PROPERTY));
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.util.DeadlineAuthenticationStrategy#install(org.springframework.ldap.core.ContextSource)}
+     * .
+     */
+    public final void testInstall() throws Exception {
+        final DefaultSpringSecurityContextSource contextSource =
+                new DefaultSpringSecurityContextSource("ldap://localhost:389/dc=corp,dc=com");
+        final DirContextAuthenticationStrategy original = getStrategy(contextSource);
+
+        assertTrue(DeadlineAuthenticationStrategy.install(contextSource));
+        assertTrue(DeadlineAuthenticationStrategy.install(contextSource));
+
+        // installed once, around the strategy of the context source
+        final DeadlineAuthenticationStrategy installed =
+                (DeadlineAuthenticationStrategy) getStrategy(contextSource);
+        assertSame(original, installed.getDelegate());
+
+        // binds as users are not pooled: the deadline applies
+        LoginDeadline.start(5000, this.executor);
+        final Hashtable<String, Object> environment = new Hashtable<String, Object>();
+        environment.put("com.sun.jndi.ldap.connect.pool", "true");
+        installed.setupEnvironment(environment, "bob@corp.com", "secret");
+        assertNotNull(environment.get(LoginDeadline.READ_TIMEOUT_PROPERTY));
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.util.DeadlineAuthenticationStrategy#install(org.springframework.ldap.core.ContextSource)}
+     * .
+     */
+    public final void testInstallOnOtherContextSource() {
+        assertFalse(DeadlineAuthenticationStrategy.install(
+            new BindWithSpecificDnContextSource(null, "bob@corp.com", "secret")));
+    }
+
+    private static DirContextAuthenticationStrategy getStrategy(final Object contextSource) {
+        return (DirContextAuthenticationStrategy) new DirectFieldAccessor(contextSource)
+            .getPropertyValue("authenticationStrategy");
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.util;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for LdapFilterTemplate.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class LdapFilterTemplateTest extends TestCase {
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.util.LdapFilterTemplate#render(java.lang.Object[])}
+     * .
+     */
+    public final void testRender() {
+        final LdapFilterTemplate template =
+                new LdapFilterTemplate("(&(objectClass=user)(samAccountName={0}))");
+
+        assertEquals("(&(objectClass=user)(samAccountName=bob))", template.render("bob"));
+        assertEquals("(&(objectClass=user)(samAccountName=o'brien))", template.render("o'brien"));
+        assertEquals(1, template.getParameterCount());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.util.LdapFilterTemplate#render(java.lang.Object[])}
+     * .
+     */
+    public final void testRenderEscapes() {
+        final LdapFilterTemplate template = new LdapFilterTemplate("(samAccountName={0})");
+
+        assertEquals("(samAccountName=\\2a\\29\\28cn=\\2a\\29)", template.render("*)(cn=*)"));
+        assertEquals("(samAccountName=a\\5cb\\00\\7b0\\7d)", template.render("a\\b\0{0}"));
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.util.LdapFilterTemplate#render(java.lang.Object[])}
+     * .
+     */
+    public final void testRenderSeveralParameters() {
+        final LdapFilterTemplate template =
+                new LdapFilterTemplate("(|(member={1})(objectSid={0})(member={1}))");
+
+        assertEquals("(|(member=cn=bob)(objectSid=\\01\\ff)(member=cn=bob))",
+            template.render(new byte[] { 1, (byte) 0xff }, "cn=bob"));
+        assertEquals(2, template.getParameterCount());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.util.LdapFilterTemplate#render(java.lang.Object[])}
+     * .
+     */
+    public final void testRenderMissingParameter() {
+        try {
+            new LdapFilterTemplate("(member={1})").render("cn=bob");
+            fail("IllegalArgumentException expected");
+        } catch (final IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.util.LdapFilterTemplate#LdapFilterTemplate(java.lang.String)}
+     * .
+     */
+    public final void testInvalidPlaceholder() {
+        try {
+            new LdapFilterTemplate("(member={x})");
+            fail("IllegalArgumentException expected");
+        } catch (final IllegalArgumentException expected) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.util;
+
+import java.util.Hashtable;
+import java.util.concurrent.*;
+
+import junit.framework.TestCase;
+
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.security.authentication.*;
+
+/**
+ * Tests for LoginDeadline.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class LoginDeadlineTest extends TestCase {
+
+    private ThreadPoolTaskExecutor executor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.executor =
+                (ThreadPoolTaskExecutor) TaskExecutorUtils.createBoundedExecutor("test-", 2, 10);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        LoginDeadline.remove();
+        this.executor.shutdown();
+
+        super.tearDown();
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.util.LoginDeadline#call(java.util.concurrent.Callable, java.lang.String)}
+     * .
+     */
+    public final void testCall() {
+        final LoginDeadline deadline = new LoginDeadline(5000, this.executor);
+
+        final String result = deadline.call(new Callable<String>() {
+            @Override
+            public String call() {
+                return "done";
+            }
+        }, "test");
+
+        assertEquals("done", result);
+        assertFalse(deadline.isExpired());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.util.LoginDeadline#call(java.util.concurrent.Callable, java.lang.String)}
+     * .
+     */
+    public final void testCallAbandonedWhenBudgetRunsOut() throws Exception {
+        final LoginDeadline deadline = new LoginDeadline(100, this.executor);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+
+        final long start = System.currentTimeMillis();
+        try {
+            deadline.call(new Callable<String>() {
+                @Override
+                public String call() {
+                    try {
+                        // a domain controller which does not answer
+                        Thread.sleep(10000);
+                    } catch (final InterruptedException e) {
+                        interrupted.countDown();
+                    }
+
+                    return "late";
+                }
+            }, "bind of bob");
+            fail("AuthenticationServiceException expected");
+        } catch (final AuthenticationServiceException e) {
+            assertTrue(e.getMessage().contains("bind of bob"));
+        }
+
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        assertTrue(deadline.isExpired());
+        assertEquals(0, deadline.getRemainingMillis());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.util.LoginDeadline#call(java.util.concurrent.Callable, java.lang.String)}
+     * .
+     */
+    public final void testCallWithDeadlineCurrent() {
+        final LoginDeadline deadline = new LoginDeadline(5000, this.executor);
+
+        final LoginDeadline current = deadline.call(new Callable<LoginDeadline>() {
+            @Override
+            public LoginDeadline call() {
+                // the connections opened by the task see the deadline
+                return LoginDeadline.current();
+            }
+        }, "test");
+
+        assertSame(deadline, current);
+        // the calling thread is unchanged
+        assertNull(LoginDeadline.current());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.util.LoginDeadline#wrap(java.util.concurrent.Callable)}
+     * .
+     */
+    public final void testWrap() throws Exception {
+        final LoginDeadline deadline = new LoginDeadline(5000, this.executor);
+        final LoginDeadline other = LoginDeadline.start(5000, this.executor);
+        try {
+            final LoginDeadline current = deadline.wrap(new Callable<LoginDeadline>() {
+                @Override
+                public LoginDeadline call() {
+                    return LoginDeadline.current();
+                }
+            }).call();
+
+            assertSame(deadline, current);
+            // the deadline of the running thread is restored
+            assertSame(other, LoginDeadline.current());
+        } finally {
+            LoginDeadline.remove();
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.util.LoginDeadline#call(java.util.concurrent.Callable, java.lang.String)}
+     * .
+     */
+    public final void testCallRethrowsRuntimeException() {
+        final LoginDeadline deadline = new LoginDeadline(5000, this.executor);
+
+        try {
+            deadline.call(new Callable<String>() {
+                @Override
+                public String call() {
+                    throw new BadCredentialsException("Bad credentials");
+                }
+            }, "test");
+            fail("BadCredentialsException expected");
+        } catch (final BadCredentialsException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.util.LoginDeadline#check(java.lang.String)}
+     * .
+     */
+    public final void testCheck() throws Exception {
+        final LoginDeadline deadline = new LoginDeadline(1, this.executor);
+        Thread.sleep(10);
+
+        try {
+            deadline.check("group lookup");
+            fail("AuthenticationServiceException expected");
+        } catch (final AuthenticationServiceException e) {
+            assertTrue(e.getMessage().contains("group lookup"));
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.util.LoginDeadline#remove()} .
+     */
+    public final void testStartAndRemove() {
+        assertNull(LoginDeadline.current());
+
+        final LoginDeadline deadline = LoginDeadline.start(2000, this.executor);
+
+        assertSame(deadline, LoginDeadline.current());
+        assertSame(deadline, LoginDeadline.remove());
+        assertNull(LoginDeadline.current());
+        assertEquals(2000, deadline.getBudget());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.util.LoginDeadline#applyTimeouts(java.util.Hashtable)}
+     * .
+     */
+    public final void testApplyTimeouts() {
+        final LoginDeadline deadline = new LoginDeadline(5000, this.executor);
+        final Hashtable<String, Object> environment = new Hashtable<String, Object>();
+
+        deadline.applyTimeouts(environment);
+
+        final long connectTimeout =
+                Long.parseLong((String) environment.get(LoginDeadline.CONNECT_TIMEOUT_PROPERTY));
+        assertTrue(connectTimeout > 0 && connectTimeout <= 5000);
+        final long readTimeout =
+                Long.parseLong((String) environment.get(LoginDeadline.READ_TIMEOUT_PROPERTY));
+        assertTrue(readTimeout > 0 && readTimeout <= 5000);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.util.LoginDeadline#applyTimeouts(java.util.Hashtable)}
+     * .
+     */
+    public final void testApplyTimeoutsKeepsShorterTimeout() {
+        final LoginDeadline deadline = new LoginDeadline(5000, this.executor);
+        final Hashtable<String, Object> environment = new Hashtable<String, Object>();
+        environment.put(LoginDeadline.CONNECT_TIMEOUT_PROPERTY, "100");
+        environment.put(LoginDeadline.READ_TIMEOUT_PROPERTY, "60000");
+
+        deadline.applyTimeouts(environment);
+
+        assertEquals("100", environment.get(LoginDeadline.CONNECT_TIMEOUT_PROPERTY));
+        assertTrue(Long.parseLong((String) environment.get(LoginDeadline.READ_TIMEOUT_PROPERTY))
+                <= 5000);
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.util.LoginDeadline#applyTimeouts(java.util.Hashtable)}
+     * .
+     */
+    public final void testApplyTimeoutsExpired() throws Exception {
+        final LoginDeadline deadline = new LoginDeadline(1, this.executor);
+        Thread.sleep(10);
+        final Hashtable<String, Object> environment = new Hashtable<String, Object>();
+
+        deadline.applyTimeouts(environment);
+
+        // 0 would mean no timeout
+        assertEquals("1", environment.get(LoginDeadline.READ_TIMEOUT_PROPERTY));
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2004, 2005, 2006 Acegi Technology Pty Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.security.providers.ldap.ad.util;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for SingleFlight.
+ *
+ * @author Valery Tydykov
+ *
+ */
+public class SingleFlightTest extends TestCase {
+
+    private SingleFlight<String, String> singleFlight;
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private final CountDownLatch started = new CountDownLatch(1);
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private ExecutorService executor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.singleFlight = new SingleFlight<String, String>();
+        this.executor = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.executor.shutdownNow();
+
+        super.tearDown();
+    }
+
+    /**
+     * Starts a call which blocks until release, and a second identical call joining it.
+     *
+     * @param result result of the call, or null to fail it.
+     * @return futures of both calls.
+     */
+    private Future<?>[] startCalls(final String result) throws Exception {
+        final Callable<String> callable = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                SingleFlightTest.this.calls.incrementAndGet();
+                SingleFlightTest.this.started.countDown();
+                SingleFlightTest.this.release.await();
+                if (result == null) {
+                    throw new IllegalArgumentException("failed");
+                }
+
+                return result;
+            }
+        };
+
+        final Callable<String> execute = new Callable<String>() {
+            @Override
+            public String call() {
+                return SingleFlightTest.this.singleFlight.execute("key", callable);
+            }
+        };
+
+        final Future<String> first = this.executor.submit(execute);
+        assertTrue(this.started.await(5, TimeUnit.SECONDS));
+        final Future<String> second = this.executor.submit(execute);
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (this.singleFlight.getSharedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        this.release.countDown();
+
+        return new Future<?>[] { first, second };
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.util.SingleFlight#execute(java.lang.Object, java.util.concurrent.Callable)}
+     * .
+     */
+    public final void testExecuteShared() throws Exception {
+        final Future<?>[] futures = startCalls("result");
+
+        assertEquals("result", futures[0].get(5, TimeUnit.SECONDS));
+        assertEquals("result", futures[1].get(5, TimeUnit.SECONDS));
+        assertEquals(1, this.calls.get());
+        assertEquals(1, this.singleFlight.getSharedCount());
+        assertEquals(0, this.singleFlight.getInFlightCount());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.util.SingleFlight#execute(java.lang.Object, java.util.concurrent.Callable)}
+     * .
+     */
+    public final void testExecuteSharedException() throws Exception {
+        final Future<?>[] futures = startCalls(null);
+
+        for (final Future<?> future : futures) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail("ExecutionException expected");
+            } catch (final ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalArgumentException);
+            }
+        }
+        assertEquals(1, this.calls.get());
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.util.SingleFlight#execute(java.lang.Object, java.util.concurrent.Callable)}
+     * .
+     */
+    public final void testExecuteNotCached() {
+        final Callable<String> callable = new Callable<String>() {
+            @Override
+            public String call() {
+                return String.valueOf(SingleFlightTest.this.calls.incrementAndGet());
+            }
+        };
+
+        assertEquals("1", this.singleFlight.execute("key", callable));
+        assertEquals("2", this.singleFlight.execute("key", callable));
+    }
+
+    /**
+     * Test method for
+     * {@link org.springframework.security.providers.ldap.ad.util.SingleFlight#credentialKey(java.lang.String, java.lang.String)}
+     * .
+     */
+    public final void testCredentialKey() {
+        assertEquals(SingleFlight.credentialKey("Bob", "secret"),
+            SingleFlight.credentialKey("bob", "secret"));
+        assertFalse(SingleFlight.credentialKey("bob", "secret")
+            .equals(SingleFlight.credentialKey("bob", "other")));
+        assertFalse(SingleFlight.credentialKey("bob", "secret").contains("secret"));
+        // SHA-256 of "secret", hex-encoded
+        assertEquals("bob:2bb80d537b1da3e38bd30361aa855686bde0eacd7162fef6a25fe97bf527a25b",
+            SingleFlight.credentialKey("bob", "secret"));
+    }
+}